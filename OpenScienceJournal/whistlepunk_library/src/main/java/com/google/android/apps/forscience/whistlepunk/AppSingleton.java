@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.view.Choreographer;
 import androidx.annotation.NonNull;
 import com.google.android.apps.forscience.ble.BleClient;
 import com.google.android.apps.forscience.ble.BleClientImpl;
@@ -31,8 +32,12 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentLib
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncManager;
 import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.UptimeClock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SegmentSensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 import com.google.android.apps.forscience.whistlepunk.sensors.VelocitySensor;
 import com.google.common.base.Optional;
 import io.reactivex.Maybe;
@@ -41,6 +46,7 @@ import io.reactivex.Observer;
 import io.reactivex.Single;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -48,6 +54,11 @@ import java.util.concurrent.Executors;
 
 public class AppSingleton {
   private static final String SENSOR_DATABASE_NAME = "sensors.db";
+  private static final String SENSOR_SEGMENTS_DIRECTORY_NAME = "sensor_segments";
+  private static final String SENSOR_SPILL_DIRECTORY_NAME = "sensor_spill";
+  // Live readings from every sensor are committed together, in one transaction per batch.
+  private static final String LIVE_READINGS_LANE = "liveReadings";
+  private static final int SENSOR_DATA_READER_THREADS = 2;
   private static final String TAG = "AppSingleton";
   private static AppSingleton instance;
   private final Context applicationContext;
@@ -57,6 +68,7 @@ public class AppSingleton {
       new HashMap<>();
 
   private static Executor uiThreadExecutor = null;
+  private static Executor uiFrameExecutor = null;
   private final Map<AppAccount, SensorAppearanceProviderImpl> sensorAppearanceProviders =
       new HashMap<>();
   private final Clock currentTimeClock = new CurrentTimeClock();
@@ -126,6 +138,23 @@ public class AppSingleton {
     return uiThreadExecutor;
   }
 
+  /**
+   * Returns an executor that runs commands on the UI thread at the start of the next frame, for
+   * work that should happen at most once per screen refresh.
+   */
+  public static Executor getUiFrameExecutor() {
+    if (uiFrameExecutor == null) {
+      final Executor uiThread = getUiThreadExecutor();
+      uiFrameExecutor =
+          command ->
+              uiThread.execute(
+                  () ->
+                      Choreographer.getInstance()
+                          .postFrameCallback(frameTimeNanos -> command.run()));
+    }
+    return uiFrameExecutor;
+  }
+
   public static AppSingleton getInstance(Context context) {
     if (instance == null) {
       instance = new AppSingleton(context);
@@ -145,23 +174,67 @@ public class AppSingleton {
   private DataControllerImpl internalGetDataController(AppAccount appAccount) {
     DataControllerImpl dataController = dataControllers.get(appAccount);
     if (dataController == null) {
+      SensorDatabase sensorDatabase = createSensorDatabase(appAccount);
+      SensorDataScheduler sensorDataScheduler = createSensorDataScheduler(sensorDatabase);
+      ScalarReadingWriteQueue writeQueue =
+          new ScalarReadingWriteQueue(
+              sensorDatabase,
+              sensorDataScheduler.forLane(LIVE_READINGS_LANE),
+              new SystemScheduler(),
+              new UptimeClock(),
+              WhistlePunkApplication.getPerfTrackerProvider(applicationContext),
+              ScalarReadingWriteQueue.DEFAULT_MAX_BATCH_SIZE,
+              ScalarReadingWriteQueue.DEFAULT_MAX_DELAY,
+              ScalarReadingWriteQueue.DEFAULT_CAPACITY,
+              new File(appAccount.getFilesDir(), SENSOR_SPILL_DIRECTORY_NAME),
+              Executors.newSingleThreadExecutor());
       dataController =
           new DataControllerImpl(
               applicationContext,
               appAccount,
-              new SensorDatabaseImpl(applicationContext, appAccount, SENSOR_DATABASE_NAME),
+              sensorDatabase,
               getUiThreadExecutor(),
               Executors.newSingleThreadExecutor(),
-              Executors.newSingleThreadExecutor(),
+              sensorDataScheduler,
               new SimpleMetaDataManager(applicationContext, appAccount),
               getDefaultClock(),
               getExternalSensorProviders(),
-              getSensorConnector());
+              getSensorConnector(),
+              writeQueue);
       dataControllers.put(appAccount, dataController);
     }
     return dataController;
   }
 
+  /**
+   * Start committing any live sensor readings that are waiting to be batched, for every account.
+   * Called when the app leaves the foreground, since the process may be killed after that.
+   */
+  public void flushPendingScalarReadings() {
+    for (DataControllerImpl dataController : dataControllers.values()) {
+      dataController.flushScalarReadings();
+    }
+  }
+
+  private SensorDataScheduler createSensorDataScheduler(SensorDatabase sensorDatabase) {
+    if (sensorDatabase instanceof SensorDatabaseImpl) {
+      // SQLite, in write-ahead logging mode, can be read while it's being written.
+      return new PrioritySensorDataScheduler(SENSOR_DATA_READER_THREADS);
+    }
+    // SegmentSensorDatabase must only be used from one thread at a time.
+    return new SerialSensorDataScheduler(Executors.newSingleThreadExecutor());
+  }
+
+  private SensorDatabase createSensorDatabase(AppAccount appAccount) {
+    SensorDatabaseImpl sqliteDatabase =
+        new SensorDatabaseImpl(applicationContext, appAccount, SENSOR_DATABASE_NAME);
+    if (DevOptionsFragment.isSegmentSensorStoreEnabled(applicationContext)) {
+      return new SegmentSensorDatabase(
+          new File(appAccount.getFilesDir(), SENSOR_SEGMENTS_DIRECTORY_NAME), sqliteDatabase);
+    }
+    return sqliteDatabase;
+  }
+
   public SensorAppearanceProvider getSensorAppearanceProvider(AppAccount appAccount) {
     SensorAppearanceProviderImpl sensorAppearanceProvider =
         sensorAppearanceProviders.get(appAccount);
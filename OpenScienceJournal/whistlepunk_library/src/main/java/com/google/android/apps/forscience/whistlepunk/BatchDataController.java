@@ -17,6 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -44,11 +45,24 @@ public class BatchDataController implements RecordingDataController, Closeable {
     }
   }
 
+  @Override
+  public void addScalarStatsBucket(
+      String trialId,
+      String sensorId,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats) {
+    // There's one of these per zoomBufferSize readings, so they aren't worth batching.
+    dataController.addScalarStatsBucket(
+        trialId, sensorId, resolutionTier, bucketStartMillis, stats);
+  }
+
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
     dataController.addScalarReadings(readings);
   }
 
+  @Override
   public void flushScalarReadings() {
     dataController.addScalarReadings(readings);
     readings = new ArrayList<>();
@@ -29,13 +29,15 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -53,16 +55,60 @@ public interface DataController {
       int maxRecords,
       MaybeConsumer<ScalarReadingList> onSuccess);
 
+  /**
+   * Get readings from {@code databaseTag} in {@code timeRange}, reduced to what's needed to draw
+   * them {@code targetPixels} wide.
+   *
+   * @see com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#getDownsampledScalarReadings
+   */
+  void getDownsampledScalarReadings(
+      String trialId,
+      String databaseTag,
+      TimeRange timeRange,
+      int targetPixels,
+      MaybeConsumer<ScalarReadingList> onSuccess);
+
+  /**
+   * Get stats for all of the readings from {@code databaseTag} in {@code timeRange}, without
+   * loading them all.
+   */
+  void getScalarStats(
+      String trialId,
+      String databaseTag,
+      TimeRange timeRange,
+      MaybeConsumer<ScalarStats> onSuccess);
+
   // TODO: refactor to remove the interface inconsistency here.
 
-  /** Unlike all other DataController methods, this one calls onSuccess on the background thread. */
-  void getScalarReadingProtosInBackground(
+  /**
+   * Writes a ScalarSensorData proto with all of the experiment's sensor data to {@code file},
+   * streaming it from the database a block at a time.
+   *
+   * <p>Unlike all other DataController methods, this one calls onSuccess on the background thread.
+   */
+  void writeScalarReadingProtosInBackground(
+      GoosciExperiment.Experiment experiment, File file, final MaybeConsumer<Success> onSuccess);
+
+  /**
+   * Like {@link #writeScalarReadingProtosInBackground(GoosciExperiment.Experiment, File,
+   * MaybeConsumer)}, but writes to {@code outputStream}, which is left open.
+   */
+  void writeScalarReadingProtosInBackground(
       GoosciExperiment.Experiment experiment,
-      final MaybeConsumer<GoosciScalarSensorData.ScalarSensorData> onSuccess);
+      OutputStream outputStream,
+      final MaybeConsumer<Success> onSuccess);
 
   Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorIds, TimeRange timeRange, final int resolutionTier);
 
+  /**
+   * Returns the readings of {@code sensorIds}, merged in time order; see {@link
+   * com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#createScalarFlowable}.
+   * Readings are read on the sensor data thread, only as fast as they are requested.
+   */
+  Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorIds, TimeRange timeRange, int resolutionTier);
+
   void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess);
 
   void createExperiment(MaybeConsumer<Experiment> onSuccess);
@@ -73,6 +119,12 @@ public interface DataController {
 
   void getExperimentById(String experimentId, MaybeConsumer<Experiment> onSuccess);
 
+  /**
+   * Starts loading an experiment that is likely to be opened soon, such as one the user just
+   * tapped, so that a following {@link #getExperimentById} is quicker.
+   */
+  void preloadExperiment(String experimentId);
+
   void experimentExists(
       String experimentId, MaybeConsumer<Boolean> onSuccess);
 
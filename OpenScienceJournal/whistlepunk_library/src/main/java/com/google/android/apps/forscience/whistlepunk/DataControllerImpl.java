@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
+import androidx.annotation.Nullable;
 import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.javalib.MaybeConsumer;
@@ -37,26 +38,32 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Range;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.schedulers.Schedulers;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 
@@ -67,7 +74,7 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   private final SensorDatabase sensorDatabase;
   private final Executor uiThread;
   private final Executor metaDataThread;
-  private final Executor sensorDataThread;
+  private final SensorDataScheduler sensorDataScheduler;
   private MetaDataManager metaDataManager;
   private Clock clock;
   private Map<String, FailureListener> sensorFailureListeners = new HashMap<>();
@@ -75,6 +82,7 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   private long prevLabelTimestamp = 0;
   private Map<String, WeakReference<Experiment>> cachedExperiments = new HashMap<>();
   private ConnectableSensor.Connector connector;
+  @Nullable private final ScalarReadingWriteQueue writeQueue;
 
   public DataControllerImpl(
       Context context,
@@ -87,16 +95,95 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       Clock clock,
       Map<String, SensorProvider> providerMap,
       ConnectableSensor.Connector connector) {
+    this(
+        context,
+        appAccount,
+        sensorDatabase,
+        uiThread,
+        metaDataThread,
+        sensorDataThread,
+        metaDataManager,
+        clock,
+        providerMap,
+        connector,
+        null);
+  }
+
+  /**
+   * @param writeQueue if non-null, live readings from {@link #addScalarReading} are batched through
+   *     this queue (which must commit on {@code sensorDataThread}) instead of being written one at
+   *     a time.
+   */
+  public DataControllerImpl(
+      Context context,
+      AppAccount appAccount,
+      SensorDatabase sensorDatabase,
+      Executor uiThread,
+      Executor metaDataThread,
+      Executor sensorDataThread,
+      MetaDataManager metaDataManager,
+      Clock clock,
+      Map<String, SensorProvider> providerMap,
+      ConnectableSensor.Connector connector,
+      @Nullable ScalarReadingWriteQueue writeQueue) {
+    this(
+        context,
+        appAccount,
+        sensorDatabase,
+        uiThread,
+        metaDataThread,
+        new SerialSensorDataScheduler(sensorDataThread),
+        metaDataManager,
+        clock,
+        providerMap,
+        connector,
+        writeQueue);
+  }
+
+  /**
+   * @param sensorDataScheduler runs all the work on {@code sensorDatabase}
+   * @param writeQueue if non-null, live readings from {@link #addScalarReading} are batched through
+   *     this queue (which must commit through a lane of {@code sensorDataScheduler}) instead of
+   *     being written one at a time.
+   */
+  public DataControllerImpl(
+      Context context,
+      AppAccount appAccount,
+      SensorDatabase sensorDatabase,
+      Executor uiThread,
+      Executor metaDataThread,
+      SensorDataScheduler sensorDataScheduler,
+      MetaDataManager metaDataManager,
+      Clock clock,
+      Map<String, SensorProvider> providerMap,
+      ConnectableSensor.Connector connector,
+      @Nullable ScalarReadingWriteQueue writeQueue) {
     this.context = context;
     this.appAccount = appAccount;
     this.sensorDatabase = sensorDatabase;
     this.uiThread = uiThread;
     this.metaDataThread = metaDataThread;
-    this.sensorDataThread = sensorDataThread;
+    this.sensorDataScheduler = sensorDataScheduler;
     this.metaDataManager = metaDataManager;
     this.clock = clock;
     this.providerMap = providerMap;
     this.connector = connector;
+    this.writeQueue = writeQueue;
+    if (writeQueue != null) {
+      writeQueue.setWriteFailureListener(
+          (batch, e) -> {
+            Set<String> sensorIds = new HashSet<>();
+            for (BatchInsertScalarReading reading : batch) {
+              sensorIds.add(reading.sensorId);
+            }
+            uiThread.execute(
+                () -> {
+                  for (String sensorId : sensorIds) {
+                    notifyFailureListener(sensorId, e);
+                  }
+                });
+          });
+    }
   }
 
   public void replaceSensorInExperiment(
@@ -139,7 +226,8 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   }
 
   private void removeTrialSensorData(final Trial trial) {
-    sensorDataThread.execute(
+    flushScalarReadings();
+    sensorDataScheduler.forBackgroundWrites().execute(
         () -> {
           long firstTimestamp = trial.getOriginalFirstTimestamp();
           long lastTimestamp = trial.getOriginalLastTimestamp();
@@ -157,7 +245,23 @@ public class DataControllerImpl implements DataController, RecordingDataControll
 
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
-    sensorDataThread.execute(
+    // Each sensor's readings are written in its own lane, in the order they were given.
+    Map<String, List<BatchInsertScalarReading>> readingsBySensor = new LinkedHashMap<>();
+    for (BatchInsertScalarReading reading : readings) {
+      List<BatchInsertScalarReading> sensorReadings = readingsBySensor.get(reading.sensorId);
+      if (sensorReadings == null) {
+        sensorReadings = new ArrayList<>();
+        readingsBySensor.put(reading.sensorId, sensorReadings);
+      }
+      sensorReadings.add(reading);
+    }
+    for (Map.Entry<String, List<BatchInsertScalarReading>> entry : readingsBySensor.entrySet()) {
+      addScalarReadingsInLane(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void addScalarReadingsInLane(String sensorId, List<BatchInsertScalarReading> readings) {
+    sensorDataScheduler.forLane(sensorId).execute(
         new Runnable() {
           @Override
           public void run() {
@@ -176,6 +280,24 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
   }
 
+  @Override
+  public void addScalarStatsBucket(
+      final String trialId,
+      final String sensorId,
+      final int resolutionTier,
+      final long bucketStartMillis,
+      final ScalarStats stats) {
+    sensorDataScheduler.forLane(sensorId).execute(
+        () -> {
+          try {
+            sensorDatabase.addScalarStatsBucket(
+                trialId, sensorId, resolutionTier, bucketStartMillis, stats);
+          } catch (final Exception e) {
+            uiThread.execute(() -> notifyFailureListener(sensorId, e));
+          }
+        });
+  }
+
   @Override
   public void addScalarReading(
       final String trialId,
@@ -183,7 +305,11 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       final int resolutionTier,
       final long timestampMillis,
       final double value) {
-    sensorDataThread.execute(
+    if (writeQueue != null) {
+      writeQueue.add(trialId, sensorId, resolutionTier, timestampMillis, value);
+      return;
+    }
+    sensorDataScheduler.forLane(sensorId).execute(
         new Runnable() {
           @Override
           public void run() {
@@ -203,6 +329,19 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
   }
 
+  @Override
+  public void flushScalarReadings() {
+    if (writeQueue != null) {
+      writeQueue.flush();
+    }
+  }
+
+  /** Returns the write-behind queue's counters, or null if readings are not being batched. */
+  @Nullable
+  public ScalarReadingWriteQueue.Metrics getWriteQueueMetrics() {
+    return writeQueue == null ? null : writeQueue.getMetrics();
+  }
+
   private void notifyFailureListener(String sensorId, Exception e) {
     FailureListener listener = sensorFailureListeners.get(sensorId);
     if (listener != null) {
@@ -219,8 +358,9 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       final int maxRecords,
       final MaybeConsumer<ScalarReadingList> onSuccess) {
     Preconditions.checkNotNull(databaseTag);
+    flushScalarReadings();
     background(
-        sensorDataThread,
+        sensorDataScheduler.forReads(),
         onSuccess,
         new Callable<ScalarReadingList>() {
           @Override
@@ -232,13 +372,69 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   }
 
   @Override
-  public void getScalarReadingProtosInBackground(
+  public void getDownsampledScalarReadings(
+      final String trialId,
+      final String databaseTag,
+      final TimeRange timeRange,
+      final int targetPixels,
+      final MaybeConsumer<ScalarReadingList> onSuccess) {
+    Preconditions.checkNotNull(databaseTag);
+    flushScalarReadings();
+    background(
+        sensorDataScheduler.forReads(),
+        onSuccess,
+        () ->
+            sensorDatabase.getDownsampledScalarReadings(
+                trialId, databaseTag, timeRange, targetPixels));
+  }
+
+  @Override
+  public void getScalarStats(
+      final String trialId,
+      final String databaseTag,
+      final TimeRange timeRange,
+      final MaybeConsumer<ScalarStats> onSuccess) {
+    Preconditions.checkNotNull(databaseTag);
+    flushScalarReadings();
+    background(
+        sensorDataScheduler.forReads(),
+        onSuccess,
+        () -> sensorDatabase.getScalarStats(trialId, databaseTag, timeRange));
+  }
+
+  @Override
+  public void writeScalarReadingProtosInBackground(
+      GoosciExperiment.Experiment experiment, File file, final MaybeConsumer<Success> onSuccess) {
+    Preconditions.checkNotNull(experiment);
+    flushScalarReadings();
+    sensorDataScheduler.forBackgroundReads().execute(
+        () -> {
+          try (FileOutputStream sensorStream = new FileOutputStream(file)) {
+            sensorDatabase.writeScalarReadingProtos(experiment, null, sensorStream);
+          } catch (IOException e) {
+            onSuccess.fail(e);
+            return;
+          }
+          onSuccess.success(Success.SUCCESS);
+        });
+  }
+
+  @Override
+  public void writeScalarReadingProtosInBackground(
       GoosciExperiment.Experiment experiment,
-      final MaybeConsumer<GoosciScalarSensorData.ScalarSensorData> onSuccess) {
+      OutputStream outputStream,
+      final MaybeConsumer<Success> onSuccess) {
     Preconditions.checkNotNull(experiment);
-    sensorDataThread.execute(
+    flushScalarReadings();
+    sensorDataScheduler.forBackgroundReads().execute(
         () -> {
-          onSuccess.success(sensorDatabase.getScalarReadingProtos(experiment));
+          try {
+            sensorDatabase.writeScalarReadingProtos(experiment, null, outputStream);
+          } catch (IOException e) {
+            onSuccess.fail(e);
+            return;
+          }
+          onSuccess.success(Success.SUCCESS);
         });
   }
 
@@ -248,9 +444,19 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       final String[] sensorIds,
       final TimeRange timeRange,
       final int resolutionTier) {
+    flushScalarReadings();
     return sensorDatabase
         .createScalarObservable(trialId, sensorIds, timeRange, resolutionTier)
-        .observeOn(Schedulers.from(sensorDataThread));
+        .observeOn(Schedulers.from(sensorDataScheduler.forReads()));
+  }
+
+  @Override
+  public Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorIds, TimeRange timeRange, int resolutionTier) {
+    flushScalarReadings();
+    return sensorDatabase
+        .createScalarFlowable(trialId, sensorIds, timeRange, resolutionTier)
+        .subscribeOn(Schedulers.from(sensorDataScheduler.forReads()));
   }
 
   @Override
@@ -375,6 +581,16 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
   }
 
+  @Override
+  public void preloadExperiment(final String experimentId) {
+    WeakReference<Experiment> cached = cachedExperiments.get(experimentId);
+    if (cached != null && cached.get() != null) {
+      // Already in memory.
+      return;
+    }
+    metaDataThread.execute(() -> metaDataManager.preloadExperiment(experimentId));
+  }
+
   @Override
   public void experimentExists(
       final String experimentId, final MaybeConsumer<Boolean> onSuccess) {
@@ -985,9 +1201,6 @@ public class DataControllerImpl implements DataController, RecordingDataControll
                     new Callable<File>() {
                       @Override
                       public File call() throws Exception {
-                        GoosciScalarSensorData.ScalarSensorData proto =
-                            sensorDatabase.getScalarReadingProtosForTrial(
-                                experiment.getExperimentProto(), trialId);
                         File sensorProtoFile =
                             new File(
                                 FileMetadataUtil.getInstance()
@@ -996,7 +1209,8 @@ public class DataControllerImpl implements DataController, RecordingDataControll
                                 FileMetadataUtil.getInstance().getTrialProtoFileName(trialId));
                         try (FileOutputStream sensorStream =
                             new FileOutputStream(sensorProtoFile)) {
-                          proto.writeTo(sensorStream);
+                          sensorDatabase.writeScalarReadingProtos(
+                              experiment.getExperimentProto(), trialId, sensorStream);
                           return sensorProtoFile;
                         } catch (IOException ioException) {
                           return null;
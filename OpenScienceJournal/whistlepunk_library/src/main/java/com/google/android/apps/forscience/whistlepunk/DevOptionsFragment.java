@@ -39,6 +39,7 @@ public class DevOptionsFragment extends PreferenceFragment {
   public static final String KEY_AMBIENT_TEMPERATURE_SENSOR = "enable_ambient_temp_sensor";
   private static final String KEY_PERF_DEBUG_SCREEN = "show_perf_tracker_debug";
   public static final String KEY_SMOOTH_SCROLL = "enable_smooth_scrolling_to_bottom";
+  private static final String KEY_SEGMENT_SENSOR_STORE = "use_segment_sensor_store";
 
   public static DevOptionsFragment newInstance() {
     return new DevOptionsFragment();
@@ -122,6 +123,10 @@ public class DevOptionsFragment extends PreferenceFragment {
     return getBoolean(KEY_SMOOTH_SCROLL, true, context);
   }
 
+  public static boolean isSegmentSensorStoreEnabled(Context context) {
+    return getBoolean(KEY_SEGMENT_SENSOR_STORE, false, context);
+  }
+
   private static boolean getBoolean(String key, boolean defaultBool, Context context) {
     if (!isDebugVersion()) {
       return defaultBool;
@@ -41,9 +41,9 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.FileProvider;
-import androidx.collection.ArrayMap;
 import android.util.Log;
 import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.javalib.MaybeConsumers;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
@@ -52,24 +52,21 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.project.experiment.UpdateExperimentFragment;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.android.material.snackbar.Snackbar;
 import com.google.common.base.Strings;
-import com.google.common.collect.Range;
 import io.reactivex.Observable;
-import io.reactivex.Observer;
 import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
@@ -388,21 +385,76 @@ public class ExportService extends Service {
     Trial trial = experiment.getTrial(trialId);
 
     String fileName = makeCSVExportFilename(experiment.getDisplayTitle(this), trial.getTitle(this));
-    // Start observing sensor data from here, while grouping them into timestamp equal rows.
-    // Then write the rows out.
-    Range<Long> range = Range.closed(trial.getFirstTimestamp(), trial.getLastTimestamp());
-    dc.createScalarObservable(trialId, sensorIds, TimeRange.oldest(range), 0 /* resolution
-        tier */)
-        .doOnComplete(() -> stopSelf(startId))
-        .observeOn(Schedulers.io())
-        .subscribe(
-            new TrialDataWriter(
-                trialId,
-                fileName,
-                relativeTime,
-                sensorIds,
-                trial.getFirstTimestamp(),
-                trial.getLastTimestamp()));
+    // Read each sensor's data a page at a time, merging them into timestamp equal rows as we
+    // write them out.
+    TrialCsvWriter.PageSource source =
+        (sensorId, times, maxRecords) ->
+            MaybeConsumers.<ScalarReadingList>buildSingle(
+                    mc ->
+                        dc.getScalarReadings(
+                            trialId,
+                            sensorId,
+                            0 /* resolution tier */,
+                            TimeRange.oldest(times),
+                            maxRecords,
+                            mc))
+                .blockingGet();
+    if (writeTrialCsv(
+        trialId,
+        fileName,
+        relativeTime,
+        sensorIds,
+        source,
+        trial.getFirstTimestamp(),
+        trial.getLastTimestamp())) {
+      stopSelf(startId);
+    }
+  }
+
+  /**
+   * Writes the trial's data to {@code fileName} in the storage dir, reporting progress (or the
+   * error) to the progress subject.
+   *
+   * @return whether the export succeeded.
+   */
+  private boolean writeTrialCsv(
+      String trialId,
+      String fileName,
+      boolean relativeTime,
+      String[] sensorIds,
+      TrialCsvWriter.PageSource source,
+      long firstTimestamp,
+      long lastTimestamp) {
+    File storageDir = getStorageDir();
+
+    // Create the storage directory if it does not exist
+    if (!storageDir.exists()) {
+      if (!storageDir.mkdirs()) {
+        Log.e(TAG, "failed to create directory");
+        updateProgress(
+            ExportProgress.fromThrowable(
+                trialId, new IOException("Could not create dir " + storageDir.getAbsolutePath())));
+        return false;
+      }
+    }
+
+    File file = new File(storageDir.getPath(), fileName);
+    updateProgress(new ExportProgress(trialId, ExportProgress.EXPORTING, 0));
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file))) {
+      new TrialCsvWriter(writer, sensorIds, relativeTime)
+          .write(
+              source,
+              firstTimestamp,
+              lastTimestamp,
+              percent ->
+                  updateProgress(new ExportProgress(trialId, ExportProgress.EXPORTING, percent)));
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Trial export failed: " + e.toString());
+      updateProgress(ExportProgress.fromThrowable(trialId, e));
+      return false;
+    }
+    updateProgress(ExportProgress.getComplete(trialId, getFileUri(fileName)));
+    return true;
   }
 
   /**
@@ -884,153 +936,4 @@ public class ExportService extends Service {
       AppSingleton.getInstance(context).setExportServiceBusy(false);
     }
   }
-
-  private class TrialDataWriter implements Observer<ScalarReading> {
-
-    private final long firstTimeStamp;
-    private final long lastTimeStamp;
-    private long currentTimestamp = -1;
-    private long firstTimeStampWritten = -1;
-
-    private ArrayMap<String, Double> currentRow = new ArrayMap<>();
-    private OutputStreamWriter outputStreamWriter;
-    private final String fileName;
-    private final boolean relativeTime;
-    private final String[] sensorIds;
-    private final String trialId;
-
-    public TrialDataWriter(
-        String trialId,
-        String fileName,
-        boolean relativeTime,
-        String[] sensorIds,
-        long firstTimeStamp,
-        long lastTimeStamp) {
-      this.trialId = trialId;
-      this.fileName = fileName;
-      this.relativeTime = relativeTime;
-      this.sensorIds = sensorIds;
-      this.firstTimeStamp = firstTimeStamp;
-      this.lastTimeStamp = lastTimeStamp;
-    }
-
-    @Override
-    public void onSubscribe(Disposable disposable) {
-      // Start writing stream.
-      File storageDir = getStorageDir();
-
-      // Create the storage directory if it does not exist
-      if (!storageDir.exists()) {
-        if (!storageDir.mkdirs()) {
-          Log.e(TAG, "failed to create directory");
-          onError(new IOException("Could not create dir " + storageDir.getAbsolutePath()));
-          return;
-        }
-      }
-
-      File file = new File(storageDir.getPath(), fileName);
-      FileOutputStream fs;
-      try {
-        fs = new FileOutputStream(file);
-      } catch (FileNotFoundException e) {
-        onError(e);
-        return;
-      }
-
-      outputStreamWriter = new OutputStreamWriter(fs);
-      try {
-        outputStreamWriter.write(relativeTime ? "relative_time" : "timestamp");
-        // Loop through sensor IDs and output them here as column names.
-        for (int index = 0, length = sensorIds.length; index < length; ++index) {
-          outputStreamWriter.write(",");
-          outputStreamWriter.write(sensorIds[index].replace(",", "_"));
-        }
-        outputStreamWriter.write("\n");
-      } catch (IOException e) {
-        onError(e);
-        return;
-      }
-      updateProgress(new ExportProgress(trialId, ExportProgress.EXPORTING, 0));
-    }
-
-    @Override
-    public void onNext(ScalarReading scalarReading) {
-      // Check if we have a different timestamp than the current row.
-      if (scalarReading.getCollectedTimeMillis() != currentTimestamp) {
-        if (currentRow != null && currentTimestamp != -1) {
-          writeRow();
-        }
-        currentRow.clear();
-      }
-      // If not, just add to current row.
-      currentRow.put(scalarReading.getSensorTag(), scalarReading.getValue());
-      if (currentTimestamp == -1) {
-        firstTimeStampWritten = scalarReading.getCollectedTimeMillis();
-      }
-      currentTimestamp = scalarReading.getCollectedTimeMillis();
-      int progress =
-          (int)
-              (((currentTimestamp - firstTimeStamp) / (double) (lastTimeStamp - firstTimeStamp))
-                  * 100);
-      updateProgress(new ExportProgress(trialId, ExportProgress.EXPORTING, progress));
-    }
-
-    @Override
-    public void onError(Throwable throwable) {
-      // End writing stream.
-      closeStreamIfNecessary();
-      updateProgress(ExportProgress.fromThrowable(trialId, throwable));
-    }
-
-    @Override
-    public void onComplete() {
-      // Write the last row if necessary.
-      if (!currentRow.isEmpty()) {
-        writeRow();
-      }
-
-      // End writing stream.
-      closeStreamIfNecessary();
-      updateProgress(ExportProgress.getComplete(trialId, getFileUri(fileName)));
-    }
-
-    private void writeRow() {
-      // If so, if current row, then write it out (the old one)!
-      try {
-        if (outputStreamWriter == null) {
-          onError(new IllegalStateException("Output stream closed."));
-        }
-        outputStreamWriter.write(getTimestampString(currentTimestamp));
-        for (int index = 0, length = sensorIds.length; index < length; ++index) {
-          String value = "";
-          if (currentRow.containsKey(sensorIds[index])) {
-            value = Double.toString(currentRow.get(sensorIds[index]));
-          }
-          outputStreamWriter.write(",");
-          outputStreamWriter.write(value);
-        }
-        outputStreamWriter.write("\n");
-      } catch (IOException e) {
-        onError(e);
-      }
-    }
-
-    private String getTimestampString(long time) {
-      return Long.toString(relativeTime ? time - firstTimeStampWritten : time);
-    }
-
-    private void closeStreamIfNecessary() {
-      if (outputStreamWriter != null) {
-        try {
-          outputStreamWriter.close();
-        } catch (IOException e) {
-          Log.e(TAG, "File close failed: " + e.toString());
-          onError(e);
-          return;
-        } finally {
-          outputStreamWriter = null;
-        }
-      }
-    }
-  }
 }
@@ -102,7 +102,7 @@ public class GraphPopulator {
                   requestInFlight = false;
                   if (graphStatus.graphIsStillValid()) {
                     final Pair<Range<Long>, Range<Double>> received =
-                        addObservationsToDisplay(observations);
+                        getObservedRanges(observations);
                     if (received.first != null) {
                       observationDisplay.addRange(observations, received.second, requestId);
                     }
@@ -120,41 +120,89 @@ public class GraphPopulator {
                 public void addToRequestedTimes(Range<Long> effectiveAdded) {
                   requestedTimes = Ranges.span(requestedTimes, effectiveAdded);
                 }
+              }));
+    }
+    return;
+  }
 
-                public Pair<Range<Long>, Range<Double>> addObservationsToDisplay(
-                    ScalarReadingList observations) {
-                  List<ScalarReading> points = ScalarReading.slurp(observations);
-                  long xMin = Long.MAX_VALUE;
-                  long xMax = Long.MIN_VALUE;
-                  double yMin = Double.MAX_VALUE;
-                  double yMax = Double.MIN_VALUE;
-                  Range<Long> timeRange = null;
-                  Range<Double> valueRange = null;
-                  for (ScalarReading point : points) {
-                    if (point.getCollectedTimeMillis() < xMin) {
-                      xMin = point.getCollectedTimeMillis();
-                    }
-                    if (point.getCollectedTimeMillis() > xMax) {
-                      xMax = point.getCollectedTimeMillis();
-                    }
-                    if (point.getValue() < yMin) {
-                      yMin = point.getValue();
-                    }
-                    if (point.getValue() > yMax) {
-                      yMax = point.getValue();
-                    }
-                  }
-                  if (xMin <= xMax) {
-                    timeRange = Range.closed(xMin, xMax);
-                  }
-                  if (yMin <= yMax) {
-                    valueRange = Range.closed(yMin, yMax);
+  /**
+   * Like {@link #requestObservations}, but fetches the whole range at once, reduced to {@code
+   * targetPixels} columns' worth of points by {@link
+   * DataController#getDownsampledScalarReadings}. However long the range, this is a single,
+   * bounded-size request.
+   *
+   * <p>Call only on the UI thread.
+   */
+  public void requestDownsampledObservations(
+      final GraphStatus graphStatus,
+      final DataController dataController,
+      final FailureListener failureListener,
+      final int targetPixels,
+      final String trialId,
+      final String sensorId) {
+    if (requestInFlight) {
+      return;
+    }
+    final TimeRange r = getRequestRange(graphStatus);
+    if (r == null) {
+      observationDisplay.onFinish(requestId);
+      return;
+    }
+    requestInFlight = true;
+    dataController.getDownsampledScalarReadings(
+        trialId,
+        sensorId,
+        r,
+        targetPixels,
+        MaybeConsumers.chainFailure(
+            failureListener,
+            new FallibleConsumer<ScalarReadingList>() {
+              @Override
+              public void take(ScalarReadingList observations) {
+                requestInFlight = false;
+                if (graphStatus.graphIsStillValid()) {
+                  Pair<Range<Long>, Range<Double>> received = getObservedRanges(observations);
+                  if (received.first != null) {
+                    observationDisplay.addRange(observations, received.second, requestId);
                   }
-                  return new Pair<>(timeRange, valueRange);
+                  requestedTimes =
+                      Ranges.span(requestedTimes, r.getTimes().canonical(DiscreteDomain.longs()));
+                  observationDisplay.onFinish(requestId);
                 }
-              }));
+              }
+            }));
+  }
+
+  private static Pair<Range<Long>, Range<Double>> getObservedRanges(
+      ScalarReadingList observations) {
+    List<ScalarReading> points = ScalarReading.slurp(observations);
+    long xMin = Long.MAX_VALUE;
+    long xMax = Long.MIN_VALUE;
+    double yMin = Double.MAX_VALUE;
+    double yMax = Double.MIN_VALUE;
+    Range<Long> timeRange = null;
+    Range<Double> valueRange = null;
+    for (ScalarReading point : points) {
+      if (point.getCollectedTimeMillis() < xMin) {
+        xMin = point.getCollectedTimeMillis();
+      }
+      if (point.getCollectedTimeMillis() > xMax) {
+        xMax = point.getCollectedTimeMillis();
+      }
+      if (point.getValue() < yMin) {
+        yMin = point.getValue();
+      }
+      if (point.getValue() > yMax) {
+        yMax = point.getValue();
+      }
     }
-    return;
+    if (xMin <= xMax) {
+      timeRange = Range.closed(xMin, xMax);
+    }
+    if (yMin <= yMax) {
+      valueRange = Range.closed(yMin, yMax);
+    }
+    return new Pair<>(timeRange, valueRange);
   }
 
   private TimeRange getRequestRange(GraphStatus graphStatus) {
@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs writes on one thread and reads on a pool of others, so that a slow query or export never
+ * holds up live recording. The database must allow reads while it's being written, as SQLite does
+ * in write-ahead logging mode.
+ *
+ * <p>The writer thread takes one task from each lane with work in turn, so that a busy sensor
+ * can't hold up the others, and only runs background writes when no lane has work. SQLite only
+ * allows one writer at a time, so more writer threads would just wait on each other.
+ *
+ * <p>Reads are run in priority order, background reads last. Before it runs, each read waits for
+ * the writes that were submitted before it, so that (for example) a chart queried after flushing
+ * the live readings sees them. Writes never wait for reads.
+ */
+public class PrioritySensorDataScheduler implements SensorDataScheduler {
+  private static final String TAG = "SensorDataScheduler";
+  private static final int PRIORITY_READ = 0;
+  private static final int PRIORITY_BACKGROUND_READ = 1;
+  private static final long NOT_RUNNING = Long.MAX_VALUE;
+
+  /** A task, numbered in the order it was submitted among all tasks. */
+  private static class Task {
+    final long sequence;
+    final Runnable runnable;
+
+    Task(long sequence, Runnable runnable) {
+      this.sequence = sequence;
+      this.runnable = runnable;
+    }
+  }
+
+  private class ReadTask extends Task implements Runnable, Comparable<ReadTask> {
+    final int priority;
+
+    ReadTask(long sequence, int priority, Runnable runnable) {
+      super(sequence, runnable);
+      this.priority = priority;
+    }
+
+    @Override
+    public void run() {
+      try {
+        awaitWritesBefore(sequence);
+      } catch (InterruptedException e) {
+        // Shutting down.
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        runnable.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Sensor data read failed", e);
+      }
+    }
+
+    @Override
+    public int compareTo(ReadTask other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final Object lock = new Object();
+
+  // All of the following are guarded by lock.
+  // Each lane's tasks are only here while it has some.
+  private final Map<String, ArrayDeque<Task>> lanes = new HashMap<>();
+  // Lanes with tasks, in the order they get their next turn on the writer thread.
+  private final ArrayDeque<String> readyLanes = new ArrayDeque<>();
+  private final ArrayDeque<Task> backgroundWrites = new ArrayDeque<>();
+  private long nextSequence = 0;
+  private long runningWrite = NOT_RUNNING;
+  private boolean shutDown = false;
+
+  private final ThreadPoolExecutor readers;
+
+  /** @param readerThreads how many reads can run at once, at least 1 */
+  public PrioritySensorDataScheduler(int readerThreads) {
+    new Thread(this::runWrites, "sensor-data-writer").start();
+    readers =
+        new ThreadPoolExecutor(
+            readerThreads,
+            readerThreads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(),
+            r ->
+                new Thread(
+                    () -> {
+                      // Below the writer, which records live data.
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      r.run();
+                    },
+                    "sensor-data-reader"));
+  }
+
+  @Override
+  public Executor forLane(String lane) {
+    return command -> submitWrite(lane, command);
+  }
+
+  @Override
+  public Executor forBackgroundWrites() {
+    return command -> submitWrite(null, command);
+  }
+
+  @Override
+  public Executor forReads() {
+    return command -> submitRead(PRIORITY_READ, command);
+  }
+
+  @Override
+  public Executor forBackgroundReads() {
+    return command -> submitRead(PRIORITY_BACKGROUND_READ, command);
+  }
+
+  /** Number of writes that haven't finished yet, in every lane and in the background. */
+  public int getPendingWriteCount() {
+    synchronized (lock) {
+      int count = backgroundWrites.size() + (runningWrite == NOT_RUNNING ? 0 : 1);
+      for (ArrayDeque<Task> tasks : lanes.values()) {
+        count += tasks.size();
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Stops accepting work. What has already been submitted still runs, but a read that's still
+   * waiting for writes may not.
+   */
+  public void shutdown() {
+    synchronized (lock) {
+      shutDown = true;
+      lock.notifyAll();
+    }
+    readers.shutdown();
+  }
+
+  private void submitWrite(String lane, Runnable command) {
+    synchronized (lock) {
+      if (shutDown) {
+        throw new RejectedExecutionException("Sensor data scheduler is shut down");
+      }
+      Task task = new Task(nextSequence++, command);
+      if (lane == null) {
+        backgroundWrites.add(task);
+      } else {
+        ArrayDeque<Task> tasks = lanes.get(lane);
+        if (tasks == null) {
+          tasks = new ArrayDeque<>();
+          lanes.put(lane, tasks);
+          readyLanes.add(lane);
+        }
+        tasks.add(task);
+      }
+      lock.notifyAll();
+    }
+  }
+
+  private void submitRead(int priority, Runnable command) {
+    long sequence;
+    synchronized (lock) {
+      if (shutDown) {
+        throw new RejectedExecutionException("Sensor data scheduler is shut down");
+      }
+      sequence = nextSequence++;
+    }
+    readers.execute(new ReadTask(sequence, priority, command));
+  }
+
+  private void runWrites() {
+    while (true) {
+      Task task;
+      synchronized (lock) {
+        while (readyLanes.isEmpty() && backgroundWrites.isEmpty()) {
+          if (shutDown) {
+            return;
+          }
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        String lane = readyLanes.poll();
+        if (lane != null) {
+          ArrayDeque<Task> tasks = lanes.get(lane);
+          task = tasks.poll();
+          if (tasks.isEmpty()) {
+            lanes.remove(lane);
+          } else {
+            readyLanes.add(lane);
+          }
+        } else {
+          task = backgroundWrites.poll();
+        }
+        runningWrite = task.sequence;
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Sensor data write failed", e);
+      }
+      synchronized (lock) {
+        runningWrite = NOT_RUNNING;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void awaitWritesBefore(long sequence) throws InterruptedException {
+    synchronized (lock) {
+      while (getOldestUnfinishedWrite() < sequence) {
+        lock.wait();
+      }
+    }
+  }
+
+  /** Must be called holding lock. */
+  private long getOldestUnfinishedWrite() {
+    // Each lane is in submission order, so only the first task of each needs checking.
+    long oldest = runningWrite;
+    for (ArrayDeque<Task> tasks : lanes.values()) {
+      oldest = Math.min(oldest, tasks.peek().sequence);
+    }
+    if (!backgroundWrites.isEmpty()) {
+      oldest = Math.min(oldest, backgroundWrites.peek().sequence);
+    }
+    return oldest;
+  }
+}
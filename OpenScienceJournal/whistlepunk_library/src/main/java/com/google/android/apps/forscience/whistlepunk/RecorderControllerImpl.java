@@ -23,6 +23,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.Log;
 import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.javalib.Delay;
 import com.google.android.apps.forscience.javalib.FallibleConsumer;
@@ -48,7 +49,6 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTrigg
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSnapshotValue;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSnapshotValue.SnapshotLabelValue.SensorSnapshot;
 import com.google.android.apps.forscience.whistlepunk.metadata.TriggerHelper;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
@@ -131,7 +131,10 @@ public class RecorderControllerImpl implements RecorderController {
   private Supplier<List<SensorLayoutPojo>> layoutSupplier;
 
   /** The latest recorded value for each sensor */
-  private Map<String, BehaviorSubject<ScalarReading>> latestValues = new HashMap<>();
+  private Map<String, LatestValue> latestValues = new HashMap<>();
+
+  /** The compiled triggers for each sensor with a service observer */
+  private Map<String, TriggerEvaluator> triggerEvaluators = new HashMap<>();
 
   public RecorderControllerImpl(Context context, AppAccount appAccount) {
     this(context, appAccount, AppSingleton.getInstance(context).getDataController(appAccount));
@@ -244,37 +247,61 @@ public class RecorderControllerImpl implements RecorderController {
       final List<SensorTrigger> activeTriggers,
       SensorRegistry sensorRegistry) {
     if (!latestValues.containsKey(sensorId)) {
-      latestValues.put(sensorId, BehaviorSubject.<ScalarReading>create());
+      latestValues.put(sensorId, new LatestValue(sensorId));
     }
 
     if (!serviceObservers.containsKey(sensorId)) {
+      final LatestValue latestValue = latestValues.get(sensorId);
+      // Triggers are evaluated on the sensor's thread, against every reading, and acted on here.
+      final TriggerEvaluator evaluator =
+          new TriggerEvaluator(
+              activeTriggers,
+              (trigger, timestamp) ->
+                  scheduler.schedule(
+                      Delay.ZERO,
+                      () -> {
+                        trigger.updateLastUsed();
+                        fireSensorTrigger(trigger, timestamp, sensorRegistry);
+                      }));
+      // The triggers are now in use in a card.
+      evaluator.updateLastUsed();
+      removeTriggerEvaluator(sensorId);
+      triggerEvaluators.put(sensorId, evaluator);
+
+      // Listens to every reading, since the UI is only given some of them when it falls behind.
       String serviceObserverId =
-          registry.putListeners(
+          registry.putReadingListener(
               sensorId,
-              (timestamp, data) -> {
-                if (!ScalarSensor.hasValue(data)) {
-                  return;
-                }
-                double value = ScalarSensor.getValue(data);
-
+              (timestamp, value) -> {
                 // Remember latest value
-                latestValues.get(sensorId).onNext(new ScalarReading(timestamp, value, sensorId));
+                latestValue.set(timestamp, value);
 
                 // Fire triggers.
-                for (SensorTrigger trigger : activeTriggers) {
-                  if (!isRecording() && trigger.shouldTriggerOnlyWhenRecording()) {
-                    continue;
-                  }
-                  if (trigger.isTriggered(value)) {
-                    fireSensorTrigger(trigger, timestamp, sensorRegistry);
-                  }
-                }
-              },
-              null);
+                evaluator.evaluate(timestamp, value, isRecording());
+              });
       serviceObservers.put(sensorId, serviceObserverId);
     }
   }
 
+  private void removeTriggerEvaluator(String sensorId) {
+    TriggerEvaluator evaluator = triggerEvaluators.remove(sensorId);
+    if (evaluator == null) {
+      return;
+    }
+    // This is the last time the triggers were used in this card.
+    evaluator.updateLastUsed();
+    if (Log.isLoggable(TAG, Log.DEBUG) && evaluator.getEvaluationCount() > 0) {
+      Log.d(
+          TAG,
+          String.format(
+              "Evaluated %d triggers for %s %d times, %.0f ns each",
+              evaluator.getTriggerCount(),
+              sensorId,
+              evaluator.getEvaluationCount(),
+              evaluator.getAverageEvaluationNanos()));
+    }
+  }
+
   private List<SensorLayoutPojo> buildSensorLayouts() {
     return layoutSupplier == null
         ? Collections.<SensorLayoutPojo>emptyList()
@@ -467,6 +494,7 @@ public class RecorderControllerImpl implements RecorderController {
           registry.remove(sensorId, serviceObserverId);
           serviceObservers.remove(sensorId);
           latestValues.remove(sensorId);
+          removeTriggerEvaluator(sensorId);
         }
       }
     }
@@ -759,12 +787,12 @@ public class RecorderControllerImpl implements RecorderController {
 
   private MaybeSource<SensorSnapshot> makeSnapshot(String sensorId, SensorRegistry sensorRegistry)
       throws Exception {
-    BehaviorSubject<ScalarReading> subject = latestValues.get(sensorId);
-    if (subject == null) {
+    LatestValue latestValue = latestValues.get(sensorId);
+    if (latestValue == null) {
       return Maybe.empty();
     }
     final GoosciSensorSpec.SensorSpec spec = getSensorSpec(sensorId, sensorRegistry);
-    return subject.firstElement().map(value -> generateSnapshot(spec, value));
+    return latestValue.get().map(value -> generateSnapshot(spec, value));
   }
 
   private GoosciSnapshotValue.SnapshotLabelValue buildSnapshotLabelValue(
@@ -946,4 +974,42 @@ public class RecorderControllerImpl implements RecorderController {
   public AppAccount getAppAccount() {
     return appAccount;
   }
+
+  /**
+   * The latest value of a sensor, kept as primitives so that remembering a value doesn't allocate.
+   * A ScalarReading is only created when a snapshot asks for it.
+   */
+  private static class LatestValue {
+    private final String sensorId;
+    // Emits the first value, for snapshots taken before there was one.
+    private final BehaviorSubject<ScalarReading> first = BehaviorSubject.create();
+    private boolean hasValue = false;
+    private long timestamp;
+    private double value;
+
+    LatestValue(String sensorId) {
+      this.sensorId = sensorId;
+    }
+
+    void set(long timestamp, double value) {
+      boolean isFirst;
+      synchronized (this) {
+        isFirst = !hasValue;
+        hasValue = true;
+        this.timestamp = timestamp;
+        this.value = value;
+      }
+      if (isFirst) {
+        first.onNext(new ScalarReading(timestamp, value, sensorId));
+      }
+    }
+
+    /** The latest value, or the first one once there is one. */
+    synchronized Maybe<ScalarReading> get() {
+      if (hasValue) {
+        return Maybe.just(new ScalarReading(timestamp, value, sensorId));
+      }
+      return first.firstElement();
+    }
+  }
 }
@@ -16,6 +16,7 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadingListener;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.common.collect.HashMultimap;
@@ -26,6 +27,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Routes information flowing back from the recorders to the listeners (if any) in the foreground
@@ -34,7 +36,9 @@ import java.util.Map;
  * <p>Is itself a SensorStatusListener, and makes routing SensorObservers that can be handed to
  * recorders so that recorders don't have to care about UI elements coming and going.
  *
- * <p>These methods should all only be called on the service's main thread.
+ * <p>These methods should all only be called on the service's main thread. The exception is the
+ * {@link ReadingListener} side of the routing observers, which recorders call on the sensor's
+ * thread.
  */
 public class RecorderListenerRegistry implements SensorStatusListener {
   private Multimap<String, ListenerSet> listeners = HashMultimap.create();
@@ -52,6 +56,10 @@ public class RecorderListenerRegistry implements SensorStatusListener {
     }
   }
 
+  // Read on the sensors' threads, so each array is replaced rather than modified.
+  private final Map<String, ReadingListener[]> readingListeners = new ConcurrentHashMap<>();
+  private final Map<String, ReadingListener> readingListenersById = new HashMap<>();
+
   private Map<String, Integer> currentStatus = new HashMap<>();
   private Map<String, Boolean> currentErrors = new HashMap<>();
   private int observerCount = 0;
@@ -112,7 +120,46 @@ public class RecorderListenerRegistry implements SensorStatusListener {
     return observerId;
   }
 
+  /**
+   * Adds a listener that is given every reading of the sensor, on the sensor's thread, rather than
+   * only those the UI has time for. It counts as one of the sensor's listeners until removed with
+   * {@link #remove}.
+   */
+  public String putReadingListener(String sensorId, ReadingListener readingListener) {
+    String observerId = putListeners(sensorId, null, null);
+    readingListenersById.put(observerId, readingListener);
+    ReadingListener[] old = readingListeners.get(sensorId);
+    int count = old == null ? 0 : old.length;
+    ReadingListener[] updated = new ReadingListener[count + 1];
+    if (old != null) {
+      System.arraycopy(old, 0, updated, 0, count);
+    }
+    updated[count] = readingListener;
+    readingListeners.put(sensorId, updated);
+    return observerId;
+  }
+
+  private void removeReadingListener(String sensorId, String observerId) {
+    ReadingListener readingListener = readingListenersById.remove(observerId);
+    ReadingListener[] old = readingListeners.get(sensorId);
+    if (readingListener == null || old == null) {
+      return;
+    }
+    List<ReadingListener> remaining = new ArrayList<>();
+    for (ReadingListener listener : old) {
+      if (listener != readingListener) {
+        remaining.add(listener);
+      }
+    }
+    if (remaining.isEmpty()) {
+      readingListeners.remove(sensorId);
+    } else {
+      readingListeners.put(sensorId, remaining.toArray(new ReadingListener[remaining.size()]));
+    }
+  }
+
   public void remove(String sensorId, String observerId) {
+    removeReadingListener(sensorId, observerId);
     Collection<ListenerSet> sensorListeners = listeners.get(sensorId);
     Iterator<ListenerSet> iterator = sensorListeners.iterator();
     while (iterator.hasNext()) {
@@ -139,16 +186,37 @@ public class RecorderListenerRegistry implements SensorStatusListener {
 
   /**
    * Returns a new SensorObserver that routes new data to the currently-active UI listener, if any,
-   * for the given sensor.
+   * for the given sensor. It is also a {@link ReadingListener}, routing every reading to the
+   * listeners added with {@link #putReadingListener}.
    */
   public SensorObserver makeObserverForRecorder(final String sensorId) {
-    return new SensorObserver() {
-      @Override
-      public void onNewData(long timestamp, Data bundle) {
-        for (ListenerSet set : listeners.get(sensorId)) {
+    return new RoutingObserver(sensorId);
+  }
+
+  private class RoutingObserver implements SensorObserver, ReadingListener {
+    private final String sensorId;
+
+    RoutingObserver(String sensorId) {
+      this.sensorId = sensorId;
+    }
+
+    @Override
+    public void onNewData(long timestamp, Data bundle) {
+      for (ListenerSet set : listeners.get(sensorId)) {
+        if (set.observer != null) {
           set.observer.onNewData(timestamp, bundle);
         }
       }
-    };
+    }
+
+    @Override
+    public void onReading(long timestampMillis, double value) {
+      ReadingListener[] current = readingListeners.get(sensorId);
+      if (current != null) {
+        for (ReadingListener listener : current) {
+          listener.onReading(timestampMillis, value);
+        }
+      }
+    }
   }
 }
@@ -17,6 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import java.util.List;
 
 /** Data interface for sensor recorders */
@@ -33,9 +34,27 @@ public interface RecordingDataController {
       long timestampMillis,
       double value);
 
+  /**
+   * @see
+   *     com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#addScalarStatsBucket(String,
+   *     String, int, long, ScalarStats)
+   */
+  void addScalarStatsBucket(
+      String trialId,
+      String sensorId,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats);
+
   /** Add all of the scalar readings in the list. */
   void addScalarReadings(List<BatchInsertScalarReading> readings);
 
+  /**
+   * Push any readings this controller is holding back for batching on towards storage. Called when
+   * a recording stops, so the trial's data is complete before it is reviewed.
+   */
+  void flushScalarReadings();
+
   /**
    * If an error is encountered storing data or stats for {@code sensorId}, notify {@code listener}
    */
@@ -50,6 +50,10 @@ public class RxDataController {
         mc -> dc.updateExperiment(e.getExperimentId(), shouldMarkDirty, mc));
   }
 
+  public static Completable saveImmediately(DataController dc) {
+    return MaybeConsumers.buildCompleteable(mc -> dc.saveImmediately(mc));
+  }
+
   public static Completable deleteExperiment(DataController dc, Experiment e) {
     return MaybeConsumers.buildCompleteable(mc -> dc.deleteExperiment(e, mc));
   }
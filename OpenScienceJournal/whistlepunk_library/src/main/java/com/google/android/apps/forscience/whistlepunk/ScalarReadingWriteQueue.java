@@ -0,0 +1,624 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.util.Log;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Write-behind queue for live scalar readings.
+ *
+ * <p>Readings from every recording sensor (tier 0 and every {@link
+ * com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder} tier) are coalesced here
+ * and committed to the {@link SensorDatabase} in a single transaction, once either {@code
+ * maxBatchSize} readings are pending or {@code maxDelay} has passed since the first pending
+ * reading, whichever comes first.
+ *
+ * <p>At most one drain task is queued on the storage executor at any time, so if the database falls
+ * behind, the batches get bigger rather than the executor queue getting longer.
+ *
+ * <p>{@link #add} never blocks, since it's called from the main thread, Bluetooth callbacks and
+ * binder threads, and never drops a reading. Once {@code capacity} readings are waiting in memory,
+ * later readings are spilled to files in {@code spillDirectory}, one batch per file, and committed
+ * in order after the ones in memory. Memory stays bounded while storage catches up.
+ */
+public class ScalarReadingWriteQueue {
+  public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  public static final Delay DEFAULT_MAX_DELAY = Delay.millis(1000);
+  public static final int DEFAULT_CAPACITY = 20 * DEFAULT_MAX_BATCH_SIZE;
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+  private static final String TAG = "ScalarWriteQueue";
+  private static final String SPILL_FILE_PREFIX = "spill-";
+
+  /** Notified on the storage executor when a batch could not be committed. */
+  public interface WriteFailureListener {
+    void onWriteFailed(List<BatchInsertScalarReading> batch, Exception e);
+  }
+
+  /** A point-in-time snapshot of the queue's counters. */
+  public static class Metrics {
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long commitCount;
+    private final long committedReadings;
+    private final int lastBatchSize;
+    private final int largestBatchSize;
+    private final long lastCommitLatencyMillis;
+    private final long maxCommitLatencyMillis;
+    private final int capacity;
+    private final long spilledReadings;
+    private final int spillDepth;
+
+    private Metrics(
+        int queueDepth,
+        int maxQueueDepth,
+        long commitCount,
+        long committedReadings,
+        int lastBatchSize,
+        int largestBatchSize,
+        long lastCommitLatencyMillis,
+        long maxCommitLatencyMillis,
+        int capacity,
+        long spilledReadings,
+        int spillDepth) {
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.commitCount = commitCount;
+      this.committedReadings = committedReadings;
+      this.lastBatchSize = lastBatchSize;
+      this.largestBatchSize = largestBatchSize;
+      this.lastCommitLatencyMillis = lastCommitLatencyMillis;
+      this.maxCommitLatencyMillis = maxCommitLatencyMillis;
+      this.capacity = capacity;
+      this.spilledReadings = spilledReadings;
+      this.spillDepth = spillDepth;
+    }
+
+    /** Number of readings waiting in memory to be committed. */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    /** Largest number of readings that have been waiting at once. */
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    /** Number of transactions committed so far. */
+    public long getCommitCount() {
+      return commitCount;
+    }
+
+    /** Total number of readings handed to the database so far. */
+    public long getCommittedReadings() {
+      return committedReadings;
+    }
+
+    public int getLastBatchSize() {
+      return lastBatchSize;
+    }
+
+    public int getLargestBatchSize() {
+      return largestBatchSize;
+    }
+
+    public long getLastCommitLatencyMillis() {
+      return lastCommitLatencyMillis;
+    }
+
+    public long getMaxCommitLatencyMillis() {
+      return maxCommitLatencyMillis;
+    }
+
+    /** Most readings that can wait in memory before later ones are spilled. */
+    public int getCapacity() {
+      return capacity;
+    }
+
+    /** Number of readings that have been spilled so far, because the queue was full. */
+    public long getSpilledReadings() {
+      return spilledReadings;
+    }
+
+    /** Number of spilled readings waiting to be committed. */
+    public int getSpillDepth() {
+      return spillDepth;
+    }
+
+    /** Average number of readings per transaction, or 0 if nothing has been committed. */
+    public double getAverageBatchSize() {
+      return commitCount == 0 ? 0 : ((double) committedReadings) / commitCount;
+    }
+
+    @Override
+    public String toString() {
+      return "Metrics{"
+          + "queueDepth="
+          + queueDepth
+          + ", maxQueueDepth="
+          + maxQueueDepth
+          + ", commitCount="
+          + commitCount
+          + ", committedReadings="
+          + committedReadings
+          + ", lastBatchSize="
+          + lastBatchSize
+          + ", largestBatchSize="
+          + largestBatchSize
+          + ", lastCommitLatencyMillis="
+          + lastCommitLatencyMillis
+          + ", maxCommitLatencyMillis="
+          + maxCommitLatencyMillis
+          + ", capacity="
+          + capacity
+          + ", spilledReadings="
+          + spilledReadings
+          + ", spillDepth="
+          + spillDepth
+          + '}';
+    }
+  }
+
+  private final SensorDatabase database;
+  private final Executor storageExecutor;
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final PerfTrackerProvider perfTracker;
+  private final int maxBatchSize;
+  private final Delay maxDelay;
+  private final int capacity;
+  private final File spillDirectory;
+  private final Executor spillExecutor;
+  private WriteFailureListener failureListener = null;
+
+  private final Object lock = new Object();
+
+  // All of the following are guarded by lock.
+  private List<BatchInsertScalarReading> pending = new ArrayList<>();
+  private boolean drainQueued = false;
+  private boolean timeoutScheduled = false;
+  private int maxQueueDepth = 0;
+  private long commitCount = 0;
+  private long committedReadings = 0;
+  private int lastBatchSize = 0;
+  private int largestBatchSize = 0;
+  private long lastCommitLatencyMillis = 0;
+  private long maxCommitLatencyMillis = 0;
+  // Once anything is spilled, every later reading is spilled too until the spill is committed, so
+  // that readings are committed in the order they were added.
+  private final ArrayDeque<SpillChunk> spilled = new ArrayDeque<>();
+  private SpillChunk filling = null;
+  private long nextSpillSequence = 0;
+  private long spilledReadings = 0;
+  private int spillDepth = 0;
+
+  private final Runnable drainTask = this::drain;
+
+  private final Runnable timeoutTask =
+      () -> {
+        synchronized (lock) {
+          timeoutScheduled = false;
+        }
+        requestDrain();
+      };
+
+  /**
+   * @param database where readings end up. Only ever called from {@code storageExecutor}.
+   * @param storageExecutor the executor that owns {@code database}; must run tasks in order.
+   * @param scheduler used to enforce {@code maxDelay}
+   * @param clock used to measure commit latency
+   * @param perfTracker receives commit latency as {@link
+   *     TrackerConstants#PRIMES_SENSOR_DATA_COMMITTED} timer events
+   * @param maxBatchSize number of pending readings that triggers an immediate commit
+   * @param maxDelay longest a reading can wait before being committed
+   */
+  public ScalarReadingWriteQueue(
+      SensorDatabase database,
+      Executor storageExecutor,
+      Scheduler scheduler,
+      Clock clock,
+      PerfTrackerProvider perfTracker,
+      int maxBatchSize,
+      Delay maxDelay) {
+    this(
+        database,
+        storageExecutor,
+        scheduler,
+        clock,
+        perfTracker,
+        maxBatchSize,
+        maxDelay,
+        UNBOUNDED,
+        null,
+        null);
+  }
+
+  /**
+   * @param capacity number of readings that can wait in memory before later ones are spilled; at
+   *     least {@code maxBatchSize}, or {@link #UNBOUNDED} to never spill
+   * @param spillDirectory where spilled readings are kept until they're committed. Owned by this
+   *     queue: anything left there from an earlier process is deleted.
+   * @param spillExecutor does the file I/O for spilling; must run tasks in order. Not the storage
+   *     executor, so that spilling keeps up while storage is slow.
+   */
+  public ScalarReadingWriteQueue(
+      SensorDatabase database,
+      Executor storageExecutor,
+      Scheduler scheduler,
+      Clock clock,
+      PerfTrackerProvider perfTracker,
+      int maxBatchSize,
+      Delay maxDelay,
+      int capacity,
+      File spillDirectory,
+      Executor spillExecutor) {
+    this.database = database;
+    this.storageExecutor = storageExecutor;
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.perfTracker = perfTracker;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = maxDelay;
+    this.capacity = Math.max(capacity, maxBatchSize);
+    this.spillDirectory = spillDirectory;
+    this.spillExecutor = spillExecutor;
+    if (this.capacity != UNBOUNDED) {
+      spillExecutor.execute(this::deleteStaleSpillFiles);
+    }
+  }
+
+  public void setWriteFailureListener(WriteFailureListener failureListener) {
+    this.failureListener = failureListener;
+  }
+
+  /** Queue a reading to be written. Safe to call from any thread, and never blocks. */
+  public void add(
+      String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+    boolean startTimeout = false;
+    boolean drainNow;
+    synchronized (lock) {
+      if (filling != null || !spilled.isEmpty() || pending.size() >= capacity) {
+        // pending filled up, so its drain has already been requested.
+        spill(trialId, sensorId, resolutionTier, timestampMillis, value);
+        return;
+      }
+      pending.add(
+          new BatchInsertScalarReading(trialId, sensorId, resolutionTier, timestampMillis, value));
+      int depth = pending.size();
+      if (depth > maxQueueDepth) {
+        maxQueueDepth = depth;
+      }
+      if (depth == 1 && !timeoutScheduled) {
+        timeoutScheduled = true;
+        startTimeout = true;
+      }
+      drainNow = depth >= maxBatchSize;
+    }
+    if (drainNow) {
+      requestDrain();
+    } else if (startTimeout) {
+      scheduler.schedule(maxDelay, timeoutTask);
+    }
+  }
+
+  /**
+   * Commit everything queued so far. The commit itself happens on the storage executor, so any task
+   * submitted to that executor after this call returns will see the flushed readings.
+   */
+  public void flush() {
+    requestDrain();
+  }
+
+  /** Must be called holding lock. */
+  private void spill(
+      String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+    if (filling == null) {
+      filling = new SpillChunk(nextSpillSequence++, maxBatchSize);
+    }
+    filling.add(trialId, sensorId, resolutionTier, timestampMillis, value);
+    spilledReadings++;
+    spillDepth++;
+    if (filling.isFull()) {
+      SpillChunk full = filling;
+      spilled.add(full);
+      filling = null;
+      spillExecutor.execute(() -> writeSpillFile(full));
+    }
+  }
+
+  public Metrics getMetrics() {
+    synchronized (lock) {
+      return new Metrics(
+          pending.size(),
+          maxQueueDepth,
+          commitCount,
+          committedReadings,
+          lastBatchSize,
+          largestBatchSize,
+          lastCommitLatencyMillis,
+          maxCommitLatencyMillis,
+          capacity,
+          spilledReadings,
+          spillDepth);
+    }
+  }
+
+  private void requestDrain() {
+    synchronized (lock) {
+      if (drainQueued || (pending.isEmpty() && spillDepth == 0)) {
+        return;
+      }
+      drainQueued = true;
+    }
+    storageExecutor.execute(drainTask);
+  }
+
+  private void drain() {
+    while (true) {
+      List<BatchInsertScalarReading> batch = null;
+      SpillChunk chunk;
+      synchronized (lock) {
+        if (!pending.isEmpty()) {
+          batch = pending;
+          pending = new ArrayList<>();
+          chunk = null;
+        } else if (!spilled.isEmpty()) {
+          chunk = spilled.poll();
+        } else if (filling != null) {
+          chunk = filling;
+          filling = null;
+        } else {
+          drainQueued = false;
+          return;
+        }
+        if (chunk != null) {
+          chunk.taken = true;
+          spillDepth -= chunk.size();
+          if (chunk.isInMemory()) {
+            batch = chunk.toBatch();
+          }
+        }
+      }
+      if (batch == null) {
+        batch = readSpillFile(chunk);
+      }
+      if (batch != null) {
+        commit(batch);
+      }
+    }
+  }
+
+  /** Runs on the spill executor. */
+  private void writeSpillFile(SpillChunk chunk) {
+    synchronized (lock) {
+      if (chunk.taken) {
+        return;
+      }
+    }
+    File file = new File(spillDirectory, SPILL_FILE_PREFIX + chunk.sequence);
+    try {
+      spillDirectory.mkdirs();
+      chunk.writeTo(file);
+    } catch (IOException e) {
+      // Keep it in memory instead.
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Could not spill readings to " + file, e);
+      }
+      file.delete();
+      return;
+    }
+    synchronized (lock) {
+      if (chunk.taken) {
+        // Committed from memory while it was being written.
+        file.delete();
+      } else {
+        chunk.releaseToFile(file);
+      }
+    }
+  }
+
+  /** Runs on the storage executor. Returns null if the readings are lost. */
+  private List<BatchInsertScalarReading> readSpillFile(SpillChunk chunk) {
+    try {
+      return chunk.readFrom(chunk.file);
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Lost " + chunk.size() + " spilled readings from " + chunk.file, e);
+      }
+      return null;
+    } finally {
+      chunk.file.delete();
+    }
+  }
+
+  /** Runs on the spill executor, before anything is spilled. */
+  private void deleteStaleSpillFiles() {
+    File[] files = spillDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().startsWith(SPILL_FILE_PREFIX)) {
+        file.delete();
+      }
+    }
+  }
+
+  private void commit(List<BatchInsertScalarReading> batch) {
+    PerfTrackerProvider.TimerToken token = perfTracker.startTimer();
+    long start = clock.getNow();
+    try {
+      database.addScalarReadings(batch);
+    } catch (Exception e) {
+      if (failureListener != null) {
+        failureListener.onWriteFailed(batch, e);
+      }
+    }
+    long latency = clock.getNow() - start;
+    perfTracker.stopTimer(token, TrackerConstants.PRIMES_SENSOR_DATA_COMMITTED);
+
+    synchronized (lock) {
+      commitCount++;
+      committedReadings += batch.size();
+      lastBatchSize = batch.size();
+      if (lastBatchSize > largestBatchSize) {
+        largestBatchSize = lastBatchSize;
+      }
+      lastCommitLatencyMillis = latency;
+      if (latency > maxCommitLatencyMillis) {
+        maxCommitLatencyMillis = latency;
+      }
+    }
+  }
+
+  /**
+   * Up to one batch of spilled readings, in columns. Filled in memory, then written to its own file
+   * once full, at which point the columns are released. Guarded by the queue's lock, except that
+   * the columns of a full chunk never change and can be read without it.
+   */
+  private static class SpillChunk {
+    final long sequence;
+    private String[] trialIds;
+    private String[] sensorIds;
+    private int[] resolutionTiers;
+    private long[] timestamps;
+    private double[] values;
+    private int size = 0;
+    File file = null;
+    boolean taken = false;
+
+    SpillChunk(long sequence, int capacity) {
+      this.sequence = sequence;
+      trialIds = new String[capacity];
+      sensorIds = new String[capacity];
+      resolutionTiers = new int[capacity];
+      timestamps = new long[capacity];
+      values = new double[capacity];
+    }
+
+    void add(
+        String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+      trialIds[size] = trialId;
+      sensorIds[size] = sensorId;
+      resolutionTiers[size] = resolutionTier;
+      timestamps[size] = timestampMillis;
+      values[size] = value;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isFull() {
+      return size == timestamps.length;
+    }
+
+    boolean isInMemory() {
+      return timestamps != null;
+    }
+
+    List<BatchInsertScalarReading> toBatch() {
+      List<BatchInsertScalarReading> batch = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        batch.add(
+            new BatchInsertScalarReading(
+                trialIds[i], sensorIds[i], resolutionTiers[i], timestamps[i], values[i]));
+      }
+      return batch;
+    }
+
+    void writeTo(File file) throws IOException {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+          // Readings mostly share their ids, so only write them when they change.
+          boolean sameIds =
+              i > 0
+                  && Objects.equals(trialIds[i], trialIds[i - 1])
+                  && Objects.equals(sensorIds[i], sensorIds[i - 1]);
+          out.writeBoolean(sameIds);
+          if (!sameIds) {
+            writeNullableString(out, trialIds[i]);
+            writeNullableString(out, sensorIds[i]);
+          }
+          out.writeInt(resolutionTiers[i]);
+          out.writeLong(timestamps[i]);
+          out.writeDouble(values[i]);
+        }
+      }
+    }
+
+    void releaseToFile(File file) {
+      this.file = file;
+      trialIds = null;
+      sensorIds = null;
+      resolutionTiers = null;
+      timestamps = null;
+      values = null;
+    }
+
+    List<BatchInsertScalarReading> readFrom(File file) throws IOException {
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        int count = in.readInt();
+        List<BatchInsertScalarReading> batch = new ArrayList<>(count);
+        String trialId = null;
+        String sensorId = null;
+        for (int i = 0; i < count; i++) {
+          if (!in.readBoolean()) {
+            trialId = readNullableString(in);
+            sensorId = readNullableString(in);
+          }
+          batch.add(
+              new BatchInsertScalarReading(
+                  trialId, sensorId, in.readInt(), in.readLong(), in.readDouble()));
+        }
+        return batch;
+      }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+      out.writeBoolean(s != null);
+      if (s != null) {
+        out.writeUTF(s);
+      }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+    }
+  }
+}
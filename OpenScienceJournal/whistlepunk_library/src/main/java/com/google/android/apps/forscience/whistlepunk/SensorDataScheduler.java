@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides where, and in what order, the work of storing and reading sensor data runs.
+ *
+ * <p>Whatever the implementation, work submitted to one lane runs in the order it was submitted,
+ * and a read sees every write (in any lane) and every background write submitted before it.
+ */
+public interface SensorDataScheduler {
+  /**
+   * Runs live writes, in order, for everything that shares {@code lane}: usually a sensor id, so
+   * that each series is written in order.
+   */
+  Executor forLane(String lane);
+
+  /** Runs writes that can wait for live writes, like deleting a trial's data. */
+  Executor forBackgroundWrites();
+
+  /** Runs reads that someone is waiting for, like the queries behind a chart. */
+  Executor forReads();
+
+  /** Runs reads that can wait for other reads, like exporting an experiment. */
+  Executor forBackgroundReads();
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs all sensor data work on one executor, in the order it was submitted, for databases that
+ * can't be read while they're being written, and for tests.
+ */
+public class SerialSensorDataScheduler implements SensorDataScheduler {
+  private final Executor executor;
+
+  /** @param executor must run tasks one at a time, in order. */
+  public SerialSensorDataScheduler(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public Executor forLane(String lane) {
+    return executor;
+  }
+
+  @Override
+  public Executor forBackgroundWrites() {
+    return executor;
+  }
+
+  @Override
+  public Executor forReads() {
+    return executor;
+  }
+
+  @Override
+  public Executor forBackgroundReads() {
+    return executor;
+  }
+}
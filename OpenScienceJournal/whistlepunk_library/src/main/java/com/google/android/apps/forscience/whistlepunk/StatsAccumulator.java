@@ -22,6 +22,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -113,13 +114,7 @@ public class StatsAccumulator {
   // Save information about the recording min, max and sum, as well as when recording
   // began and how many data points we have received, so that the stats calculation can
   // be done very efficiently.
-  private double min;
-  private double max;
-  private double sum;
-
-  private long startTimestamp = RecordingMetadata.NOT_RECORDING;
-  private long latestTimestamp = RecordingMetadata.NOT_RECORDING;
-  private int statSize;
+  private ScalarStats readingStats;
 
   private String sensorId;
 
@@ -130,49 +125,39 @@ public class StatsAccumulator {
 
   // Clears the stream stats.
   public void clearStats() {
-    min = Double.MAX_VALUE;
-    max = -Double.MAX_VALUE;
-    sum = 0;
-    startTimestamp = RecordingMetadata.NOT_RECORDING;
-    latestTimestamp = RecordingMetadata.NOT_RECORDING;
-    statSize = 0;
+    readingStats = new ScalarStats();
   }
 
   public boolean isInitialized() {
-    return statSize > 0;
+    return !readingStats.isEmpty();
   }
 
   // Update the stream stats based on the new timestamp and value.
   // Assumes that all new timestamps acquired are bigger than the recording start time.
   public void updateRecordingStreamStats(long timestampMillis, double value) {
-    latestTimestamp = timestampMillis;
-    statSize++;
-    if (startTimestamp == RecordingMetadata.NOT_RECORDING) {
-      startTimestamp = timestampMillis;
-      min = value;
-      max = value;
-      sum = value;
-    } else {
-      if (value > max) {
-        max = value;
-      } else if (value < min) {
-        min = value;
-      }
-      sum = sum + value;
-    }
+    readingStats.add(timestampMillis, value);
+  }
+
+  /** Adds in stats for a set of readings that were summarized elsewhere, such as in storage. */
+  public void addStats(ScalarStats moreStats) {
+    readingStats.add(moreStats);
   }
 
   private double getAverage() {
-    return sum / statSize;
+    return readingStats.getMean();
+  }
+
+  private long getStartTimestamp() {
+    return isInitialized() ? readingStats.getFirstTimestamp() : RecordingMetadata.NOT_RECORDING;
   }
 
   public long getLatestTimestamp() {
-    return latestTimestamp;
+    return isInitialized() ? readingStats.getLastTimestamp() : RecordingMetadata.NOT_RECORDING;
   }
 
   public void addStatsToBundle(SensorObserver.Data data) {
-    data.min = min;
-    data.max = max;
+    data.min = readingStats.getMin();
+    data.max = readingStats.getMax();
     data.average = getAverage();
   }
 
@@ -190,10 +175,12 @@ public class StatsAccumulator {
 
   public void populateTrialStats(TrialStats stats) {
     stats.setStatStatus(SensorTrialStats.StatStatus.VALID);
-    stats.putStat(GoosciTrial.SensorStat.StatType.MINIMUM, min);
-    stats.putStat(GoosciTrial.SensorStat.StatType.MAXIMUM, max);
+    stats.putStat(GoosciTrial.SensorStat.StatType.MINIMUM, readingStats.getMin());
+    stats.putStat(GoosciTrial.SensorStat.StatType.MAXIMUM, readingStats.getMax());
     stats.putStat(GoosciTrial.SensorStat.StatType.AVERAGE, getAverage());
-    stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, statSize);
-    stats.putStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, latestTimestamp - startTimestamp);
+    stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, readingStats.getCount());
+    stats.putStat(
+        GoosciTrial.SensorStat.StatType.TOTAL_DURATION,
+        getLatestTimestamp() - getStartTimestamp());
   }
 }
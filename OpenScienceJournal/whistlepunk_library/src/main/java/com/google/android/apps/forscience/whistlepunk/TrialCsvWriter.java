@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.common.collect.Range;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the readings of a trial as CSV, one row per distinct timestamp and one column per sensor.
+ *
+ * <p>Each sensor's readings are read in pages, in time order, and merged into rows. Cells are
+ * formatted straight into a reused char buffer, so once the pages are read, writing a row doesn't
+ * allocate.
+ */
+class TrialCsvWriter {
+  /** Reads one page of a sensor's readings, oldest first. */
+  interface PageSource {
+    ScalarReadingList readPage(String sensorId, Range<Long> times, int maxRecords)
+        throws IOException;
+  }
+
+  /** Told about progress through the trial, only when it reaches a new whole percentage. */
+  interface ProgressListener {
+    void onProgress(int percent);
+  }
+
+  private static final int DEFAULT_PAGE_SIZE = 2000;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Room for any single number we format into the buffer. */
+  private static final int MAX_CELL_CHARS = 32;
+
+  /**
+   * Values in this range, with few enough decimal places, are formatted without going through
+   * {@link Double#toString}. Outside it, {@link Double#toString} switches to scientific notation.
+   */
+  private static final double MIN_FAST_MAGNITUDE = 1e-3;
+
+  private static final double MAX_FAST_MAGNITUDE = 1e7;
+
+  private static final long[] POWERS_OF_TEN = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+  };
+
+  private final Writer writer;
+  private final String[] sensorIds;
+  private final boolean relativeTime;
+  private final int pageSize;
+
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int bufferLength = 0;
+
+  private final double[] rowValues;
+  private final boolean[] rowHasValue;
+
+  TrialCsvWriter(Writer writer, String[] sensorIds, boolean relativeTime) {
+    this(writer, sensorIds, relativeTime, DEFAULT_PAGE_SIZE);
+  }
+
+  TrialCsvWriter(Writer writer, String[] sensorIds, boolean relativeTime, int pageSize) {
+    this.writer = writer;
+    this.sensorIds = sensorIds;
+    this.relativeTime = relativeTime;
+    this.pageSize = Math.max(pageSize, 1);
+    rowValues = new double[sensorIds.length];
+    rowHasValue = new boolean[sensorIds.length];
+  }
+
+  /**
+   * Writes the header and a row for each timestamp with a reading in [{@code firstTimestamp},
+   * {@code lastTimestamp}], then flushes the underlying writer (but doesn't close it).
+   */
+  void write(
+      PageSource source, long firstTimestamp, long lastTimestamp, ProgressListener listener)
+      throws IOException {
+    writeHeader();
+
+    int sensorCount = sensorIds.length;
+    SensorCursor[] cursors = new SensorCursor[sensorCount];
+    for (int i = 0; i < sensorCount; i++) {
+      cursors[i] = new SensorCursor(source, sensorIds[i], firstTimestamp, lastTimestamp, pageSize);
+    }
+
+    long firstRowTimestamp = Long.MIN_VALUE;
+    int lastPercent = -1;
+    while (true) {
+      // There are rarely more than a handful of sensors, so a linear scan for the oldest head is
+      // cheaper than maintaining a heap.
+      long rowTimestamp = Long.MAX_VALUE;
+      boolean anyLeft = false;
+      for (int i = 0; i < sensorCount; i++) {
+        if (cursors[i].hasReading()) {
+          anyLeft = true;
+          rowTimestamp = Math.min(rowTimestamp, cursors[i].getTimestamp());
+        }
+      }
+      if (!anyLeft) {
+        break;
+      }
+
+      for (int i = 0; i < sensorCount; i++) {
+        SensorCursor cursor = cursors[i];
+        rowHasValue[i] = false;
+        // If a sensor has more than one reading at this timestamp, the last one wins.
+        while (cursor.hasReading() && cursor.getTimestamp() == rowTimestamp) {
+          rowValues[i] = cursor.getValue();
+          rowHasValue[i] = true;
+          cursor.advance();
+        }
+      }
+
+      if (firstRowTimestamp == Long.MIN_VALUE) {
+        firstRowTimestamp = rowTimestamp;
+      }
+      writeRow(relativeTime ? rowTimestamp - firstRowTimestamp : rowTimestamp);
+
+      int percent = getPercent(rowTimestamp, firstTimestamp, lastTimestamp);
+      if (percent != lastPercent) {
+        lastPercent = percent;
+        listener.onProgress(percent);
+      }
+    }
+    flushBuffer();
+    writer.flush();
+  }
+
+  private static int getPercent(long timestamp, long firstTimestamp, long lastTimestamp) {
+    if (lastTimestamp <= firstTimestamp) {
+      return 100;
+    }
+    return (int) (((timestamp - firstTimestamp) / (double) (lastTimestamp - firstTimestamp)) * 100);
+  }
+
+  private void writeHeader() throws IOException {
+    appendString(relativeTime ? "relative_time" : "timestamp");
+    for (String sensorId : sensorIds) {
+      appendChar(',');
+      appendString(sensorId.replace(",", "_"));
+    }
+    appendChar('\n');
+  }
+
+  private void writeRow(long timestamp) throws IOException {
+    ensureRoom(MAX_CELL_CHARS);
+    appendLong(timestamp);
+    for (int i = 0; i < rowValues.length; i++) {
+      ensureRoom(MAX_CELL_CHARS);
+      buffer[bufferLength++] = ',';
+      if (rowHasValue[i]) {
+        appendDouble(rowValues[i]);
+      }
+    }
+    appendChar('\n');
+  }
+
+  private void ensureRoom(int chars) throws IOException {
+    if (bufferLength + chars > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (bufferLength > 0) {
+      writer.write(buffer, 0, bufferLength);
+      bufferLength = 0;
+    }
+  }
+
+  private void appendChar(char c) throws IOException {
+    ensureRoom(1);
+    buffer[bufferLength++] = c;
+  }
+
+  private void appendString(String s) throws IOException {
+    for (int i = 0, length = s.length(); i < length; i++) {
+      appendChar(s.charAt(i));
+    }
+  }
+
+  /** Appends {@code value} as {@link Long#toString} would. The buffer must have room. */
+  private void appendLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      // Can't be negated.
+      appendString(Long.toString(value));
+      return;
+    }
+    if (value < 0) {
+      buffer[bufferLength++] = '-';
+      value = -value;
+    }
+    int start = bufferLength;
+    do {
+      buffer[bufferLength++] = (char) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    reverse(start, bufferLength - 1);
+  }
+
+  /** Appends {@code value} as {@link Double#toString} would. The buffer must have room. */
+  private void appendDouble(double value) throws IOException {
+    if (!appendShortDecimal(value)) {
+      appendString(Double.toString(value));
+    }
+  }
+
+  /**
+   * Appends values that are a whole number of millionths or so, which covers most sensor readings,
+   * without allocating. Uses the fewest decimal places that parse back to exactly {@code value},
+   * which is what {@link Double#toString} produces in this range.
+   *
+   * @return false, having appended nothing, if {@code value} needs the slow path
+   */
+  private boolean appendShortDecimal(double value) {
+    if (Double.isNaN(value)) {
+      return false;
+    }
+    double magnitude = Math.abs(value);
+    if (magnitude != 0 && (magnitude < MIN_FAST_MAGNITUDE || magnitude >= MAX_FAST_MAGNITUDE)) {
+      // Also rejects infinities.
+      return false;
+    }
+    for (int places = 1; places < POWERS_OF_TEN.length; places++) {
+      long scale = POWERS_OF_TEN[places];
+      // Both are below 2^53, so exact as doubles, and the division is correctly rounded.
+      long scaled = Math.round(magnitude * scale);
+      if ((double) scaled / scale != magnitude) {
+        continue;
+      }
+      if (Math.copySign(1.0, value) < 0) {
+        buffer[bufferLength++] = '-';
+      }
+      long whole = scaled / scale;
+      long fraction = scaled % scale;
+      int start = bufferLength;
+      do {
+        buffer[bufferLength++] = (char) ('0' + (whole % 10));
+        whole /= 10;
+      } while (whole > 0);
+      reverse(start, bufferLength - 1);
+      buffer[bufferLength++] = '.';
+      for (int i = places - 1; i >= 0; i--) {
+        buffer[bufferLength + i] = (char) ('0' + (fraction % 10));
+        fraction /= 10;
+      }
+      bufferLength += places;
+      return true;
+    }
+    return false;
+  }
+
+  private void reverse(int from, int to) {
+    while (from < to) {
+      char c = buffer[from];
+      buffer[from++] = buffer[to];
+      buffer[to--] = c;
+    }
+  }
+
+  /**
+   * Steps through one sensor's readings in time order, reading the next page into reused arrays
+   * when the current one runs out.
+   */
+  private static class SensorCursor implements StreamConsumer {
+    private final PageSource source;
+    private final String sensorId;
+    private final long lastTimestamp;
+    private final int pageSize;
+
+    private final long[] timestamps;
+    private final double[] values;
+    private int size = 0;
+    private int position = 0;
+    private boolean lastPage = false;
+
+    SensorCursor(
+        PageSource source, String sensorId, long firstTimestamp, long lastTimestamp, int pageSize)
+        throws IOException {
+      this.source = source;
+      this.sensorId = sensorId;
+      this.lastTimestamp = lastTimestamp;
+      this.pageSize = pageSize;
+      timestamps = new long[pageSize];
+      values = new double[pageSize];
+      if (firstTimestamp <= lastTimestamp) {
+        readPage(Range.closed(firstTimestamp, lastTimestamp));
+      } else {
+        lastPage = true;
+      }
+    }
+
+    boolean hasReading() {
+      return position < size;
+    }
+
+    long getTimestamp() {
+      return timestamps[position];
+    }
+
+    double getValue() {
+      return values[position];
+    }
+
+    void advance() throws IOException {
+      position++;
+      if (position == size && !lastPage) {
+        long pageEnd = timestamps[size - 1];
+        if (pageEnd >= lastTimestamp) {
+          lastPage = true;
+        } else {
+          readPage(Range.openClosed(pageEnd, lastTimestamp));
+        }
+      }
+    }
+
+    private void readPage(Range<Long> times) throws IOException {
+      size = 0;
+      position = 0;
+      source.readPage(sensorId, times, pageSize).deliver(this);
+      lastPage = size < pageSize;
+    }
+
+    @Override
+    public boolean addData(long timestampMillis, double value) {
+      if (size == pageSize) {
+        // The source returned more than we asked for; the rest will be in the next page.
+        return false;
+      }
+      timestamps[size] = timestampMillis;
+      values[size] = value;
+      size++;
+      return true;
+    }
+  }
+}
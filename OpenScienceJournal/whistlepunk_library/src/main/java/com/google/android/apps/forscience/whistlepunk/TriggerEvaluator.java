@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
+import java.util.List;
+
+/**
+ * Evaluates one sensor's triggers against each of its values.
+ *
+ * <p>The triggers are compiled into parallel arrays when the evaluator is created, so evaluating a
+ * value reads no protos and allocates nothing. Create a new evaluator whenever the sensor's set of
+ * triggers changes.
+ *
+ * <p>Triggers with no hysteresis and no debounce fire exactly when {@link
+ * SensorTrigger#isTriggered} would say they do. To keep a noisy signal from firing a burst, each
+ * trigger can set:
+ *
+ * <ul>
+ *   <li>Hysteresis: once a trigger on crossing a value fires, it can't fire again until the signal
+ *       has moved at least {@link SensorTrigger#getHysteresis} back past the value (or away from
+ *       it, for "at").
+ *   <li>Debounce: a trigger can't fire again within {@link SensorTrigger#getDebounceMs} of
+ *       firing.
+ * </ul>
+ *
+ * <p>{@link #evaluate} must only be called from one thread at a time, which is the sensor's thread
+ * when the evaluator listens to every reading.
+ */
+class TriggerEvaluator {
+  /** Called for each trigger that fires. */
+  interface TriggerAction {
+    void onTriggered(SensorTrigger trigger, long timestamp);
+  }
+
+  private static final int WHEN_AT = 0;
+  private static final int WHEN_DROPS_BELOW = 1;
+  private static final int WHEN_RISES_ABOVE = 2;
+  private static final int WHEN_BELOW = 3;
+  private static final int WHEN_ABOVE = 4;
+  private static final int WHEN_NEVER = 5;
+
+  // The same epsilon SensorTrigger uses for "at".
+  private static final double EPSILON = .00001;
+
+  private final SensorTrigger[] triggers;
+  private final int[] whens;
+  private final double[] valuesToTrigger;
+  private final boolean[] onlyWhenRecording;
+  private final double[] hystereses;
+  private final long[] debounceMillis;
+  private final TriggerAction action;
+
+  // State of each trigger.
+  private final boolean[] initialized;
+  private final double[] oldValues;
+  private final boolean[] armed;
+  private final boolean[] hasFired;
+  private final long[] lastFiredTimestamps;
+  // The triggers that fired for the current value, which fire after they've all been evaluated.
+  private final int[] fired;
+
+  private long evaluationCount;
+  private long evaluationNanos;
+
+  TriggerEvaluator(List<SensorTrigger> activeTriggers, TriggerAction action) {
+    int count = activeTriggers.size();
+    triggers = activeTriggers.toArray(new SensorTrigger[count]);
+    whens = new int[count];
+    valuesToTrigger = new double[count];
+    onlyWhenRecording = new boolean[count];
+    hystereses = new double[count];
+    debounceMillis = new long[count];
+    initialized = new boolean[count];
+    oldValues = new double[count];
+    armed = new boolean[count];
+    hasFired = new boolean[count];
+    lastFiredTimestamps = new long[count];
+    fired = new int[count];
+    for (int i = 0; i < count; i++) {
+      SensorTrigger trigger = triggers[i];
+      whens[i] = compileWhen(trigger);
+      valuesToTrigger[i] = trigger.getValueToTrigger();
+      onlyWhenRecording[i] = trigger.shouldTriggerOnlyWhenRecording();
+      hystereses[i] = trigger.getHysteresis();
+      debounceMillis[i] = trigger.getDebounceMs();
+      armed[i] = true;
+    }
+    this.action = action;
+  }
+
+  private static int compileWhen(SensorTrigger trigger) {
+    switch (trigger.getTriggerWhen()) {
+      case TRIGGER_WHEN_AT:
+        return WHEN_AT;
+      case TRIGGER_WHEN_DROPS_BELOW:
+        return WHEN_DROPS_BELOW;
+      case TRIGGER_WHEN_RISES_ABOVE:
+        return WHEN_RISES_ABOVE;
+      case TRIGGER_WHEN_BELOW:
+        return WHEN_BELOW;
+      case TRIGGER_WHEN_ABOVE:
+        return WHEN_ABOVE;
+      default:
+        return WHEN_NEVER;
+    }
+  }
+
+  int getTriggerCount() {
+    return triggers.length;
+  }
+
+  /** Marks every trigger as used now. */
+  void updateLastUsed() {
+    for (SensorTrigger trigger : triggers) {
+      trigger.updateLastUsed();
+    }
+  }
+
+  /**
+   * Evaluates every trigger against a new value, then calls the action for each one that fired, in
+   * order. Triggers that should only fire while recording are skipped unless {@code recording}.
+   */
+  void evaluate(long timestamp, double value, boolean recording) {
+    if (triggers.length == 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    int firedCount = 0;
+    for (int i = 0; i < triggers.length; i++) {
+      if (!recording && onlyWhenRecording[i]) {
+        continue;
+      }
+      if (isTriggered(i, timestamp, value)) {
+        fired[firedCount++] = i;
+      }
+    }
+    evaluationNanos += System.nanoTime() - start;
+    evaluationCount++;
+
+    for (int f = 0; f < firedCount; f++) {
+      action.onTriggered(triggers[fired[f]], timestamp);
+    }
+  }
+
+  private boolean isTriggered(int i, long timestamp, double newValue) {
+    if (!initialized[i]) {
+      initialized[i] = true;
+      oldValues[i] = newValue;
+      return false;
+    }
+    double valueToTrigger = valuesToTrigger[i];
+    double oldValue = oldValues[i];
+    double hysteresis = hystereses[i];
+    boolean result;
+    boolean beyondHysteresis;
+    switch (whens[i]) {
+      case WHEN_AT:
+        // Not just an equality check: also test to see if the threshold was crossed in
+        // either direction.
+        result =
+            Math.abs(newValue - valueToTrigger) < EPSILON
+                || (newValue < valueToTrigger && oldValue > valueToTrigger)
+                || (newValue > valueToTrigger && oldValue < valueToTrigger);
+        beyondHysteresis = Math.abs(newValue - valueToTrigger) >= hysteresis;
+        break;
+      case WHEN_DROPS_BELOW:
+        result = newValue < valueToTrigger && oldValue >= valueToTrigger;
+        beyondHysteresis = newValue >= valueToTrigger + hysteresis;
+        break;
+      case WHEN_RISES_ABOVE:
+        result = newValue > valueToTrigger && oldValue <= valueToTrigger;
+        beyondHysteresis = newValue <= valueToTrigger - hysteresis;
+        break;
+      case WHEN_BELOW:
+        // Like SensorTrigger, these don't remember the value; only debounce applies.
+        return isPastDebounce(i, timestamp, newValue < valueToTrigger);
+      case WHEN_ABOVE:
+        return isPastDebounce(i, timestamp, newValue > valueToTrigger);
+      default:
+        result = false;
+        beyondHysteresis = true;
+        break;
+    }
+    oldValues[i] = newValue;
+
+    if (hysteresis <= 0) {
+      return isPastDebounce(i, timestamp, result);
+    }
+    if (!armed[i] && beyondHysteresis) {
+      armed[i] = true;
+    }
+    if (isPastDebounce(i, timestamp, result && armed[i])) {
+      armed[i] = false;
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns whether a trigger whose condition is {@code result} fires, and remembers if it did. */
+  private boolean isPastDebounce(int i, long timestamp, boolean result) {
+    if (!result) {
+      return false;
+    }
+    if (debounceMillis[i] > 0
+        && hasFired[i]
+        && timestamp - lastFiredTimestamps[i] < debounceMillis[i]) {
+      return false;
+    }
+    hasFired[i] = true;
+    lastFiredTimestamps[i] = timestamp;
+    return true;
+  }
+
+  /** The number of values evaluated, which stays 0 if there are no triggers. */
+  long getEvaluationCount() {
+    return evaluationCount;
+  }
+
+  /** The average time spent evaluating the triggers for a value, not counting firing them. */
+  double getAverageEvaluationNanos() {
+    return evaluationCount == 0 ? 0 : (double) evaluationNanos / evaluationCount;
+  }
+}
@@ -168,6 +168,16 @@ public abstract class WhistlePunkApplication extends Application {
     initiateARCoreCheck();
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      // The app is no longer visible and could be killed at any point; don't leave recorded
+      // readings sitting in memory waiting for a batch to fill up.
+      AppSingleton.getInstance(this).flushPendingScalarReadings();
+    }
+  }
+
   protected void setupBackupAgent() {
     // Register your backup agent to receive settings change events here.
     // Learn more at
@@ -190,6 +190,7 @@ public final class TrackerConstants {
   public static final String PRIMES_EXPERIMENT_LIST_LOADED = "EXPERIMENT_LIST_LOADED";
   public static final String PRIMES_RUN_LOADED = "RUN_LOADED";
   public static final String PRIMES_DEFAULT_EXPERIMENT_CREATED = "DEFAULT_EXPERIMENT_CREATED";
+  public static final String PRIMES_SENSOR_DATA_COMMITTED = "SENSOR_DATA_COMMITTED";
 
   // For Google analytics, the maximum length for a field value is 8192. However, the maximum
   // length for the whole payload is also 8192 and hits with larger payloads are discarded!
@@ -91,10 +91,36 @@ class ScalarInputSensor extends ScalarSensor {
             return;
           }
           latestData = data;
+          resetRefresh();
+          this.consumer.addData(timestamp, data);
+          markConnected();
+        }
+
+        @Override
+        public void onNewDataBatch(long[] timestamps, double[] values) {
+          if (connector == null) {
+            // We're disconnected, nothing to do here.
+            return;
+          }
+          int count = Math.min(timestamps.length, values.length);
+          if (count == 0) {
+            return;
+          }
+          latestData = values[count - 1];
+          // Once for the whole batch, rather than for every reading in it.
+          resetRefresh();
+          for (int i = 0; i < count; i++) {
+            this.consumer.addData(timestamps[i], values[i]);
+          }
+          markConnected();
+        }
+
+        private void resetRefresh() {
           scheduler.unschedule(refreshRunnable);
           scheduler.schedule(Delay.millis(MINIMUM_REFRESH_RATE_MILLIS), refreshRunnable);
-          this.consumer.addData(timestamp, data);
+        }
 
+        private void markConnected() {
           // Some sensors may forget to set to connected, but if we're getting data,
           //   we're probably connected.  (This actually happened in a version of the
           //   Vernier implementation.)
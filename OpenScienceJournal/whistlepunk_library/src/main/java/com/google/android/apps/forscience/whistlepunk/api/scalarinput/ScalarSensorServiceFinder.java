@@ -90,10 +90,10 @@ public class ScalarSensorServiceFinder extends Consumer<AppDiscoveryCallbacks> {
     if (Log.isLoggable(TAG, Log.INFO)) {
       Log.i(TAG, "App scalar API version: " + myVersion + ", package version: " + packageVersion);
     }
-    // TODO: get more complicated when we add another version in the future.
+    // Versions since the first release only add to the API, so we can talk to any service up to
+    // our own version.
     boolean isOK =
-        (myVersion == Versions.FIRST_RELEASE_SCALAR_API_VERSION
-            && packageVersion == Versions.FIRST_RELEASE_SCALAR_API_VERSION);
+        packageVersion >= Versions.FIRST_RELEASE_SCALAR_API_VERSION && packageVersion <= myVersion;
     if (!isOK) {
       if (Log.isLoggable(TAG, Log.ERROR)) {
         Log.e(TAG, "Incompatible versions. app=" + myVersion + ", pkg=" + packageVersion);
@@ -45,21 +45,32 @@ public class AudioAnalyzer {
   }
 
   public Double detectFundamentalFrequency(short[] samples) {
-    peaks.clear();
-    mapOfFundamentalFrequencies.clear();
-
-    // Don't bother trying to determine the frequency if the buffer is half (or
-    // more) filled with zeros or if the volume is too low to hear.
     int countZeros = 0;
+    double totalSquared = 0;
     for (short s : samples) {
       if (s == 0) {
         countZeros++;
       }
+      totalSquared += s * s;
     }
+    return detectFundamentalFrequency(samples, countZeros, totalSquared);
+  }
+
+  /**
+   * Like {@link #detectFundamentalFrequency(short[])}, for a caller that already knows how many of
+   * the samples are zero, and the sum of their squares, so they don't have to be counted again.
+   */
+  Double detectFundamentalFrequency(short[] samples, int countZeros, double totalSquared) {
+    peaks.clear();
+    mapOfFundamentalFrequencies.clear();
+
+    // Don't bother trying to determine the frequency if the buffer is half (or
+    // more) filled with zeros or if the volume is too low to hear.
     if (countZeros >= samples.length / 2) {
       return null;
     }
-    double uncalibratedDecibels = SoundUtils.calculateUncalibratedDecibels(samples, samples.length);
+    double uncalibratedDecibels =
+        SoundUtils.calculateUncalibratedDecibels(totalSquared, samples.length);
     if (uncalibratedDecibels < MINIMUM_NOISE_LEVEL) {
       return null;
     }
@@ -35,9 +35,11 @@ class FftAnalyzer {
   private final int sampleRateInHz;
   private final int indexOfLowestNote;
   private final int indexOfHighestNote;
-  // Pre-allocated arrays to hold complex numbers (a + bi), and magnitudes.
-  private final double[] a = new double[BUFFER_SIZE];
-  private final double[] b = new double[BUFFER_SIZE];
+  private final RealFft fft = new RealFft(BUFFER_SIZE);
+  // Pre-allocated arrays to hold the samples, complex numbers (a + bi), and magnitudes.
+  private final double[] input = new double[BUFFER_SIZE];
+  private final double[] a = new double[BUFFER_SIZE / 2 + 1];
+  private final double[] b = new double[BUFFER_SIZE / 2 + 1];
   private final double[] magnitudes;
   private final double[] movingAverageValues;
   private final MovingAverage movingAverage = new MovingAverage(MOVING_AVERAGE_WINDOW_SIZE);
@@ -55,22 +57,21 @@ class FftAnalyzer {
    * given List. When this method returns, the list is sorted by FFT value, in descending order.
    */
   void findPeaks(short[] samples, List<Peak> peaks) {
-    // Copy the samples into the a array, converting shorts to doubles.
+    // Copy the samples into the input array, converting shorts to doubles.
     for (int i = 0; i < BUFFER_SIZE; i++) {
       if (i < samples.length) {
-        a[i] = ((double) samples[i]) / Short.MAX_VALUE;
+        input[i] = ((double) samples[i]) / Short.MAX_VALUE;
       } else {
-        a[i] = 0.0;
+        input[i] = 0.0;
       }
-      b[i] = 0.0;
     }
 
     // Use FFT to convert the audio signal from time domain to frequency domain.
-    // performFft() calculates the FFT in place, modifying the elements of a and b arrays.
     // The results of FFT are complex numbers expressed in the form a + bi, where a and b are
     // real numbers and i is the imaginary unit. a[] will contain the "a" numbers and b[]
-    // will contain the "b" numbers.
-    performFft();
+    // will contain the "b" numbers. Since the input is real, only the first half of the
+    // spectrum is computed; the second half mirrors it.
+    fft.transform(input, a, b);
 
     // Calculate the magnitudes.
     // Use a moving average to smooth out the magnitudes.
@@ -131,51 +132,6 @@ class FftAnalyzer {
     }
   }
 
-  private void performFft() {
-    // Non-recursive version of the Cooley-Tukey FFT,  base on code from
-    // https://introcs.cs.princeton.edu/java/97data/InplaceFFT.java.html
-
-    // Bit reversal permutation.
-    int shift = 1 + Integer.numberOfLeadingZeros(BUFFER_SIZE);
-    for (int i = 0; i < BUFFER_SIZE; i++) {
-      int j = Integer.reverse(i) >>> shift;
-      if (j > i) {
-        double temp = a[j];
-        a[j] = a[i];
-        a[i] = temp;
-        temp = b[j];
-        b[j] = b[i];
-        b[i] = temp;
-      }
-    }
-
-    // Butterfly updates.
-    for (int l = 2; l <= BUFFER_SIZE; l += l) {
-      int lHalf = l / 2;
-      for (int k = 0; k < lHalf; k++) {
-        double kth = -2 * k * Math.PI / l;
-        double wA = Math.cos(kth);
-        double wB = Math.sin(kth);
-        for (int j = 0; j < BUFFER_SIZE / l; j++) {
-          int index1 = j * l + k + lHalf;
-          int index2 = j * l + k;
-          double xA = a[index1];
-          double xB = b[index1];
-
-          // Multiply complex numbers.
-          // tao = x * w
-          double taoA = xA * wA - xB * wB;
-          double taoB = xA * wB + xB * wA;
-
-          a[index1] = a[index2] - taoA;
-          b[index1] = b[index2] - taoB;
-          a[index2] = a[index2] + taoA;
-          b[index2] = b[index2] + taoB;
-        }
-      }
-    }
-  }
-
   /**
    * Determine the prominence of the peak at the given index. The prominence is determined by the
    * moving average value at the index, compared with the moving average values in the local area.
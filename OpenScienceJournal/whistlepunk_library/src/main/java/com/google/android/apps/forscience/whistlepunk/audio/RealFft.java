@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.audio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FFT (Fast Fourier Transform) of real input, like audio samples, for the audio analyzers.
+ *
+ * <p>A real signal of size N is transformed as a complex signal of size N/2, with the even samples
+ * as the real parts and the odd samples as the imaginary parts, and the result is then split back
+ * into the N/2 + 1 bins of the real signal's spectrum. The complex transform does two radix-2
+ * stages at a time, as a radix-4 butterfly. The twiddle factors, bit reversal permutation and
+ * window for each size are computed once, and shared by every RealFft of that size.
+ *
+ * <p>Not thread safe: each RealFft has its own scratch arrays.
+ */
+class RealFft {
+  /** The tables for one size, which never change once computed. */
+  private static class Tables {
+    // Maps each index of the half-size complex signal to its bit-reversed index.
+    final int[] bitReverse;
+    // cos and sin of 2 * PI * j / (N/2), the twiddle factors of the complex transform.
+    final double[] cos;
+    final double[] sin;
+    // cos and sin of 2 * PI * k / N, for splitting the complex result into the real spectrum.
+    final double[] splitCos;
+    final double[] splitSin;
+    // The Hann window, computed when it's first asked for.
+    double[] hannWindow;
+
+    Tables(int size) {
+      int half = size / 2;
+      int shift = 1 + Integer.numberOfLeadingZeros(half);
+      bitReverse = new int[half];
+      cos = new double[half];
+      sin = new double[half];
+      splitCos = new double[half];
+      splitSin = new double[half];
+      for (int i = 0; i < half; i++) {
+        bitReverse[i] = Integer.reverse(i) >>> shift;
+        cos[i] = Math.cos(2 * Math.PI * i / half);
+        sin[i] = Math.sin(2 * Math.PI * i / half);
+        splitCos[i] = Math.cos(2 * Math.PI * i / size);
+        splitSin[i] = Math.sin(2 * Math.PI * i / size);
+      }
+    }
+  }
+
+  private static final Map<Integer, Tables> tablesBySize = new HashMap<>();
+
+  private static Tables getTables(int size) {
+    synchronized (tablesBySize) {
+      Tables tables = tablesBySize.get(size);
+      if (tables == null) {
+        tables = new Tables(size);
+        tablesBySize.put(size, tables);
+      }
+      return tables;
+    }
+  }
+
+  /** Returns the (periodic) Hann window for {@code size} samples, which must not be modified. */
+  static double[] getHannWindow(int size) {
+    Tables tables = getTables(size);
+    synchronized (tablesBySize) {
+      if (tables.hannWindow == null) {
+        double[] window = new double[size];
+        for (int i = 0; i < size; i++) {
+          window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / size);
+        }
+        tables.hannWindow = window;
+      }
+      return tables.hannWindow;
+    }
+  }
+
+  private final int size;
+  private final int half;
+  private final Tables tables;
+  private final double[] window;
+  // The half-size complex signal, transformed in place.
+  private final double[] re;
+  private final double[] im;
+
+  /** Creates an FFT of {@code size} samples, which must be a power of 2, and at least 4. */
+  RealFft(int size) {
+    this(size, false);
+  }
+
+  /**
+   * Creates an FFT of {@code size} samples, which must be a power of 2, and at least 4. If {@code
+   * hannWindow} is true, the samples are multiplied by a Hann window before they're transformed.
+   */
+  RealFft(int size, boolean hannWindow) {
+    if (size < 4 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Size must be a power of 2, and at least 4: " + size);
+    }
+    this.size = size;
+    half = size / 2;
+    tables = getTables(size);
+    window = hannWindow ? getHannWindow(size) : null;
+    re = new double[half];
+    im = new double[half];
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * Transforms the first {@link #getSize()} values of {@code samples}, and puts the real and
+   * imaginary parts of bins 0 to size / 2 (inclusive) of the result in {@code outRe} and {@code
+   * outIm}. The result isn't normalized. {@code samples} isn't modified.
+   */
+  void transform(double[] samples, double[] outRe, double[] outIm) {
+    // Pack pairs of samples into complex values, in bit-reversed order.
+    int[] bitReverse = tables.bitReverse;
+    if (window == null) {
+      for (int n = 0; n < half; n++) {
+        int j = bitReverse[n];
+        re[j] = samples[2 * n];
+        im[j] = samples[2 * n + 1];
+      }
+    } else {
+      for (int n = 0; n < half; n++) {
+        int j = bitReverse[n];
+        re[j] = samples[2 * n] * window[2 * n];
+        im[j] = samples[2 * n + 1] * window[2 * n + 1];
+      }
+    }
+
+    transformBitReversed();
+
+    // Split the result. With Z the transform of the packed signal, the transform of the even
+    // samples is E = (Z[k] + conj(Z[N/2 - k])) / 2, of the odd samples is
+    // O = (Z[k] - conj(Z[N/2 - k])) / 2i, and X[k] = E + O * e^(-2 PI i k / N).
+    outRe[0] = re[0] + im[0];
+    outIm[0] = 0;
+    outRe[half] = re[0] - im[0];
+    outIm[half] = 0;
+    double[] splitCos = tables.splitCos;
+    double[] splitSin = tables.splitSin;
+    for (int k = 1; k < half; k++) {
+      int m = half - k;
+      double evenRe = (re[k] + re[m]) * 0.5;
+      double evenIm = (im[k] - im[m]) * 0.5;
+      double oddRe = (im[k] + im[m]) * 0.5;
+      double oddIm = (re[m] - re[k]) * 0.5;
+      double c = splitCos[k];
+      double s = splitSin[k];
+      outRe[k] = evenRe + oddRe * c + oddIm * s;
+      outIm[k] = evenIm + oddIm * c - oddRe * s;
+    }
+  }
+
+  /** In-place complex FFT of re and im, which are already in bit-reversed order. */
+  private void transformBitReversed() {
+    double[] cos = tables.cos;
+    double[] sin = tables.sin;
+
+    int h = 1;
+    if ((Integer.numberOfTrailingZeros(half) & 1) == 1) {
+      // An odd number of radix-2 stages; do the first on its own, where every twiddle is 1.
+      for (int i = 0; i < half; i += 2) {
+        double r = re[i + 1];
+        double m = im[i + 1];
+        re[i + 1] = re[i] - r;
+        im[i + 1] = im[i] - m;
+        re[i] += r;
+        im[i] += m;
+      }
+      h = 2;
+    }
+
+    // Each pass does two radix-2 stages, over blocks of 4h values, as one radix-4 butterfly on
+    // values h apart, with twiddles w1 = W^k, w2 = W^2k and w3 = W^3k for W = e^(-2 PI i / 4h).
+    for (; h < half; h *= 4) {
+      int block = 4 * h;
+      int twiddleStep = half / block;
+      for (int k = 0; k < h; k++) {
+        int t1 = k * twiddleStep;
+        double w1Re = cos[t1];
+        double w1Im = -sin[t1];
+        double w2Re = cos[2 * t1];
+        double w2Im = -sin[2 * t1];
+        double w3Re = cos[3 * t1];
+        double w3Im = -sin[3 * t1];
+        for (int i0 = k; i0 < half; i0 += block) {
+          int i1 = i0 + h;
+          int i2 = i1 + h;
+          int i3 = i2 + h;
+
+          double u0Re = re[i0];
+          double u0Im = im[i0];
+          double u1Re = re[i1] * w2Re - im[i1] * w2Im;
+          double u1Im = re[i1] * w2Im + im[i1] * w2Re;
+          double u2Re = re[i2] * w1Re - im[i2] * w1Im;
+          double u2Im = re[i2] * w1Im + im[i2] * w1Re;
+          double u3Re = re[i3] * w3Re - im[i3] * w3Im;
+          double u3Im = re[i3] * w3Im + im[i3] * w3Re;
+
+          double a0Re = u0Re + u1Re;
+          double a0Im = u0Im + u1Im;
+          double a1Re = u0Re - u1Re;
+          double a1Im = u0Im - u1Im;
+          double b0Re = u2Re + u3Re;
+          double b0Im = u2Im + u3Im;
+          double b1Re = u2Re - u3Re;
+          double b1Im = u2Im - u3Im;
+
+          re[i0] = a0Re + b0Re;
+          im[i0] = a0Im + b0Im;
+          re[i2] = a0Re - b0Re;
+          im[i2] = a0Im - b0Im;
+          // a1 - i * b1, and a1 + i * b1.
+          re[i1] = a1Re + b1Im;
+          im[i1] = a1Im - b1Re;
+          re[i3] = a1Re - b1Im;
+          im[i3] = a1Im + b1Re;
+        }
+      }
+    }
+  }
+}
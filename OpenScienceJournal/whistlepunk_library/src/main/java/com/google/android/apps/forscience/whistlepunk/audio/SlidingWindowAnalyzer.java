@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.audio;
+
+/**
+ * Detects the fundamental frequency of a stream of audio, over a window of the most recent {@link
+ * AudioAnalyzer#BUFFER_SIZE} samples that slides forward by a hop size.
+ *
+ * <p>Once the window is full, the frequency is detected every {@code hopSize} samples, so
+ * consecutive windows overlap by {@code BUFFER_SIZE - hopSize} samples. The samples are kept in a
+ * circular buffer, along with a running count of zeros and sum of squares, which AudioAnalyzer
+ * would otherwise have to recompute over the whole window for every hop.
+ */
+public class SlidingWindowAnalyzer {
+  /** Receives the frequency detected for each hop. */
+  public interface FrequencyListener {
+    /**
+     * Called with the fundamental frequency of the current window, or null if it couldn't be
+     * detected, likely due to low volume.
+     */
+    void onFrequencyDetected(Double frequency);
+  }
+
+  private static final int WINDOW_SIZE = AudioAnalyzer.BUFFER_SIZE;
+
+  private final AudioAnalyzer audioAnalyzer;
+  private final int hopSize;
+  private final FrequencyListener listener;
+  // The most recent samples, oldest first starting at writeIndex once the buffer is full.
+  private final short[] ring = new short[WINDOW_SIZE];
+  // The window, in order, for AudioAnalyzer.
+  private final short[] window = new short[WINDOW_SIZE];
+  private int writeIndex;
+  private int sampleCount;
+  private int samplesSinceAnalysis;
+  private int countZeros;
+  private long totalSquared;
+
+  /**
+   * Creates an analyzer that detects the frequency every {@code hopSize} samples, which must be
+   * between 1 and {@link AudioAnalyzer#BUFFER_SIZE}.
+   */
+  public SlidingWindowAnalyzer(int sampleRateInHz, int hopSize, FrequencyListener listener) {
+    if (hopSize < 1 || hopSize > WINDOW_SIZE) {
+      throw new IllegalArgumentException("Hop size must be between 1 and " + WINDOW_SIZE);
+    }
+    audioAnalyzer = new AudioAnalyzer(sampleRateInHz);
+    this.hopSize = hopSize;
+    this.listener = listener;
+  }
+
+  public int getHopSize() {
+    return hopSize;
+  }
+
+  /**
+   * Adds samples to the window, calling the listener for every hop they complete. Nothing is
+   * detected until the window has been filled.
+   */
+  public void addSamples(short[] samples) {
+    for (short sample : samples) {
+      if (sampleCount == WINDOW_SIZE) {
+        short oldest = ring[writeIndex];
+        if (oldest == 0) {
+          countZeros--;
+        }
+        totalSquared -= oldest * oldest;
+      } else {
+        sampleCount++;
+      }
+      if (sample == 0) {
+        countZeros++;
+      }
+      totalSquared += sample * sample;
+      ring[writeIndex] = sample;
+      if (++writeIndex == WINDOW_SIZE) {
+        writeIndex = 0;
+      }
+      // The first analysis is when the window fills, since hopSize is at most the window size.
+      if (++samplesSinceAnalysis >= hopSize && sampleCount == WINDOW_SIZE) {
+        analyze();
+      }
+    }
+  }
+
+  /** Forgets all the samples, for when the stream is restarted. */
+  public void clear() {
+    writeIndex = 0;
+    sampleCount = 0;
+    samplesSinceAnalysis = 0;
+    countZeros = 0;
+    totalSquared = 0;
+  }
+
+  private void analyze() {
+    samplesSinceAnalysis = 0;
+    // Once the ring is full, writeIndex is the oldest sample.
+    System.arraycopy(ring, writeIndex, window, 0, WINDOW_SIZE - writeIndex);
+    System.arraycopy(ring, 0, window, WINDOW_SIZE - writeIndex, writeIndex);
+    listener.onFrequencyDetected(
+        audioAnalyzer.detectFundamentalFrequency(window, countZeros, totalSquared));
+  }
+}
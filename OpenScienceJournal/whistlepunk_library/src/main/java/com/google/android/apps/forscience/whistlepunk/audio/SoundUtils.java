@@ -73,6 +73,13 @@ public class SoundUtils {
       totalSquared += soundbits * soundbits;
     }
 
+    return calculateUncalibratedDecibels(totalSquared, length);
+  }
+
+  /**
+   * Calculates the uncalibrated decibels of {@code length} samples, given the sum of their squares.
+   */
+  public static double calculateUncalibratedDecibels(double totalSquared, int length) {
     // https://en.wikipedia.org/wiki/Sound_pressure
     final double quadraticMeanPressure = Math.sqrt(totalSquared / length);
     final double uncalibratedDecibels = 20 * Math.log10(quadraticMeanPressure);
@@ -0,0 +1,102 @@
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Retries Drive calls that fail for reasons that may go away on their own, like dropped
+ * connections, server errors and rate limiting, waiting exponentially longer between attempts.
+ */
+class DriveRetryPolicy {
+  static final DriveRetryPolicy DEFAULT = new DriveRetryPolicy(4, 500, 8000);
+
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int FORBIDDEN = 403;
+  private static final int FIRST_SERVER_ERROR = 500;
+
+  /** A call to Drive. */
+  interface DriveCall<T> {
+    T call() throws IOException;
+  }
+
+  private final int maxAttempts;
+  private final long initialBackoffMs;
+  private final long maxBackoffMs;
+  private final Random random = new Random();
+
+  DriveRetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMs = initialBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+  }
+
+  /**
+   * Makes {@code call}, retrying it if it fails with an error that's worth retrying. The last error
+   * is thrown if every attempt fails.
+   */
+  <T> T call(DriveCall<T> call) throws IOException {
+    long backoffMs = initialBackoffMs;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return call.call();
+      } catch (IOException e) {
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+          throw e;
+        }
+      }
+      // Jitter, so that parallel calls that failed together don't all retry together.
+      sleep(backoffMs / 2 + (long) (random.nextDouble() * backoffMs / 2));
+      backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isRetryable(IOException e) {
+    if (e instanceof InterruptedIOException) {
+      // Includes timeouts, but also being cancelled; the next sync will try again anyway.
+      return false;
+    }
+    if (!(e instanceof HttpResponseException)) {
+      // Couldn't reach Drive at all.
+      return true;
+    }
+    int status = ((HttpResponseException) e).getStatusCode();
+    if (status == TOO_MANY_REQUESTS || status >= FIRST_SERVER_ERROR) {
+      return true;
+    }
+    // Drive reports rate limiting as 403, along with errors that won't go away.
+    return status == FORBIDDEN && isRateLimited(e);
+  }
+
+  private static boolean isRateLimited(IOException e) {
+    if (!(e instanceof GoogleJsonResponseException)) {
+      return false;
+    }
+    GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+    if (details == null || details.getErrors() == null) {
+      return false;
+    }
+    for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+      String reason = error.getReason();
+      if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @VisibleForTesting
+  void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+}
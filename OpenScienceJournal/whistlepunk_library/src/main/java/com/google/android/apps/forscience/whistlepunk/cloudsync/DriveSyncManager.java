@@ -21,7 +21,6 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncMana
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -48,11 +47,14 @@ public class DriveSyncManager implements CloudSyncManager {
   public static final String EXPERIMENT_LIBRARY_PROTO = "experiment_library.proto";
   public static final String EXPERIMENT_PROTO_FILE = "experiment.proto";
 
+  // How many experiments to sync at once. Each mostly waits on Drive, but Drive rate limits too.
+  private static final int SYNC_THREADS = 4;
+
   private final DriveApi driveApi;
   private final AppAccount appAccount;
   private final DataController dc;
   private final RecordingDataController rdc;
-  private boolean sjFolderExists = false;
+  private volatile boolean sjFolderExists = false;
   // State-holders for kicking off a second sync if one is requested during an active sync.
   private boolean syncAgain = false;
   private String lastLogMessage = "";
@@ -78,7 +80,7 @@ public class DriveSyncManager implements CloudSyncManager {
       DriveApi driveWrapper,
       RecordingDataController rdc) {
     this.appAccount = appAccount;
-    this.driveApi = driveWrapper;
+    this.driveApi = new RetryingDriveApi(driveWrapper, DriveRetryPolicy.DEFAULT);
     this.dc = dc;
     this.rdc = rdc;
   }
@@ -158,7 +160,6 @@ public class DriveSyncManager implements CloudSyncManager {
       ExperimentLibraryManager experimentLibraryManager,
       LocalSyncManager localSyncManager)
       throws IOException {
-    Map<String, FileSyncCollection> fileSyncCollectionMap = new HashMap<>();
     if (!appAccount.isSignedIn()) {
       AppSingleton.getInstance(context).setSyncServiceBusy(false);
       return;
@@ -190,33 +191,28 @@ public class DriveSyncManager implements CloudSyncManager {
 
     String sjDirectoryId = getSJDirectoryId(experimentLibraryManager);
     experimentLibraryManager.setFolderId(sjDirectoryId);
-    List<ExperimentOverviewPojo> overviews = dc.blockingGetExperimentOverviews(true);
+    Map<String, ExperimentOverviewPojo> localOverviews = new HashMap<>();
+    for (ExperimentOverviewPojo overview : dc.blockingGetExperimentOverviews(true)) {
+      localOverviews.put(overview.getExperimentId(), overview);
+    }
+    ParallelExperimentSync parallelSync = new ParallelExperimentSync(SYNC_THREADS);
     for (String id : experimentLibraryManager.getKnownExperiments()) {
-      // For each experiment that we know about (past or current)
-      ExperimentOverviewPojo matching = null;
-      for (ExperimentOverviewPojo overview : overviews) {
-        // For each experiment that is currently not-deleted
-        if (id.equals(overview.getExperimentId())) {
-          // Find if the known experiment currently exists locally
-          matching = overview;
-        }
-      }
+      // For each experiment that we know about (past or current), find if it currently exists
+      // locally, not deleted.
+      boolean existsLocally = localOverviews.containsKey(id);
       if (experimentLibraryManager.isDeleted(id)) {
         // If the known experiment has been marked deleted
-        if (matching != null) {
-          // If it exists locally, delete it.
-          if (Log.isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, "Deleting locally: Marked deleted in library");
-          }
-          deleteExperiment(id);
-          deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
-        }
-        if (localSyncManager.getDirty(id)) {
-          if (Log.isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, "Deleting locally: Marked deleted and dirty in library");
-          }
-          deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
-          localSyncManager.setDirty(id, false);
+        if (existsLocally || localSyncManager.getDirty(id)) {
+          parallelSync.submit(
+              id,
+              () ->
+                  syncDeletedExperiment(
+                      context,
+                      experimentLibraryManager,
+                      localSyncManager,
+                      id,
+                      existsLocally,
+                      sjDirectoryId));
         }
       } else {
         String remoteFileId = experimentLibraryManager.getFileId(id);
@@ -225,7 +221,7 @@ public class DriveSyncManager implements CloudSyncManager {
           remoteDriveExperimentVersion = driveExperimentVersions.get(remoteFileId);
         }
         // Else the experiment hasn't been deleted
-        if (matching == null) {
+        if (!existsLocally) {
           // And it doesn't exist locally, so add it, if it exists remotely!
           if (Strings.isNullOrEmpty(remoteFileId)) {
             // This happens if the ExperimentLibrary file doesn't have a file ID yet. For example
@@ -242,44 +238,24 @@ public class DriveSyncManager implements CloudSyncManager {
                     null,
                     0);
             continue;
-          } else if (!driveApi.getFileExists(remoteFileId)) {
-            if (Log.isLoggable(TAG, Log.INFO)) {
-              Log.i(TAG, "Marking deleted: package not found and local not found");
-            }
-            experimentLibraryManager.setDeleted(id, true);
-          } else {
-            Experiment newExperiment =
-                Experiment.newExperiment(
-                    context,
-                    appAccount,
-                    experimentLibraryManager,
-                    experimentLibraryManager.getModified(id),
-                    id,
-                    0,
-                    experimentLibraryManager.getModified(id));
-            fileSyncCollectionMap.put(
-                id,
-                syncNewRemoteExperimentProtoFileInBackgroundThread(
-                    context, id, experimentLibraryManager, localSyncManager, dc, newExperiment));
           }
+          parallelSync.submit(
+              id,
+              () ->
+                  syncRemoteOnlyExperiment(
+                      context, experimentLibraryManager, localSyncManager, id, remoteFileId));
         } else {
           // It does exist locally. Let's sync it!
-          try {
-            fileSyncCollectionMap.put(id, syncExperimentProtoFileInBackgroundThread(
-                context,
-                id,
-                remoteDriveExperimentVersion,
-                experimentLibraryManager,
-                localSyncManager));
-          } catch (IOException ioe) {
-            Log.e(TAG, "IOException", ioe);
-          }
+          long remoteVersion = remoteDriveExperimentVersion;
+          parallelSync.submit(
+              id,
+              () ->
+                  syncLocalExperiment(
+                      context, experimentLibraryManager, localSyncManager, id, remoteVersion));
         }
       }
-      AppSingleton.getInstance(context).notifyNewExperimentSynced();
     }
-
-    transferFileSyncCollections(context, experimentLibraryManager, fileSyncCollectionMap);
+    parallelSync.awaitAll(() -> AppSingleton.getInstance(context).notifyNewExperimentSynced());
     AppSingleton.getInstance(context).notifyNewExperimentSynced();
     // Now upload the library back to Drive
     remoteLibraryVersion = uploadExperimentLibraryToDrive();
@@ -294,6 +270,81 @@ public class DriveSyncManager implements CloudSyncManager {
     cleanUpDrive(context, experimentLibraryManager, localSyncManager, sjDirectoryId);
   }
 
+  // Deletes an experiment that's been marked deleted in the library, locally and on Drive.
+  private void syncDeletedExperiment(
+      Context context,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      String experimentId,
+      boolean existsLocally,
+      String sjDirectoryId)
+      throws IOException {
+    if (existsLocally) {
+      // If it exists locally, delete it.
+      if (Log.isLoggable(TAG, Log.INFO)) {
+        Log.i(TAG, "Deleting locally: Marked deleted in library");
+      }
+      deleteExperiment(experimentId);
+      deleteExperimentRemotely(context, elm, experimentId, sjDirectoryId);
+    }
+    if (lsm.getDirty(experimentId)) {
+      if (Log.isLoggable(TAG, Log.INFO)) {
+        Log.i(TAG, "Deleting locally: Marked deleted and dirty in library");
+      }
+      deleteExperimentRemotely(context, elm, experimentId, sjDirectoryId);
+      lsm.setDirty(experimentId, false);
+    }
+  }
+
+  // Downloads an experiment that's on Drive, but not on this device.
+  private void syncRemoteOnlyExperiment(
+      Context context,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      String experimentId,
+      String remoteFileId)
+      throws IOException {
+    if (!driveApi.getFileExists(remoteFileId)) {
+      if (Log.isLoggable(TAG, Log.INFO)) {
+        Log.i(TAG, "Marking deleted: package not found and local not found");
+      }
+      elm.setDeleted(experimentId, true);
+      return;
+    }
+    Experiment newExperiment =
+        Experiment.newExperiment(
+            context,
+            appAccount,
+            elm,
+            elm.getModified(experimentId),
+            experimentId,
+            0,
+            elm.getModified(experimentId));
+    FileSyncCollection sync =
+        syncNewRemoteExperimentProtoFileInBackgroundThread(
+            context, experimentId, elm, lsm, dc, newExperiment);
+    transferFileSyncCollection(context, elm, experimentId, sync);
+  }
+
+  // Syncs an experiment that's on this device, and maybe on Drive.
+  private void syncLocalExperiment(
+      Context context,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      String experimentId,
+      long remoteDriveExperimentVersion) {
+    FileSyncCollection sync;
+    try {
+      sync =
+          syncExperimentProtoFileInBackgroundThread(
+              context, experimentId, remoteDriveExperimentVersion, elm, lsm);
+    } catch (IOException ioe) {
+      Log.e(TAG, "IOException", ioe);
+      return;
+    }
+    transferFileSyncCollection(context, elm, experimentId, sync);
+  }
+
   private long uploadExperimentLibraryToDrive() throws IOException {
     synchronized (appAccount.getLockForExperimentLibraryFile()) {
       java.io.File libraryFile = getLocalLibraryFile();
@@ -352,20 +403,14 @@ public class DriveSyncManager implements CloudSyncManager {
     HashMap<String, String> trialIdMap = new HashMap<>();
     trialIdMap.put(trialId, trialId);
 
-    GoosciScalarSensorData.ScalarSensorData dataProto = null;
     if (localFile.canRead()) {
+      // Read a block at a time, rather than parsing the whole trial into memory first.
       try (FileInputStream fis = new FileInputStream(localFile)) {
-        dataProto = GoosciScalarSensorData.ScalarSensorData.parseFrom(fis);
+        dumpReader.readData(fis, trialIdMap);
       } catch (Exception e) {
         Log.e(TAG, "Exception reading trial data file", e);
       }
     }
-
-    if (dataProto == null) {
-      dataProto = GoosciScalarSensorData.ScalarSensorData.getDefaultInstance();
-    }
-
-    dumpReader.readData(dataProto, trialIdMap);
   }
 
   private void uploadTrialInBackgroundThread(
@@ -503,6 +548,8 @@ public class DriveSyncManager implements CloudSyncManager {
       RxDataController.updateExperimentEvenIfNotActive(
               dc, localExperiment, elm.getModified(experimentId), false)
           .blockingAwait();
+      // Make sure experiment.proto is complete, with nothing left in its journal, before uploading.
+      RxDataController.saveImmediately(dc).blockingAwait();
       localSyncManager.setServerArchived(experimentId, elm.isArchived(experimentId));
       insertExperimentProto(experimentId, packageId, localSyncManager, localExperiment.getTitle());
       for (Trial t : localExperiment.getTrials()) {
@@ -835,47 +882,44 @@ public class DriveSyncManager implements CloudSyncManager {
     }
   }
 
-  private void transferFileSyncCollections(Context context, ExperimentLibraryManager elm,
-      Map<String, FileSyncCollection> collectionMap) {
-    for (String experimentId : collectionMap.keySet()) {
-      FileSyncCollection sync = collectionMap.get(experimentId);
-      for (String download : sync.getImageDownloads()) {
-        try {
-          downloadFileInBackgroundThread(experimentId, download, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
+  private void transferFileSyncCollection(
+      Context context, ExperimentLibraryManager elm, String experimentId, FileSyncCollection sync) {
+    for (String download : sync.getImageDownloads()) {
+      try {
+        downloadFileInBackgroundThread(experimentId, download, elm);
+      } catch (IOException ioe) {
+        if (Log.isLoggable(TAG, Log.ERROR)) {
+          Log.e(TAG, "IOException", ioe);
         }
       }
+    }
 
-      for (String upload : sync.getImageUploads()) {
-        try {
-          uploadFileInBackgroundThread(experimentId, upload, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
+    for (String upload : sync.getImageUploads()) {
+      try {
+        uploadFileInBackgroundThread(experimentId, upload, elm);
+      } catch (IOException ioe) {
+        if (Log.isLoggable(TAG, Log.ERROR)) {
+          Log.e(TAG, "IOException", ioe);
         }
       }
+    }
 
-      for (String download : sync.getTrialDownloads()) {
-        try {
-          downloadTrialInBackgroundThread(experimentId, download, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
+    for (String download : sync.getTrialDownloads()) {
+      try {
+        downloadTrialInBackgroundThread(experimentId, download, elm);
+      } catch (IOException ioe) {
+        if (Log.isLoggable(TAG, Log.ERROR)) {
+          Log.e(TAG, "IOException", ioe);
         }
       }
+    }
 
-      for (String upload : sync.getTrialUploads()) {
-        try {
-          uploadTrialInBackgroundThread(context, experimentId, upload, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
+    for (String upload : sync.getTrialUploads()) {
+      try {
+        uploadTrialInBackgroundThread(context, experimentId, upload, elm);
+      } catch (IOException ioe) {
+        if (Log.isLoggable(TAG, Log.ERROR)) {
+          Log.e(TAG, "IOException", ioe);
         }
       }
     }
@@ -0,0 +1,107 @@
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import android.util.Log;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs experiments on a bounded pool of threads. Each experiment is synced by one task, whose
+ * steps (checking Drive, transferring the proto, then its trials and assets) run in order.
+ * Different experiments sync in parallel, so that one experiment's Drive round trips overlap
+ * another's.
+ */
+class ParallelExperimentSync {
+  private static final String TAG = "ParallelExperimentSync";
+
+  /** Syncs one experiment. */
+  interface ExperimentTask {
+    void sync() throws IOException;
+  }
+
+  private final ExecutorService threads;
+  private final CompletionService<String> completions;
+  private final Set<String> submitted = new HashSet<>();
+  private final long startNanos = System.nanoTime();
+  private long elapsedMs;
+
+  ParallelExperimentSync(int threadCount) {
+    threads = Executors.newFixedThreadPool(threadCount);
+    completions = new ExecutorCompletionService<>(threads);
+  }
+
+  /** Starts syncing {@code experimentId}. Each experiment may only be submitted once. */
+  void submit(String experimentId, ExperimentTask task) {
+    Preconditions.checkArgument(
+        submitted.add(experimentId), "Experiment submitted twice: %s", experimentId);
+    completions.submit(
+        () -> {
+          task.sync();
+          return experimentId;
+        });
+  }
+
+  /**
+   * Waits for every submitted experiment to finish syncing, calling {@code onExperimentSynced} on
+   * this thread as each one does. If any of them failed, the first failure is thrown once they
+   * have all finished, whatever kind of exception it was.
+   */
+  void awaitAll(Runnable onExperimentSynced) throws IOException {
+    Throwable firstFailure = null;
+    try {
+      for (int i = 0; i < submitted.size(); i++) {
+        try {
+          completions.take().get();
+        } catch (ExecutionException e) {
+          if (firstFailure == null) {
+            firstFailure = e.getCause();
+          }
+        }
+        onExperimentSynced.run();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while syncing", e);
+    } finally {
+      // Only interrupts anything if this thread was interrupted before every task finished.
+      threads.shutdownNow();
+    }
+
+    elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (Log.isLoggable(TAG, Log.INFO)) {
+      Log.i(
+          TAG,
+          String.format(
+              "Synced %d experiments in %d ms (%.1f experiments/s)",
+              submitted.size(), elapsedMs, getExperimentsPerSecond()));
+    }
+    if (firstFailure instanceof IOException) {
+      throw (IOException) firstFailure;
+    }
+    if (firstFailure instanceof RuntimeException) {
+      throw (RuntimeException) firstFailure;
+    }
+    if (firstFailure instanceof Error) {
+      throw (Error) firstFailure;
+    }
+    if (firstFailure != null) {
+      throw new IOException(firstFailure);
+    }
+  }
+
+  int getExperimentCount() {
+    return submitted.size();
+  }
+
+  /** How fast experiments synced, once {@link #awaitAll} has returned. */
+  double getExperimentsPerSecond() {
+    return submitted.size() * 1000.0 / Math.max(1, elapsedMs);
+  }
+}
@@ -0,0 +1,160 @@
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A DriveApi that retries failed calls according to a {@link DriveRetryPolicy}.
+ *
+ * <p>Only calls that are safe to repeat are retried. Calls that create something new on Drive
+ * (the SJ folder, experiment packages, and first uploads of the library and experiment protos)
+ * aren't, since a call that failed after Drive got it would leave a duplicate behind; those are
+ * left for the next sync.
+ */
+class RetryingDriveApi implements DriveApi {
+  private final DriveApi delegate;
+  private final DriveRetryPolicy policy;
+
+  RetryingDriveApi(DriveApi delegate, DriveRetryPolicy policy) {
+    this.delegate = delegate;
+    this.policy = policy;
+  }
+
+  @Override
+  public DriveApi init(
+      HttpTransport transport,
+      JsonFactory jsonFactory,
+      AppAccount appAccount,
+      Context applicationContext) {
+    delegate.init(transport, jsonFactory, appAccount, applicationContext);
+    return this;
+  }
+
+  @Override
+  public GoosciExperimentLibrary.ExperimentLibrary downloadExperimentLibraryFile(String fileId)
+      throws IOException {
+    return policy.call(() -> delegate.downloadExperimentLibraryFile(fileId));
+  }
+
+  @Override
+  public GoosciExperiment.Experiment downloadExperimentProtoFile(String fileId)
+      throws IOException {
+    return policy.call(() -> delegate.downloadExperimentProtoFile(fileId));
+  }
+
+  @Override
+  public String getRemoteExperimentLibraryFileId() throws IOException {
+    return policy.call(delegate::getRemoteExperimentLibraryFileId);
+  }
+
+  @Override
+  public void insertExperimentLibraryFile(File libraryFile) throws IOException {
+    delegate.insertExperimentLibraryFile(libraryFile);
+  }
+
+  @Override
+  public void updateExperimentLibraryFile(File libraryFile, String fileId) throws IOException {
+    policy.call(
+        () -> {
+          delegate.updateExperimentLibraryFile(libraryFile, fileId);
+          return null;
+        });
+  }
+
+  @Override
+  public File downloadExperimentAsset(String packageId, File experimentDirectory, String fileName)
+      throws IOException {
+    return policy.call(
+        () -> delegate.downloadExperimentAsset(packageId, experimentDirectory, fileName));
+  }
+
+  @Override
+  public String getExperimentPackageId(Context context, String directoryId) throws IOException {
+    return delegate.getExperimentPackageId(context, directoryId);
+  }
+
+  @Override
+  public boolean getFileExists(String fileId) throws IOException {
+    return policy.call(() -> delegate.getFileExists(fileId));
+  }
+
+  @Override
+  public Map<String, Long> getAllDriveExperimentVersions() throws IOException {
+    return policy.call(delegate::getAllDriveExperimentVersions);
+  }
+
+  @Override
+  public DriveFile getExperimentProtoMetadata(String packageId) throws IOException {
+    return policy.call(() -> delegate.getExperimentProtoMetadata(packageId));
+  }
+
+  @Override
+  public long insertExperimentProto(File localFile, String packageId, String experimentTitle)
+      throws IOException {
+    return delegate.insertExperimentProto(localFile, packageId, experimentTitle);
+  }
+
+  @Override
+  public long updateExperimentProto(
+      File localFile,
+      DriveFile serverExperimentProtoMetadata,
+      String packageId,
+      String experimentTitle)
+      throws IOException {
+    return policy.call(
+        () ->
+            delegate.updateExperimentProto(
+                localFile, serverExperimentProtoMetadata, packageId, experimentTitle));
+  }
+
+  @Override
+  public String createNewSJFolder() throws IOException {
+    return delegate.createNewSJFolder();
+  }
+
+  @Override
+  public void trashFileById(String fileId) throws IOException {
+    policy.call(
+        () -> {
+          delegate.trashFileById(fileId);
+          return null;
+        });
+  }
+
+  @Override
+  public void uploadFile(File localFile, String packageId) throws IOException {
+    // Updates the file if it's already there, so repeating it is safe.
+    policy.call(
+        () -> {
+          delegate.uploadFile(localFile, packageId);
+          return null;
+        });
+  }
+
+  @Override
+  public int getPackageVersion(String packageId) throws IOException {
+    return policy.call(() -> delegate.getPackageVersion(packageId));
+  }
+
+  @Override
+  public long getFileVersion(String fileId) throws IOException {
+    return policy.call(() -> delegate.getFileVersion(fileId));
+  }
+
+  @Override
+  public boolean sjFolderExists() throws IOException {
+    return policy.call(delegate::sjFolderExists);
+  }
+
+  @Override
+  public int countSJExperiments() throws IOException {
+    return policy.call(delegate::countSJExperiments);
+  }
+}
@@ -33,7 +33,6 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTrigger;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version.FileVersion;
 import com.google.common.base.Preconditions;
@@ -45,6 +44,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -75,6 +75,10 @@ public class Experiment extends LabelListHolder {
   private boolean isArchived;
   private long lastUsedTimeMs;
   private final long creationTimeMs;
+  // The holder of each label, either this experiment or one of its trials. Built when first
+  // needed, and kept up to date as labels and trials are added, updated and removed.
+  private Map<String, LabelListHolder> labelHolders;
+  private int indexedTrialCount;
 
   public static Experiment newExperiment(long creationTime, String experimentId, int colorIndex) {
     GoosciExperiment.Experiment.Builder proto = GoosciExperiment.Experiment.newBuilder();
@@ -352,28 +356,6 @@ public class Experiment extends LabelListHolder {
     return getPathRelativeToExperiment(imagePath);
   }
 
-  /**
-   * Gets the labels which fall during a certain time range. Objects in this list should not be
-   * modified and expect that state to be saved, instead editing of labels should happen using
-   * updateLabel, addTrialLabel, removeLabel.
-   *
-   * @param range The time range in which to search for labels
-   * @return A list of labels in that range, or an empty list if none are found.
-   */
-  public List<Label> getLabelsForRange(Range range) {
-    List<Label> result = new ArrayList<>();
-    for (Label label : getLabels()) {
-      if (range.getStartMs() <= label.getTimeStamp() && range.getEndMs() >= label.getTimeStamp()) {
-        result.add(label);
-      } else if (range.getEndMs() < label.getTimeStamp()) {
-        // These are sorted, so we can stop looking once we've found labels that are too
-        // recent.
-        break;
-      }
-    }
-    return result;
-  }
-
   /**
    * Temporary method used to populate labels from the database. TODO: Deprecate this after moving
    * to a file-based system where labels are stored as part of the proto and don't need a separate
@@ -445,6 +427,7 @@ public class Experiment extends LabelListHolder {
    * the database.
    */
   public void setTrials(List<Trial> trials) {
+    dropLabelIndex();
     this.trials = Preconditions.checkNotNull(trials);
     experimentOverview.setTrialCount(this.trials.size());
     totalTrials = this.trials.size();
@@ -486,6 +469,8 @@ public class Experiment extends LabelListHolder {
       Trial next = trials.get(i);
       if (TextUtils.equals(trial.getTrialId(), next.getTrialId())) {
         trials.set(i, trial);
+        unindexTrial(next);
+        indexTrial(trial);
         break;
       }
     }
@@ -504,6 +489,8 @@ public class Experiment extends LabelListHolder {
       Trial next = trials.get(i);
       if (TextUtils.equals(trial.getTrialId(), next.getTrialId())) {
         trials.set(i, trial);
+        unindexTrial(next);
+        indexTrial(trial);
         break;
       }
     }
@@ -521,6 +508,7 @@ public class Experiment extends LabelListHolder {
   public void addTrial(Trial trial, Change change) {
     trials.add(trial);
     trialCount = trials.size();
+    indexTrial(trial);
     trial.setTrialNumberInExperiment(++totalTrials);
     sortTrials();
     addChange(change);
@@ -534,6 +522,7 @@ public class Experiment extends LabelListHolder {
   private void addTrialwithoutRecordingChange(Trial trial) {
     trials.add(trial);
     trialCount = trials.size();
+    indexTrial(trial);
     trial.setTrialNumberInExperiment(++totalTrials);
     sortTrials();
   }
@@ -545,6 +534,7 @@ public class Experiment extends LabelListHolder {
     trial.deleteContents(context, appAccount, getExperimentId());
     trials.remove(trial);
     trialCount = trials.size();
+    unindexTrial(trial);
   }
 
   /** Removes a trial from the experiment. */
@@ -561,6 +551,7 @@ public class Experiment extends LabelListHolder {
     trial.deleteContents(context, appAccount, getExperimentId());
     trials.remove(trial);
     trialCount = trials.size();
+    unindexTrial(trial);
     addChange(change);
   }
 
@@ -578,6 +569,7 @@ public class Experiment extends LabelListHolder {
   public void deleteTrialOnlyForTesting(Trial trial) {
     trials.remove(trial);
     trialCount = trials.size();
+    unindexTrial(trial);
     addChange(Change.newDeleteTypeChange(ElementType.TRIAL, trial.getTrialId()));
   }
 
@@ -760,19 +752,8 @@ public class Experiment extends LabelListHolder {
    * @return the label that corresponds to the Id, or null.
    */
   public Label getLabel(String labelId) {
-    for (Label label : labels) {
-      if (label.getLabelId().equals(labelId)) {
-        return label;
-      }
-    }
-    for (Trial trial : trials) {
-      for (Label label : trial.getLabels()) {
-        if (label.getLabelId().equals(labelId)) {
-          return label;
-        }
-      }
-    }
-    return null;
+    LabelListHolder holder = getLabelHolders().get(labelId);
+    return holder == null ? null : holder.findLabel(labelId);
   }
 
   /**
@@ -783,19 +764,83 @@ public class Experiment extends LabelListHolder {
    * @return the id of the trial that contains the label, or null.
    */
   public String getTrialIdForLabel(String labelId) {
-    for (Label label : labels) {
-      if (label.getLabelId().equals(labelId)) {
-        return null;
+    LabelListHolder holder = getLabelHolders().get(labelId);
+    return holder instanceof Trial ? ((Trial) holder).getTrialId() : null;
+  }
+
+  private Map<String, LabelListHolder> getLabelHolders() {
+    // Trials can also be added to the list returned by getTrials, which is only noticed here.
+    if (labelHolders == null || indexedTrialCount != trials.size()) {
+      labelHolders = new HashMap<>();
+      // As if searching this experiment and then each trial in turn, the first holder of an id
+      // wins.
+      for (int i = trials.size() - 1; i >= 0; i--) {
+        indexLabels(trials.get(i));
       }
+      indexLabels(this);
+      indexedTrialCount = trials.size();
     }
-    for (Trial trial : trials) {
-      for (Label label : trial.getLabels()) {
-        if (label.getLabelId().equals(labelId)) {
-          return trial.getTrialId();
+    return labelHolders;
+  }
+
+  private void indexLabels(LabelListHolder holder) {
+    holder.setIndexingExperiment(this);
+    for (int i = holder.labels.size() - 1; i >= 0; i--) {
+      labelHolders.put(holder.labels.get(i).getLabelId(), holder);
+    }
+  }
+
+  /** Adds a trial's labels to the index, after the trial has been added to the list. */
+  private void indexTrial(Trial trial) {
+    if (labelHolders != null) {
+      indexLabels(trial);
+      indexedTrialCount = trials.size();
+    }
+  }
+
+  /** Removes a trial's labels from the index, after the trial has been removed from the list. */
+  private void unindexTrial(Trial trial) {
+    if (trial.getIndexingExperiment() != this) {
+      return;
+    }
+    trial.setIndexingExperiment(null);
+    if (labelHolders != null) {
+      for (Label label : trial.labels) {
+        if (labelHolders.get(label.getLabelId()) == trial) {
+          labelHolders.remove(label.getLabelId());
         }
       }
+      indexedTrialCount = trials.size();
     }
-    return null;
+  }
+
+  /** Forgets the index, before replacing the list of trials. */
+  private void dropLabelIndex() {
+    for (Trial trial : trials) {
+      if (trial.getIndexingExperiment() == this) {
+        trial.setIndexingExperiment(null);
+      }
+    }
+    labelHolders = null;
+  }
+
+  /** Called when a label is added to or updated in this experiment or one of its trials. */
+  void onHolderLabelAdded(LabelListHolder holder, Label label) {
+    if (labelHolders != null) {
+      labelHolders.put(label.getLabelId(), holder);
+    }
+  }
+
+  /** Called when a label is removed from this experiment or one of its trials. */
+  void onHolderLabelRemoved(LabelListHolder holder, String labelId) {
+    if (labelHolders != null && labelHolders.get(labelId) == holder) {
+      labelHolders.remove(labelId);
+    }
+  }
+
+  /** Called when the labels of this experiment or one of its trials are replaced wholesale. */
+  void onHolderLabelsReplaced() {
+    labelHolders = null;
   }
 
   public static String getChangeMapKey(Change change) {
@@ -818,10 +863,12 @@ public class Experiment extends LabelListHolder {
     if (overwrite) {
       changes.clear();
       changes.addAll(externalExperiment.changes);
+      dropLabelIndex();
       trials.clear();
       trials.addAll(externalExperiment.trials);
       labels.clear();
       labels.addAll(externalExperiment.labels);
+      onLabelsReplaced();
       title = externalExperiment.title;
       description = externalExperiment.description;
       // Relative to Experiment.
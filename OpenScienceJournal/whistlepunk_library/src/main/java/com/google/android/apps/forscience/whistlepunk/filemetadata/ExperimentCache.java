@@ -31,13 +31,25 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
- * This reads and writes experiments to disk. It caches the last used experiment to avoid extra file
- * operations. This class should be constructed and used from a background thread because it does
- * file operations.
+ * This reads and writes experiments to disk. It caches recently used experiments, up to an
+ * estimated total heap size, to avoid extra file operations when switching between them. This
+ * class should be constructed and used from a background thread because it does file operations.
+ *
+ * <p>The most recently used experiment is the "active" one, which is never evicted. Each cached
+ * experiment tracks its own unsaved changes, and is written within {@link #WRITE_DELAY_MS} of
+ * first being changed, or right away if it is evicted before then.
+ *
+ * <p>Those timed writes only append what changed to the experiment's {@link ExperimentJournal}
+ * where they can. Evicting an experiment, or {@link #saveImmediately}, writes experiment.proto in
+ * full, so that it is complete by itself for anything else that reads it.
  */
 class ExperimentCache {
   private static final String TAG = "ExperimentCache";
@@ -57,9 +69,21 @@ class ExperimentCache {
   // Increment this each time the file-writing logic changes.
   protected static final int PLATFORM_VERSION = WhistlePunkApplication.getVersionCode();
 
-  // Write the experiment file no more than once per every WRITE_DELAY_MS.
+  // Write each experiment file no more than once per every WRITE_DELAY_MS.
   private static final long WRITE_DELAY_MS = 1000;
 
+  // A parsed experiment takes several times the space of its serialized proto, mostly in object
+  // overhead, and its journal keeps a copy of the last saved proto. This is a rough multiplier,
+  // only meant to keep the cache's size sensible.
+  private static final int HEAP_BYTES_PER_PROTO_BYTE = 10;
+
+  // Charged for experiments that haven't been read from or written to a file yet.
+  private static final long MIN_EXPERIMENT_HEAP_BYTES = 16 * 1024;
+
+  // The most heap the cached experiments, other than the active one, are estimated to take.
+  private static final long DEFAULT_MAX_HEAP_BYTES =
+      Math.min(Runtime.getRuntime().maxMemory() / 32, 16 * 1024 * 1024);
+
   public interface FailureListener {
     // TODO: What's helpful to pass back here? Maybe info about the type of error?
     // When writing an experiment failed
@@ -72,6 +96,35 @@ class ExperimentCache {
     void onNewerVersionDetected(ExperimentOverviewPojo experimentOverview);
   }
 
+  /**
+   * An experiment in the cache, and whether it has changes that haven't been written yet.
+   *
+   * <p>needsWrite and the write itself are guarded by this object, rather than the whole cache, so
+   * that writing one experiment doesn't hold up loading another. Lock the cache first when taking
+   * both locks.
+   */
+  private class CachedExperiment {
+    private Experiment experiment;
+    private boolean needsWrite = false;
+    // What's been saved, so that the next save only needs to append what changed since.
+    private ExperimentJournal journal;
+    private volatile long estimatedHeapBytes = MIN_EXPERIMENT_HEAP_BYTES;
+
+    private final Runnable writeRunnable =
+        () -> {
+          synchronized (this) {
+            if (needsWrite) {
+              backgroundWriteThread.execute(
+                  () -> writeCachedExperiment(CachedExperiment.this, false /* compact */));
+            }
+          }
+        };
+
+    CachedExperiment(Experiment experiment) {
+      this.experiment = experiment;
+    }
+  }
+
   private final FailureListener failureListener;
   private final Context context;
   private final AppAccount appAccount;
@@ -79,14 +132,16 @@ class ExperimentCache {
   private final LocalSyncManager localSyncManager;
   private final ExperimentLibraryManager experimentLibraryManager;
   private final boolean enableAutoWrite;
+  private final long maxHeapBytes;
 
   private final Handler handler;
   private final ExecutorService backgroundWriteThread;
-  private final Runnable writeRunnable;
 
-  private final Object activeExperimentLock = new Object();
-  private Experiment activeExperiment;
-  private boolean activeExperimentNeedsWrite;
+  private final Object cacheLock = new Object();
+  // Least recently used first.
+  private final LinkedHashMap<String, CachedExperiment> experiments =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private String activeExperimentId;
 
   public ExperimentCache(Context context, AppAccount appAccount, FailureListener failureListener) {
     this(context, appAccount, failureListener, true);
@@ -115,29 +170,28 @@ class ExperimentCache {
       boolean enableAutoWrite,
       ExperimentLibraryManager elm,
       LocalSyncManager lsm) {
+    this(context, appAccount, failureListener, enableAutoWrite, elm, lsm, DEFAULT_MAX_HEAP_BYTES);
+  }
+
+  @VisibleForTesting
+  ExperimentCache(
+      Context context,
+      AppAccount appAccount,
+      FailureListener failureListener,
+      boolean enableAutoWrite,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      long maxHeapBytes) {
     this.context = context;
     this.appAccount = appAccount;
     this.failureListener = failureListener;
+    this.maxHeapBytes = maxHeapBytes;
     experimentProtoFileHelper = new LiteProtoFileHelper<>();
     if (Looper.myLooper() == null) {
       Looper.prepare();
     }
     handler = new Handler();
     backgroundWriteThread = Executors.newSingleThreadExecutor();
-    writeRunnable =
-        () -> {
-          synchronized (activeExperimentLock) {
-            if (activeExperimentNeedsWrite) {
-              final Experiment experimentToWrite = activeExperiment;
-              if (experimentToWrite != null) {
-                backgroundWriteThread.execute(
-                    () -> {
-                      writeExperimentFile(experimentToWrite);
-                    });
-              }
-            }
-          }
-        };
     this.enableAutoWrite = enableAutoWrite;
 
     localSyncManager = lsm;
@@ -146,8 +200,16 @@ class ExperimentCache {
 
   @VisibleForTesting
   Experiment getActiveExperimentForTests() {
-    synchronized (activeExperimentLock) {
-      return activeExperiment;
+    synchronized (cacheLock) {
+      CachedExperiment active = getActive();
+      return active == null ? null : active.experiment;
+    }
+  }
+
+  @VisibleForTesting
+  boolean isCachedForTests(String localExperimentId) {
+    synchronized (cacheLock) {
+      return experiments.containsKey(localExperimentId);
     }
   }
 
@@ -167,59 +229,56 @@ class ExperimentCache {
 
   /** Updates the given experiment. */
   void updateExperiment(Experiment experiment, boolean setDirty) {
-    synchronized (activeExperimentLock) {
-      if (isDifferentFromActive(experiment.getExperimentOverview())) {
-        immediateWriteIfActiveChanging(experiment.getExperimentOverview());
-      }
+    synchronized (cacheLock) {
       experimentLibraryManager.setModified(
           experiment.getExperimentId(), experiment.getLastUsedTime());
       localSyncManager.setDirty(experiment.getExperimentId(), setDirty);
-      activeExperiment = experiment;
-      startWriteTimer();
+      startWriteTimer(putActive(experiment));
     }
   }
 
   /**
-   * Updates the experiment overview of the active experiment if the active experiment has the same
-   * ID. This allows us to keep the experimentOverview fresh without doing extra writes to disk. If
-   * the active experiment is not the same ID as the experiment overview to update, no action needs
-   * to be taken.
+   * Updates the experiment overview of the cached experiment with the same ID, if there is one.
+   * This allows us to keep the experimentOverview fresh without doing extra writes to disk.
    *
    * @param experimentOverview the updated experimentOverview to set on the cached experiment if
    *     they have the same ID.
    */
   void onExperimentOverviewUpdated(ExperimentOverviewPojo experimentOverview) {
-    synchronized (activeExperimentLock) {
-      if (!isDifferentFromActive(experimentOverview)) {
-        activeExperiment.setLastUsedTime(experimentOverview.getLastUsedTimeMs());
-        activeExperiment.setArchived(context, appAccount, experimentOverview.isArchived());
-        activeExperiment.getExperimentOverview().setImagePath(experimentOverview.getImagePath());
+    synchronized (cacheLock) {
+      CachedExperiment cached = experiments.get(experimentOverview.getExperimentId());
+      if (cached != null) {
+        Experiment experiment = cached.experiment;
+        experiment.setLastUsedTime(experimentOverview.getLastUsedTimeMs());
+        experiment.setArchived(context, appAccount, experimentOverview.isArchived());
+        experiment.getExperimentOverview().setImagePath(experimentOverview.getImagePath());
       }
     }
   }
 
   /**
-   * Loads an active experiment from the disk if it is different from the currently cached active
-   * experiment, otherwise just returns the current cached experiment.
+   * Returns the cached experiment, loading it from disk if it isn't cached, and makes it the
+   * active experiment.
    *
    * @param localExperimentOverview The local ExperimentOverview of the experiment to load. This is
    *     used for lookup.
    */
   Experiment getExperiment(ExperimentOverviewPojo localExperimentOverview) {
-    synchronized (activeExperimentLock) {
-      // Write only if the experiment ID is changing. If it's not changing, we just want to
-      // reload even if it was dirty.
-      if (isDifferentFromActive(localExperimentOverview)) {
-        immediateWriteIfActiveChanging(localExperimentOverview);
-        loadActiveExperimentFromFile(localExperimentOverview);
+    synchronized (cacheLock) {
+      CachedExperiment cached = experiments.get(localExperimentOverview.getExperimentId());
+      if (cached != null) {
+        activeExperimentId = localExperimentOverview.getExperimentId();
+        return cached.experiment;
       }
-      return activeExperiment;
+      loadActiveExperimentFromFile(localExperimentOverview);
+      CachedExperiment active = getActive();
+      return active == null ? null : active.experiment;
     }
   }
 
   /**
-   * Deletes an experiment from disk. Doesn't need to be the active one to be deleted. Sets the
-   * active experiment to null if it is the same one
+   * Deletes an experiment from disk. Doesn't need to be the active one to be deleted. Drops it from
+   * the cache if it is cached.
    */
   void deleteExperiment(String localExperimentId) {
     File expDirectory = getExperimentDirectory(localExperimentId);
@@ -230,13 +289,8 @@ class ExperimentCache {
       // so that the user can't see pictures any more?
       return;
     }
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && TextUtils.equals(
-              activeExperiment.getExperimentOverview().getExperimentId(), localExperimentId)) {
-        activeExperiment = null;
-        cancelWriteTimer();
-        activeExperimentNeedsWrite = false;
+    synchronized (cacheLock) {
+      if (forget(localExperimentId)) {
         if (experimentLibraryManager.getExperiment(localExperimentId) != null) {
           experimentLibraryManager.setDeleted(localExperimentId, true);
           localSyncManager.setDirty(localExperimentId, true);
@@ -259,19 +313,17 @@ class ExperimentCache {
 
   void beforeMovingAllExperimentsToAnotherAccount() {
     // This ExperimentCache is losing all experiments.
-    synchronized (activeExperimentLock) {
-      activeExperiment = null;
+    synchronized (cacheLock) {
+      for (String localExperimentId : new ArrayList<>(experiments.keySet())) {
+        forget(localExperimentId);
+      }
     }
   }
 
   void beforeMovingExperimentToAnotherAccount(String localExperimentId) {
     // This ExperimentCache is losing the experiment.
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && TextUtils.equals(
-              activeExperiment.getExperimentOverview().getExperimentId(), localExperimentId)) {
-        activeExperiment = null;
-      }
+    synchronized (cacheLock) {
+      forget(localExperimentId);
     }
   }
 
@@ -281,13 +333,85 @@ class ExperimentCache {
    * the write happens within a reasonable time frame.
    */
   private void setExistingActiveExperiment(Experiment experiment) {
-    synchronized (activeExperimentLock) {
-      immediateWriteIfActiveChanging(experiment.getExperimentOverview());
+    synchronized (cacheLock) {
+      startWriteTimer(putActive(experiment));
+    }
+  }
+
+  /**
+   * Caches {@code experiment}, replacing any other instance with the same ID, makes it the active
+   * experiment, and evicts others if the cache has grown too big.
+   */
+  private CachedExperiment putActive(Experiment experiment) {
+    synchronized (cacheLock) {
+      String localExperimentId = experiment.getExperimentId();
+      CachedExperiment cached = experiments.get(localExperimentId);
+      if (cached == null) {
+        cached = new CachedExperiment(experiment);
+        experiments.put(localExperimentId, cached);
+      } else {
+        synchronized (cached) {
+          // Any pending write will pick up the new instance.
+          cached.experiment = experiment;
+        }
+      }
+      activeExperimentId = localExperimentId;
+      evictIfNeeded();
+      return cached;
+    }
+  }
+
+  private CachedExperiment getActive() {
+    synchronized (cacheLock) {
+      return activeExperimentId == null ? null : experiments.get(activeExperimentId);
+    }
+  }
 
-      // Then set the new experiment and set the dirty bit to true, resetting the write timer,
-      // so that we save it soon.
-      activeExperiment = experiment;
-      startWriteTimer();
+  /**
+   * Drops the experiments used least recently, other than the active one, until the rest fit in
+   * the heap budget. Unsaved changes are written first.
+   */
+  private void evictIfNeeded() {
+    synchronized (cacheLock) {
+      long totalBytes = 0;
+      for (CachedExperiment cached : experiments.values()) {
+        totalBytes += cached.estimatedHeapBytes;
+      }
+      Iterator<Map.Entry<String, CachedExperiment>> leastRecent = experiments.entrySet().iterator();
+      while (totalBytes > maxHeapBytes && leastRecent.hasNext()) {
+        Map.Entry<String, CachedExperiment> entry = leastRecent.next();
+        if (entry.getKey().equals(activeExperimentId)) {
+          continue;
+        }
+        CachedExperiment cached = entry.getValue();
+        handler.removeCallbacks(cached.writeRunnable);
+        // Leave no journal behind, so that experiment.proto is complete for anyone reading it.
+        writeCachedExperiment(cached, true);
+        totalBytes -= cached.estimatedHeapBytes;
+        leastRecent.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops an experiment from the cache without saving it.
+   *
+   * @return whether it was cached
+   */
+  private boolean forget(String localExperimentId) {
+    synchronized (cacheLock) {
+      CachedExperiment cached = experiments.remove(localExperimentId);
+      if (TextUtils.equals(localExperimentId, activeExperimentId)) {
+        activeExperimentId = null;
+      }
+      if (cached == null) {
+        return false;
+      }
+      handler.removeCallbacks(cached.writeRunnable);
+      synchronized (cached) {
+        cached.needsWrite = false;
+      }
+      return true;
     }
   }
 
@@ -320,62 +444,47 @@ class ExperimentCache {
     return true;
   }
 
-  /**
-   * Immediately writes the current active experiment to disk if it is different from the given
-   * parameter localExperimentId.
-   */
-  private void immediateWriteIfActiveChanging(ExperimentOverviewPojo localExperimentOverview) {
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && activeExperimentNeedsWrite
-          && isDifferentFromActive(localExperimentOverview)) {
-        // First write the old active experiment if the ID has changed.
-        // Then cancel the write timer on the old experiment. We will reset it below.
-        cancelWriteTimer();
-        writeActiveExperimentFile();
-      }
-    }
-  }
-
-  private void cancelWriteTimer() {
-    handler.removeCallbacks(writeRunnable);
-  }
-
-  private void startWriteTimer() {
-    synchronized (activeExperimentLock) {
-      if (activeExperimentNeedsWrite) {
+  private void startWriteTimer(CachedExperiment cached) {
+    synchronized (cached) {
+      if (cached.needsWrite) {
         // The timer is already running.
         return;
       }
 
-      // TODO: I think this can only be null during tests.  Can we rewrite the tests to remove
-      //       this possibility?
-      if (activeExperiment != null) {
-        // We're going to write a new file, so rev the platform version
-        activeExperiment.setPlatformVersion(PLATFORM_VERSION);
-      }
-
-      activeExperimentNeedsWrite = true;
+      // We're going to write a new file, so rev the platform version
+      cached.experiment.setPlatformVersion(PLATFORM_VERSION);
+      cached.needsWrite = true;
 
       if (enableAutoWrite) {
-        handler.postDelayed(writeRunnable, WRITE_DELAY_MS);
+        handler.postDelayed(cached.writeRunnable, WRITE_DELAY_MS);
       }
     }
   }
 
+  /** Whether any cached experiment has changes that haven't been written yet. */
   @VisibleForTesting
   boolean needsWrite() {
-    synchronized (activeExperimentLock) {
-      return activeExperimentNeedsWrite;
+    synchronized (cacheLock) {
+      for (CachedExperiment cached : experiments.values()) {
+        synchronized (cached) {
+          if (cached.needsWrite) {
+            return true;
+          }
+        }
+      }
+      return false;
     }
   }
 
-  /** Writes the active experiment to a file immediately, if needed. */
+  /**
+   * Writes every cached experiment with unsaved changes, or with a journal, to experiment.proto
+   * immediately.
+   */
   void saveImmediately() {
-    synchronized (activeExperimentLock) {
-      if (activeExperimentNeedsWrite) {
-        cancelWriteTimer();
-        writeActiveExperimentFile();
+    synchronized (cacheLock) {
+      for (CachedExperiment cached : experiments.values()) {
+        handler.removeCallbacks(cached.writeRunnable);
+        writeCachedExperiment(cached, true);
       }
     }
   }
@@ -383,73 +492,145 @@ class ExperimentCache {
   /** Writes the active experiment to a file. */
   @VisibleForTesting
   void writeActiveExperimentFile() {
-    writeExperimentFile(activeExperiment);
+    CachedExperiment active = getActive();
+    if (active != null) {
+      synchronized (active) {
+        writeExperimentFile(active, false);
+      }
+    }
   }
 
-  /** Writes the given experiment to a file. */
-  @VisibleForTesting
-  void writeExperimentFile(Experiment experimentToWrite) {
-    boolean writingActiveExperiment = (activeExperiment == experimentToWrite);
-    // If we are writing the active experiment, hold the activeExperimentLock until after we've set
-    // activeExperimentNeedsWrite to false. Otherwise, if startWriteTimer is called on another
-    // thread after we've got the proto from the experimentToWrite and before we set
-    // activeExperimentNeedsWrite to false, it will see that activeExperimentNeedsWrite is true and
-    // incorrectly decide that it doesn't need to start the timer.
-    synchronized (writingActiveExperiment ? activeExperimentLock : new Object()) {
-      GoosciExperiment.Experiment proto = experimentToWrite.getExperimentProto();
-      if ((proto.getVersion() > VERSION)
-          || (proto.getVersion() == VERSION && proto.getMinorVersion() > MINOR_VERSION)) {
-        // If the major version is too new, or the minor version is too new, we can't save this.
-        // TODO: Or should this throw onWriteFailed?
-        failureListener.onNewerVersionDetected(experimentToWrite.getExperimentOverview());
-        return;
+  /**
+   * Writes a cached experiment to a file, if it has changes that haven't been written yet.
+   *
+   * @param compact whether to write the whole experiment to experiment.proto, rather than
+   *     appending to its journal, even if it has no unsaved changes. Callers that need
+   *     experiment.proto to be up to date by itself, such as before exporting or syncing it, should
+   *     compact.
+   */
+  private void writeCachedExperiment(CachedExperiment cached, boolean compact) {
+    // Hold the entry's lock until after we've set needsWrite to false. Otherwise, if
+    // startWriteTimer is called on another thread after we've got the proto from the experiment
+    // and before we set needsWrite to false, it will see that needsWrite is true and incorrectly
+    // decide that it doesn't need to start the timer.
+    synchronized (cached) {
+      if (cached.needsWrite || (compact && cached.journal != null && cached.journal.hasJournal())) {
+        writeExperimentFile(cached, compact);
       }
+    }
+  }
 
-      File experimentFile = getExperimentFile(experimentToWrite.getExperimentOverview());
-      boolean success;
-      synchronized (appAccount.getLockForExperimentProtoFile()) {
-        success =
-            experimentProtoFileHelper.writeToFile(
-                experimentFile, experimentToWrite.getExperimentProto(), getUsageTracker());
-      }
-      if (success) {
-        if (writingActiveExperiment) {
-          activeExperimentNeedsWrite = false;
-        }
-      } else {
-        failureListener.onWriteFailed(experimentToWrite);
-      }
+  /** Writes a cached experiment to a file, and marks it as written. */
+  private void writeExperimentFile(CachedExperiment cached, boolean compact) {
+    Experiment experimentToWrite = cached.experiment;
+    GoosciExperiment.Experiment proto = experimentToWrite.getExperimentProto();
+    if ((proto.getVersion() > VERSION)
+        || (proto.getVersion() == VERSION && proto.getMinorVersion() > MINOR_VERSION)) {
+      // If the major version is too new, or the minor version is too new, we can't save this.
+      // TODO: Or should this throw onWriteFailed?
+      failureListener.onNewerVersionDetected(experimentToWrite.getExperimentOverview());
+      return;
+    }
+
+    if (cached.journal == null) {
+      cached.journal =
+          new ExperimentJournal(getExperimentFile(experimentToWrite.getExperimentOverview()));
+    }
+    boolean success;
+    synchronized (appAccount.getLockForExperimentProtoFile()) {
+      success =
+          cached.journal.write(proto, compact, experimentProtoFileHelper, getUsageTracker());
     }
+    if (success) {
+      cached.needsWrite = false;
+      cached.estimatedHeapBytes = estimateHeapBytes(proto);
+    } else {
+      failureListener.onWriteFailed(experimentToWrite);
+    }
+  }
+
+  private static long estimateHeapBytes(GoosciExperiment.Experiment proto) {
+    return Math.max(
+        MIN_EXPERIMENT_HEAP_BYTES, (long) proto.getSerializedSize() * HEAP_BYTES_PER_PROTO_BYTE);
   }
 
   private UsageTracker getUsageTracker() {
     return WhistlePunkApplication.getUsageTracker(context);
   }
 
+  /**
+   * Loads an experiment from disk in the background, if it isn't cached already, so that it is in
+   * memory by the time it is asked for. Doesn't change which experiment is active.
+   */
+  void preloadExperiment(ExperimentOverviewPojo experimentOverview) {
+    backgroundWriteThread.execute(
+        () -> {
+          synchronized (cacheLock) {
+            if (experiments.containsKey(experimentOverview.getExperimentId())) {
+              return;
+            }
+          }
+          CachedExperiment loaded = readExperimentFile(experimentOverview);
+          if (loaded == null) {
+            return;
+          }
+          synchronized (cacheLock) {
+            if (experiments.containsKey(experimentOverview.getExperimentId())) {
+              // Someone else loaded or created it in the meantime; keep theirs.
+              return;
+            }
+            experiments.put(experimentOverview.getExperimentId(), loaded);
+            upgradeExperimentVersionIfNeeded(loaded.experiment);
+            evictIfNeeded();
+          }
+        });
+  }
+
   @VisibleForTesting
   void loadActiveExperimentFromFile(ExperimentOverviewPojo experimentOverview) {
-    File experimentFile = getExperimentFile(experimentOverview);
-    GoosciExperiment.Experiment proto;
-    synchronized (appAccount.getLockForExperimentProtoFile()) {
-      proto =
-          experimentProtoFileHelper.readFromFile(
-              experimentFile, GoosciExperiment.Experiment::parseFrom, getUsageTracker());
-    }
-    synchronized (activeExperimentLock) {
-      if (proto != null) {
-        Experiment toLoad = Experiment.fromExperiment(proto, experimentOverview);
-        upgradeExperimentVersionIfNeeded(toLoad);
-        activeExperiment = toLoad;
-        localSyncManager.addExperiment(activeExperiment.getExperimentId());
-        experimentLibraryManager.addExperiment(activeExperiment.getExperimentId());
+    CachedExperiment loaded = readExperimentFile(experimentOverview);
+    synchronized (cacheLock) {
+      if (loaded != null) {
+        String localExperimentId = experimentOverview.getExperimentId();
+        CachedExperiment previous = experiments.remove(localExperimentId);
+        if (previous != null) {
+          // What's on disk replaces it.
+          handler.removeCallbacks(previous.writeRunnable);
+        }
+        experiments.put(localExperimentId, loaded);
+        activeExperimentId = localExperimentId;
+        upgradeExperimentVersionIfNeeded(loaded.experiment);
+        evictIfNeeded();
       } else {
         // Or maybe pass a FailureListener into the load instead of failing here.
         failureListener.onReadFailed(experimentOverview);
-        activeExperiment = null;
+        forget(experimentOverview.getExperimentId());
       }
     }
   }
 
+  /**
+   * Reads and parses an experiment file, along with its journal, into a new cache entry that
+   * hasn't been added to the cache yet. Returns null if it can't.
+   */
+  private CachedExperiment readExperimentFile(ExperimentOverviewPojo experimentOverview) {
+    ExperimentJournal journal = new ExperimentJournal(getExperimentFile(experimentOverview));
+    GoosciExperiment.Experiment proto;
+    synchronized (appAccount.getLockForExperimentProtoFile()) {
+      proto = journal.read(experimentProtoFileHelper, getUsageTracker());
+    }
+    if (proto == null) {
+      return null;
+    }
+    Experiment experiment = Experiment.fromExperiment(proto, experimentOverview);
+    localSyncManager.addExperiment(experiment.getExperimentId());
+    experimentLibraryManager.addExperiment(experiment.getExperimentId());
+    CachedExperiment cached = new CachedExperiment(experiment);
+    cached.journal = journal;
+    cached.estimatedHeapBytes = estimateHeapBytes(proto);
+    return cached;
+  }
+
   private void upgradeExperimentVersionIfNeeded(Experiment experiment) {
     upgradeExperimentVersionIfNeeded(experiment, VERSION, MINOR_VERSION, PLATFORM_VERSION);
   }
@@ -557,7 +738,18 @@ class ExperimentCache {
     experiment.setFileVersion(fileVersion.build());
 
     // We've made changes we need to save.
-    startWriteTimer();
+    synchronized (cacheLock) {
+      CachedExperiment cached = experiments.get(experiment.getExperimentId());
+      if (cached == null) {
+        cached = new CachedExperiment(experiment);
+        experiments.put(experiment.getExperimentId(), cached);
+      } else {
+        synchronized (cached) {
+          cached.experiment = experiment;
+        }
+      }
+      startWriteTimer(cached);
+    }
   }
 
   private static void revMajorVersionTo(Version.FileVersion.Builder fileVersion, int majorVersion) {
@@ -587,16 +779,6 @@ class ExperimentCache {
     return new File(experimentDirectory, FileMetadataManager.ASSETS_DIRECTORY);
   }
 
-  private boolean isDifferentFromActive(ExperimentOverviewPojo other) {
-    synchronized (activeExperimentLock) {
-      if (activeExperiment == null) {
-        return true;
-      }
-      return !TextUtils.equals(
-          other.getExperimentId(), activeExperiment.getExperimentOverview().getExperimentId());
-    }
-  }
-
   @VisibleForTesting
   static boolean deleteRecursive(File file) {
     if (file.isDirectory()) {
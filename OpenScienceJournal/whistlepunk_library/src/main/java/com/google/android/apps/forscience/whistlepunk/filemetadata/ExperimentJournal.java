@@ -0,0 +1,404 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentJournal.ExperimentJournalEntry;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentJournal.SnapshotInfo;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Saves an experiment by appending what changed since the last save to a journal next to its
+ * experiment.proto, instead of rewriting the whole file, so that a small edit to a big experiment
+ * only costs a small write.
+ *
+ * <p>Once the journal grows past {@link #MIN_COMPACTION_BYTES}, or half the size of
+ * experiment.proto if that's bigger, the next save writes a fresh experiment.proto and deletes the
+ * journal. That bounds how much more than experiment.proto a load has to read.
+ *
+ * <p>The journal starts with the size and CRC of the experiment.proto it applies to, so one left
+ * over from before a compaction is ignored. A torn entry at the end, from the app dying partway
+ * through an append, is dropped along with anything after it.
+ *
+ * <p>Not thread safe. Callers should also hold the account's experiment proto file lock.
+ */
+class ExperimentJournal {
+  private static final String TAG = "ExperimentJournal";
+
+  static final String JOURNAL_SUFFIX = ".journal";
+
+  private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+  private final File experimentFile;
+  private final File journalFile;
+
+  // The experiment as it is on disk, after the last read or write, or null if we don't know yet.
+  private GoosciExperiment.Experiment onDisk = null;
+  private SnapshotInfo snapshot = null;
+  // Zero if there isn't a journal.
+  private long journalBytes = 0;
+  // Set when the journal may end in a torn entry, which we can't append after.
+  private boolean needsCompaction = false;
+
+  ExperimentJournal(File experimentFile) {
+    this.experimentFile = experimentFile;
+    journalFile = getJournalFile(experimentFile);
+  }
+
+  static File getJournalFile(File experimentFile) {
+    return new File(experimentFile.getParentFile(), experimentFile.getName() + JOURNAL_SUFFIX);
+  }
+
+  /** Whether there are journal entries that aren't in experiment.proto yet. */
+  boolean hasJournal() {
+    return journalBytes > 0 || needsCompaction;
+  }
+
+  /**
+   * Reads experiment.proto and applies the journal to it.
+   *
+   * @return the experiment, or null if experiment.proto couldn't be read
+   */
+  GoosciExperiment.Experiment read(
+      LiteProtoFileHelper<GoosciExperiment.Experiment> protoFileHelper, UsageTracker tracker) {
+    CRC32 crc = new CRC32();
+    GoosciExperiment.Experiment proto =
+        protoFileHelper.readFromFile(
+            experimentFile, GoosciExperiment.Experiment::parseFrom, crc, tracker);
+    if (proto == null) {
+      onDisk = null;
+      return null;
+    }
+    snapshot =
+        SnapshotInfo.newBuilder()
+            .setLength(experimentFile.length())
+            .setCrc32(crc.getValue())
+            .build();
+    journalBytes = 0;
+    needsCompaction = false;
+    if (journalFile.exists()) {
+      proto = replayJournal(proto);
+    }
+    onDisk = proto;
+    return proto;
+  }
+
+  private GoosciExperiment.Experiment replayJournal(GoosciExperiment.Experiment proto) {
+    Replay replay = new Replay(proto);
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(journalFile))) {
+      ExperimentJournalEntry first = ExperimentJournalEntry.parseDelimitedFrom(inputStream);
+      if (first == null || !snapshot.equals(first.getSnapshot())) {
+        // Left over from before experiment.proto was last written.
+        journalFile.delete();
+        return proto;
+      }
+      journalBytes = journalFile.length();
+      ExperimentJournalEntry entry;
+      while ((entry = ExperimentJournalEntry.parseDelimitedFrom(inputStream)) != null) {
+        replay.apply(entry);
+      }
+    } catch (IOException e) {
+      // Keep everything up to the torn entry, and write it all out on the next save.
+      if (Log.isLoggable(TAG, Log.WARN)) {
+        Log.w(TAG, "Journal ends early: " + journalFile, e);
+      }
+      needsCompaction = true;
+    }
+    return replay.build();
+  }
+
+  /**
+   * Saves {@code proto}. Appends what changed since the last read or write to the journal if it
+   * can, or writes a new experiment.proto if {@code compact} is true, the journal is too big, or
+   * the changes can't be written as a journal entry.
+   *
+   * @return whether it was saved
+   */
+  boolean write(
+      GoosciExperiment.Experiment proto,
+      boolean compact,
+      LiteProtoFileHelper<GoosciExperiment.Experiment> protoFileHelper,
+      UsageTracker tracker) {
+    if (!compact && onDisk != null && !needsCompaction) {
+      ExperimentJournalEntry entry = diff(onDisk, proto);
+      if (entry != null && entry.equals(ExperimentJournalEntry.getDefaultInstance())) {
+        // Nothing to save.
+        return true;
+      }
+      if (entry != null
+          && journalBytes + entry.getSerializedSize() <= getCompactionBytes()) {
+        try {
+          append(entry);
+          onDisk = proto;
+          return true;
+        } catch (IOException e) {
+          if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "Appending to journal failed: " + journalFile, e);
+          }
+          // The append may have left part of an entry behind.
+          needsCompaction = true;
+        }
+      }
+    }
+    return writeSnapshot(proto, protoFileHelper, tracker);
+  }
+
+  private long getCompactionBytes() {
+    return Math.max(MIN_COMPACTION_BYTES, snapshot.getLength() / 2);
+  }
+
+  private void append(ExperimentJournalEntry entry) throws IOException {
+    boolean newJournal = journalBytes == 0;
+    try (FileOutputStream outputStream = new FileOutputStream(journalFile, !newJournal)) {
+      if (newJournal) {
+        ExperimentJournalEntry.newBuilder()
+            .setSnapshot(snapshot)
+            .build()
+            .writeDelimitedTo(outputStream);
+      }
+      entry.writeDelimitedTo(outputStream);
+      outputStream.getFD().sync();
+    }
+    journalBytes = journalFile.length();
+  }
+
+  private boolean writeSnapshot(
+      GoosciExperiment.Experiment proto,
+      LiteProtoFileHelper<GoosciExperiment.Experiment> protoFileHelper,
+      UsageTracker tracker) {
+    CRC32 crc = new CRC32();
+    if (!protoFileHelper.writeToFile(experimentFile, proto, crc, tracker)) {
+      // experiment.proto and the journal are as they were.
+      return false;
+    }
+    snapshot =
+        SnapshotInfo.newBuilder()
+            .setLength(proto.getSerializedSize())
+            .setCrc32(crc.getValue())
+            .build();
+    onDisk = proto;
+    // If we die before this, the journal won't match the new snapshot, and will be ignored.
+    journalFile.delete();
+    journalBytes = 0;
+    needsCompaction = false;
+    return true;
+  }
+
+  /**
+   * Returns the journal entry that turns {@code base} into {@code current}, or null if there isn't
+   * one; for example, if trials have been reordered, or changes removed.
+   */
+  @VisibleForTesting
+  static ExperimentJournalEntry diff(
+      GoosciExperiment.Experiment base, GoosciExperiment.Experiment current) {
+    ExperimentJournalEntry.Builder entry = ExperimentJournalEntry.newBuilder();
+    GoosciExperiment.Experiment header = getHeader(current);
+    if (!header.equals(getHeader(base))) {
+      entry.setHeader(header);
+    }
+
+    // Changes are only ever added at the end, except when merging over an experiment.
+    int baseChanges = base.getChangesCount();
+    if (current.getChangesCount() < baseChanges) {
+      return null;
+    }
+    for (int i = 0; i < baseChanges; i++) {
+      if (!current.getChanges(i).getChangeId().equals(base.getChanges(i).getChangeId())) {
+        return null;
+      }
+    }
+    entry.addAllChanges(current.getChangesList().subList(baseChanges, current.getChangesCount()));
+
+    List<GoosciTrial.Trial> changedTrials = new ArrayList<>();
+    List<String> deletedTrialIds = new ArrayList<>();
+    if (!diffElements(
+        base.getTrialsList(),
+        getTrialIds(base.getTrialsList()),
+        current.getTrialsList(),
+        getTrialIds(current.getTrialsList()),
+        changedTrials,
+        deletedTrialIds)) {
+      return null;
+    }
+    entry.addAllTrials(changedTrials).addAllDeletedTrialIds(deletedTrialIds);
+
+    List<GoosciLabel.Label> changedLabels = new ArrayList<>();
+    List<String> deletedLabelIds = new ArrayList<>();
+    if (!diffElements(
+        base.getLabelsList(),
+        getLabelIds(base.getLabelsList()),
+        current.getLabelsList(),
+        getLabelIds(current.getLabelsList()),
+        changedLabels,
+        deletedLabelIds)) {
+      return null;
+    }
+    entry.addAllLabels(changedLabels).addAllDeletedLabelIds(deletedLabelIds);
+    return entry.build();
+  }
+
+  /** Returns {@code base} with {@code entry} applied to it. */
+  @VisibleForTesting
+  static GoosciExperiment.Experiment apply(
+      GoosciExperiment.Experiment base, ExperimentJournalEntry entry) {
+    Replay replay = new Replay(base);
+    replay.apply(entry);
+    return replay.build();
+  }
+
+  /**
+   * Finds the elements of {@code current} that are new or differ from those with the same ID in
+   * {@code base}, and the IDs of those in {@code base} that are gone.
+   *
+   * @return false if the elements can't be described that way, because they have been reordered,
+   *     new ones aren't all at the end, or IDs are repeated
+   */
+  private static <T> boolean diffElements(
+      List<T> base,
+      List<String> baseIds,
+      List<T> current,
+      List<String> currentIds,
+      List<T> changed,
+      List<String> deletedIds) {
+    Map<String, T> baseById = new HashMap<>();
+    for (int i = 0; i < base.size(); i++) {
+      baseById.put(baseIds.get(i), base.get(i));
+    }
+    Set<String> currentIdSet = new HashSet<>(currentIds);
+    if (baseById.size() != base.size() || currentIdSet.size() != current.size()) {
+      return false;
+    }
+
+    int nextBase = 0;
+    boolean sawNew = false;
+    for (int i = 0; i < current.size(); i++) {
+      String id = currentIds.get(i);
+      T previous = baseById.get(id);
+      if (previous == null) {
+        sawNew = true;
+        changed.add(current.get(i));
+        continue;
+      }
+      if (sawNew) {
+        return false;
+      }
+      while (nextBase < baseIds.size() && !currentIdSet.contains(baseIds.get(nextBase))) {
+        nextBase++;
+      }
+      if (nextBase == baseIds.size() || !baseIds.get(nextBase).equals(id)) {
+        return false;
+      }
+      nextBase++;
+      if (!previous.equals(current.get(i))) {
+        changed.add(current.get(i));
+      }
+    }
+
+    for (String id : baseIds) {
+      if (!currentIdSet.contains(id)) {
+        deletedIds.add(id);
+      }
+    }
+    return true;
+  }
+
+  private static GoosciExperiment.Experiment getHeader(GoosciExperiment.Experiment experiment) {
+    return experiment.toBuilder().clearTrials().clearLabels().clearChanges().build();
+  }
+
+  private static List<String> getTrialIds(List<GoosciTrial.Trial> trials) {
+    List<String> ids = new ArrayList<>(trials.size());
+    for (GoosciTrial.Trial trial : trials) {
+      ids.add(trial.getTrialId());
+    }
+    return ids;
+  }
+
+  private static List<String> getLabelIds(List<GoosciLabel.Label> labels) {
+    List<String> ids = new ArrayList<>(labels.size());
+    for (GoosciLabel.Label label : labels) {
+      ids.add(label.getLabelId());
+    }
+    return ids;
+  }
+
+  /** Applies journal entries to an experiment, building the result once at the end. */
+  private static class Replay {
+    private GoosciExperiment.Experiment header;
+    // Replacing an entry keeps its place; new ones go at the end.
+    private final LinkedHashMap<String, GoosciTrial.Trial> trials = new LinkedHashMap<>();
+    private final LinkedHashMap<String, GoosciLabel.Label> labels = new LinkedHashMap<>();
+    private final List<GoosciExperiment.Change> changes = new ArrayList<>();
+
+    Replay(GoosciExperiment.Experiment base) {
+      header = getHeader(base);
+      for (GoosciTrial.Trial trial : base.getTrialsList()) {
+        trials.put(trial.getTrialId(), trial);
+      }
+      for (GoosciLabel.Label label : base.getLabelsList()) {
+        labels.put(label.getLabelId(), label);
+      }
+      changes.addAll(base.getChangesList());
+    }
+
+    void apply(ExperimentJournalEntry entry) {
+      if (entry.hasHeader()) {
+        header = entry.getHeader();
+      }
+      for (String trialId : entry.getDeletedTrialIdsList()) {
+        trials.remove(trialId);
+      }
+      for (GoosciTrial.Trial trial : entry.getTrialsList()) {
+        trials.put(trial.getTrialId(), trial);
+      }
+      for (String labelId : entry.getDeletedLabelIdsList()) {
+        labels.remove(labelId);
+      }
+      for (GoosciLabel.Label label : entry.getLabelsList()) {
+        labels.put(label.getLabelId(), label);
+      }
+      changes.addAll(entry.getChangesList());
+    }
+
+    GoosciExperiment.Experiment build() {
+      return header
+          .toBuilder()
+          .addAllTrials(trials.values())
+          .addAllLabels(labels.values())
+          .addAllChanges(changes)
+          .build();
+    }
+  }
+}
@@ -34,6 +34,8 @@ import java.util.concurrent.Executors;
 
 /**
  * Manages a Science Journal experiment library.
+ *
+ * <p>Thread safe, since experiments are synced in parallel.
  */
 public class ExperimentLibraryManager {
   private static final String TAG = "experimentLibrary";
@@ -63,7 +65,7 @@ public class ExperimentLibraryManager {
    *
    * @param library The library to manage.
    */
-  public void setLibrary(ExperimentLibrary library) {
+  public synchronized void setLibrary(ExperimentLibrary library) {
     experiments.clear();
     if (library == null) {
       this.folderId = null;
@@ -89,7 +91,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to find.
    * @return The SyncExperiment if found, or null.
    */
-  LibrarySyncExperiment getExperiment(String experimentId) {
+  synchronized LibrarySyncExperiment getExperiment(String experimentId) {
     populateExperimentLibraryManager();
     return experiments.get(experimentId);
   }
@@ -100,7 +102,7 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to find.
    */
-  public void addExperiment(String experimentId) {
+  public synchronized void addExperiment(String experimentId) {
     if (getExperiment(experimentId) != null) {
       return;
     }
@@ -113,7 +115,7 @@ public class ExperimentLibraryManager {
    *
    * @param experiment The SyncEcperiment to add.
    */
-  void addExperiment(SyncExperiment experiment) {
+  synchronized void addExperiment(SyncExperiment experiment) {
     if (experiments.containsKey(experiment.getExperimentId())) {
       throw new IllegalArgumentException("Experiment already exists");
     }
@@ -173,7 +175,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param archived Whether or not the experiment is locally archived.
    */
-  public void setArchived(String experimentId, boolean archived) {
+  public synchronized void setArchived(String experimentId, boolean archived) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setArchived(archived);
@@ -187,11 +189,11 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to get state for.
    * @return Whether or not the experiment is locally archived.
    */
-  public boolean isArchived(String experimentId) {
+  public synchronized boolean isArchived(String experimentId) {
     return getExperiment(experimentId).isArchived();
   }
 
-  public void setAllDeleted(boolean deleted) {
+  public synchronized void setAllDeleted(boolean deleted) {
     populateExperimentLibraryManager();
     for (LibrarySyncExperiment experiment : experiments.values()) {
       experiment.setDeleted(deleted);
@@ -205,7 +207,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param deleted Whether or not the experiment is locally deleted.
    */
-  public void setDeleted(String experimentId, boolean deleted) {
+  public synchronized void setDeleted(String experimentId, boolean deleted) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setDeleted(deleted);
@@ -219,7 +221,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to get state for.
    * @return Whether or not the experiment is locally deleted.
    */
-  public boolean isDeleted(String experimentId) {
+  public synchronized boolean isDeleted(String experimentId) {
     return getExperiment(experimentId).isDeleted();
   }
 
@@ -228,7 +230,7 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to update.
    */
-  public void setOpened(String experimentId) {
+  public synchronized void setOpened(String experimentId) {
     setOpened(experimentId, System.currentTimeMillis());
   }
 
@@ -238,7 +240,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param timeInMillis The time the experiment was last opened.
    */
-  public void setOpened(String experimentId, long timeInMillis) {
+  public synchronized void setOpened(String experimentId, long timeInMillis) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setLastOpened(timeInMillis);
@@ -252,7 +254,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get times from.
    * @return the last opened time for the experiment, in millis.
    */
-  public long getOpened(String experimentId) {
+  public synchronized long getOpened(String experimentId) {
     return getExperiment(experimentId).getLastOpened();
   }
 
@@ -261,7 +263,7 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to update.
    */
-  public void setModified(String experimentId) {
+  public synchronized void setModified(String experimentId) {
     setModified(experimentId, System.currentTimeMillis());
   }
 
@@ -271,7 +273,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param timeInMillis The time the experiment was last modified.
    */
-  public void setModified(String experimentId, long timeInMillis) {
+  public synchronized void setModified(String experimentId, long timeInMillis) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setLastModified(timeInMillis);
@@ -285,7 +287,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get times from.
    * @return the last modified time for the experiment, in millis.
    */
-  public long getModified(String experimentId) {
+  public synchronized long getModified(String experimentId) {
     return getExperiment(experimentId).getLastModified();
   }
 
@@ -295,7 +297,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param fileId The file id for the experiment.
    */
-  public void setFileId(String experimentId, String fileId) {
+  public synchronized void setFileId(String experimentId, String fileId) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setFileId(fileId);
@@ -309,7 +311,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get the file id from.
    * @return the file id for the experiment.
    */
-  public String getFileId(String experimentId) {
+  public synchronized String getFileId(String experimentId) {
     return getExperiment(experimentId).getFileId();
   }
 
@@ -318,7 +320,7 @@ public class ExperimentLibraryManager {
    *
    * @param library The experiment to merge from.
    */
-  public void merge(ExperimentLibrary library, LocalSyncManager syncManager) {
+  public synchronized void merge(ExperimentLibrary library, LocalSyncManager syncManager) {
     populateExperimentLibraryManager();
     if (!Strings.isNullOrEmpty(library.getFolderId())) {
       folderId = library.getFolderId();
@@ -336,7 +338,7 @@ public class ExperimentLibraryManager {
     writeExperimentLibrary();
   }
 
-  public Set<String> getKnownExperiments() {
+  public synchronized Set<String> getKnownExperiments() {
     populateExperimentLibraryManager();
 
     // Returning a local copy of this set will defend against concurrent modification.
@@ -364,7 +366,7 @@ public class ExperimentLibraryManager {
         });
   }
 
-  private ExperimentLibrary generateProto() {
+  private synchronized ExperimentLibrary generateProto() {
     ExperimentLibrary.Builder library = ExperimentLibrary.newBuilder();
     if (folderId != null) {
       library.setFolderId(folderId);
@@ -385,13 +387,13 @@ public class ExperimentLibraryManager {
     }
   }
 
-  public void setFolderId(String folderId) {
+  public synchronized void setFolderId(String folderId) {
     populateExperimentLibraryManager();
     this.folderId = folderId;
     writeExperimentLibrary();
   }
 
-  public String getFolderId() {
+  public synchronized String getFolderId() {
     populateExperimentLibraryManager();
     return folderId;
   }
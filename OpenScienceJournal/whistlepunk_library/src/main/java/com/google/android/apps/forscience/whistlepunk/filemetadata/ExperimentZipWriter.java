@@ -0,0 +1,514 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import androidx.annotation.VisibleForTesting;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes the zip archive for an exported experiment.
+ *
+ * <p>Files are prepared on a small pool of threads, and written to the archive in the order they
+ * were added. Files that are already compressed, like photos, are stored as they are rather than
+ * deflated again, as is anything that doesn't get smaller when deflated. Files too large to hold
+ * in memory once deflated are deflated as they're written instead, on the calling thread. One
+ * entry at a time can also be streamed straight into the archive, so that large generated files
+ * (like the sensor data) don't need to be written to disk first.
+ *
+ * <p>Not thread safe: all methods should be called from one thread at a time.
+ */
+class ExperimentZipWriter implements Closeable {
+  /** The number of threads to prepare files on by default. */
+  static final int DEFAULT_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /** How many prepared files, per thread, may be waiting to be written at once. */
+  private static final int MAX_PENDING_PER_THREAD = 2;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The largest file that's deflated into memory on a preparer thread. Larger ones are deflated as
+   * they're written, so that at most {@code maxPending} times this is held in memory at once.
+   */
+  @VisibleForTesting static final long MAX_BUFFERED_SIZE = 1024 * 1024;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int VERSION = 20;
+  private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+  private static final int FLAG_UTF8 = 1 << 11;
+  private static final long MAX_SIZE = 0xffffffffL;
+  private static final int MAX_ENTRIES = 0xffff;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Extensions of files that are already compressed, and aren't worth deflating again. */
+  private static final String[] STORED_EXTENSIONS = {
+    ".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp3", ".mp4", ".m4a", ".zip", ".sj"
+  };
+
+  /** An entry, ready to be written to the archive. */
+  private static class PreparedEntry {
+    String name;
+    int method;
+    long crc;
+    long size;
+    long compressedSize;
+    // Exactly one of these is set: the deflated bytes, the file to store as it is, or the file to
+    // deflate as it's written.
+    byte[] deflated;
+    File stored;
+    File deflateWhenWritten;
+  }
+
+  /** What the central directory needs to know about a written entry. */
+  private static class CentralEntry {
+    byte[] name;
+    int flags;
+    int method;
+    long crc;
+    long size;
+    long compressedSize;
+    long offset;
+  }
+
+  /** Counts the bytes written to the archive, for entry offsets. */
+  private static class CountingOutputStream extends FilterOutputStream {
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  private final CountingOutputStream out;
+  private final ExecutorService preparers;
+  private final int maxPending;
+  private final ArrayDeque<Future<PreparedEntry>> pending = new ArrayDeque<>();
+  private final List<CentralEntry> centralDirectory = new ArrayList<>();
+  private final Set<String> names = new HashSet<>();
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final int dosTime;
+  private final int dosDate;
+  private OutputStream streamedEntry;
+  private boolean finished;
+
+  ExperimentZipWriter(OutputStream out) {
+    this(out, DEFAULT_THREADS);
+  }
+
+  @VisibleForTesting
+  ExperimentZipWriter(OutputStream out, int threads) {
+    this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    preparers = Executors.newFixedThreadPool(threads);
+    maxPending = threads * MAX_PENDING_PER_THREAD;
+
+    Calendar now = Calendar.getInstance();
+    dosTime =
+        (now.get(Calendar.HOUR_OF_DAY) << 11)
+            | (now.get(Calendar.MINUTE) << 5)
+            | (now.get(Calendar.SECOND) >> 1);
+    dosDate =
+        ((now.get(Calendar.YEAR) - 1980) << 9)
+            | ((now.get(Calendar.MONTH) + 1) << 5)
+            | now.get(Calendar.DAY_OF_MONTH);
+  }
+
+  /**
+   * Adds {@code file} to the archive as {@code name}. The file is read and compressed in the
+   * background; this only blocks if too many files are already waiting to be written.
+   */
+  void addFile(String name, File file) throws IOException {
+    checkNewEntry(name);
+    pending.add(preparers.submit(() -> prepare(name, file)));
+    while (pending.size() > maxPending) {
+      writeNextPending();
+    }
+  }
+
+  /**
+   * Starts a deflated entry called {@code name}, and returns the stream to write its contents to.
+   * The entry is finished when the returned stream is closed; closing it doesn't close the
+   * archive. Files added before this are written to the archive first.
+   */
+  OutputStream startEntry(String name) throws IOException {
+    checkNewEntry(name);
+    while (!pending.isEmpty()) {
+      writeNextPending();
+    }
+    return startDeflatedEntry(name);
+  }
+
+  /** Writes the header of a deflated entry whose sizes follow its data, in a data descriptor. */
+  private OutputStream startDeflatedEntry(String name) throws IOException {
+    CentralEntry entry = new CentralEntry();
+    entry.name = name.getBytes(UTF_8);
+    entry.flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+    entry.method = ZipEntry.DEFLATED;
+    entry.offset = out.count;
+    writeLocalHeader(entry);
+
+    CRC32 crc = new CRC32();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+    long start = out.count;
+    streamedEntry =
+        new DeflaterOutputStream(nonClosing(out), deflater, BUFFER_SIZE) {
+          private long size;
+          private boolean closed;
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+          }
+
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void close() throws IOException {
+            if (closed) {
+              return;
+            }
+            closed = true;
+            finish();
+            deflater.end();
+            entry.crc = crc.getValue();
+            entry.size = size;
+            entry.compressedSize = ExperimentZipWriter.this.out.count - start;
+            checkSize(entry.size);
+            checkSize(entry.compressedSize);
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            centralDirectory.add(entry);
+            streamedEntry = null;
+          }
+        };
+    return streamedEntry;
+  }
+
+  /** Writes everything that's still pending and the central directory, and closes the archive. */
+  @Override
+  public void close() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    try {
+      if (streamedEntry != null) {
+        throw new ZipException("Entry still open");
+      }
+      while (!pending.isEmpty()) {
+        writeNextPending();
+      }
+      writeCentralDirectory();
+      out.flush();
+    } finally {
+      abandon();
+      out.close();
+    }
+  }
+
+  /** Closes the archive without finishing it, for when something has already gone wrong. */
+  void closeQuietly() {
+    finished = true;
+    abandon();
+    try {
+      out.close();
+    } catch (IOException e) {
+      // We're already giving up on this archive.
+    }
+  }
+
+  private void abandon() {
+    for (Future<PreparedEntry> future : pending) {
+      future.cancel(true);
+    }
+    pending.clear();
+    preparers.shutdownNow();
+  }
+
+  private void checkNewEntry(String name) throws ZipException {
+    if (finished) {
+      throw new IllegalStateException("Archive already closed");
+    }
+    if (streamedEntry != null) {
+      throw new ZipException("Entry still open");
+    }
+    if (!names.add(name)) {
+      throw new ZipException("Duplicate entry: " + name);
+    }
+    if (names.size() > MAX_ENTRIES) {
+      throw new ZipException("Too many entries to export");
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isAlreadyCompressed(String name) {
+    String lowerCase = name.toLowerCase(Locale.US);
+    for (String extension : STORED_EXTENSIONS) {
+      if (lowerCase.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Runs on a preparer thread: reads {@code file} and decides how to store it. */
+  private static PreparedEntry prepare(String name, File file) throws IOException {
+    PreparedEntry entry = new PreparedEntry();
+    entry.name = name;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    CRC32 crc = new CRC32();
+    long size = 0;
+
+    if (isAlreadyCompressed(name)) {
+      try (InputStream in = new FileInputStream(file)) {
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          crc.update(buffer, 0, read);
+          size += read;
+        }
+      }
+      return stored(entry, file, crc.getValue(), size);
+    }
+    if (file.length() > MAX_BUFFERED_SIZE) {
+      entry.deflateWhenWritten = file;
+      return entry;
+    }
+
+    ByteArrayOutputStream deflatedBytes = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+    try (InputStream in = new FileInputStream(file);
+        DeflaterOutputStream deflating =
+            new DeflaterOutputStream(deflatedBytes, deflater, BUFFER_SIZE)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        if (Thread.interrupted()) {
+          throw new IOException("Export cancelled");
+        }
+        crc.update(buffer, 0, read);
+        deflating.write(buffer, 0, read);
+        size += read;
+      }
+    } finally {
+      deflater.end();
+    }
+
+    if (deflatedBytes.size() >= size) {
+      // Didn't get any smaller; not worth making the reader inflate it.
+      return stored(entry, file, crc.getValue(), size);
+    }
+    entry.method = ZipEntry.DEFLATED;
+    entry.crc = crc.getValue();
+    entry.size = size;
+    entry.deflated = deflatedBytes.toByteArray();
+    entry.compressedSize = entry.deflated.length;
+    return entry;
+  }
+
+  private static PreparedEntry stored(PreparedEntry entry, File file, long crc, long size) {
+    entry.method = ZipEntry.STORED;
+    entry.crc = crc;
+    entry.size = size;
+    entry.compressedSize = size;
+    entry.stored = file;
+    return entry;
+  }
+
+  private void writeNextPending() throws IOException {
+    PreparedEntry prepared;
+    try {
+      prepared = pending.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Export interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    if (prepared.deflateWhenWritten != null) {
+      try (InputStream in = new FileInputStream(prepared.deflateWhenWritten);
+          OutputStream entryOut = startDeflatedEntry(prepared.name)) {
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          entryOut.write(buffer, 0, read);
+        }
+      }
+      return;
+    }
+    checkSize(prepared.size);
+
+    CentralEntry entry = new CentralEntry();
+    entry.name = prepared.name.getBytes(UTF_8);
+    entry.flags = FLAG_UTF8;
+    entry.method = prepared.method;
+    entry.crc = prepared.crc;
+    entry.size = prepared.size;
+    entry.compressedSize = prepared.compressedSize;
+    entry.offset = out.count;
+    writeLocalHeader(entry);
+
+    if (prepared.deflated != null) {
+      out.write(prepared.deflated);
+    } else {
+      long copied = 0;
+      try (InputStream in = new FileInputStream(prepared.stored)) {
+        int read;
+        while (copied < prepared.size && (read = in.read(buffer)) > 0) {
+          read = (int) Math.min(read, prepared.size - copied);
+          out.write(buffer, 0, read);
+          copied += read;
+        }
+      }
+      if (copied != prepared.size) {
+        throw new ZipException("File changed while exporting: " + prepared.name);
+      }
+    }
+    centralDirectory.add(entry);
+  }
+
+  private void writeLocalHeader(CentralEntry entry) throws IOException {
+    checkSize(entry.offset);
+    writeInt(LOCAL_HEADER_SIGNATURE);
+    writeShort(VERSION);
+    writeShort(entry.flags);
+    writeShort(entry.method);
+    writeShort(dosTime);
+    writeShort(dosDate);
+    // With a data descriptor, these come after the data instead.
+    writeInt(entry.crc);
+    writeInt(entry.compressedSize);
+    writeInt(entry.size);
+    writeShort(entry.name.length);
+    writeShort(0 /* extra field length */);
+    out.write(entry.name);
+  }
+
+  private void writeCentralDirectory() throws IOException {
+    long start = out.count;
+    for (CentralEntry entry : centralDirectory) {
+      writeInt(CENTRAL_HEADER_SIGNATURE);
+      writeShort(VERSION /* made by */);
+      writeShort(VERSION /* needed to extract */);
+      writeShort(entry.flags);
+      writeShort(entry.method);
+      writeShort(dosTime);
+      writeShort(dosDate);
+      writeInt(entry.crc);
+      writeInt(entry.compressedSize);
+      writeInt(entry.size);
+      writeShort(entry.name.length);
+      writeShort(0 /* extra field length */);
+      writeShort(0 /* comment length */);
+      writeShort(0 /* disk number */);
+      writeShort(0 /* internal attributes */);
+      writeInt(0 /* external attributes */);
+      writeInt(entry.offset);
+      out.write(entry.name);
+    }
+    long size = out.count - start;
+    checkSize(start);
+    checkSize(size);
+
+    writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    writeShort(0 /* this disk */);
+    writeShort(0 /* disk with the central directory */);
+    writeShort(centralDirectory.size());
+    writeShort(centralDirectory.size());
+    writeInt(size);
+    writeInt(start);
+    writeShort(0 /* comment length */);
+  }
+
+  private static void checkSize(long size) throws ZipException {
+    if (size > MAX_SIZE) {
+      throw new ZipException("Experiment too large to export");
+    }
+  }
+
+  private void writeShort(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+  }
+
+  private void writeInt(long value) throws IOException {
+    writeShort((int) (value & 0xffff));
+    writeShort((int) ((value >> 16) & 0xffff));
+  }
+
+  private static OutputStream nonClosing(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+}
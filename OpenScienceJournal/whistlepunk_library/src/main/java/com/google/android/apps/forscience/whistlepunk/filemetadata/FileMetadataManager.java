@@ -34,20 +34,24 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciPictureLabelValue;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
 import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
-import io.reactivex.Single;
+import io.reactivex.Completable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
@@ -331,6 +335,13 @@ public class FileMetadataManager {
     return activeExperimentCache.getExperiment(overview);
   }
 
+  public void preloadExperiment(String experimentId) {
+    ExperimentOverviewPojo overview = userMetadataManager.getExperimentOverview(experimentId);
+    if (overview != null) {
+      activeExperimentCache.preloadExperiment(overview);
+    }
+  }
+
   public Experiment newExperiment() {
     long timestamp = clock.getNow();
     String localExperimentId = UUID.randomUUID().toString();
@@ -443,14 +454,23 @@ public class FileMetadataManager {
 
   /**
    * Imports an experiment from a ZIP file at the given URI, with the permissions of the Activity.
+   *
+   * <p>The archive is read in one pass. If the experiment comes before the sensor data, as it does
+   * in archives from this version on, the sensor data is parsed straight out of the archive and
+   * stored in the background while the rest of it, like the photos, is extracted. Older archives
+   * have the sensor data first, so it's copied to a file and read once the experiment has been.
    */
   public Experiment importExperiment(Context context, Uri data, ContentResolver resolver)
       throws IOException {
     String experimentId = null;
     Context appContext = context.getApplicationContext();
-    Experiment newExperiment = null;
-    File externalPath = null;
-    boolean containsExperimentImage;
+    Experiment newExperiment;
+    File externalPath;
+    GoosciExperiment.Experiment.Builder proto = null;
+    HashMap<String, String> trialIdMap = null;
+    boolean containsExperimentImage = false;
+    Future<Void> dataStored = null;
+    ExecutorService dataExecutor = Executors.newSingleThreadExecutor();
     try {
       newExperiment = newExperiment();
       experimentId = newExperiment.getExperimentId();
@@ -459,28 +479,56 @@ public class FileMetadataManager {
       externalPath = new File(externalFilesDir, experimentId);
       File internalPath =
           FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
+      makeImportDirectories(externalPath, internalPath);
       // Blocking get is ok as this is already on a background thread.
-      containsExperimentImage =
-          unzipExperimentFile(appContext, data, resolver, externalPath, internalPath).blockingGet();
+      requestReadPermission(appContext).blockingAwait();
+
+      ScalarSensorDumpReader dumpReader =
+          new ScalarSensorDumpReader(
+              AppSingleton.getInstance(context)
+                  .getSensorEnvironment()
+                  .getDataController(appAccount));
+      byte[] buffer = new byte[8192];
+      try (ZipInputStream zis = new ZipInputStream(resolver.openInputStream(data))) {
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+          String fileName = entry.getName();
+          if (fileName.equals(EXPERIMENT_FILE)) {
+            readZipInputStream(zis, buffer, new FileOutputStream(new File(externalPath, fileName)));
+            proto = readImportedExperiment(context, externalPath);
+            trialIdMap = updateTrials(proto, newExperiment);
+          } else if (fileName.equals(FileMetadataUtil.SENSOR_DATA_FILE)) {
+            if (trialIdMap == null) {
+              readZipInputStream(
+                  zis, buffer, new FileOutputStream(new File(externalPath, fileName)));
+              continue;
+            }
+            try {
+              dataStored = dumpReader.readDataInBackground(zis, trialIdMap, dataExecutor);
+            } catch (IOException e) {
+              // Keep whatever was read, as the old import did; the rest of the archive is fine.
+              if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Failed to read imported sensor data", e);
+              }
+            }
+          } else if (fileName.matches(".*jpg")) {
+            if (fileName.matches(COVER_IMAGE_FILE)) {
+              containsExperimentImage = true;
+            }
+            readZipInputStream(zis, buffer, new FileOutputStream(new File(internalPath, fileName)));
+          }
+        }
+      }
+      if (proto == null) {
+        throw new ZipException("Corrupt or Missing Experiment Proto");
+      }
     } catch (Exception e) {
+      dataExecutor.shutdownNow();
       deleteExperiment(experimentId);
       throw e;
     }
 
-    GoosciExperiment.Experiment.Builder proto = populateExperimentProto(context, externalPath);
-    if (proto == null) {
-      deleteExperiment(experimentId);
-      throw new ZipException("Corrupt or Missing Experiment Proto");
-    }
-    if (!FileMetadataUtil.getInstance().canImportFromVersion(proto.getFileVersion())) {
-      deleteExperiment(experimentId);
-      // TODO: better error message
-      throw new ZipException("Cannot import from file version: " + versionToString(proto.build()));
-    }
-
     ExperimentOverviewPojo overview = populateOverview(proto.build(), experimentId);
-    HashMap<String, String> trialIdMap = updateTrials(proto, newExperiment);
-
     updateLabels(proto.build(), newExperiment);
     newExperiment.setTitle(proto.getTitle());
     newExperiment.setLastUsedTime(clock.getNow());
@@ -489,30 +537,63 @@ public class FileMetadataManager {
       newExperiment.setImagePath(overview.getImagePath());
     }
     updateExperiment(Experiment.fromExperiment(proto.build(), overview), true);
-    File dataFile = new File(externalPath, "sensorData.proto");
-
-    if (dataFile.exists()) {
-      LiteProtoFileHelper<GoosciScalarSensorData.ScalarSensorData> dataProtoFileHelper =
-          new LiteProtoFileHelper<>();
-      GoosciScalarSensorData.ScalarSensorData dataProto =
-          dataProtoFileHelper.readFromFile(
-              dataFile,
-              GoosciScalarSensorData.ScalarSensorData::parseFrom,
-              WhistlePunkApplication.getUsageTracker(context));
-
-      if (dataProto != null) {
-        ScalarSensorDumpReader dumpReader =
-            new ScalarSensorDumpReader(
-                AppSingleton.getInstance(context)
-                    .getSensorEnvironment()
-                    .getDataController(appAccount));
-        dumpReader.readData(dataProto, trialIdMap);
+
+    try {
+      if (dataStored != null) {
+        dataStored.get();
+      } else {
+        readSpooledSensorData(context, externalPath, trialIdMap);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Failed to store imported sensor data", e.getCause());
       }
+    } finally {
+      dataExecutor.shutdown();
     }
 
     return newExperiment;
   }
 
+  /** Reads the sensor data of an older archive, which was copied to a file as it came first. */
+  private void readSpooledSensorData(
+      Context context, File externalPath, HashMap<String, String> trialIdMap) {
+    File dataFile = new File(externalPath, FileMetadataUtil.SENSOR_DATA_FILE);
+    if (!dataFile.exists()) {
+      return;
+    }
+    ScalarSensorDumpReader dumpReader =
+        new ScalarSensorDumpReader(
+            AppSingleton.getInstance(context).getSensorEnvironment().getDataController(appAccount));
+    // Stream the data in, since it can be far bigger than the rest of the experiment.
+    try (FileInputStream dataStream = new FileInputStream(dataFile)) {
+      dumpReader.readData(dataStream, trialIdMap);
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Failed to read imported sensor data", e);
+      }
+    }
+  }
+
+  /**
+   * Reads the experiment that was just extracted to {@code externalPath}, and checks that it can be
+   * imported, before any of its sensor data is.
+   */
+  private GoosciExperiment.Experiment.Builder readImportedExperiment(
+      Context context, File externalPath) throws ZipException {
+    GoosciExperiment.Experiment.Builder proto = populateExperimentProto(context, externalPath);
+    if (proto == null) {
+      throw new ZipException("Corrupt or Missing Experiment Proto");
+    }
+    if (!FileMetadataUtil.getInstance().canImportFromVersion(proto.getFileVersion())) {
+      // TODO: better error message
+      throw new ZipException("Cannot import from file version: " + versionToString(proto.build()));
+    }
+    return proto;
+  }
+
   private String versionToString(GoosciExperiment.Experiment proto) {
     Version.FileVersion fileVersion = proto.getFileVersion();
     return fileVersion.getVersion()
@@ -524,9 +605,7 @@ public class FileMetadataManager {
         + fileVersion.getPlatformVersion();
   }
 
-  private Single<Boolean> unzipExperimentFile(
-      Context context, Uri data, ContentResolver resolver, File externalPath, File internalPath)
-      throws IOException {
+  private void makeImportDirectories(File externalPath, File internalPath) throws IOException {
     if (!externalPath.exists() && !externalPath.mkdir()) {
       throw new IOException("Couldn't create external experiment directory");
     }
@@ -537,8 +616,11 @@ public class FileMetadataManager {
     if (!assetsDirectory.exists() && !assetsDirectory.mkdir()) {
       throw new IOException("Couldn't create assets directory");
     }
+  }
 
-    return Single.create(
+  /** Completes once the next Activity has been granted permission to read external storage. */
+  private Completable requestReadPermission(Context context) {
+    return Completable.create(
         s -> {
           AppSingleton.getInstance(context)
               .onNextActivity()
@@ -550,36 +632,7 @@ public class FileMetadataManager {
                         new PermissionUtils.PermissionListener() {
                           @Override
                           public void onPermissionGranted() {
-                            Boolean containsImage = false;
-                            try {
-                              ZipInputStream zis =
-                                  new ZipInputStream(resolver.openInputStream(data));
-                              ZipEntry entry = zis.getNextEntry();
-                              byte[] buffer = new byte[1024];
-
-                              while (entry != null) {
-                                String fileName = entry.getName();
-                                if (fileName.equals("experiment.proto")
-                                    || fileName.equals("sensorData.proto")) {
-                                  FileOutputStream fos =
-                                      new FileOutputStream(new File(externalPath, fileName));
-                                  readZipInputStream(zis, buffer, fos);
-                                } else if (fileName.matches(".*jpg")) {
-                                  if (fileName.matches(COVER_IMAGE_FILE)) {
-                                    containsImage = true;
-                                  }
-                                  FileOutputStream fos =
-                                      new FileOutputStream(new File(internalPath, fileName));
-                                  readZipInputStream(zis, buffer, fos);
-                                }
-
-                                entry = zis.getNextEntry();
-                              }
-                              zis.close();
-                              s.onSuccess(containsImage);
-                            } catch (Exception e) {
-                              s.onError(e);
-                            }
+                            s.onComplete();
                           }
 
                           @Override
@@ -33,19 +33,15 @@ import com.google.android.apps.forscience.whistlepunk.R;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary.ExperimentLibrary;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
+import com.google.protobuf.MessageLite;
 import io.reactivex.Single;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipOutputStream;
 
 /** Utility class for interacting with the file system * */
 public class FileMetadataUtil {
@@ -55,6 +51,7 @@ public class FileMetadataUtil {
   public static final String EXPERIMENT_FILE = "experiment.proto";
   public static final String EXPERIMENT_LIBRARY_FILE = "experiment_library.proto";
   public static final String SYNC_STATUS_FILE = "sync_status.proto";
+  public static final String SENSOR_DATA_FILE = "sensorData.proto";
   private static final String TAG = "FileMetadataManager";
   private static final String USER_METADATA_FILE = "user_metadata.proto";
   public static final String DOT_PROTO = ".proto";
@@ -144,6 +141,9 @@ public class FileMetadataUtil {
   /**
    * Immediately saves the file to be sure the in-storage protos are consistent with memory, and
    * starts the Export Service to produce an SJ file.
+   *
+   * <p>The sensor data is streamed from the database straight into the archive, and the
+   * experiment's files are compressed in parallel; see {@link ExperimentZipWriter}.
    */
   public Single<File> getFileForExport(
       Context context, AppAccount appAccount, Experiment experiment, DataController dc) {
@@ -153,53 +153,54 @@ public class FileMetadataUtil {
               new MaybeConsumer<Success>() {
                 @Override
                 public void success(Success result) {
-                  String sensorProtoFileName =
-                      getExperimentDirectory(appAccount, experiment.getExperimentId())
-                          + "/sensorData.proto";
-
                   File zipFile;
                   String experimentName = experiment.getTitle();
                   if (experimentName.isEmpty()) {
                     experimentName =
                         context.getResources().getString(R.string.default_experiment_name);
                   }
+                  ExperimentZipWriter zip;
+                  OutputStream sensorDataEntry;
                   try {
                     zipFile =
                         new File(
                             getExperimentExportDirectory(appAccount),
                             ExportService.makeSJExportFilename(experimentName));
+                    zip = new ExperimentZipWriter(new FileOutputStream(zipFile));
+                    // The experiment goes first, so that an import knows the trials before it
+                    // reaches their data, and can stream the data straight out of the archive.
+                    String experimentId = experiment.getExperimentId();
+                    zip.addFile(
+                        EXPERIMENT_FILE,
+                        getExperimentFile(appAccount, experimentId, EXPERIMENT_FILE));
+                    sensorDataEntry = zip.startEntry(SENSOR_DATA_FILE);
                   } catch (IOException ioException) {
                     s.onError(ioException);
                     return;
                   }
 
-                  dc.getScalarReadingProtosInBackground(
+                  dc.writeScalarReadingProtosInBackground(
                       experiment.getExperimentProto(),
-                      new MaybeConsumer<GoosciScalarSensorData.ScalarSensorData>() {
+                      sensorDataEntry,
+                      new MaybeConsumer<Success>() {
                         @Override
-                        public void success(GoosciScalarSensorData.ScalarSensorData sensorData) {
-                          try (FileOutputStream sensorStream =
-                              new FileOutputStream(sensorProtoFileName)) {
-                            sensorData.writeTo(sensorStream);
-                          } catch (IOException ioException) {
-                            s.onError(ioException);
-                            return;
-                          }
-
-                          try (FileOutputStream fos = new FileOutputStream(zipFile);
-                              ZipOutputStream zos = new ZipOutputStream(fos); ) {
+                        public void success(Success written) {
+                          try {
+                            sensorDataEntry.close();
                             File experimentDirectory =
                                 getExperimentDirectory(appAccount, experiment.getExperimentId());
-                            zipDirectory(experimentDirectory, zos, "");
+                            zipDirectory(experimentDirectory, zip, "");
 
                             if (!experiment.getExperimentOverview().getImagePath().isEmpty()) {
                               File experimentImage =
                                   new File(
                                       getFilesDir(appAccount),
                                       experiment.getExperimentOverview().getImagePath());
-                              zipExperimentImage(experimentImage, zos);
+                              zipExperimentImage(experimentImage, zip);
                             }
+                            zip.close();
                           } catch (IOException ioException) {
+                            zip.closeQuietly();
                             s.onError(ioException);
                             return;
                           }
@@ -208,6 +209,7 @@ public class FileMetadataUtil {
 
                         @Override
                         public void fail(Exception e) {
+                          zip.closeQuietly();
                           s.onError(e);
                           return;
                         }
@@ -222,56 +224,38 @@ public class FileMetadataUtil {
         });
   }
 
-  public void zipDirectory(File directory, ZipOutputStream zipOutputStream, String path)
-      throws IOException {
+  void zipDirectory(File directory, ExperimentZipWriter zip, String path) throws IOException {
     File[] fileList = directory.listFiles();
     for (File f : fileList) {
       if (f.isDirectory()) {
-        zipDirectory(f, zipOutputStream, path + f.getName() + "/");
+        zipDirectory(f, zip, path + f.getName() + "/");
+        continue;
+      }
+      if (f.getName().endsWith(ExperimentJournal.JOURNAL_SUFFIX)) {
+        // Local only; the experiment was saved in full before exporting.
         continue;
       }
-      FileInputStream fis = new FileInputStream(f.getAbsolutePath());
       String zipPath = path + f.getName();
+      if (zipPath.equals(SENSOR_DATA_FILE)) {
+        // Left over from an older export; the current sensor data is already in the archive.
+        continue;
+      }
+      if (zipPath.equals(EXPERIMENT_FILE)) {
+        // Already added, ahead of the sensor data.
+        continue;
+      }
       if (!zipPath.equals(COVER_IMAGE_FILE)) {
-        ZipEntry zipEntry = new ZipEntry(zipPath);
-        zipOutputStream.putNextEntry(zipEntry);
-
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-          zipOutputStream.write(bytes, 0, length);
-        }
-        zipOutputStream.closeEntry();
+        zip.addFile(zipPath, f);
       }
-
-      fis.close();
     }
   }
 
-  public void zipExperimentImage(File image, ZipOutputStream zipOutputStream) throws IOException {
-    try {
-      FileInputStream fis = new FileInputStream(image.getAbsolutePath());
-      ZipEntry zipEntry = new ZipEntry(COVER_IMAGE_FILE);
-
-      try {
-        zipOutputStream.putNextEntry(zipEntry);
-
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-          zipOutputStream.write(bytes, 0, length);
-        }
-      } catch (ZipException zipException) {
-        // Already zipped the cover image, because the image name was COVER_IMAGE_FILE.
-        // This is ok.
-        Log.d(TAG, "Trying to zip the cover again.", zipException);
-      }
-
-      zipOutputStream.closeEntry();
-      fis.close();
-    } catch (FileNotFoundException fileException) {
-      Log.d(TAG, "Image not found when exporting.", fileException);
+  void zipExperimentImage(File image, ExperimentZipWriter zip) throws IOException {
+    if (!image.exists()) {
+      Log.d(TAG, "Image not found when exporting: " + image);
+      return;
     }
+    zip.addFile(COVER_IMAGE_FILE, image);
   }
 
   public boolean validateShareIntent(Context context, AppAccount appAccount, String experimentId) {
@@ -362,26 +346,21 @@ public class FileMetadataUtil {
     return fileVersion.getVersion() == 1 && fileVersion.getMinorVersion() == 2;
   }
 
-  private void writeProtoToFile(byte[] protoBytes, File file) throws IOException {
-    try (FileOutputStream fos = new FileOutputStream(file)) {
-      fos.write(protoBytes);
-    }
+  private void writeProtoToFile(MessageLite proto, File file) throws IOException {
+    LiteProtoFileHelper.writeAtomically(file, proto);
   }
 
   public void writeExperimentLibraryFile(ExperimentLibrary library, AppAccount appAccount)
       throws IOException {
-    writeProtoToFile(library.toByteArray(), getExperimentLibraryFile(appAccount));
+    writeProtoToFile(library, getExperimentLibraryFile(appAccount));
   }
 
   public ExperimentLibrary readExperimentLibraryFile(AppAccount appAccount) {
     ExperimentLibrary library = null;
     File libraryFile = getExperimentLibraryFile(appAccount);
     if (libraryFile.canRead()) {
-      byte[] libraryBytes = new byte[(int) libraryFile.length()];
-      try (FileInputStream fis = new FileInputStream(libraryFile);
-          DataInputStream dis = new DataInputStream(fis);) {
-        dis.readFully(libraryBytes);
-        library = ExperimentLibrary.parseFrom(libraryBytes);
+      try (FileInputStream fis = new FileInputStream(libraryFile)) {
+        library = ExperimentLibrary.parseFrom(fis);
       } catch (Exception e) {
         Log.e(TAG, "Exception reading Experiment Library file", e);
       }
@@ -391,7 +370,7 @@ public class FileMetadataUtil {
 
   public void writeLocalSyncStatusFile(
       GoosciLocalSyncStatus.LocalSyncStatus status, AppAccount appAccount) throws IOException {
-    writeProtoToFile(status.toByteArray(), getLocalSyncStatusFile(appAccount));
+    writeProtoToFile(status, getLocalSyncStatusFile(appAccount));
   }
 
   public GoosciLocalSyncStatus.LocalSyncStatus readLocalSyncStatusFile(AppAccount appAccount) {
@@ -21,16 +21,28 @@ import android.text.TextUtils;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
 import io.reactivex.functions.Consumer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Class which has a list of labels, and setters / getters / modifiers for those labels. */
 public abstract class LabelListHolder {
   // labels should be initialized by the class which implements this class in its constructor.
+  // Anything that changes the list other than the methods here should call onLabelsReplaced.
   List<Label> labels;
 
+  // The labels by id, built when first needed and kept up to date as labels change.
+  private Map<String, Label> labelsById;
+  // The timestamp of each label, in the same order as labels. Built when first needed, and
+  // rebuilt after labels change.
+  private long[] timestamps;
+  // The experiment which indexes this holder's labels, and needs to be told when they change.
+  private Experiment indexingExperiment;
+
   public int getLabelCount() {
     return labels.size();
   }
@@ -64,6 +76,9 @@ public abstract class LabelListHolder {
   }
 
   void updateLabelWithoutSorting(Label label) {
+    if (findLabel(label.getLabelId()) == null) {
+      return;
+    }
     for (int i = 0; i < labels.size(); i++) {
       Label next = labels.get(i);
       if (!TextUtils.equals(label.getLabelId(), next.getLabelId())) {
@@ -71,6 +86,7 @@ public abstract class LabelListHolder {
       }
       labels.set(i, label);
     }
+    onLabelAdded(label);
   }
 
   public void updateLabelWithoutSorting(Experiment experiment, Label label) {
@@ -89,6 +105,7 @@ public abstract class LabelListHolder {
   /** Adds a label to the object's list of labels. The list will still be sorted by timestamp. */
   void addLabel(Label label) {
     labels.add(label);
+    onLabelAdded(label);
     sortLabels();
     if (label.getType() == GoosciLabel.Label.ValueType.PICTURE) {
       onPictureLabelAdded(label);
@@ -116,12 +133,7 @@ public abstract class LabelListHolder {
    */
   Consumer<Context> deleteLabelAndReturnAssetDeleterWithoutRecordingChange(
       Experiment experiment, Label toDelete, AppAccount appAccount) {
-    for (Label label : labels) {
-      if (TextUtils.equals(label.getLabelId(), toDelete.getLabelId())) {
-        labels.remove(label);
-        break;
-      }
-    }
+    removeLabel(toDelete.getLabelId());
     return context ->
         deleteLabelAssets(toDelete, context, appAccount, experiment.getExperimentId());
   }
@@ -134,12 +146,8 @@ public abstract class LabelListHolder {
    */
   public Consumer<Context> deleteLabelAndReturnAssetDeleter(
       Experiment experiment, Label toDelete, Change change, AppAccount appAccount) {
-    for (Label label : labels) {
-      if (TextUtils.equals(label.getLabelId(), toDelete.getLabelId())) {
-        labels.remove(label);
-        experiment.addChange(change);
-        break;
-      }
+    if (removeLabel(toDelete.getLabelId())) {
+      experiment.addChange(change);
     }
     return context ->
         deleteLabelAssets(toDelete, context, appAccount, experiment.getExperimentId());
@@ -161,12 +169,115 @@ public abstract class LabelListHolder {
     toDelete.deleteAssets(context, appAccount, experimentId);
   }
 
+  /** Removes the label with the given id, returning whether there was one. */
+  private boolean removeLabel(String labelId) {
+    Label label = findLabel(labelId);
+    if (label == null) {
+      return false;
+    }
+    labels.remove(label);
+    getLabelsById().remove(labelId);
+    timestamps = null;
+    if (indexingExperiment != null) {
+      indexingExperiment.onHolderLabelRemoved(this, labelId);
+    }
+    return true;
+  }
+
+  private void onLabelAdded(Label label) {
+    getLabelsById().put(label.getLabelId(), label);
+    timestamps = null;
+    if (indexingExperiment != null) {
+      indexingExperiment.onHolderLabelAdded(this, label);
+    }
+  }
+
+  /** Drops the indexes of the labels, after the list has been changed or replaced directly. */
+  void onLabelsReplaced() {
+    labelsById = null;
+    timestamps = null;
+    if (indexingExperiment != null) {
+      indexingExperiment.onHolderLabelsReplaced();
+    }
+  }
+
+  /** Finds the label in this object with the given id, or returns null. */
+  Label findLabel(String labelId) {
+    return getLabelsById().get(labelId);
+  }
+
+  private Map<String, Label> getLabelsById() {
+    if (labelsById == null) {
+      labelsById = new HashMap<>();
+      // Like a search from the start of the list, the first label with an id wins.
+      for (int i = labels.size() - 1; i >= 0; i--) {
+        Label label = labels.get(i);
+        labelsById.put(label.getLabelId(), label);
+      }
+    }
+    return labelsById;
+  }
+
+  Experiment getIndexingExperiment() {
+    return indexingExperiment;
+  }
+
+  void setIndexingExperiment(Experiment experiment) {
+    indexingExperiment = experiment;
+  }
+
+  /**
+   * Gets the labels which fall during a certain time range. Objects in this list should not be
+   * modified and expect that state to be saved, instead editing of labels should happen using
+   * updateLabel, addTrialLabel, removeLabel.
+   *
+   * @param range The time range in which to search for labels
+   * @return A list of labels in that range, or an empty list if none are found.
+   */
+  public List<Label> getLabelsForRange(Range range) {
+    List<Label> result = new ArrayList<>();
+    long[] sortedTimestamps = getTimestamps();
+    // The labels are sorted, so the ones in range start at the first one that isn't too old.
+    for (int i = firstIndexAtOrAfter(sortedTimestamps, range.getStartMs());
+        i < sortedTimestamps.length && sortedTimestamps[i] <= range.getEndMs();
+        i++) {
+      result.add(labels.get(i));
+    }
+    return result;
+  }
+
+  private long[] getTimestamps() {
+    if (timestamps == null) {
+      timestamps = new long[labels.size()];
+      for (int i = 0; i < timestamps.length; i++) {
+        timestamps[i] = labels.get(i).getTimeStamp();
+      }
+    }
+    return timestamps;
+  }
+
+  private static int firstIndexAtOrAfter(long[] timestamps, long timestamp) {
+    int low = 0;
+    int high = timestamps.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[mid] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
   private void sortLabels() {
     Collections.sort(labels, Label.COMPARATOR_BY_TIMESTAMP);
+    timestamps = null;
   }
 
   protected void setLabels(List<Label> labels) {
     this.labels = labels;
+    onLabelsReplaced();
   }
 
   protected abstract void onPictureLabelAdded(Label label);
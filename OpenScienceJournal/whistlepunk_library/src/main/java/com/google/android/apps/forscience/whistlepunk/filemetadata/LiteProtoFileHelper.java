@@ -20,23 +20,54 @@ import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import io.reactivex.functions.Function;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
-/** Helper to write Protocol Buffers written to and read them from files. */
+/**
+ * Helper to write Protocol Buffers to files and read them back.
+ *
+ * <p>Writes go to a temporary file next to the target, which is synced and then renamed over it,
+ * so the file always holds either the old proto or the new one, even if the app dies mid-write.
+ * Protos are streamed to and from the files through small buffers rather than whole-file arrays.
+ */
 // TODO: Check free storage space before writing anything?
 public class LiteProtoFileHelper<T extends MessageLite> {
   private static final String TAG = "LiteProtoFileHelper";
 
-  public T readFromFile(File file, Function<byte[], T> parseFrom, UsageTracker tracker) {
-    try (FileInputStream inputStream = new FileInputStream(file)) {
-      byte[] bytes = new byte[(int) file.length()];
-      inputStream.read(bytes);
-      return parseFrom.apply(bytes);
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int BUFFER_SIZE = 8192;
+
+  public T readFromFile(File file, Function<CodedInputStream, T> parseFrom, UsageTracker tracker) {
+    return readFromFile(file, parseFrom, null, tracker);
+  }
+
+  /**
+   * Reads a proto from {@code file}, updating {@code checksum}, if it isn't null, with the file's
+   * contents on the way.
+   */
+  public T readFromFile(
+      File file,
+      Function<CodedInputStream, T> parseFrom,
+      Checksum checksum,
+      UsageTracker tracker) {
+    try (InputStream inputStream =
+        checksum == null
+            ? new FileInputStream(file)
+            : new CheckedInputStream(new FileInputStream(file), checksum)) {
+      CodedInputStream codedInput = CodedInputStream.newInstance(inputStream);
+      // The default limit guards against untrusted input; these are our own files.
+      codedInput.setSizeLimit(Integer.MAX_VALUE);
+      return parseFrom.apply(codedInput);
     } catch (IOException ex) {
       logError(tracker, ex, TrackerConstants.ACTION_READ_FAILED);
       return null;
@@ -60,49 +91,79 @@ public class LiteProtoFileHelper<T extends MessageLite> {
   }
 
   public boolean writeToFile(File file, T protoToWrite, UsageTracker tracker) {
-    return writeToFile(file, protoToWrite, /* don't throw an error for testing */ false, tracker);
+    return writeToFile(file, protoToWrite, null, tracker);
+  }
+
+  /**
+   * Writes {@code protoToWrite} to {@code file}, updating {@code checksum}, if it isn't null, with
+   * the bytes written.
+   */
+  public boolean writeToFile(File file, T protoToWrite, Checksum checksum, UsageTracker tracker) {
+    return writeToFile(
+        file, protoToWrite, checksum, /* don't throw an error for testing */ false, tracker);
   }
 
   @VisibleForTesting
   boolean writeToFile(File file, T protoToWrite, boolean failWritingForTest, UsageTracker tracker) {
-    // TODO(b/140145435): serialize the proto directly to the stream.
-
-    // Do this outside the file-writing blocks. If it fails it throws a RuntimeException
-    // which we don't want to have happen during reading or writing.
-    byte[] protoBytes = protoToWrite.toByteArray();
+    return writeToFile(file, protoToWrite, null, failWritingForTest, tracker);
+  }
 
-    // Save what's in the file in case the write fails. This is a safety net because
-    // the FileOutputStream clears the file and we need a way to put the data back
-    // to how it was.
-    byte[] bytes = new byte[(int) file.length()];
-    try (FileInputStream inputStream = new FileInputStream(file)) {
-      inputStream.read(bytes);
-    } catch (IOException ex) {
+  private boolean writeToFile(
+      File file,
+      T protoToWrite,
+      Checksum checksum,
+      boolean failWritingForTest,
+      UsageTracker tracker) {
+    try {
+      writeAtomically(file, protoToWrite, checksum, failWritingForTest);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      // A RuntimeException would come from the proto itself; the file is untouched either way.
       logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
       return false;
     }
+  }
 
-    // Now try to write.
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      if (failWritingForTest) {
-        throw new IOException("Failing for the test");
-      } else {
-        outputStream.write(protoBytes);
-        return true;
+  /**
+   * Replaces the contents of {@code file} with {@code proto}. If this throws, {@code file} still
+   * holds what it did before.
+   */
+  static void writeAtomically(File file, MessageLite proto) throws IOException {
+    writeAtomically(file, proto, null, false);
+  }
+
+  private static void writeAtomically(
+      File file, MessageLite proto, Checksum checksum, boolean failWritingForTest)
+      throws IOException {
+    File tempFile = getTempFile(file);
+    boolean renamed = false;
+    try {
+      try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+        CodedOutputStream codedOutput =
+            CodedOutputStream.newInstance(
+                checksum == null ? outputStream : new CheckedOutputStream(outputStream, checksum),
+                BUFFER_SIZE);
+        proto.writeTo(codedOutput);
+        codedOutput.flush();
+        if (failWritingForTest) {
+          throw new IOException("Failing for the test");
+        }
+        // Make sure the data is on disk before the rename makes it the real file.
+        outputStream.getFD().sync();
+      }
+      renamed = tempFile.renameTo(file);
+      if (!renamed) {
+        throw new IOException("Could not rename " + tempFile + " to " + file);
+      }
+    } finally {
+      if (!renamed) {
+        tempFile.delete();
       }
-    } catch (IOException ex) {
-      logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
-      replaceContents(file, bytes, tracker);
-      return false;
     }
   }
 
-  private void replaceContents(File file, byte[] bytes, UsageTracker tracker) {
-    // If write failed, might be the proto's fault, try to write back what we had before.
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      outputStream.write(bytes);
-    } catch (IOException ex) {
-      logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
-    }
+  @VisibleForTesting
+  static File getTempFile(File file) {
+    return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
   }
 }
@@ -29,6 +29,8 @@ import java.util.HashMap;
  * setters provided, rather than by getting the underlying protocol buffer and making changes to
  * that directly. Changes to the underlying proto outside this class may be overwritten and may not
  * be saved.
+ *
+ * <p>Thread safe, since experiments are synced in parallel.
  */
 public class LocalSyncManager {
   private static final String TAG = "localSyncManager";
@@ -55,7 +57,7 @@ public class LocalSyncManager {
    *
    * @param localSyncStatus The KicalSyncStatus to manage.
    */
-  public void setLocalSyncStatus(LocalSyncStatus localSyncStatus) {
+  public synchronized void setLocalSyncStatus(LocalSyncStatus localSyncStatus) {
     lastSyncedLibraryVersion = localSyncStatus.getLastSyncedLibraryVersion();
     statusMap.clear();
     for (ExperimentStatus status : localSyncStatus.getExperimentStatusList()) {
@@ -68,7 +70,7 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to manage.
    */
-  public boolean hasExperiment(String experimentId) {
+  public synchronized boolean hasExperiment(String experimentId) {
     populateLocalSyncManager();
     return getExperimentStatus(experimentId) != null;
   }
@@ -78,7 +80,7 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to manage.
    */
-  public void addExperiment(String experimentId) {
+  public synchronized void addExperiment(String experimentId) {
     populateLocalSyncManager();
     if (!statusMap.containsKey(experimentId)) {
       statusMap.put(experimentId, new ExperimentSyncStatus(experimentId));
@@ -103,7 +105,7 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to set status for.
    */
-  public void setDirty(String experimentId, boolean dirty) {
+  public synchronized void setDirty(String experimentId, boolean dirty) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setDirty(dirty);
@@ -121,7 +123,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether or not the experiment has local changes.
    */
-  public boolean getDirty(String experimentId) {
+  public synchronized boolean getDirty(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return false;
@@ -135,7 +137,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to set status for.
    * @param version The last version of the experiment synced to or from Drive.
    */
-  public void setLastSyncedVersion(String experimentId, long version) {
+  public synchronized void setLastSyncedVersion(String experimentId, long version) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setLastSyncedVersion(version);
@@ -149,7 +151,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return The last version of the experiment synced to or from Drive.
    */
-  public long getLastSyncedVersion(String experimentId) {
+  public synchronized long getLastSyncedVersion(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return -1L;
@@ -163,7 +165,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to set status for.
    * @param archived Whether the server says the experiment is archived.
    */
-  public void setServerArchived(String experimentId, boolean archived) {
+  public synchronized void setServerArchived(String experimentId, boolean archived) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setServerArchived(archived);
@@ -177,7 +179,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether the server says the experiment is archived.
    */
-  public boolean getServerArchived(String experimentId) {
+  public synchronized boolean getServerArchived(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return false;
@@ -191,7 +193,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @param downloaded Whether the experiment is downloaded.
    */
-  public void setDownloaded(String experimentId, boolean downloaded) {
+  public synchronized void setDownloaded(String experimentId, boolean downloaded) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setDownloaded(downloaded);
@@ -205,7 +207,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether the experiment is downloaded.
    */
-  public boolean getDownloaded(String experimentId) {
+  public synchronized boolean getDownloaded(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return true;
@@ -213,12 +215,12 @@ public class LocalSyncManager {
     return status.isDownloaded();
   }
 
-  public long getLastSyncedLibraryVersion() {
+  public synchronized long getLastSyncedLibraryVersion() {
     populateLocalSyncManager();
     return lastSyncedLibraryVersion;
   }
 
-  public void setLastSyncedLibraryVersion(long version) {
+  public synchronized void setLastSyncedLibraryVersion(long version) {
     populateLocalSyncManager();
     this.lastSyncedLibraryVersion = version;
     writeLocalSyncStatus();
@@ -246,7 +248,7 @@ public class LocalSyncManager {
     }
   }
 
-  private LocalSyncStatus generateProto() {
+  private synchronized LocalSyncStatus generateProto() {
     LocalSyncStatus.Builder proto =
         LocalSyncStatus.newBuilder().setLastSyncedLibraryVersion(lastSyncedLibraryVersion);
 
@@ -187,7 +187,7 @@ public class SensorTrigger {
 
   // This can be called any time a trigger is "used", i.e. when the trigger is used in a card, or
   // when information about a trigger is edited.
-  private void updateLastUsed() {
+  public void updateLastUsed() {
     setLastUsed(System.currentTimeMillis());
   }
 
@@ -253,7 +253,9 @@ public class SensorTrigger {
         && getActionType() == other.getActionType()
         && getTriggerWhen() == other.getTriggerWhen()
         && TextUtils.equals(getNoteText(), other.getNoteText())
-        && Objects.equals(getAlertTypes(), other.getAlertTypes());
+        && Objects.equals(getAlertTypes(), other.getAlertTypes())
+        && getHysteresis() == other.getHysteresis()
+        && getDebounceMs() == other.getDebounceMs();
   }
 
   // For TRIGGER_ACTION_ALERT only.
@@ -322,4 +324,27 @@ public class SensorTrigger {
             .build();
     triggerProto = triggerProto.toBuilder().setTriggerInformation(triggerInformation).build();
   }
+
+  // How far the value has to move back past the trigger value before a trigger on crossing it
+  // can fire again. 0 means it fires on every crossing.
+  public double getHysteresis() {
+    return triggerProto.getTriggerInformation().getHysteresis();
+  }
+
+  public void setHysteresis(double hysteresis) {
+    TriggerInformation triggerInformation =
+        triggerProto.getTriggerInformation().toBuilder().setHysteresis(hysteresis).build();
+    triggerProto = triggerProto.toBuilder().setTriggerInformation(triggerInformation).build();
+  }
+
+  // The shortest time between two firings. 0 means no limit.
+  public long getDebounceMs() {
+    return triggerProto.getTriggerInformation().getDebounceMs();
+  }
+
+  public void setDebounceMs(long debounceMs) {
+    TriggerInformation triggerInformation =
+        triggerProto.getTriggerInformation().toBuilder().setDebounceMs(debounceMs).build();
+    triggerProto = triggerProto.toBuilder().setTriggerInformation(triggerInformation).build();
+  }
 }
@@ -439,11 +439,6 @@ public class Trial extends LabelListHolder {
   }
 
   public Label getLabel(String labelId) {
-    for (Label label : labels) {
-      if (label.getLabelId().equals(labelId)) {
-        return label;
-      }
-    }
-    return null;
+    return findLabel(labelId);
   }
 }
@@ -35,8 +35,7 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats.StatStatus;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
 import java.util.concurrent.Executor;
@@ -51,8 +50,6 @@ public class CropHelper {
   // If this is changed, make sure to update R.string.crop_failed_range_too_small as well.
   public static final long MINIMUM_CROP_MILLIS = 1000;
 
-  private static final int DATAPOINTS_PER_LOAD = 500;
-
   private static final String ACTION_CROP_STATS_RECALCULATED = "action_crop_stats_recalculated";
   public static final String EXTRA_SENSOR_ID = "extra_sensor_id";
   public static final String EXTRA_TRIAL_ID = "extra_trial_id";
@@ -195,7 +192,6 @@ public class CropHelper {
     private final Experiment experiment;
     private final String trialId;
     private StatsAccumulator statsAccumulator;
-    StreamConsumer streamConsumer;
     private Context context;
 
     StatsAdjuster(String sensorId, Experiment experiment, String trialId, Context context) {
@@ -203,65 +199,43 @@ public class CropHelper {
       this.sensorId = sensorId;
       this.experiment = experiment;
       this.trialId = trialId;
-      streamConsumer =
-          new StreamConsumer() {
-            @Override
-            public boolean addData(long timestampMillis, double value) {
-              statsAccumulator.updateRecordingStreamStats(timestampMillis, value);
-              return true;
-            }
-          };
       this.context = context;
     }
 
-    void recalculateStats(DataController dc) {
+    void recalculateStats(final DataController dc) {
       TimeRange range =
           TimeRange.oldest(
               Range.closed(
                   experiment.getTrial(trialId).getFirstTimestamp(),
                   experiment.getTrial(trialId).getLastTimestamp()));
-      addReadingsToStats(dc, range);
-    }
-
-    private void addReadingsToStats(final DataController dc, final TimeRange range) {
-      dc.getScalarReadings(
+      // Answered from the stats stored with each zoom tier, so this doesn't need to page through
+      // every reading in the cropped range.
+      dc.getScalarStats(
           trialId,
-          sensorId, /* tier 0 */
-          0,
+          sensorId,
           range,
-          DATAPOINTS_PER_LOAD,
-          new MaybeConsumer<ScalarReadingList>() {
+          new MaybeConsumer<ScalarStats>() {
             @Override
-            public void success(ScalarReadingList list) {
-              list.deliver(streamConsumer);
-              Trial trial = experiment.getTrial(trialId);
-              if (list.size() == 0
-                  || list.size() < DATAPOINTS_PER_LOAD
-                  || statsAccumulator.getLatestTimestamp() >= trial.getLastTimestamp()) {
-                if (!statsAccumulator.isInitialized()) {
-                  // There was no data in this region, so the stats are still
-                  // not valid.
-                  return;
-                }
-                // Done! Save back to the database.
-                TrialStats fullStats = trial.getStatsForSensor(sensorId);
-                statsAccumulator.populateTrialStats(fullStats);
-                trial.setStats(fullStats);
-                dc.updateExperiment(
-                    experiment.getExperimentId(),
-                    new LoggingConsumer<Success>(TAG, "update stats") {
-                      @Override
-                      public void success(Success value) {
-                        sendStatsUpdatedBroadcast(context, sensorId, trialId);
-                      }
-                    });
-              } else {
-                TimeRange nextRange =
-                    TimeRange.oldest(
-                        Range.openClosed(
-                            statsAccumulator.getLatestTimestamp(), trial.getLastTimestamp()));
-                addReadingsToStats(dc, nextRange);
+            public void success(ScalarStats stats) {
+              statsAccumulator.addStats(stats);
+              if (!statsAccumulator.isInitialized()) {
+                // There was no data in this region, so the stats are still
+                // not valid.
+                return;
               }
+              // Done! Save back to the database.
+              Trial trial = experiment.getTrial(trialId);
+              TrialStats fullStats = trial.getStatsForSensor(sensorId);
+              statsAccumulator.populateTrialStats(fullStats);
+              trial.setStats(fullStats);
+              dc.updateExperiment(
+                  experiment.getExperimentId(),
+                  new LoggingConsumer<Success>(TAG, "update stats") {
+                    @Override
+                    public void success(Success value) {
+                      sendStatsUpdatedBroadcast(context, sensorId, trialId);
+                    }
+                  });
             }
 
             @Override
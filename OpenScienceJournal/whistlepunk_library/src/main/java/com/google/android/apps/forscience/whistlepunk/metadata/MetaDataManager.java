@@ -33,6 +33,9 @@ public interface MetaDataManager {
 
   Experiment getExperimentById(String experimentId);
 
+  /** Starts loading an experiment in the background, so that it's ready when it is asked for. */
+  void preloadExperiment(String experimentId);
+
   /** Creates a new experiment. */
   Experiment newExperiment();
 
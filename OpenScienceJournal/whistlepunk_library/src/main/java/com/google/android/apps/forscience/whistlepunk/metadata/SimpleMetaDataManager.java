@@ -549,6 +549,11 @@ public class SimpleMetaDataManager implements MetaDataManager {
     return getFileMetadataManager().getExperimentById(experimentId);
   }
 
+  @Override
+  public void preloadExperiment(String experimentId) {
+    getFileMetadataManager().preloadExperiment(experimentId);
+  }
+
   @VisibleForTesting
   Experiment getDatabaseExperimentById(String experimentId) {
     Experiment experiment = null;
@@ -1150,6 +1150,8 @@ public class ExperimentListFragment extends Fragment
             if (parentReference.get().claimProgressBarVisible) {
               return;
             }
+            // Start reading the experiment while the activity starts up.
+            parentReference.get().getDataController().preloadExperiment(overview.getExperimentId());
             launchExperimentActivity(
                 v.getContext(),
                 parentReference.get().appAccount,
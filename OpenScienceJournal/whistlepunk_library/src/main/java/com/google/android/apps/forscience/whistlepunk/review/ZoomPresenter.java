@@ -41,6 +41,16 @@ public class ZoomPresenter {
    */
   private static final double THRESHOLD_TO_CHANGE_ZOOM_LEVEL = 0.6;
 
+  /**
+   * Roughly how many data points each tile of {@link
+   * com.google.android.apps.forscience.whistlepunk.scalarchart.ReadingTileCache} holds, at any
+   * tier: half a screen's worth.
+   */
+  private static final int DATAPOINTS_PER_TILE = IDEAL_NUMBER_OF_DISPLAYED_DATAPOINTS / 2;
+
+  /** Tiles shorter than this wouldn't be worth a separate database read. */
+  private static final long MIN_TILE_MILLIS = 100;
+
   private static final String TAG = "ZoomPresenter";
 
   private final int idealNumberOfDisplayedDatapoints;
@@ -70,6 +80,44 @@ public class ZoomPresenter {
     return currentTier;
   }
 
+  /** The number of zoom tiers recorded for the run; just the base tier for old runs. */
+  public int getTierCount() {
+    if (trialStats == null || !hasRequiredStats(trialStats)) {
+      return 1;
+    }
+    return Math.max(
+        1,
+        (int)
+            trialStats.getStatValue(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_TIER_COUNT, 1));
+  }
+
+  /**
+   * The length of time covered by one cached tile of readings at {@code tier}, chosen so that
+   * tiles at every tier hold about the same number of points; or 0 if the run's stats don't say
+   * how dense its readings are.
+   */
+  public long getTileMillis(int tier) {
+    if (trialStats == null || !hasRequiredStats(trialStats)) {
+      return 0;
+    }
+    double meanMillisPerDataPoint =
+        trialStats.getStatValue(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 0)
+            / trialStats.getStatValue(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, 1);
+    int zoomLevelBetweenTiers =
+        (int)
+            trialStats.getStatValue(
+                GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS,
+                ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+    // Each tier above the base keeps 2 points (min and max) out of every zoomLevelBetweenTiers.
+    double millisPerTierPoint =
+        meanMillisPerDataPoint * Math.pow(zoomLevelBetweenTiers / 2.0, tier);
+    double tileMillis = Math.ceil(millisPerTierPoint * DATAPOINTS_PER_TILE);
+    if (Double.isNaN(tileMillis) || Double.isInfinite(tileMillis)) {
+      return 0;
+    }
+    return Math.max(MIN_TILE_MILLIS, (long) tileMillis);
+  }
+
   @VisibleForTesting
   public static int computeTier(
       int currentTier,
@@ -37,6 +37,7 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.review.ZoomPresenter;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
@@ -93,6 +94,15 @@ public class ChartController {
   private static final long DEFAULT_DATA_LOAD_BUFFER_MILLIS =
       ExternalAxisController.DEFAULT_GRAPH_RANGE_IN_MILLIS / 4;
 
+  /**
+   * When loading a whole run for review, data is downsampled to about this many columns per
+   * screen if the chart hasn't been laid out yet.
+   */
+  private static final int DEFAULT_DOWNSAMPLE_COLUMNS = 500;
+
+  /** Upper bound on columns for one downsampled load, however far off screen it extends. */
+  private static final int MAX_DOWNSAMPLE_COLUMNS = 4 * DEFAULT_DOWNSAMPLE_COLUMNS;
+
   private final ChartData chartData;
   private List<Label> displayableLabels = new ArrayList<>();
   private ChartOptions chartOptions;
@@ -109,6 +119,7 @@ public class ChartController {
   private String trialId;
 
   private ZoomPresenter zoomPresenter;
+  private ReadingTileCache tileCache = ReadingTileCache.getShared();
   // Need to keep track of min/max loaded separately from what is in ChartData,
   // because repeated async callbacks adding data can cause data to be added after
   // that region was meant to be cleared, causing bugs. Therefore minLoadedX and maxLoadedX
@@ -123,6 +134,19 @@ public class ChartController {
   private final Clock currentTimeClock;
   private List<ChartDataLoadedCallback> chartDataLoadedCallbacks = new ArrayList<>();
 
+  // Reused for every page of readings loaded into chartData, so that loading doesn't create a
+  // DataPoint per reading.
+  private long[] batchXs = new long[0];
+  private double[] batchYs = new double[0];
+  private int batchSize = 0;
+  private final StreamConsumer batchConsumer =
+      (timestampMillis, value) -> {
+        batchXs[batchSize] = timestampMillis;
+        batchYs[batchSize] = value;
+        batchSize++;
+        return true;
+      };
+
   public ChartController(
       ChartOptions.ChartPlacementType type,
       ScalarDisplayOptions lineGraphOptions,
@@ -228,6 +252,48 @@ public class ChartController {
     }
   }
 
+  /**
+   * Adds {@code count} points that arrived together, in time order, as {@link #addPoint} would,
+   * but updating the data and the drawn path once for all of them. The arrays may be modified.
+   */
+  public void addPoints(long[] xs, double[] ys, int count) {
+    if (count == 0) {
+      return;
+    }
+    int start = 0;
+    if (resetTime != -1) {
+      // Skip straggling datapoints from before the reset.
+      while (start < count && xs[start] < resetTime) {
+        start++;
+      }
+      if (start == count) {
+        return;
+      }
+      resetTime = -1;
+    }
+    if (start > 0) {
+      count -= start;
+      System.arraycopy(xs, start, xs, 0, count);
+      System.arraycopy(ys, start, ys, 0, count);
+    }
+    if (!chartData.isEmpty()) {
+      // As in addPoint, but once for the whole group.
+      long throwawayBefore = xs[count - 1] - (KEEP_THIS_MANY_SCREENS * defaultGraphRange);
+      long throwawayAfter = chartOptions.getRenderedXMax() + defaultGraphRange;
+      chartData.throwAwayBetween(throwawayAfter, throwawayBefore);
+    }
+
+    chartData.addOrderedGroupOfPoints(xs, ys, count);
+    if (chartView != null && chartView.isDrawn()) {
+      chartView.addPointsToEndOfPath(xs, ys, count);
+    }
+  }
+
+  @VisibleForTesting
+  public void setTileCache(ReadingTileCache tileCache) {
+    this.tileCache = tileCache;
+  }
+
   // Assume this is an ordered list.
   public void setData(List<ChartData.DataPoint> points) {
     chartData.clear();
@@ -236,9 +302,46 @@ public class ChartController {
     chartOptions.setPinnedToNow(false);
   }
 
-  private void addOrderedGroupOfPoints(List<ChartData.DataPoint> points, long requestId) {
-    if (currentLoadIds.contains(requestId)) {
-      chartData.addOrderedGroupOfPoints(points);
+  private void addOrderedGroupOfPoints(ScalarReadingList observations, long requestId) {
+    if (!currentLoadIds.contains(requestId)) {
+      return;
+    }
+    ensureBatchCapacity(observations.size());
+    batchSize = 0;
+    observations.deliver(batchConsumer);
+    chartData.addOrderedGroupOfPoints(batchXs, batchYs, batchSize);
+  }
+
+  /** Adds the part of {@code tile} within [{@code minToLoad}, {@code maxToLoad}]. */
+  private void addTileRange(
+      ReadingTileCache.Tile tile, long minToLoad, long maxToLoad, long requestId) {
+    if (!currentLoadIds.contains(requestId)) {
+      return;
+    }
+    int start = tile.indexAtOrAfter(minToLoad);
+    int count = tile.indexAtOrAfter(maxToLoad + 1) - start;
+    if (count <= 0) {
+      return;
+    }
+    // The tile is shared with other charts, and the merge may reorder what it's given, so copy.
+    ensureBatchCapacity(count);
+    double yMin = Double.MAX_VALUE;
+    double yMax = -Double.MAX_VALUE;
+    for (int i = 0; i < count; i++) {
+      double y = tile.getY(start + i);
+      batchXs[i] = tile.getX(start + i);
+      batchYs[i] = y;
+      yMin = Math.min(yMin, y);
+      yMax = Math.max(yMax, y);
+    }
+    updateYRangeFromValueRange(Range.closed(yMin, yMax));
+    chartData.addOrderedGroupOfPoints(batchXs, batchYs, count);
+  }
+
+  private void ensureBatchCapacity(int count) {
+    if (batchXs.length < count) {
+      batchXs = new long[count];
+      batchYs = new double[count];
     }
   }
 
@@ -319,7 +422,9 @@ public class ChartController {
   public void setXAxis(long xMin, long xMax) {
     chartOptions.setRenderedXRange(xMin, xMax);
     if (chartOptions.isPinnedToNow() && !chartData.isEmpty()) {
-      chartOptions.adjustYAxisStep(chartData.getPoints().get(chartData.getNumPoints() - 1));
+      int last = chartData.getNumPoints() - 1;
+      chartOptions.adjustYAxisStep(
+          new ChartData.DataPoint(chartData.getXAt(last), chartData.getYAt(last)));
     }
     if (chartView != null) {
       chartView.onAxisLimitsAdjusted();
@@ -419,13 +524,12 @@ public class ChartController {
       return null;
     }
     int closestIndex = chartData.getClosestIndexToTimestamp(timestamp);
-    ChartData.DataPoint closestPoint = chartData.getPoints().get(closestIndex);
     // Check if we are above the aboveTimestamp.
-    if (closestPoint.getX() >= aboveTimestamp) {
-      return closestPoint;
+    if (chartData.getXAt(closestIndex) >= aboveTimestamp) {
+      return getDataPointAt(closestIndex);
     }
     if (closestIndex + 1 < chartData.getNumPoints() - 1) {
-      return chartData.getPoints().get(closestIndex + 1);
+      return getDataPointAt(closestIndex + 1);
     }
     return null;
   }
@@ -445,17 +549,20 @@ public class ChartController {
       return null;
     }
     int closestIndex = chartData.getClosestIndexToTimestamp(timestamp);
-    ChartData.DataPoint closestPoint = chartData.getPoints().get(closestIndex);
     // Check if we are above the aboveTimestamp.
-    if (closestPoint.getX() <= belowTimestamp) {
-      return closestPoint;
+    if (chartData.getXAt(closestIndex) <= belowTimestamp) {
+      return getDataPointAt(closestIndex);
     }
     if (closestIndex - 1 >= 0) {
-      return chartData.getPoints().get(closestIndex - 1);
+      return getDataPointAt(closestIndex - 1);
     }
     return null;
   }
 
+  private ChartData.DataPoint getDataPointAt(int index) {
+    return new ChartData.DataPoint(chartData.getXAt(index), chartData.getYAt(index));
+  }
+
   public boolean hasDrawnChart() {
     return chartView != null && chartView.isDrawn();
   }
@@ -615,7 +722,8 @@ public class ChartController {
     final ZoomPresenter zp = getZoomPresenter(stats);
     minLoadedX = firstTimestamp;
     maxLoadedX = lastTimestamp;
-    int currentTier = zp.updateTier(lastTimestamp - firstTimestamp);
+    // Still tracked, for the tier-based loads at the edges as the chart is scrolled.
+    zp.updateTier(lastTimestamp - firstTimestamp);
 
     // Populate the initial graph
     GraphPopulator graphPopulator =
@@ -625,7 +733,7 @@ public class ChartController {
               public void addRange(
                   ScalarReadingList observations, Range<Double> valueRange, long requestId) {
                 updateYRangeFromValueRange(valueRange);
-                addOrderedGroupOfPoints(observations.asDataPoints(), requestId);
+                addOrderedGroupOfPoints(observations, requestId);
               }
 
               @Override
@@ -662,15 +770,33 @@ public class ChartController {
             uptimeClock);
 
     currentLoadIds.add(graphPopulator.getRequestId());
-    graphPopulator.requestObservations(
+    // The whole run is on screen, so read it downsampled to the chart's width in one request,
+    // rather than page by page from a fixed zoom tier.
+    graphPopulator.requestDownsampledObservations(
         GraphPopulator.constantGraphStatus(firstTimestamp, lastTimestamp),
         dc,
         dataFailureListener,
-        currentTier,
+        getDownsampleColumns(lastTimestamp - firstTimestamp, lastTimestamp - firstTimestamp),
         runId,
         sensorId);
   }
 
+  /**
+   * How many pixel columns {@code loadedRange} would cover, when {@code visibleRange} fills the
+   * width of the chart.
+   */
+  private int getDownsampleColumns(long loadedRange, long visibleRange) {
+    int width = chartView == null ? 0 : chartView.getWidth();
+    if (width <= 0) {
+      width = DEFAULT_DOWNSAMPLE_COLUMNS;
+    }
+    if (visibleRange <= 0) {
+      return width;
+    }
+    double columns = Math.ceil((double) width * loadedRange / visibleRange);
+    return (int) Math.max(1, Math.min(columns, MAX_DOWNSAMPLE_COLUMNS));
+  }
+
   private ZoomPresenter getZoomPresenter(TrialStats stats) {
     if (zoomPresenter == null) {
       zoomPresenter = new ZoomPresenter();
@@ -715,6 +841,7 @@ public class ChartController {
         int newTier = zoomPresenter.updateTier(range);
         if (oldTier != newTier) {
           reloadAtNewZoomLevel(xMin, xMax, dataController, buffer);
+          prefetchTiles(xMin, xMax, dataController);
           return;
         }
       }
@@ -763,6 +890,7 @@ public class ChartController {
     if (isRunReview) {
       chartData.throwAwayBefore(minLoadedX);
       chartData.throwAwayAfter(maxLoadedX);
+      prefetchTiles(xMin, xMax, dataController);
     } else {
       setPinnedToNow(isPinnedToNow);
       long throwawayThreshold = xMin - (KEEP_THIS_MANY_SCREENS - 1) * defaultGraphRange;
@@ -787,12 +915,28 @@ public class ChartController {
 
   private void reloadAtNewZoomLevel(
       long xMin, long xMax, DataController dataController, long buffer) {
-    setShowProgress(true);
-    clearLineData();
     minLoadedX = Math.max(xMin - buffer, chartOptions.getRecordingStartTime());
     maxLoadedX = Math.min(xMax + buffer, chartOptions.getRecordingEndTime());
+    if (canLoadFromTiles()) {
+      int tier = zoomPresenter.getCurrentTier();
+      if (tileCache.hasTiles(
+          trialId, sensorId, tier, zoomPresenter.getTileMillis(tier), minLoadedX, maxLoadedX)) {
+        // Everything needed is in memory already, so swap it in without hiding the chart.
+        clearLineData();
+        loadReadings(dataController, minLoadedX, maxLoadedX, false);
+        setXAxis(xMin, xMax);
+        return;
+      }
+    }
+    setShowProgress(true);
+    clearLineData();
     currentLoadIds.clear();
-    loadReadings(dataController, minLoadedX, maxLoadedX, true);
+    loadReadings(
+        dataController,
+        minLoadedX,
+        maxLoadedX,
+        true,
+        getDownsampleColumns(maxLoadedX - minLoadedX, xMax - xMin));
     setXAxis(xMin, xMax);
   }
 
@@ -806,6 +950,24 @@ public class ChartController {
       final long minToLoad,
       final long maxToLoad,
       final boolean chartHiddenForLoad) {
+    loadReadings(dataController, minToLoad, maxToLoad, chartHiddenForLoad, 0);
+  }
+
+  /**
+   * @param downsampleColumns if positive, load the range downsampled to this many columns in one
+   *     request. Otherwise, load it from the zoom presenter's current tier: from cached tiles if
+   *     this is a finished run, or else page by page.
+   */
+  private void loadReadings(
+      DataController dataController,
+      final long minToLoad,
+      final long maxToLoad,
+      final boolean chartHiddenForLoad,
+      int downsampleColumns) {
+    if (downsampleColumns <= 0 && canLoadFromTiles()) {
+      loadTiles(dataController, minToLoad, maxToLoad, chartHiddenForLoad);
+      return;
+    }
     int currentTier = zoomPresenter == null ? 0 : zoomPresenter.getCurrentTier();
     GraphPopulator graphPopulator =
         new GraphPopulator(
@@ -814,35 +976,131 @@ public class ChartController {
               public void addRange(
                   ScalarReadingList observations, Range<Double> valueRange, long requestId) {
                 updateYRangeFromValueRange(valueRange);
-                addOrderedGroupOfPoints(observations.asDataPoints(), requestId);
+                addOrderedGroupOfPoints(observations, requestId);
               }
 
               @Override
               public void onFinish(long requestId) {
-                if (currentLoadIds.contains(requestId)) {
-                  currentLoadIds.remove(requestId);
-                }
-                if (currentLoadIds.size() == 0) {
-                  refreshLabels();
-                }
-                if (chartHiddenForLoad) {
-                  setShowProgress(false);
-                }
-                refreshChartView();
-                callChartDataLoadedCallbacks(minToLoad, maxToLoad);
+                onLoadFinished(requestId, minToLoad, maxToLoad, chartHiddenForLoad);
               }
             },
             uptimeClock);
     currentLoadIds.add(graphPopulator.getRequestId());
-    graphPopulator.requestObservations(
-        GraphPopulator.constantGraphStatus(minToLoad, maxToLoad),
+    if (downsampleColumns > 0) {
+      graphPopulator.requestDownsampledObservations(
+          GraphPopulator.constantGraphStatus(minToLoad, maxToLoad),
+          dataController,
+          dataFailureListener,
+          downsampleColumns,
+          trialId,
+          sensorId);
+    } else {
+      graphPopulator.requestObservations(
+          GraphPopulator.constantGraphStatus(minToLoad, maxToLoad),
+          dataController,
+          dataFailureListener,
+          currentTier,
+          trialId,
+          sensorId);
+    }
+
+    callChartDataStartLoadingCallbacks(chartHiddenForLoad);
+  }
+
+  /**
+   * Whether readings for this chart can come from {@link #tileCache}: only runs in review, which
+   * are finished, so their readings won't change under the cache.
+   */
+  private boolean canLoadFromTiles() {
+    return chartOptions.getChartPlacementType() == ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW
+        && zoomPresenter != null
+        && trialId != null
+        && sensorId != null
+        && zoomPresenter.getTileMillis(zoomPresenter.getCurrentTier()) > 0;
+  }
+
+  private void loadTiles(
+      DataController dataController,
+      final long minToLoad,
+      final long maxToLoad,
+      final boolean chartHiddenForLoad) {
+    // Before the request, since cached tiles (and so the finish) are delivered synchronously.
+    callChartDataStartLoadingCallbacks(chartHiddenForLoad);
+    final long requestId = uptimeClock.getNow();
+    currentLoadIds.add(requestId);
+    int tier = zoomPresenter.getCurrentTier();
+    tileCache.getTiles(
         dataController,
-        dataFailureListener,
-        currentTier,
         trialId,
-        sensorId);
+        sensorId,
+        tier,
+        zoomPresenter.getTileMillis(tier),
+        minToLoad,
+        maxToLoad,
+        new ReadingTileCache.TileCallback() {
+          @Override
+          public void onTile(ReadingTileCache.Tile tile) {
+            addTileRange(tile, minToLoad, maxToLoad, requestId);
+          }
 
-    callChartDataStartLoadingCallbacks(chartHiddenForLoad);
+          @Override
+          public void onFinish() {
+            onLoadFinished(requestId, minToLoad, maxToLoad, chartHiddenForLoad);
+          }
+        },
+        dataFailureListener);
+  }
+
+  private void onLoadFinished(
+      long requestId, long minToLoad, long maxToLoad, boolean chartHiddenForLoad) {
+    if (currentLoadIds.contains(requestId)) {
+      currentLoadIds.remove(requestId);
+    }
+    if (currentLoadIds.size() == 0) {
+      refreshLabels();
+    }
+    if (chartHiddenForLoad) {
+      setShowProgress(false);
+    }
+    refreshChartView();
+    callChartDataLoadedCallbacks(minToLoad, maxToLoad);
+  }
+
+  /**
+   * Starts loading the tiles the user is likely to want next: a screen either side at this tier
+   * for panning, and the neighbouring tiers for zooming in or out.
+   */
+  private void prefetchTiles(long xMin, long xMax, DataController dataController) {
+    if (!canLoadFromTiles()) {
+      return;
+    }
+    long range = xMax - xMin;
+    long aroundMin = Math.max(xMin - range, chartOptions.getRecordingStartTime());
+    long aroundMax = Math.min(xMax + range, chartOptions.getRecordingEndTime());
+    if (aroundMin > aroundMax) {
+      return;
+    }
+    long visibleMin = Math.max(xMin, aroundMin);
+    long visibleMax = Math.min(xMax, aroundMax);
+    int tier = zoomPresenter.getCurrentTier();
+    prefetchTier(dataController, tier, aroundMin, aroundMax);
+    if (tier > 0 && visibleMin <= visibleMax) {
+      prefetchTier(dataController, tier - 1, visibleMin, visibleMax);
+    }
+    if (tier + 1 < zoomPresenter.getTierCount()) {
+      prefetchTier(dataController, tier + 1, aroundMin, aroundMax);
+    }
+  }
+
+  private void prefetchTier(DataController dataController, int tier, long minTime, long maxTime) {
+    tileCache.prefetch(
+        dataController,
+        trialId,
+        sensorId,
+        tier,
+        zoomPresenter.getTileMillis(tier),
+        minTime,
+        maxTime);
   }
 
   public void addChartDataLoadedCallback(ChartDataLoadedCallback callback) {
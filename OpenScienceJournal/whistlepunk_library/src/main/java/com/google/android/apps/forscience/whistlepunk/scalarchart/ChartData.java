@@ -19,11 +19,12 @@ package com.google.android.apps.forscience.whistlepunk.scalarchart;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 
 public class ChartData {
   public static class DataPoint {
@@ -56,6 +57,8 @@ public class ChartData {
   // TODO: Look into tweaking this number for utmost efficency and memory usage!
   @VisibleForTesting private static final int DEFAULT_APPROX_RANGE = 8;
 
+  private static final int DEFAULT_CAPACITY = 256;
+
   public static final int DEFAULT_THROWAWAY_THRESHOLD = 100;
   private int throwawayDataSizeThreshold;
 
@@ -63,7 +66,18 @@ public class ChartData {
   public static final long DEFAULT_THROWAWAY_TIME_THRESHOLD = 1000 * 60 * 2;
   private long throwawayDataTimeThreshold = DEFAULT_THROWAWAY_TIME_THRESHOLD;
 
-  private List<DataPoint> data = new ArrayList<>();
+  // The points live in xs[head, tail) and ys[head, tail), ordered by x. Trimming from the front
+  // just moves head; the arrays are compacted or grown only when an append reaches the end.
+  private long[] xs = new long[DEFAULT_CAPACITY];
+  private double[] ys = new double[DEFAULT_CAPACITY];
+  private int head = 0;
+  private int tail = 0;
+
+  // Scratch space for merging batches, kept to avoid allocating on every page load.
+  private long[] mergeXs = new long[0];
+  private double[] mergeYs = new double[0];
+
+  private final List<DataPoint> pointsView = new PointsView(0, -1);
 
   // The list of data points at which a label should be displayed.
   private List<DataPoint> labels = new ArrayList<>();
@@ -76,13 +90,41 @@ public class ChartData {
   // The stats for this list.
   private List<StreamStat> stats = new ArrayList<>();
 
-  private static final Comparator<? super DataPoint> DATA_POINT_COMPARATOR =
-      new Comparator<DataPoint>() {
-        @Override
-        public int compare(DataPoint lhs, DataPoint rhs) {
-          return Long.compare(lhs.getX(), rhs.getX());
-        }
-      };
+  /**
+   * A read-only window onto the points in [start, end), or onto all of the points if end is -1.
+   * Elements are created on access, so prefer {@link #getXAt} and {@link #getYAt} in loops.
+   */
+  private class PointsView extends AbstractList<DataPoint> implements RandomAccess {
+    private final int start;
+    private final int end;
+
+    PointsView(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public DataPoint get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+      }
+      return new DataPoint(getXAt(start + index), getYAt(start + index));
+    }
+
+    @Override
+    public int size() {
+      return (end == -1 ? getNumPoints() : end) - start;
+    }
+
+    @Override
+    public void add(int index, DataPoint point) {
+      // Only the full view supports appending, which addPoint already assumes is in order.
+      if (end != -1 || index != size()) {
+        throw new UnsupportedOperationException("Points can only be appended");
+      }
+      append(point.getX(), point.getY());
+    }
+  }
 
   public ChartData() {
     this(DEFAULT_THROWAWAY_THRESHOLD, DEFAULT_THROWAWAY_TIME_THRESHOLD);
@@ -96,7 +138,13 @@ public class ChartData {
   // This assumes the data point occurs after all previous data points.
   // Order is not checked.
   public void addPoint(DataPoint point) {
-    data.add(point);
+    addPoint(point.getX(), point.getY());
+  }
+
+  // This assumes the data point occurs after all previous data points.
+  // Order is not checked.
+  public void addPoint(long x, double y) {
+    append(x, y);
     if (unaddedLabels.size() > 0) {
       // TODO to avoid extra work, only try again if new data might come in in the direction
       // of these labels...?
@@ -110,43 +158,197 @@ public class ChartData {
     }
   }
 
+  private void append(long x, double y) {
+    if (tail == xs.length) {
+      makeRoom(1);
+    }
+    xs[tail] = x;
+    ys[tail] = y;
+    tail++;
+  }
+
+  /** Makes sure there is space for {@code extra} more points after tail. */
+  private void makeRoom(int extra) {
+    int size = tail - head;
+    if (tail + extra <= xs.length) {
+      return;
+    }
+    if (size + extra <= xs.length / 2) {
+      // Plenty of room has been freed at the front, so reuse it instead of growing.
+      System.arraycopy(xs, head, xs, 0, size);
+      System.arraycopy(ys, head, ys, 0, size);
+    } else {
+      int capacity = Math.max(xs.length * 2, size + extra);
+      long[] newXs = new long[capacity];
+      double[] newYs = new double[capacity];
+      System.arraycopy(xs, head, newXs, 0, size);
+      System.arraycopy(ys, head, newYs, 0, size);
+      xs = newXs;
+      ys = newYs;
+    }
+    head = 0;
+    tail = size;
+  }
+
+  /**
+   * Returns a live view of all the points. Appending to it is the same as {@link
+   * #addPoint(DataPoint)}; other modifications are not supported.
+   */
   public List<DataPoint> getPoints() {
-    return data;
+    return pointsView;
   }
 
   // This assumes the List<DataPoint> is ordered by timestamp.
   public void setPoints(List<DataPoint> data) {
-    this.data = data;
+    head = 0;
+    tail = 0;
+    makeRoom(data.size());
+    for (int i = 0; i < data.size(); i++) {
+      DataPoint point = data.get(i);
+      xs[tail] = point.getX();
+      ys[tail] = point.getY();
+      tail++;
+    }
   }
 
   public void addOrderedGroupOfPoints(List<DataPoint> points) {
     if (points == null || points.size() == 0) {
       return;
     }
-    data.addAll(points);
-    Collections.sort(data, DATA_POINT_COMPARATOR);
+    int count = points.size();
+    if (mergeXs.length < count) {
+      mergeXs = new long[count];
+      mergeYs = new double[count];
+    }
+    for (int i = 0; i < count; i++) {
+      DataPoint point = points.get(i);
+      mergeXs[i] = point.getX();
+      mergeYs[i] = point.getY();
+    }
+    addOrderedGroupOfPoints(mergeXs, mergeYs, count);
+  }
+
+  /**
+   * Merges {@code count} points into the data, keeping it ordered by x. Batches are expected to be
+   * in order already, so this is an append or prepend when the batch doesn't overlap the existing
+   * data, and a single backwards merge pass when it does. The arrays may be reordered in place.
+   */
+  public void addOrderedGroupOfPoints(long[] batchXs, double[] batchYs, int count) {
+    if (count == 0) {
+      return;
+    }
+    sortBatch(batchXs, batchYs, count);
+    int size = tail - head;
+    makeRoom(count);
+    if (size == 0 || batchXs[0] >= xs[tail - 1]) {
+      System.arraycopy(batchXs, 0, xs, tail, count);
+      System.arraycopy(batchYs, 0, ys, tail, count);
+      tail += count;
+      return;
+    }
+    if (batchXs[count - 1] <= xs[head] && head >= count) {
+      head -= count;
+      System.arraycopy(batchXs, 0, xs, head, count);
+      System.arraycopy(batchYs, 0, ys, head, count);
+      return;
+    }
+    // Merge from the back, so that each existing point moves at most once.
+    int i = tail - 1;
+    int j = count - 1;
+    int out = tail + count - 1;
+    while (j >= 0) {
+      if (i >= head && xs[i] > batchXs[j]) {
+        xs[out] = xs[i];
+        ys[out] = ys[i];
+        i--;
+      } else {
+        xs[out] = batchXs[j];
+        ys[out] = batchYs[j];
+        j--;
+      }
+      out--;
+    }
+    tail += count;
+  }
+
+  /**
+   * Database pages arrive either oldest- or newest-first, so this only reverses or fixes up a few
+   * stragglers; it is an insertion sort, which is linear on nearly-sorted input.
+   */
+  private static void sortBatch(long[] batchXs, double[] batchYs, int count) {
+    if (count > 1 && batchXs[0] > batchXs[count - 1]) {
+      for (int lo = 0, hi = count - 1; lo < hi; lo++, hi--) {
+        long x = batchXs[lo];
+        batchXs[lo] = batchXs[hi];
+        batchXs[hi] = x;
+        double y = batchYs[lo];
+        batchYs[lo] = batchYs[hi];
+        batchYs[hi] = y;
+      }
+    }
+    for (int i = 1; i < count; i++) {
+      long x = batchXs[i];
+      if (x >= batchXs[i - 1]) {
+        continue;
+      }
+      double y = batchYs[i];
+      int j = i - 1;
+      while (j >= 0 && batchXs[j] > x) {
+        batchXs[j + 1] = batchXs[j];
+        batchYs[j + 1] = batchYs[j];
+        j--;
+      }
+      batchXs[j + 1] = x;
+      batchYs[j + 1] = y;
+    }
+  }
+
+  /** Returns the x value of the point at {@code index}, counting from the oldest point. */
+  public long getXAt(int index) {
+    return xs[head + index];
+  }
+
+  /** Returns the y value of the point at {@code index}, counting from the oldest point. */
+  public double getYAt(int index) {
+    return ys[head + index];
+  }
+
+  /**
+   * Returns the index of the first point to draw when rendering from {@code xMin}. May be a few
+   * points early, but never late.
+   */
+  public int getRangeStartIndex(long xMin) {
+    return approximateBinarySearch(xMin, 0, true);
+  }
+
+  /**
+   * Returns the index of the last point to draw when rendering up to {@code xMax}, searching from
+   * {@code startIndex}. May be a few points late, but never early.
+   */
+  public int getRangeEndIndex(long xMax, int startIndex) {
+    return approximateBinarySearch(xMax, startIndex, false);
   }
 
   public List<DataPoint> getPointsInRangeToEnd(long xMin) {
-    int startIndex = approximateBinarySearch(xMin, 0, true);
-    return data.subList(startIndex, data.size());
+    int startIndex = getRangeStartIndex(xMin);
+    return new PointsView(startIndex, getNumPoints());
   }
 
   public List<DataPoint> getPointsInRange(long xMin, long xMax) {
-    int startIndex = approximateBinarySearch(xMin, 0, true);
-    int endIndex = approximateBinarySearch(xMax, startIndex, false);
+    int startIndex = getRangeStartIndex(xMin);
+    int endIndex = getRangeEndIndex(xMax, startIndex);
     if (startIndex > endIndex) {
       return Collections.emptyList();
     }
-    return data.subList(startIndex, endIndex + 1);
+    return new PointsView(startIndex, endIndex + 1);
   }
 
   public DataPoint getClosestDataPointToTimestamp(long timestamp) {
     int index = getClosestIndexToTimestamp(timestamp);
-    if (data.size() == 0) {
+    if (isEmpty()) {
       return null;
     }
-    return data.get(index);
+    return new DataPoint(getXAt(index), getYAt(index));
   }
 
   // Searches for the closest index to a given timestamp, round up or down if the search
@@ -165,7 +367,7 @@ public class ChartData {
    */
   @VisibleForTesting
   int exactBinarySearch(long searchX, int startSearchIndex) {
-    return approximateBinarySearch(searchX, startSearchIndex, data.size() - 1, true, 0);
+    return approximateBinarySearch(searchX, startSearchIndex, getNumPoints() - 1, true, 0);
   }
 
   /**
@@ -180,7 +382,7 @@ public class ChartData {
    */
   private int approximateBinarySearch(long searchX, int startSearchIndex, boolean preferStart) {
     return approximateBinarySearch(
-        searchX, startSearchIndex, data.size() - 1, preferStart, DEFAULT_APPROX_RANGE);
+        searchX, startSearchIndex, getNumPoints() - 1, preferStart, DEFAULT_APPROX_RANGE);
   }
 
   /**
@@ -203,18 +405,18 @@ public class ChartData {
   @VisibleForTesting
   int approximateBinarySearch(
       long searchX, int startIndex, int endIndex, boolean preferStart, int searchRange) {
-    if (data.isEmpty()) {
+    if (isEmpty()) {
       return 0;
     }
 
     // See if we're already done (need to do this before calculating distances below, in case
     // searchX is so big or small we're in danger of overflow).
 
-    long startValue = data.get(startIndex).getX();
+    long startValue = getXAt(startIndex);
     if (searchX <= startValue) {
       return startIndex;
     }
-    long endValue = data.get(endIndex).getX();
+    long endValue = getXAt(endIndex);
     if (searchX >= endValue) {
       return endIndex;
     }
@@ -233,7 +435,7 @@ public class ChartData {
       }
     }
     int mid = (startIndex + endIndex) / 2;
-    long midX = data.get(mid).getX();
+    long midX = getXAt(mid);
     if (midX < searchX) {
       return approximateBinarySearch(searchX, mid, endIndex, preferStart, searchRange);
     } else if (midX > searchX) {
@@ -244,25 +446,26 @@ public class ChartData {
   }
 
   public int getNumPoints() {
-    return data.size();
+    return tail - head;
   }
 
   public boolean isEmpty() {
-    return data.isEmpty();
+    return tail == head;
   }
 
   // Assume points are ordered
   public long getXMin() {
-    return data.get(0).getX();
+    return xs[head];
   }
 
   // Assume points are ordered
   public long getXMax() {
-    return data.get(data.size() - 1).getX();
+    return xs[tail - 1];
   }
 
   public void clear() {
-    data.clear();
+    head = 0;
+    tail = 0;
     labels.clear();
     unaddedLabels.clear();
   }
@@ -286,18 +489,20 @@ public class ChartData {
   @VisibleForTesting
   boolean tryAddingLabel(Label label) {
     long timestamp = label.getTimeStamp();
-    if (data.isEmpty() || timestamp < getXMin() || timestamp > getXMax()) {
+    if (isEmpty() || timestamp < getXMin() || timestamp > getXMax()) {
       return false;
     }
     int indexPrev = exactBinarySearch(timestamp, 0);
-    DataPoint start = data.get(indexPrev);
-    if (timestamp == start.getX()) {
-      labels.add(start);
+    long startX = getXAt(indexPrev);
+    double startY = getYAt(indexPrev);
+    if (timestamp == startX) {
+      labels.add(new DataPoint(startX, startY));
       return true;
-    } else if (indexPrev < data.size() - 2) {
-      DataPoint end = data.get(indexPrev + 1);
-      double weight = (timestamp - start.getX()) / (1.0 * end.getX() - start.getX());
-      labels.add(new DataPoint(timestamp, start.getY() * weight + end.getY() * (1 - weight)));
+    } else if (indexPrev < getNumPoints() - 2) {
+      long endX = getXAt(indexPrev + 1);
+      double endY = getYAt(indexPrev + 1);
+      double weight = (timestamp - startX) / (1.0 * endX - startX);
+      labels.add(new DataPoint(timestamp, startY * weight + endY * (1 - weight)));
       return true;
     }
     return false;
@@ -329,8 +534,9 @@ public class ChartData {
     }
 
     // This should be the index to the right of max
-    int indexEnd = approximateBinarySearch(throwAwayMaxX, 0, data.size() - 1, false, 1);
-    int indexStart = approximateBinarySearch(throwAwayMinX, 0, data.size() - 1, false, 1);
+    int size = getNumPoints();
+    int indexEnd = approximateBinarySearch(throwAwayMaxX, 0, size - 1, false, 1);
+    int indexStart = approximateBinarySearch(throwAwayMinX, 0, size - 1, false, 1);
 
     // Only throw away in bulk once we reach a threshold, so that all the work is not done on
     // every iteration. Make sure to also throw out very far away old data to avoid
@@ -338,11 +544,31 @@ public class ChartData {
     // we can just "return" here.
     if (indexEnd - indexStart < throwawayDataSizeThreshold
         && (indexStart >= 0
-            && indexEnd < data.size()
-            && data.get(indexEnd).getX() - data.get(indexStart).getX()
-                < throwawayDataTimeThreshold)) {
+            && indexEnd < size
+            && getXAt(indexEnd) - getXAt(indexStart) < throwawayDataTimeThreshold)) {
       return;
     }
-    data.subList(indexStart, indexEnd).clear();
+    removeRange(indexStart, indexEnd);
+  }
+
+  /** Removes the points in [start, end). Removing from either end doesn't move any points. */
+  private void removeRange(int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    if (start == 0) {
+      head += end;
+    } else if (end == getNumPoints()) {
+      tail = head + start;
+    } else {
+      int moved = getNumPoints() - end;
+      System.arraycopy(xs, head + end, xs, head + start, moved);
+      System.arraycopy(ys, head + end, ys, head + start, moved);
+      tail -= end - start;
+    }
+    if (head == tail) {
+      head = 0;
+      tail = 0;
+    }
   }
 }
@@ -634,29 +634,27 @@ public class ChartView extends View {
     // Just get the points in the range that we want to render, instead of all the points.
     // Adds some buffer to the load in case of scrolling, if those data points are available.
     updatePathCalcs();
-    List<ChartData.DataPoint> points;
+    int startIndex = chartData.getRangeStartIndex(chartOptions.getRenderedXMin() - BUFFER_MS);
+    int endIndex;
     if (optimizePinnedToEnd) {
-      // This is a slightly more efficient call, so use it when possible.
-      points = chartData.getPointsInRangeToEnd(chartOptions.getRenderedXMin() - BUFFER_MS);
+      // This skips the second search, so use it when possible.
+      endIndex = numPoints - 1;
     } else {
-      points =
-          chartData.getPointsInRange(
-              chartOptions.getRenderedXMin() - BUFFER_MS,
-              chartOptions.getRenderedXMax() + BUFFER_MS);
+      endIndex =
+          chartData.getRangeEndIndex(chartOptions.getRenderedXMax() + BUFFER_MS, startIndex);
     }
-    int numPlottedPoints = points.size();
-    if (numPlottedPoints == 0) {
+    if (startIndex > endIndex) {
       return;
     }
-    path.moveTo(getPathX(points.get(0).getX()), getPathY(points.get(0).getY()));
-    for (int i = 1; i < numPlottedPoints; i++) {
-      path.lineTo(getPathX(points.get(i).getX()), getPathY(points.get(i).getY()));
+    path.moveTo(getPathX(chartData.getXAt(startIndex)), getPathY(chartData.getYAt(startIndex)));
+    for (int i = startIndex + 1; i <= endIndex; i++) {
+      path.lineTo(getPathX(chartData.getXAt(i)), getPathY(chartData.getYAt(i)));
     }
     hasPath = true;
 
     // Only update these when the path is redrawn. They track how much data the path covers.
-    xMinInPath = points.get(0).getX();
-    xMaxInPath = points.get(numPlottedPoints - 1).getX();
+    xMinInPath = chartData.getXAt(startIndex);
+    xMaxInPath = chartData.getXAt(endIndex);
   }
 
   /**
@@ -690,6 +688,35 @@ public class ChartView extends View {
     wasPinnedToNow = chartOptions.isPinnedToNow();
   }
 
+  /**
+   * As {@link #addPointToEndOfPath} for each of {@code count} points that were just added to the
+   * end of the data together, but repopulating the path at most once.
+   */
+  public void addPointsToEndOfPath(long[] xs, double[] ys, int count) {
+    if (count == 0) {
+      return;
+    }
+    int numPoints = chartData.getNumPoints();
+    boolean pinnedToNow = chartOptions.isPinnedToNow();
+    boolean crossedRedrawThreshold =
+        numPoints / DRAWN_POINTS_REDRAW_THRESHOLD
+            != (numPoints - count) / DRAWN_POINTS_REDRAW_THRESHOLD;
+    if (!hasPath
+        || numPoints < MAXIMUM_NUM_POINTS_FOR_POPULATE_PATH
+        || (pinnedToNow && (crossedRedrawThreshold || !wasPinnedToNow))) {
+      populatePath(true);
+      postInvalidateOnAnimation();
+    } else {
+      for (int i = 0; i < count; i++) {
+        if (pinnedToNow || chartOptions.getRenderedXMax() >= xs[i] || leadingEdgeIsDrawn) {
+          path.lineTo(getPathX(xs[i]), getPathY(ys[i]));
+          xMaxInPath = xs[i];
+        }
+      }
+    }
+    wasPinnedToNow = pinnedToNow;
+  }
+
   /** Transform the path by stretching and translating it to meet the new rendered size. */
   public void transformPath() {
     // The path needs to be scaled in X and Y based on the range of the new data points.
@@ -837,14 +864,12 @@ public class ChartView extends View {
 
   private void tryDrawingEndpoints(Canvas canvas) {
     if (chartOptions.isShowLeadingEdge()) {
-      ChartData.DataPoint point = chartData.getPoints().get(chartData.getNumPoints() - 1);
-      if (point.getX() == xMaxInPath && xMaxInPath <= xMaxForPathCalcs) {
+      int last = chartData.getNumPoints() - 1;
+      long x = chartData.getXAt(last);
+      if (x == xMaxInPath && xMaxInPath <= xMaxForPathCalcs) {
         leadingEdgeIsDrawn = true;
         canvas.drawCircle(
-            getScreenX(point.getX()),
-            getScreenY(point.getY()),
-            leadingEdgeRadius,
-            leadingEdgePaint);
+            getScreenX(x), getScreenY(chartData.getYAt(last)), leadingEdgeRadius, leadingEdgePaint);
       } else {
         leadingEdgeIsDrawn = false;
       }
@@ -853,20 +878,21 @@ public class ChartView extends View {
       // start and/or end times.
       if (chartOptions.getRenderedXMin() < chartOptions.getRecordingStartTime()
           && chartOptions.getRecordingStartTime() < chartOptions.getRenderedXMax()) {
-        ChartData.DataPoint start = chartData.getPoints().get(0);
-        if (start.getX() >= xMinForPathCalcs) {
-          float screenX = getScreenX(start.getX());
-          float screenY = getScreenY(start.getY());
+        long startX = chartData.getXAt(0);
+        if (startX >= xMinForPathCalcs) {
+          float screenX = getScreenX(startX);
+          float screenY = getScreenY(chartData.getYAt(0));
           canvas.drawCircle(screenX, screenY, endpointOuterRadius, endpointPaint);
           canvas.drawCircle(screenX, screenY, endpointInnerRadius, backgroundPaint);
         }
       }
       if (chartOptions.getRenderedXMin() < chartOptions.getRecordingEndTime()
           && chartOptions.getRecordingEndTime() < chartOptions.getRenderedXMax()) {
-        ChartData.DataPoint end = chartData.getPoints().get(chartData.getNumPoints() - 1);
-        if (end.getX() <= xMaxForPathCalcs) {
-          float screenX = getScreenX(end.getX());
-          float screenY = getScreenY(end.getY());
+        int last = chartData.getNumPoints() - 1;
+        long endX = chartData.getXAt(last);
+        if (endX <= xMaxForPathCalcs) {
+          float screenX = getScreenX(endX);
+          float screenY = getScreenY(chartData.getYAt(last));
           canvas.drawCircle(screenX, screenY, endpointOuterRadius, endpointPaint);
           canvas.drawCircle(screenX, screenY, endpointInnerRadius, backgroundPaint);
         }
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.javalib.MaybeConsumers;
+import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Caches the readings of finished trials, for charts in run review, so that panning back over data
+ * or switching between zoom tiers doesn't read it from the database again.
+ *
+ * <p>Each (trial, sensor, tier) series is split into tiles of a fixed length of time, aligned to
+ * multiples of that length, which are loaded whole. The tiles are shared by all charts and kept in
+ * least-recently-used order, up to a total size in bytes.
+ *
+ * <p>Only use on the UI thread; loads are made through a {@link DataController}, which calls back
+ * there.
+ */
+public class ReadingTileCache {
+  /** Receives the tiles for a request. */
+  public interface TileCallback {
+    /** Called once for each tile overlapping the requested times, in no particular order. */
+    void onTile(Tile tile);
+
+    /** Called once every tile has been delivered, or failed to load. */
+    void onFinish();
+  }
+
+  /** The readings of one series over one tile's time, in time order. */
+  public static class Tile {
+    // A long and a double per reading, plus the arrays' and the tile's overhead, roughly.
+    private static final int BYTES_PER_READING = 16;
+    private static final int OVERHEAD_BYTES = 64;
+
+    private final long[] xs;
+    private final double[] ys;
+    private final int size;
+
+    Tile(long[] xs, double[] ys, int size) {
+      this.xs = xs;
+      this.ys = ys;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public long getX(int index) {
+      return xs[index];
+    }
+
+    public double getY(int index) {
+      return ys[index];
+    }
+
+    /** Returns the index of the first reading at or after {@code timestamp}. */
+    public int indexAtOrAfter(long timestamp) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (xs[mid] < timestamp) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    long getBytes() {
+      return (long) xs.length * BYTES_PER_READING + OVERHEAD_BYTES;
+    }
+
+    static Tile from(ScalarReadingList readings) {
+      int expected = readings.size();
+      long[] xs = new long[expected];
+      double[] ys = new double[expected];
+      int[] size = {0};
+      readings.deliver(
+          new StreamConsumer() {
+            @Override
+            public boolean addData(long timestampMillis, double value) {
+              if (size[0] == expected) {
+                return false;
+              }
+              xs[size[0]] = timestampMillis;
+              ys[size[0]] = value;
+              size[0]++;
+              return true;
+            }
+          });
+      return new Tile(xs, ys, size[0]);
+    }
+  }
+
+  private static class TileKey {
+    final String trialId;
+    final String sensorId;
+    final int tier;
+    final long tileMillis;
+    final long index;
+
+    TileKey(String trialId, String sensorId, int tier, long tileMillis, long index) {
+      this.trialId = trialId;
+      this.sensorId = sensorId;
+      this.tier = tier;
+      this.tileMillis = tileMillis;
+      this.index = index;
+    }
+
+    TimeRange getTimes() {
+      return TimeRange.oldest(Range.closedOpen(index * tileMillis, (index + 1) * tileMillis));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      TileKey other = (TileKey) o;
+      return tier == other.tier
+          && tileMillis == other.tileMillis
+          && index == other.index
+          && trialId.equals(other.trialId)
+          && sensorId.equals(other.sensorId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(trialId, sensorId, tier, tileMillis, index);
+    }
+  }
+
+  /** Enough for several screens of every chart in run review, at a few tiers each. */
+  private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  /** The most tiles started by one call to {@link #prefetch}. */
+  private static final int MAX_PREFETCH_TILES = 32;
+
+  private static ReadingTileCache shared = null;
+
+  private final long maxBytes;
+  private final LinkedHashMap<TileKey, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<TileKey, List<MaybeConsumer<Tile>>> loading = new HashMap<>();
+  private long bytesHeld = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  public static ReadingTileCache getShared() {
+    if (shared == null) {
+      shared = new ReadingTileCache(DEFAULT_MAX_BYTES);
+    }
+    return shared;
+  }
+
+  public ReadingTileCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Delivers every tile of the series that overlaps [{@code minTime}, {@code maxTime}] to {@code
+   * callback}, loading the ones that aren't cached. Cached tiles are delivered before this returns.
+   */
+  public void getTiles(
+      DataController dataController,
+      String trialId,
+      String sensorId,
+      int tier,
+      long tileMillis,
+      long minTime,
+      long maxTime,
+      TileCallback callback,
+      FailureListener failureListener) {
+    long first = tileIndex(minTime, tileMillis);
+    long last = Math.max(first - 1, tileIndex(maxTime, tileMillis));
+    // One for each tile, and one released after they've all been requested.
+    int[] remaining = {(int) (last - first + 2)};
+    Runnable tileDone =
+        () -> {
+          remaining[0]--;
+          if (remaining[0] == 0) {
+            callback.onFinish();
+          }
+        };
+    for (long index = first; index <= last; index++) {
+      TileKey key = new TileKey(trialId, sensorId, tier, tileMillis, index);
+      Tile tile = tiles.get(key);
+      if (tile != null) {
+        hits++;
+        callback.onTile(tile);
+        tileDone.run();
+        continue;
+      }
+      misses++;
+      load(
+          dataController,
+          key,
+          new MaybeConsumer<Tile>() {
+            @Override
+            public void success(Tile loaded) {
+              callback.onTile(loaded);
+              tileDone.run();
+            }
+
+            @Override
+            public void fail(Exception e) {
+              failureListener.fail(e);
+              tileDone.run();
+            }
+          });
+    }
+    tileDone.run();
+  }
+
+  /** Whether every tile overlapping [{@code minTime}, {@code maxTime}] is cached. */
+  public boolean hasTiles(
+      String trialId, String sensorId, int tier, long tileMillis, long minTime, long maxTime) {
+    long last = tileIndex(maxTime, tileMillis);
+    for (long index = tileIndex(minTime, tileMillis); index <= last; index++) {
+      if (!tiles.containsKey(new TileKey(trialId, sensorId, tier, tileMillis, index))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Starts loading the tiles overlapping [{@code minTime}, {@code maxTime}] that aren't cached or
+   * already loading, in the expectation that they will be needed soon. Doesn't count towards the
+   * hit rate.
+   */
+  public void prefetch(
+      DataController dataController,
+      String trialId,
+      String sensorId,
+      int tier,
+      long tileMillis,
+      long minTime,
+      long maxTime) {
+    int started = 0;
+    long last = tileIndex(maxTime, tileMillis);
+    for (long index = tileIndex(minTime, tileMillis);
+        index <= last && started < MAX_PREFETCH_TILES;
+        index++) {
+      TileKey key = new TileKey(trialId, sensorId, tier, tileMillis, index);
+      if (!tiles.containsKey(key) && !loading.containsKey(key)) {
+        load(dataController, key, MaybeConsumers.noop());
+        started++;
+      }
+    }
+  }
+
+  /** The fraction of tiles requested by {@link #getTiles} that were already cached. */
+  public double getHitRate() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  /** Roughly how much memory the cached tiles take. */
+  public long getBytesHeld() {
+    return bytesHeld;
+  }
+
+  public void clear() {
+    tiles.clear();
+    bytesHeld = 0;
+  }
+
+  /** Math.floorDiv, which isn't available on all the API levels we support. */
+  private static long tileIndex(long timestamp, long tileMillis) {
+    long index = timestamp / tileMillis;
+    return (timestamp % tileMillis < 0) ? index - 1 : index;
+  }
+
+  private void load(DataController dataController, TileKey key, MaybeConsumer<Tile> onLoaded) {
+    List<MaybeConsumer<Tile>> waiting = loading.get(key);
+    if (waiting != null) {
+      waiting.add(onLoaded);
+      return;
+    }
+    waiting = new ArrayList<>();
+    waiting.add(onLoaded);
+    loading.put(key, waiting);
+    dataController.getScalarReadings(
+        key.trialId,
+        key.sensorId,
+        key.tier,
+        key.getTimes(),
+        0,
+        new MaybeConsumer<ScalarReadingList>() {
+          @Override
+          public void success(ScalarReadingList readings) {
+            Tile tile = Tile.from(readings);
+            put(key, tile);
+            for (MaybeConsumer<Tile> consumer : loading.remove(key)) {
+              consumer.success(tile);
+            }
+          }
+
+          @Override
+          public void fail(Exception e) {
+            for (MaybeConsumer<Tile> consumer : loading.remove(key)) {
+              consumer.fail(e);
+            }
+          }
+        });
+  }
+
+  private void put(TileKey key, Tile tile) {
+    Tile previous = tiles.put(key, tile);
+    if (previous != null) {
+      bytesHeld -= previous.getBytes();
+    }
+    bytesHeld += tile.getBytes();
+    Iterator<Tile> eldest = tiles.values().iterator();
+    // Always keep the newest tile, even if it alone is over budget.
+    while (bytesHeld > maxBytes && tiles.size() > 1) {
+      bytesHeld -= eldest.next().getBytes();
+      eldest.remove();
+    }
+  }
+}
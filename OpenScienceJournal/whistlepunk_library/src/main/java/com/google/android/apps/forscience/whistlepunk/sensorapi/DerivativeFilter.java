@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * Filter that replaces each value with the rate at which the signal changed over a window of time:
+ * the slope between the oldest and newest values in the window.
+ */
+public class DerivativeFilter extends WindowedValueFilter {
+  private final double denominatorInMillis;
+
+  /**
+   * @param windowMillis how many milliseconds to measure the change over
+   * @param denominatorInMillis how many milliseconds are in the unit of time the rate is per (for
+   *     a rate per second, this should be 1000)
+   */
+  public DerivativeFilter(long windowMillis, double denominatorInMillis) {
+    super(windowMillis);
+    this.denominatorInMillis = denominatorInMillis;
+  }
+
+  @Override
+  protected void onValueAdded(long index, double value) {}
+
+  @Override
+  protected void onValueRemoved(long index, double value) {}
+
+  @Override
+  protected double getFilteredValue() {
+    long first = getFirstIndex();
+    long last = getEndIndex() - 1;
+    long elapsedMillis = getTimestamp(last) - getTimestamp(first);
+    if (elapsedMillis <= 0) {
+      return 0.0;
+    }
+    return (getValue(last) - getValue(first)) / (elapsedMillis / denominatorInMillis);
+  }
+}
@@ -16,17 +16,32 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
-import java.util.LinkedList;
-import java.util.List;
-
-public class FrequencyBuffer implements ValueFilter {
-  private List<ScalarReading> readings = new LinkedList<>();
-
-  private long window;
+/**
+ * Estimates the frequency of a signal from how often it crosses its average value (plus a filter
+ * amount) within a window of time.
+ *
+ * <p>The crossings are kept as the window slides, rather than found again for every value. They
+ * only have to be recounted when the average moves past one of the values in the window, which
+ * changes which side of the average that value is on. To notice that in constant time, the
+ * smallest value above the average and the largest value at or below it are kept in monotonic
+ * queues, as in a sliding window minimum.
+ */
+public class FrequencyBuffer extends WindowedValueFilter {
   private final double denominatorInMillis;
   private double filter;
 
+  private double total;
+  // The threshold that the crossings and queues below were computed against, or NaN if they need
+  // to be computed.
+  private double threshold = Double.NaN;
+  // Indexes of values on the other side of the threshold from the value before them.
+  private final LongQueue crossings = new LongQueue();
+  // Indexes of the values above the threshold whose values increase, so the first is the smallest.
+  private final LongQueue smallestAbove = new LongQueue();
+  // Indexes of the values at or below the threshold whose values decrease, so the first is the
+  // largest.
+  private final LongQueue largestBelow = new LongQueue();
+
   /**
    * @param windowMillis how many milliseconds of data to keep for frequency detection
    * @param denominatorInMillis how many milliseconds are in the display unit (for Hz, this should
@@ -34,65 +49,60 @@ public class FrequencyBuffer implements ValueFilter {
    * @param filter only consider signals with an amplitude at least twice this number.
    */
   public FrequencyBuffer(long windowMillis, double denominatorInMillis, double filter) {
-    window = windowMillis;
+    super(windowMillis);
     this.denominatorInMillis = denominatorInMillis;
     this.filter = filter;
   }
 
-  public void changeWindow(long newWindowMillis) {
-    window = newWindowMillis;
-    if (!readings.isEmpty()) {
-      prune(getNewestTimestamp());
+  @Override
+  protected void onValueAdded(long index, double value) {
+    total += value;
+    if (!Double.isNaN(threshold)) {
+      addToQueues(index, value);
     }
   }
 
   @Override
-  public double filterValue(long timestamp, double value) {
-    readings.add(new ScalarReading(timestamp, value));
-    prune(timestamp);
-    return getLatestFrequency();
+  protected void onValueRemoved(long index, double value) {
+    total -= value;
+    // A crossing at the new first index was relative to the value that just left.
+    while (!crossings.isEmpty() && crossings.peekFirst() <= index + 1) {
+      crossings.removeFirst();
+    }
+    if (!smallestAbove.isEmpty() && smallestAbove.peekFirst() == index) {
+      smallestAbove.removeFirst();
+    }
+    if (!largestBelow.isEmpty() && largestBelow.peekFirst() == index) {
+      largestBelow.removeFirst();
+    }
   }
 
-  private void prune(long timestamp) {
-    long oldestRemaining = timestamp - window;
-    while (readings.get(0).getCollectedTimeMillis() < oldestRemaining) {
-      readings.remove(0);
-    }
+  @Override
+  protected double getFilteredValue() {
+    return getLatestFrequency();
   }
 
   public double getLatestFrequency() {
-    if (readings.size() < 2) {
+    if (size() < 2) {
       return 0.0;
     }
 
-    double average = computeAverageValue();
-    int crossings = 0;
-    long firstCrossingTime = -1;
-    long lastCrossingTime = -1;
-
-    boolean higherThanAverage = readings.get(0).getValue() > average;
-    for (ScalarReading reading : readings.subList(1, readings.size())) {
-      boolean thisReadingHigher = reading.getValue() > average;
-      if (higherThanAverage != thisReadingHigher) {
-        higherThanAverage = thisReadingHigher;
-        crossings++;
-        if (firstCrossingTime == -1) {
-          firstCrossingTime = reading.getCollectedTimeMillis();
-        } else {
-          lastCrossingTime = reading.getCollectedTimeMillis();
-        }
-      }
+    double average = total / size() + filter;
+    if (!isOnSameSides(average)) {
+      recount();
     }
-    // Drop the leading cross because that's where time starts
-    crossings--;
 
-    if (firstCrossingTime == -1 || lastCrossingTime == -1) {
+    // Drop the leading cross because that's where time starts
+    int crossingCount = crossings.size() - 1;
+    if (crossingCount < 1) {
       return 0.0;
     }
+    long firstCrossingTime = getTimestamp(crossings.peekFirst());
+    long lastCrossingTime = getTimestamp(crossings.peekLast());
 
     long adjustedWindowMillis = lastCrossingTime - firstCrossingTime;
 
-    if (adjustedWindowMillis < window / 4) {
+    if (adjustedWindowMillis < getWindowMillis() / 4) {
       // if the signal appears to have stopped 3/4 a window ago, then treat it as stopped.
       // Without this, we can read very or infinitely short single spikes as representing a
       // nonsensical, very high "frequency", leading to janky frequency "spikes" when
@@ -101,30 +111,114 @@ public class FrequencyBuffer implements ValueFilter {
     }
 
     double adjustedWindowUserUnits = adjustedWindowMillis / denominatorInMillis;
-    double cycles = crossings / 2.0f;
+    double cycles = crossingCount / 2.0f;
     double userUnitFrequency = cycles / adjustedWindowUserUnits;
     return userUnitFrequency;
   }
 
-  private double computeAverageValue() {
+  public void changeFilter(double newFilter) {
+    filter = newFilter;
+  }
+
+  /**
+   * Returns true if every value in the window is on the same side of {@code newThreshold} as it
+   * is of the threshold the crossings were counted against.
+   */
+  private boolean isOnSameSides(double newThreshold) {
+    if (Double.isNaN(threshold)) {
+      return false;
+    }
+    return (smallestAbove.isEmpty() || getValue(smallestAbove.peekFirst()) > newThreshold)
+        && (largestBelow.isEmpty() || getValue(largestBelow.peekFirst()) <= newThreshold);
+  }
+
+  /** Counts the crossings again, against the current average. */
+  private void recount() {
     // TODO: if readings are not somewhat evenly distributed in time, we should weight
     // low-sampling-rate readings more heavily than high-sampling-rate.  But we'll just
     // assume for now that doesn't happen.
 
-    double total = 0;
-    for (ScalarReading reading : readings) {
-      total += reading.getValue();
+    // Also start the running total again, so that rounding errors don't build up in it.
+    total = 0;
+    for (long index = getFirstIndex(); index < getEndIndex(); index++) {
+      total += getValue(index);
     }
     // Adding filter means that variations of less than filter won't register as cycles.
-    return total / readings.size() + filter;
+    threshold = total / size() + filter;
+
+    crossings.clear();
+    smallestAbove.clear();
+    largestBelow.clear();
+    for (long index = getFirstIndex(); index < getEndIndex(); index++) {
+      addToQueues(index, getValue(index));
+    }
   }
 
-  private long getNewestTimestamp() {
-    final ScalarReading mostRecentReading = readings.get(readings.size() - 1);
-    return mostRecentReading.getCollectedTimeMillis();
+  private void addToQueues(long index, double value) {
+    boolean higherThanThreshold = value > threshold;
+    if (index > getFirstIndex() && higherThanThreshold != getValue(index - 1) > threshold) {
+      crossings.addLast(index);
+    }
+    if (higherThanThreshold) {
+      while (!smallestAbove.isEmpty() && getValue(smallestAbove.peekLast()) >= value) {
+        smallestAbove.removeLast();
+      }
+      smallestAbove.addLast(index);
+    } else {
+      while (!largestBelow.isEmpty() && getValue(largestBelow.peekLast()) <= value) {
+        largestBelow.removeLast();
+      }
+      largestBelow.addLast(index);
+    }
   }
 
-  public void changeFilter(double newFilter) {
-    filter = newFilter;
+  /** A queue of longs that can also be removed from the end, without boxing them. */
+  private static class LongQueue {
+    private long[] elements = new long[16];
+    private int head;
+    private int size;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long peekFirst() {
+      return elements[head];
+    }
+
+    long peekLast() {
+      return elements[(head + size - 1) & (elements.length - 1)];
+    }
+
+    void addLast(long element) {
+      if (size == elements.length) {
+        long[] newElements = new long[elements.length * 2];
+        for (int i = 0; i < size; i++) {
+          newElements[i] = elements[(head + i) & (elements.length - 1)];
+        }
+        elements = newElements;
+        head = 0;
+      }
+      elements[(head + size) & (elements.length - 1)] = element;
+      size++;
+    }
+
+    void removeFirst() {
+      head = (head + 1) & (elements.length - 1);
+      size--;
+    }
+
+    void removeLast() {
+      size--;
+    }
+
+    void clear() {
+      head = 0;
+      size = 0;
+    }
   }
 }
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/** Filter that replaces each value with the average of the values in a window of time. */
+public class MovingAverageFilter extends WindowedValueFilter {
+  private double total;
+
+  public MovingAverageFilter(long windowMillis) {
+    super(windowMillis);
+  }
+
+  @Override
+  protected void onValueAdded(long index, double value) {
+    total += value;
+  }
+
+  @Override
+  protected void onValueRemoved(long index, double value) {
+    total -= value;
+  }
+
+  @Override
+  protected double getFilteredValue() {
+    return total / size();
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * Is given every reading of a scalar sensor, on the thread that produced it.
+ *
+ * <p>{@link SensorObserver}s are updated on the UI thread, and if readings arrive faster than the
+ * UI keeps up with, they are only passed some of them. Anything that must see every reading, like
+ * trigger evaluation, listens here instead. Implementations must be quick, must not touch the UI,
+ * and may be called from a different thread than the one they were created on.
+ */
+public interface ReadingListener {
+  void onReading(long timestampMillis, double value);
+}
@@ -0,0 +1,311 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size queue of one sensor's readings, with their running stats, from the thread that
+ * produces them to the UI thread.
+ *
+ * <p>There must be only one producing thread and one draining thread at a time. Neither side locks
+ * or allocates while the ring has room: readings are stored in primitive arrays, and each side only
+ * publishes its own position. If the UI falls so far behind that the ring is full, the sensor is
+ * never blocked; what happens to new readings depends on {@link WhenFull}.
+ */
+class ScalarSampleRing {
+  /** Receives drained readings, oldest first. */
+  interface SampleConsumer {
+    /** @param last whether this is the last reading of this drain */
+    void take(
+        long timestampMillis,
+        double value,
+        double min,
+        double max,
+        double average,
+        boolean last);
+  }
+
+  /** What to do with a reading offered while the ring is full. */
+  enum WhenFull {
+    /** Drop it. */
+    DROP_NEWEST,
+    /**
+     * Hold on to it until the next drain, in place of any reading already held, so that the UI
+     * always ends up showing the latest value.
+     */
+    KEEP_LATEST
+  }
+
+  static final int DEFAULT_CAPACITY = 1024;
+
+  private final WhenFull whenFull;
+  private final int mask;
+  private final long[] timestamps;
+  private final double[] values;
+  private final double[] mins;
+  private final double[] maxes;
+  private final double[] averages;
+
+  // Each only ever written by one side. Slots [read, written) hold readings.
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong read = new AtomicLong();
+
+  // The reading held while the ring was full, for KEEP_LATEST. Guarded by heldLock, which is only
+  // taken while the ring is, or recently was, full.
+  private final Object heldLock = new Object();
+  private boolean hasHeld = false;
+  private long heldTimestamp;
+  private double heldValue;
+  private double heldMin;
+  private double heldMax;
+  private double heldAverage;
+  // Only touched by the producer: whether it may still have a reading held.
+  private boolean mayHoldReading = false;
+  // Only touched by the draining thread: the held reading being delivered by the current drain.
+  private boolean drainHasHeld;
+  private long drainTimestamp;
+  private double drainValue;
+  private double drainMin;
+  private double drainMax;
+  private double drainAverage;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong downsampled = new AtomicLong();
+  private final AtomicLong drains = new AtomicLong();
+
+  ScalarSampleRing() {
+    this(DEFAULT_CAPACITY, WhenFull.KEEP_LATEST);
+  }
+
+  /** @param capacity rounded up to a power of two */
+  ScalarSampleRing(int capacity, WhenFull whenFull) {
+    this.whenFull = whenFull;
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    mask = size - 1;
+    timestamps = new long[size];
+    values = new double[size];
+    mins = new double[size];
+    maxes = new double[size];
+    averages = new double[size];
+  }
+
+  /**
+   * Adds a reading. Only call from the producing thread.
+   *
+   * @return false if the reading was dropped because the ring was full. With {@link
+   *     WhenFull#KEEP_LATEST} that never happens; an older held reading is dropped instead.
+   */
+  boolean offer(long timestampMillis, double value, double min, double max, double average) {
+    if (mayHoldReading && !releaseHeldReading()) {
+      // Still full: this one replaces the reading that was held.
+      hold(timestampMillis, value, min, max, average);
+      return true;
+    }
+    long position = written.get();
+    if (position - read.get() > mask) {
+      if (whenFull == WhenFull.DROP_NEWEST) {
+        dropped.lazySet(dropped.get() + 1);
+        return false;
+      }
+      hold(timestampMillis, value, min, max, average);
+      return true;
+    }
+    put(position, timestampMillis, value, min, max, average);
+    return true;
+  }
+
+  private void put(
+      long position, long timestampMillis, double value, double min, double max, double average) {
+    int slot = (int) position & mask;
+    timestamps[slot] = timestampMillis;
+    values[slot] = value;
+    mins[slot] = min;
+    maxes[slot] = max;
+    averages[slot] = average;
+    // A full volatile write, so that the producer's following check of whether a drain is already
+    // pending can't be ordered before the reading is visible to the drain.
+    written.set(position + 1);
+  }
+
+  private void hold(long timestampMillis, double value, double min, double max, double average) {
+    synchronized (heldLock) {
+      if (hasHeld) {
+        dropped.lazySet(dropped.get() + 1);
+      }
+      hasHeld = true;
+      heldTimestamp = timestampMillis;
+      heldValue = value;
+      heldMin = min;
+      heldMax = max;
+      heldAverage = average;
+    }
+    mayHoldReading = true;
+  }
+
+  /**
+   * Moves the held reading, if the drain hasn't taken it, into the ring, so that it stays ahead of
+   * newer readings.
+   *
+   * @return false if a reading is still held, because the ring is still full
+   */
+  private boolean releaseHeldReading() {
+    synchronized (heldLock) {
+      if (hasHeld) {
+        long position = written.get();
+        if (position - read.get() > mask) {
+          return false;
+        }
+        put(position, heldTimestamp, heldValue, heldMin, heldMax, heldAverage);
+        hasHeld = false;
+      }
+    }
+    mayHoldReading = false;
+    return true;
+  }
+
+  /**
+   * Passes every reading offered so far to {@code consumer}, and frees their slots. Only call from
+   * the draining thread.
+   *
+   * @return the number of readings drained
+   */
+  int drain(SampleConsumer consumer) {
+    return drain(consumer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #drain(SampleConsumer)}, but if there are more than {@code maxReadings} readings,
+   * passes on only the lowest and highest reading of each of {@code (maxReadings - 1) / 2} equal
+   * runs of them, followed by the latest one, so that the shape of the signal survives.
+   *
+   * @param maxReadings at least 3
+   * @return the number of readings drained, including those that weren't passed on
+   */
+  int drain(SampleConsumer consumer, int maxReadings) {
+    long start = read.get();
+    long end;
+    synchronized (heldLock) {
+      // Read under the lock, since nothing more can be written while a reading is held, so that
+      // a held reading comes after everything up to end.
+      end = written.get();
+      drainHasHeld = hasHeld;
+      if (hasHeld) {
+        drainTimestamp = heldTimestamp;
+        drainValue = heldValue;
+        drainMin = heldMin;
+        drainMax = heldMax;
+        drainAverage = heldAverage;
+        hasHeld = false;
+      }
+    }
+    int count = (int) (end - start) + (drainHasHeld ? 1 : 0);
+    if (count == 0) {
+      return 0;
+    }
+    int passedOn;
+    if (count <= maxReadings) {
+      for (int i = 0; i < count; i++) {
+        take(consumer, start, end, i, i == count - 1);
+      }
+      passedOn = count;
+    } else {
+      passedOn = takeDownsampled(consumer, start, end, count, Math.max(maxReadings, 3));
+    }
+    read.lazySet(end);
+    delivered.lazySet(delivered.get() + passedOn);
+    downsampled.lazySet(downsampled.get() + count - passedOn);
+    drains.lazySet(drains.get() + 1);
+    return count;
+  }
+
+  private int takeDownsampled(
+      SampleConsumer consumer, long start, long end, int count, int maxReadings) {
+    // The latest reading is always passed on last, on its own.
+    int runs = (maxReadings - 1) / 2;
+    int earlier = count - 1;
+    int passedOn = 0;
+    for (int run = 0; run < runs; run++) {
+      int from = (int) ((long) earlier * run / runs);
+      int to = (int) ((long) earlier * (run + 1) / runs);
+      if (from == to) {
+        continue;
+      }
+      int lowest = from;
+      int highest = from;
+      for (int i = from + 1; i < to; i++) {
+        double value = valueAt(start, end, i);
+        if (value < valueAt(start, end, lowest)) {
+          lowest = i;
+        }
+        if (value > valueAt(start, end, highest)) {
+          highest = i;
+        }
+      }
+      take(consumer, start, end, Math.min(lowest, highest), false);
+      passedOn++;
+      if (lowest != highest) {
+        take(consumer, start, end, Math.max(lowest, highest), false);
+        passedOn++;
+      }
+    }
+    take(consumer, start, end, earlier, true);
+    return passedOn + 1;
+  }
+
+  /** The value of the {@code i}th reading of this drain, where the held one comes last. */
+  private double valueAt(long start, long end, int i) {
+    return start + i < end ? values[(int) (start + i) & mask] : drainValue;
+  }
+
+  private void take(SampleConsumer consumer, long start, long end, int i, boolean last) {
+    if (start + i < end) {
+      int slot = (int) (start + i) & mask;
+      consumer.take(
+          timestamps[slot], values[slot], mins[slot], maxes[slot], averages[slot], last);
+    } else {
+      consumer.take(drainTimestamp, drainValue, drainMin, drainMax, drainAverage, last);
+    }
+  }
+
+  /** Readings waiting to be drained. */
+  int getDepth() {
+    long depth = written.get() - read.get();
+    synchronized (heldLock) {
+      return (int) depth + (hasHeld ? 1 : 0);
+    }
+  }
+
+  /** Readings dropped because the ring was full. */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /** Readings drained but not passed on, because there were too many for one drain. */
+  long getDownsampledCount() {
+    return downsampled.get();
+  }
+
+  /**
+   * Readings that were delivered in the same drain as an earlier one, rather than each in its own
+   * UI update.
+   */
+  long getCoalescedCount() {
+    return delivered.get() - drains.get();
+  }
+}
@@ -44,15 +44,16 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
-import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartView;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.UptimeClock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.FrequencyOptionsPresenter.FilterChangeListener;
 import com.google.common.base.Preconditions;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A SensorChoice that records a scalar value to the database and shows it onscreen as a linegraph.
@@ -68,27 +69,42 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
   private static final String TAG = "ScalarSensor";
   private static final double DENOMINATOR_FOR_RPMS = 60 * 1000.0;
   public static final String BUNDLE_KEY_SENSOR_VALUE = "key_sensor_value";
+  // More readings than this arriving between UI updates (say, while the UI thread was busy) are
+  // downsampled, so that catching up doesn't make the next frame slower still.
+  @VisibleForTesting static final int MAX_READINGS_PER_UI_UPDATE = 100;
 
   private final FailureListener dataFailureListener;
   private final int zoomLevelBetweenTiers;
 
   private final long defaultGraphRange;
   private Executor uiThreadExecutor;
+  private final Executor sampleExecutor;
   private ValueFilter valueFilter = null;
   private ChartController chartController;
   private AudioGenerator audioGenerator;
+  private ScalarSampleRing latestSampleRing = null;
   private final Clock clock;
 
   public ScalarSensor(String id) {
-    this(id, AppSingleton.getUiThreadExecutor());
+    this(id, AppSingleton.getUiThreadExecutor(), AppSingleton.getUiFrameExecutor());
   }
 
   @VisibleForTesting
   public ScalarSensor(String id, Executor uiThreadExecutor) {
+    this(id, uiThreadExecutor, uiThreadExecutor);
+  }
+
+  /**
+   * @param sampleExecutor runs the delivery of new readings to observers on the UI thread. Readings
+   *     that arrive before it runs are delivered together, so an executor that waits for the next
+   *     frame means observers are updated at most once per frame.
+   */
+  protected ScalarSensor(String id, Executor uiThreadExecutor, Executor sampleExecutor) {
     this(
         id,
         ExternalAxisController.DEFAULT_GRAPH_RANGE_IN_MILLIS,
         uiThreadExecutor,
+        sampleExecutor,
         DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS,
         new UptimeClock());
   }
@@ -100,9 +116,20 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
       Executor uiThreadExecutor,
       int zoomLevelBetweenTiers,
       Clock clock) {
+    this(id, defaultGraphRange, uiThreadExecutor, uiThreadExecutor, zoomLevelBetweenTiers, clock);
+  }
+
+  private ScalarSensor(
+      String id,
+      long defaultGraphRange,
+      Executor uiThreadExecutor,
+      Executor sampleExecutor,
+      int zoomLevelBetweenTiers,
+      Clock clock) {
     super(id);
     this.defaultGraphRange = defaultGraphRange;
     this.uiThreadExecutor = uiThreadExecutor;
+    this.sampleExecutor = sampleExecutor;
     this.zoomLevelBetweenTiers = zoomLevelBetweenTiers;
     dataFailureListener =
         new FailureListener() {
@@ -133,6 +160,12 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     return new SensorPresenter() {
       private boolean audioEnabled;
 
+      // Points of the current batch (see SensorObserver.Data#isLastInBatch), added to the chart
+      // together at the end of it.
+      private long[] pendingXs = new long[16];
+      private double[] pendingYs = new double[16];
+      private int pendingCount = 0;
+
       @Override
       public void startShowing(
           View contentView, ExternalAxisController.InteractionListener listener) {
@@ -157,7 +190,13 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
       @Override
       public void onNewData(long timestamp, Data bundle) {
         double value = bundle.getValue();
-        chartController.addPoint(new ChartData.DataPoint(timestamp, value));
+        if (pendingCount == pendingXs.length) {
+          pendingXs = Arrays.copyOf(pendingXs, pendingCount * 2);
+          pendingYs = Arrays.copyOf(pendingYs, pendingCount * 2);
+        }
+        pendingXs[pendingCount] = timestamp;
+        pendingYs[pendingCount] = value;
+        pendingCount++;
         if (this.audioEnabled) {
           audioGenerator.addData(
               timestamp,
@@ -165,7 +204,12 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
               chartController.getRenderedYMin(),
               chartController.getRenderedYMax());
         }
-        statsDisplay.updateFromBundle(bundle);
+        if (bundle.isLastInBatch()) {
+          chartController.addPoints(pendingXs, pendingYs, pendingCount);
+          pendingCount = 0;
+          // The stats are cumulative, so only the latest matter.
+          statsDisplay.updateFromBundle(bundle);
+        }
       }
 
       @Override
@@ -351,6 +395,35 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     return null;
   }
 
+  /**
+   * Returns how many readings from the most recently created recorder were dropped before reaching
+   * the UI, because it fell too far behind. Only ever the UI's copy: every reading is still stored.
+   */
+  public long getDroppedSampleCount() {
+    return latestSampleRing == null ? 0 : latestSampleRing.getDroppedCount();
+  }
+
+  /**
+   * Returns how many readings from the most recently created recorder were left out of UI updates
+   * that had too many readings to show.
+   */
+  public long getDownsampledSampleCount() {
+    return latestSampleRing == null ? 0 : latestSampleRing.getDownsampledCount();
+  }
+
+  /** Returns how many readings from the most recently created recorder are waiting for the UI. */
+  public int getPendingSampleCount() {
+    return latestSampleRing == null ? 0 : latestSampleRing.getDepth();
+  }
+
+  /**
+   * Returns how many readings from the most recently created recorder were delivered to the UI in
+   * the same update as an earlier reading.
+   */
+  public long getCoalescedSampleCount() {
+    return latestSampleRing == null ? 0 : latestSampleRing.getCoalescedCount();
+  }
+
   public static double getValue(SensorObserver.Data bundle) {
     return bundle.getValue();
   }
@@ -377,6 +450,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     final ZoomRecorder zoomRecorder = new ZoomRecorder(getId(), zoomBufferSize, 1);
     final ScalarStreamConsumer consumer =
         new ScalarStreamConsumer(statsAccumulator, observer, dataController, zoomRecorder);
+    latestSampleRing = consumer.getRing();
     final SensorRecorder recorder = makeScalarControl(consumer, environment, context, listener);
     return new DelegatingSensorRecorder(recorder) {
       private String runId;
@@ -391,6 +465,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
       public void stopObserving() {
         super.stopObserving();
         dataController.clearDataErrorListenerForSensor(getId());
+        consumer.logSampleCounts();
       }
 
       @Override
@@ -481,9 +556,28 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     private boolean isRecording = false;
     private long lastDataTimestampMillis = NO_DATA_RECORDED;
     private long timestampBeforeRecordingStart = NO_DATA_RECORDED;
-    private SensorMessage.Pool messagePool;
     private String runId = null;
 
+    private final SensorObserver observer;
+    // Given every reading before any are shed for the UI, if the observer wants them.
+    private final ReadingListener readingListener;
+    private final ScalarSampleRing ring = new ScalarSampleRing();
+    private final AtomicBoolean drainPending = new AtomicBoolean(false);
+    private final Runnable drainRunnable = this::drain;
+
+    // Reused on the sensor thread to collect the stats, and on the UI thread to deliver readings.
+    private final SensorObserver.Data statsData = new SensorObserver.Data();
+    private final SensorObserver.Data deliveredData = new SensorObserver.Data();
+    private final ScalarSampleRing.SampleConsumer deliver =
+        (timestampMillis, value, min, max, average, last) -> {
+          deliveredData.setValue(value);
+          deliveredData.min = min;
+          deliveredData.max = max;
+          deliveredData.average = average;
+          deliveredData.setLastInBatch(last);
+          ScalarStreamConsumer.this.observer.onNewData(timestampMillis, deliveredData);
+        };
+
     public ScalarStreamConsumer(
         StatsAccumulator statsAccumulator,
         SensorObserver observer,
@@ -492,7 +586,8 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
       this.statsAccumulator = statsAccumulator;
       this.dataController = dataController;
       this.zoomRecorder = zoomRecorder;
-      messagePool = new SensorMessage.Pool(observer);
+      this.observer = observer;
+      readingListener = observer instanceof ReadingListener ? (ReadingListener) observer : null;
     }
 
     public void startRecording(String runId) {
@@ -504,6 +599,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     public void stopRecording() {
       isRecording = false;
       zoomRecorder.flushAllTiers(dataController);
+      dataController.flushScalarReadings();
     }
 
     public boolean maintainsTimeSeries(final long timestampMillis) {
@@ -527,17 +623,42 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     }
 
     public void observeData(final long timestampMillis, double value) {
-      // Each call to obtain is guaranteed to retrieve a currently-unused message...
-      SensorMessage message = messagePool.obtain();
-
-      // ...which is set up with the correct values here...
-      message.setTimestamp(timestampMillis);
-      message.getData().setValue(value);
+      if (readingListener != null) {
+        readingListener.onReading(timestampMillis, value);
+      }
       statsAccumulator.updateRecordingStreamStats(timestampMillis, value);
-      statsAccumulator.addStatsToBundle(message.getData());
+      statsAccumulator.addStatsToBundle(statsData);
+      ring.offer(timestampMillis, value, statsData.min, statsData.max, statsData.average);
+
+      // Only one drain is queued at a time; it delivers everything offered before it runs.
+      if (!drainPending.get() && drainPending.compareAndSet(false, true)) {
+        sampleExecutor.execute(drainRunnable);
+      }
+    }
+
+    private void drain() {
+      // Cleared first, so that a reading offered during the drain queues another one.
+      drainPending.set(false);
+      ring.drain(deliver, MAX_READINGS_PER_UI_UPDATE);
+    }
+
+    public void logSampleCounts() {
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(
+            TAG,
+            getId()
+                + ": "
+                + ring.getDroppedCount()
+                + " readings dropped, "
+                + ring.getDownsampledCount()
+                + " downsampled, "
+                + ring.getCoalescedCount()
+                + " coalesced into earlier UI updates");
+      }
+    }
 
-      // ..and will be cleared and released back to the message pool when getRunnable is run.
-      runOnMainThread(message.getRunnable());
+    ScalarSampleRing getRing() {
+      return ring;
     }
 
     public void recordData(long timestampMillis, double value) {
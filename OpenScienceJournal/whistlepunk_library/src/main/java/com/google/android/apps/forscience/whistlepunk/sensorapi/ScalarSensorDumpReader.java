@@ -20,11 +20,23 @@ import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.BatchDataController;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Reads protos that have been exported from another experiment and populates the database with a
@@ -34,6 +46,24 @@ import java.util.Map;
 public class ScalarSensorDumpReader {
   private static final int NO_DATA_RECORDED = -1;
   private static final String TAG = "ScalarSensorDumpReader";
+  // The most rows passed on at once when streaming, and how many of those can wait to be stored.
+  private static final int CHUNK_ROWS = 1000;
+  private static final int QUEUED_CHUNKS = 4;
+  private static final RowChunk END_OF_DATA = new RowChunk("", null, new long[0], new double[0], 0);
+
+  // Tags are the field number shifted past the 3 bits of wire type.
+  private static final int SENSORS_TAG =
+      ScalarSensorData.SENSORS_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int DUMP_TAG_TAG =
+      ScalarSensorDataDump.TAG_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int DUMP_ROWS_TAG =
+      ScalarSensorDataDump.ROWS_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int DUMP_TRIAL_ID_TAG =
+      ScalarSensorDataDump.TRIALID_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int ROW_TIMESTAMP_TAG =
+      ScalarSensorDataRow.TIMESTAMPMILLIS_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_VARINT;
+  private static final int ROW_VALUE_TAG =
+      ScalarSensorDataRow.VALUE_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_FIXED64;
 
   private final RecordingDataController dataController;
   private long lastDataTimestampMillis = NO_DATA_RECORDED;
@@ -61,6 +91,93 @@ public class ScalarSensorDumpReader {
     }
   }
 
+  /**
+   * Reads a ScalarSensorData proto from {@code in} field by field, so that it's never all in
+   * memory. Consecutive dumps with the same tag and trial id are treated as one run of readings, as
+   * written by {@code SensorDatabase#writeScalarReadingProtos}. Files written as a single message,
+   * with one dump per sensor, can be read this way too, but each dump's rows are held until its
+   * trial id has been read.
+   */
+  public void readData(InputStream in, Map<String, String> idMap) throws IOException {
+    SeriesWriter writer = new SeriesWriter();
+    try {
+      parse(in, idMap, writer::write);
+    } finally {
+      writer.finish();
+    }
+  }
+
+  /**
+   * Like {@link #readData(InputStream, Map)}, but stores the rows on {@code executor} while this
+   * thread parses ahead of it, by at most {@link #QUEUED_CHUNKS} chunks of rows. Returns once all
+   * of {@code in} has been parsed, so that the caller can go on reading whatever follows it. The
+   * returned future completes once all the rows have been passed on to the data controller.
+   */
+  public Future<Void> readDataInBackground(
+      InputStream in, Map<String, String> idMap, ExecutorService executor) throws IOException {
+    BlockingQueue<RowChunk> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    Future<Void> stored =
+        executor.submit(
+            () -> {
+              SeriesWriter writer = new SeriesWriter();
+              try {
+                RowChunk chunk;
+                while ((chunk = queue.take()) != END_OF_DATA) {
+                  writer.write(chunk);
+                }
+              } finally {
+                writer.finish();
+              }
+              return null;
+            });
+    boolean parsed = false;
+    try {
+      parse(in, idMap, chunk -> enqueue(queue, chunk, stored));
+      parsed = true;
+    } finally {
+      if (parsed) {
+        enqueue(queue, END_OF_DATA, stored);
+      } else {
+        stored.cancel(true);
+      }
+    }
+    return stored;
+  }
+
+  /** Waits for room in {@code queue}, unless the writer has stopped, in which case it throws. */
+  private static void enqueue(BlockingQueue<RowChunk> queue, RowChunk chunk, Future<Void> stored)
+      throws IOException {
+    try {
+      while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+        if (stored.isDone()) {
+          throw new IOException("Stopped storing imported sensor data");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while importing sensor data");
+    }
+  }
+
+  /** Parses the dumps in {@code in}, and passes their rows to {@code sink} in chunks. */
+  private static void parse(InputStream in, Map<String, String> idMap, ChunkSink sink)
+      throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(in);
+    DumpParser parser = new DumpParser(idMap, sink);
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      if (tag != SENSORS_TAG) {
+        input.skipField(tag);
+        continue;
+      }
+      int oldLimit = input.pushLimit(input.readRawVarint32());
+      parser.parseDump(input);
+      input.popLimit(oldLimit);
+      // Only a chunk of rows is held at once, so only limit the size of each dump.
+      input.resetSizeCounter();
+    }
+  }
+
   public void readData(List<ScalarSensorDataDump> scalarSensorData) {
     int zoomBufferSize = zoomLevelBetweenTiers * 2;
     for (ScalarSensorDataDump sensor : scalarSensorData) {
@@ -141,4 +258,177 @@ public class ScalarSensorDumpReader {
     zoomRecorder.addData(timestampMillis, value, batchController);
     batchController.addScalarReading(trialId, tag, 0, timestampMillis, value);
   }
+
+  /** Rows from one series, in the order they were read. */
+  private static class RowChunk {
+    final String tag;
+    final String trialId;
+    final long[] timestamps;
+    final double[] values;
+    final int size;
+
+    RowChunk(String tag, String trialId, long[] timestamps, double[] values, int size) {
+      this.tag = tag;
+      this.trialId = trialId;
+      this.timestamps = timestamps;
+      this.values = values;
+      this.size = size;
+    }
+  }
+
+  private interface ChunkSink {
+    void accept(RowChunk chunk) throws IOException;
+  }
+
+  /**
+   * Splits the rows of each dump into chunks. Rows can only be passed on once the dump's tag and
+   * trial id are known: {@code ScalarSensorDataWriter} writes them first, so those rows are passed
+   * on as soon as a chunk fills, but rows that come before them (as in files written by older
+   * versions) are held until the end of the dump.
+   */
+  private static class DumpParser {
+    private final Map<String, String> idMap;
+    private final ChunkSink sink;
+    private long[] timestamps = new long[CHUNK_ROWS];
+    private double[] values = new double[CHUNK_ROWS];
+    private int size;
+
+    DumpParser(Map<String, String> idMap, ChunkSink sink) {
+      this.idMap = idMap;
+      this.sink = sink;
+    }
+
+    void parseDump(CodedInputStream input) throws IOException {
+      String sensorTag = null;
+      String trialId = null;
+      boolean passedOn = false;
+      size = 0;
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        switch (tag) {
+          case DUMP_TAG_TAG:
+            sensorTag = input.readString();
+            break;
+          case DUMP_TRIAL_ID_TAG:
+            trialId = input.readString();
+            break;
+          case DUMP_ROWS_TAG:
+            if (size == timestamps.length) {
+              if (sensorTag != null && trialId != null) {
+                emit(sensorTag, trialId);
+                passedOn = true;
+              } else {
+                grow();
+              }
+            }
+            int oldLimit = input.pushLimit(input.readRawVarint32());
+            parseRow(input);
+            input.popLimit(oldLimit);
+            break;
+          default:
+            input.skipField(tag);
+            break;
+        }
+      }
+      // A dump with no rows is still passed on, so that it starts a new series if need be.
+      if (size > 0 || !passedOn) {
+        emit(sensorTag == null ? "" : sensorTag, trialId == null ? "" : trialId);
+      }
+      if (timestamps.length > CHUNK_ROWS) {
+        timestamps = new long[CHUNK_ROWS];
+        values = new double[CHUNK_ROWS];
+      }
+    }
+
+    private void parseRow(CodedInputStream input) throws IOException {
+      long timestampMillis = 0;
+      double value = 0;
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        switch (tag) {
+          case ROW_TIMESTAMP_TAG:
+            timestampMillis = input.readInt64();
+            break;
+          case ROW_VALUE_TAG:
+            value = input.readDouble();
+            break;
+          default:
+            input.skipField(tag);
+            break;
+        }
+      }
+      timestamps[size] = timestampMillis;
+      values[size] = value;
+      size++;
+    }
+
+    private void emit(String sensorTag, String trialId) throws IOException {
+      String newTrialId = idMap.get(trialId);
+      int offset = 0;
+      do {
+        int count = Math.min(CHUNK_ROWS, size - offset);
+        sink.accept(
+            new RowChunk(
+                sensorTag,
+                newTrialId,
+                Arrays.copyOfRange(timestamps, offset, offset + count),
+                Arrays.copyOfRange(values, offset, offset + count),
+                count));
+        offset += count;
+      } while (offset < size);
+      size = 0;
+    }
+
+    private void grow() {
+      timestamps = Arrays.copyOf(timestamps, timestamps.length * 2);
+      values = Arrays.copyOf(values, values.length * 2);
+    }
+  }
+
+  /**
+   * Stores chunks of rows, with their zoom tiers, starting a new series whenever the tag or trial
+   * id changes.
+   */
+  private class SeriesWriter {
+    private final BatchDataController batchController = new BatchDataController(dataController);
+    private final int zoomBufferSize = zoomLevelBetweenTiers * 2;
+    private ZoomRecorder zoomRecorder = null;
+    private String sensorTag = null;
+    private String trialId = null;
+    private long lastTimestampMillis = NO_DATA_RECORDED;
+
+    void write(RowChunk chunk) {
+      if (zoomRecorder == null
+          || !chunk.tag.equals(sensorTag)
+          || !Objects.equals(chunk.trialId, trialId)) {
+        if (zoomRecorder != null) {
+          zoomRecorder.flushAllTiers(batchController);
+        }
+        sensorTag = chunk.tag;
+        trialId = chunk.trialId;
+        zoomRecorder = new ZoomRecorder(sensorTag, zoomBufferSize, 1);
+        zoomRecorder.setTrialId(trialId);
+        lastTimestampMillis = NO_DATA_RECORDED;
+      }
+      for (int i = 0; i < chunk.size; i++) {
+        long timestampMillis = chunk.timestamps[i];
+        // Like addData, drop rows that would break the time series.
+        if (timestampMillis > lastTimestampMillis) {
+          recordData(
+              batchController, zoomRecorder, trialId, sensorTag, timestampMillis, chunk.values[i]);
+          lastTimestampMillis = timestampMillis;
+        }
+      }
+      if (chunk.size > 0) {
+        batchController.flushScalarReadings();
+      }
+    }
+
+    void finish() {
+      if (zoomRecorder != null) {
+        zoomRecorder.flushAllTiers(batchController);
+      }
+      batchController.flushScalarReadings();
+    }
+  }
 }
@@ -61,7 +61,8 @@ public abstract class SensorChoice {
   /**
    * Create a SensorRecorder for starting and stopping this sensor
    *
-   * @param observer if non-null, must be provided with updates to the observed sensor
+   * @param observer if non-null, must be provided with updates to the observed sensor. If it is
+   *     also a {@link ReadingListener}, it must be given every reading as well.
    * @param listener receives events related to successfully starting and stopping the sensor, as
    *     well as related errors.
    * @param environment provides system-level services (database, clock, connectivity)
@@ -34,6 +34,7 @@ public interface SensorObserver {
   class Data {
     private double value;
     private boolean hasValidValue;
+    private boolean lastInBatch = true;
 
     // stats
     public double min;
@@ -57,6 +58,20 @@ public interface SensorObserver {
       return value;
     }
 
+    /**
+     * Readings that arrive faster than the screen refreshes are delivered together, once per frame.
+     * This is false for all but the last of such a batch, so that observers that only show the
+     * latest value can skip the others. If the UI falls far behind, only some of the readings are
+     * delivered; a {@link ReadingListener} sees all of them.
+     */
+    public boolean isLastInBatch() {
+      return lastInBatch;
+    }
+
+    public void setLastInBatch(boolean lastInBatch) {
+      this.lastInBatch = lastInBatch;
+    }
+
     public Bundle asBundle() {
       // TODO: test, and optimize
       Bundle bundle = new Bundle();
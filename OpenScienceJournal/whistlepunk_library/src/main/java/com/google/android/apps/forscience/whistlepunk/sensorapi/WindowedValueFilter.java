@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A filter whose output depends on the values received in the last {@code windowMillis}, like a
+ * moving average.
+ *
+ * <p>Values are kept in primitive arrays used as a ring buffer, which grows as needed and is never
+ * reallocated otherwise. Each value has an index, which increases by one for every value added, and
+ * stays the same while the value is in the window. Subclasses are told as each value enters and
+ * leaves the window, so that they can keep running totals instead of rescanning the window.
+ */
+public abstract class WindowedValueFilter implements ValueFilter {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long windowMillis;
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+  private double[] values = new double[INITIAL_CAPACITY];
+  // Indexes of the oldest value in the window, and of the next value to be added.
+  private long firstIndex;
+  private long endIndex;
+
+  protected WindowedValueFilter(long windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  @Override
+  public double filterValue(long timestamp, double value) {
+    add(timestamp, value);
+    prune(timestamp);
+    return getFilteredValue();
+  }
+
+  public void changeWindow(long newWindowMillis) {
+    windowMillis = newWindowMillis;
+    if (size() > 0) {
+      prune(getTimestamp(endIndex - 1));
+    }
+  }
+
+  /** Called after the value at {@code index} has been added to the window. */
+  protected abstract void onValueAdded(long index, double value);
+
+  /**
+   * Called after the value at {@code index} has left the window. It's always the oldest value, so
+   * {@link #getFirstIndex()} is already {@code index + 1}.
+   */
+  protected abstract void onValueRemoved(long index, double value);
+
+  /** Returns the output of the filter for the values in the window. */
+  protected abstract double getFilteredValue();
+
+  protected long getWindowMillis() {
+    return windowMillis;
+  }
+
+  protected int size() {
+    return (int) (endIndex - firstIndex);
+  }
+
+  /** The index of the oldest value in the window. */
+  protected long getFirstIndex() {
+    return firstIndex;
+  }
+
+  /** One more than the index of the newest value in the window. */
+  protected long getEndIndex() {
+    return endIndex;
+  }
+
+  /** The timestamp of the value at {@code index}, which must be in the window. */
+  protected long getTimestamp(long index) {
+    return timestamps[(int) index & (timestamps.length - 1)];
+  }
+
+  /** The value at {@code index}, which must be in the window. */
+  protected double getValue(long index) {
+    return values[(int) index & (values.length - 1)];
+  }
+
+  private void add(long timestamp, double value) {
+    if (size() == timestamps.length) {
+      grow();
+    }
+    int slot = (int) endIndex & (timestamps.length - 1);
+    timestamps[slot] = timestamp;
+    values[slot] = value;
+    endIndex++;
+    onValueAdded(endIndex - 1, value);
+  }
+
+  private void prune(long timestamp) {
+    long oldestRemaining = timestamp - windowMillis;
+    while (size() > 0 && getTimestamp(firstIndex) < oldestRemaining) {
+      double value = getValue(firstIndex);
+      firstIndex++;
+      onValueRemoved(firstIndex - 1, value);
+    }
+  }
+
+  private void grow() {
+    // The capacity stays a power of 2, so that an index maps to its slot with a mask.
+    long[] newTimestamps = new long[timestamps.length * 2];
+    double[] newValues = new double[values.length * 2];
+    for (long index = firstIndex; index < endIndex; index++) {
+      int slot = (int) index & (newTimestamps.length - 1);
+      newTimestamps[slot] = getTimestamp(index);
+      newValues[slot] = getValue(index);
+    }
+    timestamps = newTimestamps;
+    values = newValues;
+  }
+}
@@ -17,6 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 
 /**
  * Stores data at multiple granularities. For each run of N*2 data points in tier X, there are 2
@@ -24,6 +25,10 @@ import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
  *
  * <p>This seems to allow us to capture the general shape of the graph better than trying to, for
  * example, synthesize an "average" data point for the run.
+ *
+ * <p>Alongside each min/max pair, we store the stats (count, mean, spread, min and max) of
+ * every raw reading the pair stands for, so that stats for any stretch of the recording can be put
+ * together from a handful of these buckets instead of by reading back every point.
  */
 public class ZoomRecorder {
   /**
@@ -38,6 +43,8 @@ public class ZoomRecorder {
    */
   public static final String STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS = "stats_zoom_level";
 
+  private static final long NO_BUCKET_YET = Long.MIN_VALUE;
+
   private final String sensorId;
   private final int zoomBufferSize;
   private final int tier;
@@ -50,6 +57,12 @@ public class ZoomRecorder {
   private double valueOfMaxSeen;
   private ZoomRecorder nextTierUp = null;
 
+  // Stats for the raw readings behind the points seen this pass, and where their span starts.
+  private ScalarStats bucketStats = new ScalarStats();
+  private long bucketStart;
+  // The end of the last bucket stored for this trial, or NO_BUCKET_YET.
+  private long previousBucketEnd = NO_BUCKET_YET;
+
   /**
    * @param zoomBufferSize how many data points we can store before sending summary data points to
    *     the next tier up. Note that since we send 2 summary points per buffer, (max and min), each
@@ -64,11 +77,13 @@ public class ZoomRecorder {
 
   public void clear() {
     nextTierUp = null;
+    previousBucketEnd = NO_BUCKET_YET;
     resetBuffer();
   }
 
   public void clearTrialId() {
     trialId = null;
+    previousBucketEnd = NO_BUCKET_YET;
     if (nextTierUp != null) {
       nextTierUp.clearTrialId();
     }
@@ -76,6 +91,7 @@ public class ZoomRecorder {
 
   public void setTrialId(String trialId) {
     this.trialId = trialId;
+    previousBucketEnd = NO_BUCKET_YET;
     if (nextTierUp != null) {
       nextTierUp.setTrialId(trialId);
     }
@@ -86,9 +102,27 @@ public class ZoomRecorder {
     valueOfMinSeen = Double.MAX_VALUE;
     valueOfMaxSeen = -Double.MAX_VALUE;
     timestampOfMaxSeen = timestampOfMinSeen = -1;
+    // Not cleared in place, since the last one may still be waiting to be written.
+    bucketStats = new ScalarStats();
   }
 
   public void addData(long timestampMillis, double value, RecordingDataController dc) {
+    if (bucketStats.isEmpty()) {
+      // Start right after the last bucket, so that there is no gap between them.
+      bucketStart =
+          previousBucketEnd == NO_BUCKET_YET
+              ? timestampMillis
+              : Math.min(previousBucketEnd + 1, timestampMillis);
+    }
+    bucketStats.add(timestampMillis, value);
+    addPoint(timestampMillis, value, dc);
+  }
+
+  /**
+   * Adds a point to this tier's min/max buffer, without touching {@link #bucketStats}. Points
+   * passed up from the tier below arrive this way, along with that tier's stats.
+   */
+  private void addPoint(long timestampMillis, double value, RecordingDataController dc) {
     seenThisPass++;
     if (value > valueOfMaxSeen) {
       valueOfMaxSeen = value;
@@ -105,7 +139,7 @@ public class ZoomRecorder {
 
   private void addReadingAtThisTier(RecordingDataController dc, long timestamp, double value) {
     dc.addScalarReading(trialId, sensorId, tier, timestamp, value);
-    getNextTierUp().addData(timestamp, value, dc);
+    getNextTierUp().addPoint(timestamp, value, dc);
   }
 
   private ZoomRecorder getNextTierUp() {
@@ -116,6 +150,15 @@ public class ZoomRecorder {
     return nextTierUp;
   }
 
+  /** Adds the stats of a bucket stored by the tier below to this tier's current bucket. */
+  private void addBucket(long start, ScalarStats stats) {
+    if (bucketStats.isEmpty()) {
+      // The tier below has already made this contiguous with our previous bucket.
+      bucketStart = start;
+    }
+    bucketStats.add(stats);
+  }
+
   public int countTiers() {
     if (nextTierUp == null) {
       // If we don't have a parent, then we haven't written anything at our level yet, so
@@ -136,6 +179,13 @@ public class ZoomRecorder {
 
   public void flush(RecordingDataController dc) {
     if (seenThisPass > 0) {
+      if (!bucketStats.isEmpty()) {
+        dc.addScalarStatsBucket(trialId, sensorId, tier, bucketStart, bucketStats);
+        previousBucketEnd = bucketStats.getLastTimestamp();
+        // Before passing up the points, in case they fill the next tier's buffer.
+        getNextTierUp().addBucket(bucketStart, bucketStats);
+      }
+
       // order of adding data to DB doesn't matter
       addReadingAtThisTier(dc, timestampOfMinSeen, valueOfMinSeen);
       addReadingAtThisTier(dc, timestampOfMaxSeen, valueOfMaxSeen);
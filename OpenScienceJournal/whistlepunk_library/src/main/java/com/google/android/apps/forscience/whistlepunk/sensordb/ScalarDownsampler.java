@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * Reduces a run of readings to what's needed to draw it as a line some number of pixels wide: for
+ * each pixel column, the first, last, smallest and largest reading in it (the "M4" aggregation). A
+ * line through just those points covers exactly the same pixels as a line through all of them.
+ *
+ * <p>Readings are consumed one at a time, in any order, and memory use only depends on the number
+ * of columns.
+ */
+class ScalarDownsampler implements StreamConsumer {
+  /**
+   * A zoom tier is only used if it has at least this many points per column, so that lines drawn
+   * from it are still nearly indistinguishable from lines drawn from the raw readings.
+   */
+  private static final int MIN_TIER_POINTS_PER_COLUMN = 4;
+
+  /** Once a tier has this many points per column, we try the next tier up. */
+  private static final int MAX_TIER_POINTS_PER_COLUMN = 16;
+
+  private final long startMillis;
+  private final long endMillis;
+  private final int columns;
+
+  private final int[] counts;
+  private final long[] firstTimestamps;
+  private final double[] firstValues;
+  private final long[] lastTimestamps;
+  private final double[] lastValues;
+  private final long[] minTimestamps;
+  private final double[] minValues;
+  private final long[] maxTimestamps;
+  private final double[] maxValues;
+
+  /** Divides [{@code startMillis}, {@code endMillis}] into {@code columns} equal columns. */
+  ScalarDownsampler(long startMillis, long endMillis, int columns) {
+    this.startMillis = startMillis;
+    this.endMillis = endMillis;
+    this.columns = Math.max(columns, 1);
+    counts = new int[this.columns];
+    firstTimestamps = new long[this.columns];
+    firstValues = new double[this.columns];
+    lastTimestamps = new long[this.columns];
+    lastValues = new double[this.columns];
+    minTimestamps = new long[this.columns];
+    minValues = new double[this.columns];
+    maxTimestamps = new long[this.columns];
+    maxValues = new double[this.columns];
+  }
+
+  @Override
+  public boolean addData(long timestampMillis, double value) {
+    if (timestampMillis < startMillis || timestampMillis > endMillis) {
+      return false;
+    }
+    int column = getColumn(timestampMillis);
+    if (counts[column]++ == 0) {
+      firstTimestamps[column] = lastTimestamps[column] = timestampMillis;
+      minTimestamps[column] = maxTimestamps[column] = timestampMillis;
+      firstValues[column] = lastValues[column] = value;
+      minValues[column] = maxValues[column] = value;
+      return true;
+    }
+    if (timestampMillis < firstTimestamps[column]) {
+      firstTimestamps[column] = timestampMillis;
+      firstValues[column] = value;
+    }
+    if (timestampMillis >= lastTimestamps[column]) {
+      lastTimestamps[column] = timestampMillis;
+      lastValues[column] = value;
+    }
+    if (value < minValues[column]) {
+      minTimestamps[column] = timestampMillis;
+      minValues[column] = value;
+    }
+    if (value > maxValues[column]) {
+      maxTimestamps[column] = timestampMillis;
+      maxValues[column] = value;
+    }
+    return true;
+  }
+
+  private int getColumn(long timestampMillis) {
+    // Done in double, since the product can overflow a long for very wide ranges.
+    double width = (double) endMillis - startMillis + 1;
+    double fraction = (timestampMillis - startMillis) / width;
+    return Math.min((int) (fraction * columns), columns - 1);
+  }
+
+  /** The kept readings, in time order. Readings kept for more than one reason appear once. */
+  SeriesRows getRows() {
+    SeriesRows rows = new SeriesRows(columns * 4);
+    long[] timestamps = new long[4];
+    double[] values = new double[4];
+    for (int column = 0; column < columns; column++) {
+      if (counts[column] == 0) {
+        continue;
+      }
+      timestamps[0] = firstTimestamps[column];
+      values[0] = firstValues[column];
+      timestamps[1] = minTimestamps[column];
+      values[1] = minValues[column];
+      timestamps[2] = maxTimestamps[column];
+      values[2] = maxValues[column];
+      timestamps[3] = lastTimestamps[column];
+      values[3] = lastValues[column];
+      // The first and last are already in place; only the min and max can be out of order.
+      if (timestamps[2] < timestamps[1]) {
+        swap(timestamps, values, 1, 2);
+      }
+      for (int i = 0; i < 4; i++) {
+        if (i > 0 && timestamps[i] == timestamps[i - 1] && values[i] == values[i - 1]) {
+          continue;
+        }
+        rows.add(timestamps[i], values[i]);
+      }
+    }
+    return rows;
+  }
+
+  private static void swap(long[] timestamps, double[] values, int i, int j) {
+    long t = timestamps[i];
+    timestamps[i] = timestamps[j];
+    timestamps[j] = t;
+    double v = values[i];
+    values[i] = values[j];
+    values[j] = v;
+  }
+
+  /**
+   * Shared implementation of {@link SensorDatabase#getDownsampledScalarReadings}.
+   *
+   * <p>Rather than always reading raw readings, this picks the coarsest zoom tier that still has
+   * enough points per column. Each probe reads a bounded number of rows, so the cost depends on the
+   * number of columns (and, weakly, the number of tiers) rather than on the length of the range.
+   */
+  static ScalarReadingList downsample(
+      SensorDatabase db, String trialId, String sensorTag, TimeRange range, int columns) {
+    columns = Math.max(columns, 1);
+    boolean newestFirst = range.getOrder() == TimeRange.ObservationOrder.NEWEST_FIRST;
+    Range<Long> times = getBoundedTimes(db, trialId, sensorTag, range.getTimes());
+    if (times == null) {
+      return new SeriesRows().asScalarReadingList(newestFirst);
+    }
+    TimeRange oldest = TimeRange.oldest(times);
+    int cap = columns * MAX_TIER_POINTS_PER_COLUMN;
+    ScalarReadingList source;
+    int tier = 0;
+    while (true) {
+      ScalarReadingList probe = db.getScalarReadings(trialId, sensorTag, oldest, tier, cap);
+      if (probe.size() >= cap) {
+        // Plenty of points here; see if the next tier up is enough.
+        tier++;
+        continue;
+      }
+      if (tier == 0 || probe.size() >= columns * MIN_TIER_POINTS_PER_COLUMN) {
+        // This probe returned every row in the range, so it can be used as is.
+        source = probe;
+      } else {
+        // Too sparse (or there's no such tier), so go back down to the tier that had too many.
+        source = db.getScalarReadings(trialId, sensorTag, oldest, tier - 1, 0);
+      }
+      break;
+    }
+    ScalarDownsampler downsampler =
+        new ScalarDownsampler(times.lowerEndpoint(), times.upperEndpoint(), columns);
+    source.deliver(downsampler);
+    return downsampler.getRows().asScalarReadingList(newestFirst);
+  }
+
+  /**
+   * Returns {@code times} as a closed range, replacing any missing bounds with the timestamps of
+   * the first or last reading in it. Returns null if there are no readings in it.
+   */
+  private static Range<Long> getBoundedTimes(
+      SensorDatabase db, String trialId, String sensorTag, Range<Long> times) {
+    if (times == null) {
+      times = Range.all();
+    }
+    long start;
+    long end;
+    if (times.hasLowerBound()) {
+      start = times.lowerEndpoint() + (times.lowerBoundType() == BoundType.OPEN ? 1 : 0);
+    } else {
+      Long first = getFirstTimestamp(db, trialId, sensorTag, TimeRange.oldest(times));
+      if (first == null) {
+        return null;
+      }
+      start = first;
+    }
+    if (times.hasUpperBound()) {
+      end = times.upperEndpoint() - (times.upperBoundType() == BoundType.OPEN ? 1 : 0);
+    } else {
+      Long last = getFirstTimestamp(db, trialId, sensorTag, TimeRange.newest(times));
+      if (last == null) {
+        return null;
+      }
+      end = last;
+    }
+    return start <= end ? Range.closed(start, end) : null;
+  }
+
+  /** The timestamp of the first reading in {@code range}'s order, or null if there are none. */
+  private static Long getFirstTimestamp(
+      SensorDatabase db, String trialId, String sensorTag, TimeRange range) {
+    final Long[] first = {null};
+    db.getScalarReadings(trialId, sensorTag, range, 0, 1)
+        .deliver(
+            (timestampMillis, value) -> {
+              if (first[0] == null) {
+                first[0] = timestampMillis;
+              }
+              return true;
+            });
+    return first[0];
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a ScalarSensorData proto to a stream as the rows are read, rather than building the whole
+ * message first.
+ *
+ * <p>Each sensor's rows are split into blocks of at most {@link #DEFAULT_ROWS_PER_BLOCK}, and each
+ * block is written as its own length-delimited ScalarSensorDataDump with the sensor's tag and trial
+ * id. Repeated fields can be split like this, so the output still parses as a single
+ * ScalarSensorData (with several dumps per sensor), and older versions of the app can read it.
+ * {@link com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader} reads it
+ * back a chunk of rows at a time, which it can do as the rows arrive because the tag and trial id
+ * are written before them.
+ */
+class ScalarSensorDataWriter {
+  static final int DEFAULT_ROWS_PER_BLOCK = 1000;
+
+  private final CodedOutputStream output;
+  private final int rowsPerBlock;
+
+  private ScalarSensorDataDump.Builder block = null;
+  private boolean sensorHasBlocks = false;
+
+  ScalarSensorDataWriter(OutputStream out) {
+    this(out, DEFAULT_ROWS_PER_BLOCK);
+  }
+
+  ScalarSensorDataWriter(OutputStream out, int rowsPerBlock) {
+    output = CodedOutputStream.newInstance(out);
+    this.rowsPerBlock = Math.max(rowsPerBlock, 1);
+  }
+
+  /** Ends the current sensor, if any; the following rows are for this one. */
+  void startSensor(String trialId, String sensorTag) throws IOException {
+    endSensor();
+    block = ScalarSensorDataDump.newBuilder().setTag(sensorTag).setTrialId(trialId);
+    sensorHasBlocks = false;
+  }
+
+  /** Adds a row to the current sensor, which must be in time order. */
+  void addRow(long timestampMillis, double value) throws IOException {
+    block.addRows(
+        ScalarSensorDataRow.newBuilder().setTimestampMillis(timestampMillis).setValue(value));
+    if (block.getRowsCount() >= rowsPerBlock) {
+      writeBlock();
+    }
+  }
+
+  /** Writes all the rows of {@code dump}, splitting them into blocks. */
+  void writeDump(ScalarSensorDataDump dump) throws IOException {
+    startSensor(dump.getTrialId(), dump.getTag());
+    for (ScalarSensorDataRow row : dump.getRowsList()) {
+      addRow(row.getTimestampMillis(), row.getValue());
+    }
+  }
+
+  /** Ends the current sensor and flushes everything to the underlying stream. */
+  void finish() throws IOException {
+    endSensor();
+    output.flush();
+  }
+
+  private void endSensor() throws IOException {
+    if (block == null) {
+      return;
+    }
+    // A sensor with no rows still gets a (rowless) dump, as it did when this was one message.
+    if (block.getRowsCount() > 0 || !sensorHasBlocks) {
+      writeBlock();
+    }
+    block = null;
+  }
+
+  private void writeBlock() throws IOException {
+    // Written field by field, so that the tag and trial id come before the rows, and a reader can
+    // pass each row on as soon as it's read. Fields can be in any order, so it's the same dump.
+    String tag = block.getTag();
+    String trialId = block.getTrialId();
+    int size =
+        CodedOutputStream.computeStringSize(ScalarSensorDataDump.TAG_FIELD_NUMBER, tag)
+            + CodedOutputStream.computeStringSize(
+                ScalarSensorDataDump.TRIALID_FIELD_NUMBER, trialId);
+    for (ScalarSensorDataRow row : block.getRowsList()) {
+      size += CodedOutputStream.computeMessageSize(ScalarSensorDataDump.ROWS_FIELD_NUMBER, row);
+    }
+    output.writeTag(ScalarSensorData.SENSORS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(size);
+    output.writeString(ScalarSensorDataDump.TAG_FIELD_NUMBER, tag);
+    output.writeString(ScalarSensorDataDump.TRIALID_FIELD_NUMBER, trialId);
+    for (ScalarSensorDataRow row : block.getRowsList()) {
+      output.writeMessage(ScalarSensorDataDump.ROWS_FIELD_NUMBER, row);
+    }
+    block.clearRows();
+    sensorHasBlocks = true;
+  }
+}
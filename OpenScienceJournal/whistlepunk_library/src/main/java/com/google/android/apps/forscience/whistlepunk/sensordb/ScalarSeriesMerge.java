@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import androidx.annotation.Nullable;
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import java.io.IOException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several sensors' series of readings, each already in time order, into one stream in time
+ * order. Shared implementation of {@link SensorDatabase#createScalarFlowable}.
+ */
+class ScalarSeriesMerge {
+  /** One sensor's readings, in the order they should be merged. */
+  interface Series {
+    boolean hasNext();
+
+    long peekTimestamp();
+
+    double peekValue();
+
+    void advance() throws IOException;
+  }
+
+  interface SeriesOpener {
+    /** Returns the readings for {@code sensorTag}, or null if there are none. */
+    @Nullable
+    Series open(String sensorTag) throws IOException;
+  }
+
+  /**
+   * Returns a Flowable of the merged readings. Each series is opened on subscription, and only
+   * advanced as far as downstream has requested, so a slow subscriber doesn't cause readings to
+   * pile up in memory.
+   *
+   * <p>Every reading of every series is emitted exactly once. Readings with equal timestamps are
+   * emitted in the order their tags appear in {@code sensorTags}.
+   *
+   * @param newestFirst whether the series (and so the output) are newest first, rather than oldest
+   *     first
+   */
+  static Flowable<ScalarReading> merge(
+      String[] sensorTags, boolean newestFirst, SeriesOpener opener) {
+    return Flowable.<ScalarReading, MergeState>generate(
+        () -> new MergeState(sensorTags, newestFirst, opener), MergeState::emitNext);
+  }
+
+  private static class Head {
+    final int index;
+    final String tag;
+    final Series series;
+
+    Head(int index, String tag, Series series) {
+      this.index = index;
+      this.tag = tag;
+      this.series = series;
+    }
+  }
+
+  private static class MergeState {
+    private final PriorityQueue<Head> heads;
+
+    MergeState(String[] sensorTags, boolean newestFirst, SeriesOpener opener) throws IOException {
+      heads =
+          new PriorityQueue<>(
+              Math.max(sensorTags.length, 1),
+              (a, b) -> {
+                long aTime = a.series.peekTimestamp();
+                long bTime = b.series.peekTimestamp();
+                int byTime = newestFirst ? Long.compare(bTime, aTime) : Long.compare(aTime, bTime);
+                return byTime != 0 ? byTime : Integer.compare(a.index, b.index);
+              });
+      for (int i = 0; i < sensorTags.length; i++) {
+        Series series = opener.open(sensorTags[i]);
+        if (series != null && series.hasNext()) {
+          heads.add(new Head(i, sensorTags[i], series));
+        }
+      }
+    }
+
+    /** Emits exactly one reading, or completes. */
+    void emitNext(Emitter<ScalarReading> emitter) throws IOException {
+      Head head = heads.poll();
+      if (head == null) {
+        emitter.onComplete();
+        return;
+      }
+      Series series = head.series;
+      emitter.onNext(new ScalarReading(series.peekTimestamp(), series.peekValue(), head.tag));
+      series.advance();
+      if (series.hasNext()) {
+        heads.add(head);
+      }
+    }
+  }
+}
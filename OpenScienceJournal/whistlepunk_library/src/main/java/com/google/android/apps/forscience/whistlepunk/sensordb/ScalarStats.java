@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+/**
+ * Count, sum, mean, sum of squared deviations from the mean, min and max of a set of scalar
+ * readings, plus the timestamps of the first and last of them. Stats for a long time range can be
+ * built by adding together stats for the pieces that make it up.
+ *
+ * <p>The squared deviations are accumulated with Welford's update and merged with Chan et al.'s
+ * parallel formula, rather than as a raw sum of squares. Sensors like the barometer read around
+ * 1e5 with much smaller variation, and subtracting two sums of squares that large would lose most
+ * of the variance to cancellation.
+ */
+public class ScalarStats {
+  private int count = 0;
+  private double sum = 0;
+  private double mean = 0;
+  private double sumOfSquaredDeviations = 0;
+  private double min = Double.MAX_VALUE;
+  private double max = -Double.MAX_VALUE;
+  private long firstTimestamp = Long.MAX_VALUE;
+  private long lastTimestamp = Long.MIN_VALUE;
+
+  public ScalarStats() {}
+
+  public ScalarStats(
+      int count,
+      double sum,
+      double sumOfSquaredDeviations,
+      double min,
+      double max,
+      long firstTimestamp,
+      long lastTimestamp) {
+    this.count = count;
+    this.sum = sum;
+    this.mean = count == 0 ? 0 : sum / count;
+    this.sumOfSquaredDeviations = sumOfSquaredDeviations;
+    this.min = min;
+    this.max = max;
+    this.firstTimestamp = firstTimestamp;
+    this.lastTimestamp = lastTimestamp;
+  }
+
+  public void add(long timestampMillis, double value) {
+    count++;
+    sum += value;
+    double delta = value - mean;
+    mean += delta / count;
+    sumOfSquaredDeviations += delta * (value - mean);
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+    if (timestampMillis < firstTimestamp) {
+      firstTimestamp = timestampMillis;
+    }
+    if (timestampMillis > lastTimestamp) {
+      lastTimestamp = timestampMillis;
+    }
+  }
+
+  /** Adds in the readings summarized by {@code other}, which must not overlap with ours. */
+  public void add(ScalarStats other) {
+    if (other.isEmpty()) {
+      return;
+    }
+    int total = count + other.count;
+    double delta = other.mean - mean;
+    sumOfSquaredDeviations +=
+        other.sumOfSquaredDeviations + delta * delta * ((double) count * other.count / total);
+    mean += delta * other.count / total;
+    count = total;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+    lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  /** Sum of the squared differences between each value and the mean. */
+  public double getSumOfSquaredDeviations() {
+    return sumOfSquaredDeviations;
+  }
+
+  /** Smallest value seen, or {@code Double.MAX_VALUE} if empty. */
+  public double getMin() {
+    return min;
+  }
+
+  /** Largest value seen, or {@code -Double.MAX_VALUE} if empty. */
+  public double getMax() {
+    return max;
+  }
+
+  /** Earliest timestamp seen, or {@code Long.MAX_VALUE} if empty. */
+  public long getFirstTimestamp() {
+    return firstTimestamp;
+  }
+
+  /** Latest timestamp seen, or {@code Long.MIN_VALUE} if empty. */
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  /** NaN if empty. */
+  public double getMean() {
+    return count == 0 ? Double.NaN : mean;
+  }
+
+  /** Population variance of the values; NaN if empty. */
+  public double getVariance() {
+    return sumOfSquaredDeviations / count;
+  }
+
+  /** Population standard deviation of the values; NaN if empty. */
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  @Override
+  public String toString() {
+    return "ScalarStats{"
+        + "count="
+        + count
+        + ", min="
+        + min
+        + ", max="
+        + max
+        + ", mean="
+        + getMean()
+        + ", first="
+        + firstTimestamp
+        + ", last="
+        + lastTimestamp
+        + '}';
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answers {@link SensorDatabase#getScalarStats} from the per-bucket stats stored alongside each
+ * zoom tier.
+ *
+ * <p>Each bucket at tier N summarizes a run of contiguous buckets at tier N-1 (tier 0 being the raw
+ * readings). We take the biggest buckets that fit entirely inside the requested range, then fill
+ * in whatever they don't cover using the tier below, and so on down to the raw readings, which are
+ * only scanned at the ragged edges. The cost is roughly (buckets per tier * number of tiers)
+ * instead of the number of readings in the range.
+ */
+class ScalarStatsQuery {
+  /** How many raw readings to load at a time when scanning the edges of the range. */
+  private static final int PAGE_SIZE = 1000;
+
+  /** A stored bucket: its stats, and the start of the time span it covers. */
+  static class Bucket {
+    /**
+     * Where this bucket's span begins. This is just after the end of the previous bucket at the
+     * same tier (or at the first reading, for the first bucket), so that consecutive buckets
+     * leave no gaps. The span ends at the last reading in the bucket.
+     */
+    final long startMillis;
+
+    final ScalarStats stats;
+
+    Bucket(long startMillis, ScalarStats stats) {
+      this.startMillis = startMillis;
+      this.stats = stats;
+    }
+
+    long getEndMillis() {
+      return stats.getLastTimestamp();
+    }
+  }
+
+  interface BucketSource {
+    /** The highest tier with buckets stored for this series, or 0 if there are none. */
+    int getTopStatsTier(String trialId, String sensorTag);
+
+    /**
+     * Buckets at {@code resolutionTier} whose spans lie entirely within [{@code startMillis},
+     * {@code endMillis}], ordered by start.
+     */
+    List<Bucket> getStatsBuckets(
+        String trialId, String sensorTag, int resolutionTier, long startMillis, long endMillis);
+  }
+
+  static final BucketSource NO_BUCKETS =
+      new BucketSource() {
+        @Override
+        public int getTopStatsTier(String trialId, String sensorTag) {
+          return 0;
+        }
+
+        @Override
+        public List<Bucket> getStatsBuckets(
+            String trialId,
+            String sensorTag,
+            int resolutionTier,
+            long startMillis,
+            long endMillis) {
+          return Collections.emptyList();
+        }
+      };
+
+  private final SensorDatabase db;
+  private final BucketSource buckets;
+  private final String trialId;
+  private final String sensorTag;
+
+  ScalarStatsQuery(SensorDatabase db, BucketSource buckets, String trialId, String sensorTag) {
+    this.db = db;
+    this.buckets = buckets;
+    this.trialId = trialId;
+    this.sensorTag = sensorTag;
+  }
+
+  ScalarStats getStats(TimeRange range) {
+    Range<Long> times = range == null ? null : range.getTimes();
+    ScalarStats result = new ScalarStats();
+    addStats(
+        buckets.getTopStatsTier(trialId, sensorTag),
+        getClosedStart(times),
+        getClosedEnd(times),
+        result);
+    return result;
+  }
+
+  private void addStats(int tier, long startMillis, long endMillis, ScalarStats result) {
+    if (startMillis > endMillis) {
+      return;
+    }
+    if (tier <= 0) {
+      addReadings(startMillis, endMillis, result);
+      return;
+    }
+    long uncoveredStart = startMillis;
+    for (Bucket bucket :
+        buckets.getStatsBuckets(trialId, sensorTag, tier, startMillis, endMillis)) {
+      if (bucket.startMillis > uncoveredStart) {
+        addStats(tier - 1, uncoveredStart, bucket.startMillis - 1, result);
+      }
+      result.add(bucket.stats);
+      uncoveredStart = bucket.getEndMillis() + 1;
+    }
+    if (uncoveredStart != Long.MIN_VALUE) {
+      // (MIN_VALUE here means the last bucket ended at MAX_VALUE, so there's nothing left.)
+      addStats(tier - 1, uncoveredStart, endMillis, result);
+    }
+  }
+
+  private void addReadings(long startMillis, long endMillis, final ScalarStats result) {
+    Range<Long> times = Range.closed(startMillis, endMillis);
+    while (true) {
+      ScalarReadingList page =
+          db.getScalarReadings(trialId, sensorTag, TimeRange.oldest(times), 0, PAGE_SIZE);
+      final long[] lastTimestamp = {startMillis};
+      page.deliver(
+          (timestampMillis, value) -> {
+            result.add(timestampMillis, value);
+            lastTimestamp[0] = timestampMillis;
+            return true;
+          });
+      if (page.size() < PAGE_SIZE || lastTimestamp[0] >= endMillis) {
+        return;
+      }
+      times = Range.openClosed(lastTimestamp[0], endMillis);
+    }
+  }
+
+  private static long getClosedStart(Range<Long> times) {
+    if (times == null || !times.hasLowerBound()) {
+      return Long.MIN_VALUE;
+    }
+    long start = times.lowerEndpoint();
+    return times.lowerBoundType() == BoundType.CLOSED ? start : start + 1;
+  }
+
+  private static long getClosedEnd(Range<Long> times) {
+    if (times == null || !times.hasUpperBound()) {
+      return Long.MAX_VALUE;
+    }
+    long end = times.upperEndpoint();
+    return times.upperBoundType() == BoundType.CLOSED ? end : end - 1;
+  }
+}
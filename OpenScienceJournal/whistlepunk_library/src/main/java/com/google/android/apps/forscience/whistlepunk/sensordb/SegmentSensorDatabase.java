@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.util.Base64;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link SensorDatabase} that keeps each (trial, sensor, tier) series in its own append-only file
+ * of delta-encoded, compressed blocks (see {@link SeriesSegmentFile}), instead of one SQLite table
+ * shared by every reading.
+ *
+ * <p>Reads for one trial and sensor only ever open that series' file, and within the file only
+ * inflate the blocks whose time span overlaps the requested range.
+ *
+ * <p>Like {@link SensorDatabaseImpl}, all access should be from a single background thread.
+ */
+public class SegmentSensorDatabase implements SensorDatabase {
+  private static final String TAG = "SegmentSensorDatabase";
+  private static final String SERIES_SUFFIX = ".seg";
+  private static final String MIGRATED_MARKER = "migrated_from_sqlite";
+  private static final String DEFAULT_TRIAL_ID = "0";
+  private static final int MIGRATION_BATCH_SIZE = 10000;
+  private static final int NAME_ENCODING = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // An empty id would make a file name ambiguous, so it is written as a marker that can't be the
+  // output of the encoder.
+  private static final String EMPTY_NAME = "_";
+
+  private final File directory;
+  @Nullable private SensorDatabaseImpl migrateFrom;
+  private final Map<String, SeriesSegmentFile> openSeries = new HashMap<>();
+
+  /**
+   * @param directory where series files are kept. Created if needed.
+   * @param migrateFrom if non-null, and this store has not already done so, copy every reading
+   *     from this database the first time the store is used.
+   */
+  public SegmentSensorDatabase(File directory, @Nullable SensorDatabaseImpl migrateFrom) {
+    this.directory = directory;
+    this.migrateFrom = migrateFrom;
+  }
+
+  private void ensureReady() {
+    if (migrateFrom == null) {
+      return;
+    }
+    SensorDatabaseImpl source = migrateFrom;
+    migrateFrom = null;
+    File marker = new File(directory, MIGRATED_MARKER);
+    if (marker.exists()) {
+      return;
+    }
+    directory.mkdirs();
+    // Anything left over from an interrupted migration would be duplicated; start fresh.
+    for (File file : listSeriesFiles()) {
+      file.delete();
+    }
+    openSeries.clear();
+    source.copyAllReadingsTo(this, MIGRATION_BATCH_SIZE);
+    try {
+      if (!marker.createNewFile()) {
+        Log.w(TAG, "Migration marker already existed");
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not record migration", e);
+    }
+  }
+
+  @Override
+  public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+    ensureReady();
+    Map<String, SeriesRows> bySeries = new LinkedHashMap<>();
+    for (BatchInsertScalarReading r : readings) {
+      String name = seriesFileName(r.trialId, r.sensorId, r.resolutionTier);
+      SeriesRows rows = bySeries.get(name);
+      if (rows == null) {
+        rows = new SeriesRows();
+        bySeries.put(name, rows);
+      }
+      rows.add(r.timestampMillis, r.value);
+    }
+    for (Map.Entry<String, SeriesRows> entry : bySeries.entrySet()) {
+      SeriesRows rows = entry.getValue();
+      rows.sort();
+      try {
+        getSeries(entry.getKey()).append(rows);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not write " + entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Appends a single reading. Since each call is persisted before returning, prefer {@link
+   * #addScalarReadings} (for example through a {@link
+   * com.google.android.apps.forscience.whistlepunk.ScalarReadingWriteQueue}) for live data.
+   */
+  @Override
+  public void addScalarReading(
+      String trialId, String sensorTag, int resolutionTier, long timestampMillis, double value) {
+    ensureReady();
+    SeriesRows rows = new SeriesRows(1);
+    rows.add(timestampMillis, value);
+    String name = seriesFileName(trialId, sensorTag, resolutionTier);
+    try {
+      getSeries(name).append(rows);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + name, e);
+    }
+  }
+
+  @Override
+  public ScalarReadingList getScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords) {
+    ensureReady();
+    SeriesRows rows = readRows(trialId, sensorTag, range, resolutionTier, maxRecords);
+    if (rows.isEmpty()) {
+      // Nothing under the trial id; this may be a trial recorded before trial ids were stored.
+      rows = readRows(DEFAULT_TRIAL_ID, sensorTag, range, resolutionTier, maxRecords);
+    }
+    return rows.asScalarReadingList(isNewestFirst(range));
+  }
+
+  private SeriesRows readRows(
+      String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords) {
+    String name = seriesFileName(Preconditions.checkNotNull(trialId), sensorTag, resolutionTier);
+    SeriesSegmentFile series = getSeries(name);
+    if (!series.exists()) {
+      return new SeriesRows(1);
+    }
+    Range<Long> times = getTimes(range);
+    boolean newestFirst = isNewestFirst(range);
+    try {
+      List<SeriesSegmentFile.Block> blocks = series.getBlocksByStartTime();
+      if (newestFirst) {
+        // Visit the blocks that end latest first.
+        Collections.sort(blocks, (a, b) -> Long.compare(b.maxTimestamp, a.maxTimestamp));
+      }
+      SeriesRows result = new SeriesRows();
+      for (SeriesSegmentFile.Block block : blocks) {
+        if (!SeriesRows.overlaps(times, block.minTimestamp, block.maxTimestamp)) {
+          continue;
+        }
+        if (maxRecords > 0 && result.size() >= maxRecords) {
+          // We already have enough rows; only keep reading if this block could displace some.
+          if (newestFirst
+              ? block.maxTimestamp < result.getFirstTimestamp()
+              : block.minTimestamp > result.getLastTimestamp()) {
+            break;
+          }
+        }
+        SeriesRows rows = series.readBlock(block);
+        if (!SeriesRows.encloses(times, block.minTimestamp, block.maxTimestamp)) {
+          rows = rows.filter(times);
+        }
+        result.mergeFrom(rows);
+        if (maxRecords > 0) {
+          if (newestFirst) {
+            result.keepLast(maxRecords);
+          } else {
+            result.keepFirst(maxRecords);
+          }
+        }
+      }
+      return result;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read " + name, e);
+    }
+  }
+
+  @Override
+  public ScalarReadingList getDownsampledScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int targetPixels) {
+    return ScalarDownsampler.downsample(this, trialId, sensorTag, range, targetPixels);
+  }
+
+  // Buckets aren't kept by this store yet, so stats are always computed by scanning the readings.
+  // Each series file only inflates the blocks that overlap the range, which keeps this tolerable.
+  @Override
+  public void addScalarStatsBucket(
+      String trialId,
+      String sensorTag,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats) {}
+
+  @Override
+  public ScalarStats getScalarStats(String trialId, String sensorTag, TimeRange range) {
+    return new ScalarStatsQuery(this, ScalarStatsQuery.NO_BUCKETS, trialId, sensorTag)
+        .getStats(range);
+  }
+
+  @Override
+  public String getFirstDatabaseTagAfter(long timestamp) {
+    ensureReady();
+    String bestTag = null;
+    long bestTimestamp = Long.MAX_VALUE;
+    Range<Long> after = Range.greaterThan(timestamp);
+    for (File file : listSeriesFiles()) {
+      SeriesSegmentFile series = getSeries(file.getName());
+      try {
+        for (SeriesSegmentFile.Block block : series.getBlocks()) {
+          if (block.maxTimestamp <= timestamp || block.minTimestamp >= bestTimestamp) {
+            continue;
+          }
+          SeriesRows rows = series.readBlock(block).filter(after);
+          if (!rows.isEmpty() && rows.getFirstTimestamp() < bestTimestamp) {
+            bestTimestamp = rows.getFirstTimestamp();
+            bestTag = parseSensorTag(file.getName());
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + file, e);
+      }
+    }
+    return bestTag;
+  }
+
+  @Override
+  public void deleteScalarReadings(String trialId, String sensorTag, TimeRange range) {
+    ensureReady();
+    Range<Long> times = getTimes(range);
+    String prefix = seriesFileNamePrefix(trialId, sensorTag);
+    for (File file : listSeriesFiles()) {
+      if (!file.getName().startsWith(prefix)) {
+        continue;
+      }
+      try {
+        getSeries(file.getName()).delete(times);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not delete from " + file, e);
+      }
+    }
+  }
+
+  @Override
+  public Observable<ScalarReading> createScalarObservable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+    return createScalarFlowable(trialId, sensorTags, range, resolutionTier).toObservable();
+  }
+
+  @Override
+  public Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+    // Series files are only walked oldest first, as before.
+    return ScalarSeriesMerge.merge(
+        sensorTags,
+        false,
+        tag -> {
+          ensureReady();
+          SeriesSegmentFile series = getSeries(seriesFileName(trialId, tag, resolutionTier));
+          return series.exists() ? new SeriesCursor(series, getTimes(range)) : null;
+        });
+  }
+
+  /**
+   * Walks one series in time order, inflating a block only when the rows already loaded could no
+   * longer be ahead of it.
+   */
+  private static class SeriesCursor implements ScalarSeriesMerge.Series {
+    private final SeriesSegmentFile series;
+    private final Range<Long> times;
+    private final List<SeriesSegmentFile.Block> blocks = new ArrayList<>();
+    private int nextBlock = 0;
+    private SeriesRows loaded = new SeriesRows(1);
+    private int position = 0;
+
+    SeriesCursor(SeriesSegmentFile series, Range<Long> times) throws IOException {
+      this.series = series;
+      this.times = times;
+      for (SeriesSegmentFile.Block block : series.getBlocksByStartTime()) {
+        if (SeriesRows.overlaps(times, block.minTimestamp, block.maxTimestamp)) {
+          blocks.add(block);
+        }
+      }
+      fill();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < loaded.size();
+    }
+
+    @Override
+    public long peekTimestamp() {
+      return loaded.getTimestamp(position);
+    }
+
+    @Override
+    public double peekValue() {
+      return loaded.getValue(position);
+    }
+
+    @Override
+    public void advance() throws IOException {
+      position++;
+      fill();
+    }
+
+    private void fill() throws IOException {
+      while (nextBlock < blocks.size()
+          && (!hasNext() || blocks.get(nextBlock).minTimestamp <= peekTimestamp())) {
+        loaded.dropFirst(position);
+        position = 0;
+        SeriesSegmentFile.Block block = blocks.get(nextBlock++);
+        loaded.mergeFrom(series.readBlock(block).filter(times));
+      }
+    }
+  }
+
+  @Override
+  public GoosciScalarSensorData.ScalarSensorData getScalarReadingProtos(
+      GoosciExperiment.Experiment experiment) {
+    return GoosciScalarSensorData.ScalarSensorData.newBuilder()
+        .addAllSensors(getScalarReadingProtosAsList(experiment))
+        .build();
+  }
+
+  @Override
+  public List<ScalarSensorDataDump> getScalarReadingProtosAsList(
+      GoosciExperiment.Experiment experiment) {
+    return getDumps(experiment, null);
+  }
+
+  @Override
+  public GoosciScalarSensorData.ScalarSensorData getScalarReadingProtosForTrial(
+      GoosciExperiment.Experiment experiment, String trialId) {
+    return GoosciScalarSensorData.ScalarSensorData.newBuilder()
+        .addAllSensors(getDumps(experiment, trialId))
+        .build();
+  }
+
+  private List<ScalarSensorDataDump> getDumps(
+      GoosciExperiment.Experiment experiment, @Nullable String onlyTrialId) {
+    ensureReady();
+    List<ScalarSensorDataDump> sensorDataList = new ArrayList<>();
+    for (GoosciTrial.Trial trial : experiment.getTrialsList()) {
+      if (onlyTrialId != null && !trial.getTrialId().equals(onlyTrialId)) {
+        continue;
+      }
+      GoosciTrial.Range range = trial.getRecordingRange();
+      // This protects against corrupted trials with invalid range end times.
+      if (range.getEndMs() > range.getStartMs()) {
+        TimeRange timeRange = TimeRange.oldest(Range.closed(range.getStartMs(), range.getEndMs()));
+        for (GoosciSensorLayout.SensorLayout sensor : trial.getSensorLayoutsList()) {
+          String tag = sensor.getSensorId();
+          SeriesRows rows = readRows(trial.getTrialId(), tag, timeRange, 0, 0);
+          if (rows.isEmpty()) {
+            rows = readRows(DEFAULT_TRIAL_ID, tag, timeRange, 0, 0);
+          }
+          ScalarSensorDataDump.Builder dump =
+              ScalarSensorDataDump.newBuilder().setTag(tag).setTrialId(trial.getTrialId());
+          for (int i = 0; i < rows.size(); i++) {
+            dump.addRows(
+                ScalarSensorDataRow.newBuilder()
+                    .setTimestampMillis(rows.getTimestamp(i))
+                    .setValue(rows.getValue(i))
+                    .build());
+          }
+          sensorDataList.add(dump.build());
+        }
+      }
+    }
+    return sensorDataList;
+  }
+
+  @Override
+  public void writeScalarReadingProtos(
+      GoosciExperiment.Experiment experiment, @Nullable String trialId, OutputStream out)
+      throws IOException {
+    ensureReady();
+    ScalarSensorDataWriter writer = new ScalarSensorDataWriter(out);
+    for (GoosciTrial.Trial trial : experiment.getTrialsList()) {
+      if (trialId != null && !trial.getTrialId().equals(trialId)) {
+        continue;
+      }
+      GoosciTrial.Range range = trial.getRecordingRange();
+      // This protects against corrupted trials with invalid range end times.
+      if (range.getEndMs() > range.getStartMs()) {
+        TimeRange timeRange = TimeRange.oldest(Range.closed(range.getStartMs(), range.getEndMs()));
+        for (GoosciSensorLayout.SensorLayout sensor : trial.getSensorLayoutsList()) {
+          String tag = sensor.getSensorId();
+          // The rows are already packed into primitive arrays, so only the blocks written from
+          // them are bounded.
+          SeriesRows rows = readRows(trial.getTrialId(), tag, timeRange, 0, 0);
+          if (rows.isEmpty()) {
+            rows = readRows(DEFAULT_TRIAL_ID, tag, timeRange, 0, 0);
+          }
+          writer.startSensor(trial.getTrialId(), tag);
+          for (int i = 0; i < rows.size(); i++) {
+            writer.addRow(rows.getTimestamp(i), rows.getValue(i));
+          }
+        }
+      }
+    }
+    writer.finish();
+  }
+
+  /** Total bytes used by the series files; used to compare against the SQLite footprint. */
+  @VisibleForTesting
+  public long getDiskFootprintBytes() {
+    ensureReady();
+    long total = 0;
+    for (File file : listSeriesFiles()) {
+      total += file.length();
+    }
+    return total;
+  }
+
+  private SeriesSegmentFile getSeries(String fileName) {
+    SeriesSegmentFile series = openSeries.get(fileName);
+    if (series == null) {
+      series = new SeriesSegmentFile(new File(directory, fileName));
+      openSeries.put(fileName, series);
+    }
+    return series;
+  }
+
+  private List<File> listSeriesFiles() {
+    List<File> result = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(SERIES_SUFFIX)) {
+          result.add(file);
+        }
+      }
+    }
+    return result;
+  }
+
+  // Series files are named <trialId>.<tag>.<tier>.seg, with the ids base64-encoded so that any
+  // characters (such as the colons in BLE addresses) are safe in a file name.
+  private static String seriesFileNamePrefix(String trialId, String sensorTag) {
+    return encodeName(trialId) + "." + encodeName(sensorTag) + ".";
+  }
+
+  private static String seriesFileName(String trialId, String sensorTag, int resolutionTier) {
+    return seriesFileNamePrefix(trialId, sensorTag) + resolutionTier + SERIES_SUFFIX;
+  }
+
+  private static String parseSensorTag(String fileName) {
+    return decodeName(fileName.split("\\.")[1]);
+  }
+
+  private static String encodeName(String id) {
+    if (id.isEmpty()) {
+      return EMPTY_NAME;
+    }
+    return Base64.encodeToString(id.getBytes(UTF_8), NAME_ENCODING);
+  }
+
+  private static String decodeName(String encoded) {
+    if (encoded.equals(EMPTY_NAME)) {
+      return "";
+    }
+    return new String(Base64.decode(encoded, NAME_ENCODING), UTF_8);
+  }
+
+  private static Range<Long> getTimes(TimeRange range) {
+    return range.getTimes() == null ? Range.<Long>all() : range.getTimes();
+  }
+
+  private static boolean isNewestFirst(TimeRange range) {
+    return range.getOrder().equals(TimeRange.ObservationOrder.NEWEST_FIRST);
+  }
+}
@@ -20,12 +20,18 @@ import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import androidx.annotation.Nullable;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
  * Stores and retrieves sensor data from on-device storage. All access should be be from a single
- * background thread; all calls are blocking, and do not perform internal synchronization.
+ * background thread; all calls are blocking, and do not perform internal synchronization. The
+ * exception is {@link SensorDatabaseImpl}, which can be read from other threads while it's being
+ * written; see {@link com.google.android.apps.forscience.whistlepunk.SensorDataScheduler}.
  */
 public interface SensorDatabase {
 
@@ -55,6 +61,41 @@ public interface SensorDatabase {
   ScalarReadingList getScalarReadings(
       String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords);
 
+  /**
+   * Get the readings needed to draw {@code range} as a line {@code targetPixels} wide: for each
+   * pixel column, the first, last, smallest and largest reading in it. At most 4 * {@code
+   * targetPixels} readings are returned, however many are stored in the range.
+   *
+   * <p>When a zoom tier still has several points per column, that tier is read instead of the raw
+   * readings, so the cost doesn't grow with the length of the range either.
+   */
+  ScalarReadingList getDownsampledScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int targetPixels);
+
+  /**
+   * Store stats for one bucket of raw (tier 0) readings: the run of readings that a zoom tier
+   * summarized with a single min/max pair of points.
+   *
+   * @param resolutionTier the tier at which the bucket's min/max points were written. A bucket at
+   *     tier N must be the union of consecutive buckets at tier N-1.
+   * @param bucketStartMillis the start of the time span the bucket covers, which ends at {@code
+   *     stats}' last timestamp. This can be earlier than the bucket's first reading, so that
+   *     consecutive buckets at a tier leave no gaps between them.
+   */
+  void addScalarStatsBucket(
+      String trialId,
+      String sensorTag,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats);
+
+  /**
+   * Get stats for the raw (tier 0) readings with this tag in {@code range}. Uses the buckets stored
+   * with {@link #addScalarStatsBucket} where possible, so is much cheaper than reading all of the
+   * points back.
+   */
+  ScalarStats getScalarStats(String trialId, String sensorTag, TimeRange range);
+
   /**
    * Find the first sensor reading after {@code timestamp}. Return the database tag that represents
    * the sensor corresponding to the reading. This is likely to only be of value as long as we're
@@ -68,6 +109,15 @@ public interface SensorDatabase {
   Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorTags, TimeRange range, int resolutionTier);
 
+  /**
+   * Returns the readings of all of {@code sensorTags} in {@code range}, merged into one stream in
+   * the order {@code range} asks for. Every reading is emitted exactly once, even when several
+   * share a timestamp; readings at the same timestamp from different sensors come in the order of
+   * {@code sensorTags}. Readings are only read from storage as they are requested downstream.
+   */
+  Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier);
+
   /**
    * Get a proto that contains all of the sensor data for the given experiment. Primarily used for
    * exporting experiments from the app.
@@ -87,4 +137,15 @@ public interface SensorDatabase {
    */
   GoosciScalarSensorData.ScalarSensorData getScalarReadingProtosForTrial(
       GoosciExperiment.Experiment experiment, String trialId);
+
+  /**
+   * Write a ScalarSensorData proto with the sensor data for the given trial (or for every trial in
+   * the experiment, if {@code trialId} is null) to {@code out}, a block of rows at a time as they
+   * are read, so that memory use doesn't depend on the length of the trials. The output parses as
+   * the same proto as {@link #getScalarReadingProtos}, except that each sensor's rows may be split
+   * over several ScalarSensorDataDumps.
+   */
+  void writeScalarReadingProtos(
+      GoosciExperiment.Experiment experiment, @Nullable String trialId, OutputStream out)
+      throws IOException;
 }
@@ -19,8 +19,13 @@ package com.google.android.apps.forscience.whistlepunk.sensordb;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.util.Pair;
 import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
@@ -38,11 +43,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.BoundType;
 import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.ObservableOnSubscribe;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SensorDatabaseImpl implements SensorDatabase {
   private static class DbVersions {
@@ -50,12 +58,14 @@ public class SensorDatabaseImpl implements SensorDatabase {
     public static final int V2_INDEX = 2;
     public static final int V3_TIER = 3;
     public static final int V4_TRIALID = 4;
-    public static final int CURRENT = V4_TRIALID;
+    public static final int V5_SERIES_INDEX = 5;
+    public static final int V6_SCALAR_STATS = 6;
+    public static final int CURRENT = V6_SCALAR_STATS;
   }
 
+  /** The V4 and earlier table, which stored the tag and trial id strings on every row. */
   private static class ScalarSensorsTable {
     public static final String NAME = "scalar_sensors";
-    public static final String DEFAULT_TRIAL_ID = "0";
 
     public static class Column {
       public static final String TAG = "tag";
@@ -65,36 +75,259 @@ public class SensorDatabaseImpl implements SensorDatabase {
       public static final String TRIAL_ID = "trialId";
     }
 
+    public static final String INDEX_SQL =
+        "CREATE INDEX timestamp ON " + NAME + "(" + Column.TIMESTAMP_MILLIS + ");";
+  }
+
+  /**
+   * Readings from V5 on. Tags and trial ids are interned into {@link #TAGS} and {@link #TRIALS},
+   * and every read is a range scan of a single (trial, tag, tier) series in {@link #INDEX_SQL}.
+   */
+  private static class ScalarReadingsTable {
+    public static final String NAME = "scalar_readings";
+    public static final String DEFAULT_TRIAL_ID = "0";
+
+    public static class Column {
+      public static final String TRIAL_KEY = "trialKey";
+      public static final String TAG_KEY = "tagKey";
+      public static final String RESOLUTION_TIER = "resolutionTier";
+      public static final String TIMESTAMP_MILLIS = "timestampMillis";
+      public static final String VALUE = "value";
+    }
+
     public static final String CREATION_SQL =
         "CREATE TABLE "
             + NAME
             + " ("
-            + Column.TAG
-            + " "
-            + " TEXT, "
+            + Column.TRIAL_KEY
+            + " INTEGER NOT NULL, "
+            + Column.TAG_KEY
+            + " INTEGER NOT NULL, "
+            + Column.RESOLUTION_TIER
+            + " INTEGER NOT NULL DEFAULT 0, "
             + Column.TIMESTAMP_MILLIS
-            + " INTEGER, "
+            + " INTEGER NOT NULL, "
             + Column.VALUE
-            + " REAL, "
+            + " REAL);";
+
+    // Includes the value so that reads are answered from the index alone.
+    public static final String INDEX_SQL =
+        "CREATE INDEX "
+            + NAME
+            + "_series ON "
+            + NAME
+            + "("
+            + Column.TRIAL_KEY
+            + ", "
+            + Column.TAG_KEY
+            + ", "
             + Column.RESOLUTION_TIER
-            + " INTEGER DEFAULT 0, "
-            + Column.TRIAL_ID
-            + " TEXT DEFAULT 0 NOT NULL);";
+            + ", "
+            + Column.TIMESTAMP_MILLIS
+            + ", "
+            + Column.VALUE
+            + ");";
+
+    public static final String INSERT_SQL =
+        "INSERT INTO "
+            + NAME
+            + " ("
+            + Column.TRIAL_KEY
+            + ", "
+            + Column.TAG_KEY
+            + ", "
+            + Column.TIMESTAMP_MILLIS
+            + ", "
+            + Column.VALUE
+            + ", "
+            + Column.RESOLUTION_TIER
+            + ") VALUES (?, ?, ?, ?, ?);";
+  }
+
+  /**
+   * From V6 on, stats for each bucket of readings that a zoom tier summarized. See {@link
+   * SensorDatabase#addScalarStatsBucket}.
+   */
+  private static class ScalarStatsTable {
+    public static final String NAME = "scalar_stats";
+
+    public static class Column {
+      public static final String TRIAL_KEY = "trialKey";
+      public static final String TAG_KEY = "tagKey";
+      public static final String RESOLUTION_TIER = "resolutionTier";
+      public static final String START_MILLIS = "startMillis";
+      public static final String FIRST_TIMESTAMP_MILLIS = "firstTimestampMillis";
+      public static final String LAST_TIMESTAMP_MILLIS = "lastTimestampMillis";
+      public static final String COUNT = "readingCount";
+      public static final String SUM = "valueSum";
+      public static final String SUM_OF_SQUARED_DEVIATIONS = "valueSumOfSquaredDeviations";
+      public static final String MIN = "minValue";
+      public static final String MAX = "maxValue";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_KEY
+            + " INTEGER NOT NULL, "
+            + Column.TAG_KEY
+            + " INTEGER NOT NULL, "
+            + Column.RESOLUTION_TIER
+            + " INTEGER NOT NULL, "
+            + Column.START_MILLIS
+            + " INTEGER NOT NULL, "
+            + Column.FIRST_TIMESTAMP_MILLIS
+            + " INTEGER NOT NULL, "
+            + Column.LAST_TIMESTAMP_MILLIS
+            + " INTEGER NOT NULL, "
+            + Column.COUNT
+            + " INTEGER NOT NULL, "
+            + Column.SUM
+            + " REAL, "
+            + Column.SUM_OF_SQUARED_DEVIATIONS
+            + " REAL, "
+            + Column.MIN
+            + " REAL, "
+            + Column.MAX
+            + " REAL);";
 
     public static final String INDEX_SQL =
-        "CREATE INDEX timestamp ON " + NAME + "(" + Column.TIMESTAMP_MILLIS + ");";
+        "CREATE INDEX "
+            + NAME
+            + "_series ON "
+            + NAME
+            + "("
+            + Column.TRIAL_KEY
+            + ", "
+            + Column.TAG_KEY
+            + ", "
+            + Column.RESOLUTION_TIER
+            + ", "
+            + Column.START_MILLIS
+            + ");";
+  }
+
+  /**
+   * A two-column table that assigns each distinct string a small integer id. Entries are never
+   * removed, so ids can be cached for the life of the process.
+   */
+  private static class DictionaryTable {
+    public static final String ID = "_id";
+
+    public final String name;
+    public final String valueColumn;
+    private final Map<String, Long> idsByValue = new ConcurrentHashMap<>();
+    private final Map<Long, String> valuesById = new ConcurrentHashMap<>();
+
+    DictionaryTable(String name, String valueColumn) {
+      this.name = name;
+      this.valueColumn = valueColumn;
+    }
+
+    String getCreationSql() {
+      return "CREATE TABLE "
+          + name
+          + " ("
+          + ID
+          + " INTEGER PRIMARY KEY, "
+          + valueColumn
+          + " TEXT NOT NULL UNIQUE);";
+    }
+
+    /** Returns the id for {@code value}, or -1 (which matches no rows) if it was never stored. */
+    long lookup(SQLiteDatabase db, String value) {
+      Long cached = idsByValue.get(value);
+      if (cached != null) {
+        return cached;
+      }
+      try (Cursor cursor =
+          db.query(
+              name,
+              new String[] {ID},
+              valueColumn + " = ?",
+              new String[] {value},
+              null,
+              null,
+              null)) {
+        if (!cursor.moveToNext()) {
+          return -1;
+        }
+        long id = cursor.getLong(0);
+        remember(value, id);
+        return id;
+      }
+    }
+
+    /** Returns the id for {@code value}, adding it to the table if needed. */
+    long intern(SQLiteDatabase db, String value) {
+      long id = lookup(db, value);
+      if (id >= 0) {
+        return id;
+      }
+      SQLiteStatement insert =
+          db.compileStatement(
+              "INSERT OR IGNORE INTO " + name + " (" + valueColumn + ") VALUES (?)");
+      try {
+        insert.bindString(1, value);
+        insert.executeInsert();
+      } finally {
+        insert.close();
+      }
+      return lookup(db, value);
+    }
+
+    String getValue(SQLiteDatabase db, long id) {
+      String cached = valuesById.get(id);
+      if (cached != null) {
+        return cached;
+      }
+      try (Cursor cursor =
+          db.query(
+              name,
+              new String[] {valueColumn},
+              ID + " = ?",
+              new String[] {String.valueOf(id)},
+              null,
+              null,
+              null)) {
+        if (!cursor.moveToNext()) {
+          return null;
+        }
+        String value = cursor.getString(0);
+        remember(value, id);
+        return value;
+      }
+    }
+
+    private void remember(String value, long id) {
+      idsByValue.put(value, id);
+      valuesById.put(id, value);
+    }
   }
 
+  private static final String TAG = "SensorDatabaseImpl";
+
+  /** Readings read at a time from each sensor by {@link #createScalarFlowable}. */
+  private static final int SERIES_PAGE_SIZE = 500;
+
+  private final DictionaryTable tags = new DictionaryTable("sensor_tags", "tag");
+  private final DictionaryTable trials = new DictionaryTable("trial_ids", "trialId");
+
   private final SQLiteOpenHelper openHelper;
 
+  // Compiled once and reused for every insert. Only touched from the thread that writes.
+  private SQLiteStatement insertStatement;
+  private SQLiteDatabase insertStatementDb;
+
   public SensorDatabaseImpl(Context context, AppAccount appAccount, String name) {
     openHelper =
         new SQLiteOpenHelper(
             context, appAccount.getDatabaseFileName(name), null, DbVersions.CURRENT) {
           @Override
           public void onCreate(SQLiteDatabase db) {
-            db.execSQL(ScalarSensorsTable.CREATION_SQL);
-            db.execSQL(ScalarSensorsTable.INDEX_SQL);
+            createV5Tables(db);
+            createV6Tables(db);
           }
 
           @Override
@@ -122,24 +355,127 @@ public class SensorDatabaseImpl implements SensorDatabase {
                         + " TEXT DEFAULT 0 NOT NULL;");
                 oldVersion = DbVersions.V4_TRIALID;
               }
+              if (oldVersion == DbVersions.V4_TRIALID) {
+                upgradeToV5(db);
+                oldVersion = DbVersions.V5_SERIES_INDEX;
+              }
+              if (oldVersion == DbVersions.V5_SERIES_INDEX) {
+                // Recordings from before this version have no buckets, and their stats queries
+                // fall back to scanning readings.
+                createV6Tables(db);
+                oldVersion = DbVersions.V6_SCALAR_STATS;
+              }
             }
           }
         };
+    // Lets queries run on other threads while live readings are being written, instead of waiting
+    // for each write to finish.
+    openHelper.setWriteAheadLoggingEnabled(true);
+  }
+
+  private void createV5Tables(SQLiteDatabase db) {
+    db.execSQL(tags.getCreationSql());
+    db.execSQL(trials.getCreationSql());
+    db.execSQL(ScalarReadingsTable.CREATION_SQL);
+    db.execSQL(ScalarReadingsTable.INDEX_SQL);
+  }
+
+  private void createV6Tables(SQLiteDatabase db) {
+    db.execSQL(ScalarStatsTable.CREATION_SQL);
+    db.execSQL(ScalarStatsTable.INDEX_SQL);
+  }
+
+  /**
+   * Moves every reading out of {@link ScalarSensorsTable} into {@link ScalarReadingsTable},
+   * replacing the tag and trial id strings with dictionary ids. Rows without a tag could never be
+   * read back, so they are dropped.
+   */
+  private void upgradeToV5(SQLiteDatabase db) {
+    // The index is built after the copy, which is much faster than maintaining it row by row.
+    db.execSQL(tags.getCreationSql());
+    db.execSQL(trials.getCreationSql());
+    db.execSQL(ScalarReadingsTable.CREATION_SQL);
+    db.execSQL(
+        "INSERT OR IGNORE INTO "
+            + tags.name
+            + " ("
+            + tags.valueColumn
+            + ") SELECT DISTINCT "
+            + ScalarSensorsTable.Column.TAG
+            + " FROM "
+            + ScalarSensorsTable.NAME
+            + " WHERE "
+            + ScalarSensorsTable.Column.TAG
+            + " IS NOT NULL;");
+    db.execSQL(
+        "INSERT OR IGNORE INTO "
+            + trials.name
+            + " ("
+            + trials.valueColumn
+            + ") SELECT DISTINCT "
+            + ScalarSensorsTable.Column.TRIAL_ID
+            + " FROM "
+            + ScalarSensorsTable.NAME
+            + ";");
+    db.execSQL(
+        "INSERT INTO "
+            + ScalarReadingsTable.NAME
+            + " ("
+            + ScalarReadingsTable.Column.TRIAL_KEY
+            + ", "
+            + ScalarReadingsTable.Column.TAG_KEY
+            + ", "
+            + ScalarReadingsTable.Column.RESOLUTION_TIER
+            + ", "
+            + ScalarReadingsTable.Column.TIMESTAMP_MILLIS
+            + ", "
+            + ScalarReadingsTable.Column.VALUE
+            + ") SELECT t."
+            + DictionaryTable.ID
+            + ", g."
+            + DictionaryTable.ID
+            + ", IFNULL(s."
+            + ScalarSensorsTable.Column.RESOLUTION_TIER
+            + ", 0), s."
+            + ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + ", s."
+            + ScalarSensorsTable.Column.VALUE
+            + " FROM "
+            + ScalarSensorsTable.NAME
+            + " s JOIN "
+            + trials.name
+            + " t ON s."
+            + ScalarSensorsTable.Column.TRIAL_ID
+            + " = t."
+            + trials.valueColumn
+            + " JOIN "
+            + tags.name
+            + " g ON s."
+            + ScalarSensorsTable.Column.TAG
+            + " = g."
+            + tags.valueColumn
+            + " WHERE s."
+            + ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + " IS NOT NULL ORDER BY s.rowid;");
+    // Also drops the old timestamp index.
+    db.execSQL("DROP TABLE " + ScalarSensorsTable.NAME + ";");
+    db.execSQL(ScalarReadingsTable.INDEX_SQL);
   }
 
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
     SQLiteDatabase db = openHelper.getWritableDatabase();
+    SQLiteStatement insert = getInsertStatement(db);
+    // Intern outside of the transaction, so that a rolled-back batch can't leave ids in the cache
+    // that were never committed.
+    for (BatchInsertScalarReading r : readings) {
+      internKeys(db, r.trialId, r.sensorId);
+    }
     try {
       db.beginTransaction();
       for (BatchInsertScalarReading r : readings) {
-        ContentValues values = new ContentValues();
-        values.put(ScalarSensorsTable.Column.TRIAL_ID, r.trialId);
-        values.put(ScalarSensorsTable.Column.TAG, r.sensorId);
-        values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, r.timestampMillis);
-        values.put(ScalarSensorsTable.Column.VALUE, r.value);
-        values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, r.resolutionTier);
-        db.insert(ScalarSensorsTable.NAME, null, values);
+        insertReading(
+            db, insert, r.trialId, r.sensorId, r.resolutionTier, r.timestampMillis, r.value);
       }
       db.setTransactionSuccessful();
     } finally {
@@ -150,35 +486,217 @@ public class SensorDatabaseImpl implements SensorDatabase {
   @Override
   public void addScalarReading(
       String trialId, String sourceTag, int resolutionTier, long timestampMillis, double value) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    SQLiteStatement insert = getInsertStatement(db);
+    insertReading(db, insert, trialId, sourceTag, resolutionTier, timestampMillis, value);
+  }
+
+  private SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+    if (insertStatement == null || insertStatementDb != db) {
+      if (insertStatement != null) {
+        insertStatement.close();
+      }
+      insertStatement = db.compileStatement(ScalarReadingsTable.INSERT_SQL);
+      insertStatementDb = db;
+    }
+    return insertStatement;
+  }
+
+  private void internKeys(SQLiteDatabase db, String trialId, String sourceTag) {
+    if (trialId != null && sourceTag != null) {
+      trials.intern(db, trialId);
+      tags.intern(db, sourceTag);
+    }
+  }
+
+  private void insertReading(
+      SQLiteDatabase db,
+      SQLiteStatement insert,
+      String trialId,
+      String sourceTag,
+      int resolutionTier,
+      long timestampMillis,
+      double value) {
+    if (trialId == null || sourceTag == null) {
+      // Such rows could never be queried; the V4 schema rejected or orphaned them too.
+      Log.e(TAG, "Dropping reading without trial id or tag: " + trialId + ", " + sourceTag);
+      return;
+    }
+    try {
+      insert.bindLong(1, trials.intern(db, trialId));
+      insert.bindLong(2, tags.intern(db, sourceTag));
+      insert.bindLong(3, timestampMillis);
+      insert.bindDouble(4, value);
+      insert.bindLong(5, resolutionTier);
+      insert.executeInsert();
+    } catch (SQLException e) {
+      // Match SQLiteDatabase#insert, which logs and drops rows that violate constraints.
+      Log.e(TAG, "Error inserting reading for " + sourceTag, e);
+    }
+  }
+
+  @Override
+  public ScalarReadingList getDownsampledScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int targetPixels) {
+    return ScalarDownsampler.downsample(this, trialId, sensorTag, range, targetPixels);
+  }
+
+  @Override
+  public void addScalarStatsBucket(
+      String trialId,
+      String sensorTag,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats) {
+    if (trialId == null || sensorTag == null) {
+      Log.e(TAG, "Dropping stats without trial id or tag: " + trialId + ", " + sensorTag);
+      return;
+    }
+    SQLiteDatabase db = openHelper.getWritableDatabase();
     ContentValues values = new ContentValues();
-    values.put(ScalarSensorsTable.Column.TRIAL_ID, trialId);
-    values.put(ScalarSensorsTable.Column.TAG, sourceTag);
-    values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, timestampMillis);
-    values.put(ScalarSensorsTable.Column.VALUE, value);
-    values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, resolutionTier);
-    openHelper.getWritableDatabase().insert(ScalarSensorsTable.NAME, null, values);
+    values.put(ScalarStatsTable.Column.TRIAL_KEY, trials.intern(db, trialId));
+    values.put(ScalarStatsTable.Column.TAG_KEY, tags.intern(db, sensorTag));
+    values.put(ScalarStatsTable.Column.RESOLUTION_TIER, resolutionTier);
+    values.put(ScalarStatsTable.Column.START_MILLIS, bucketStartMillis);
+    values.put(ScalarStatsTable.Column.FIRST_TIMESTAMP_MILLIS, stats.getFirstTimestamp());
+    values.put(ScalarStatsTable.Column.LAST_TIMESTAMP_MILLIS, stats.getLastTimestamp());
+    values.put(ScalarStatsTable.Column.COUNT, stats.getCount());
+    values.put(ScalarStatsTable.Column.SUM, stats.getSum());
+    values.put(
+        ScalarStatsTable.Column.SUM_OF_SQUARED_DEVIATIONS, stats.getSumOfSquaredDeviations());
+    values.put(ScalarStatsTable.Column.MIN, stats.getMin());
+    values.put(ScalarStatsTable.Column.MAX, stats.getMax());
+    db.insert(ScalarStatsTable.NAME, null, values);
   }
 
+  @Override
+  public ScalarStats getScalarStats(String trialId, String sensorTag, TimeRange range) {
+    return new ScalarStatsQuery(this, storedBuckets, trialId, sensorTag).getStats(range);
+  }
+
+  private final ScalarStatsQuery.BucketSource storedBuckets =
+      new ScalarStatsQuery.BucketSource() {
+        @Override
+        public int getTopStatsTier(String trialId, String sensorTag) {
+          SQLiteDatabase db = openHelper.getReadableDatabase();
+          try (Cursor cursor =
+              db.rawQuery(
+                  "SELECT MAX("
+                      + ScalarStatsTable.Column.RESOLUTION_TIER
+                      + ") FROM "
+                      + ScalarStatsTable.NAME
+                      + " WHERE "
+                      + ScalarStatsTable.Column.TRIAL_KEY
+                      + " = ? AND "
+                      + ScalarStatsTable.Column.TAG_KEY
+                      + " = ?",
+                  new String[] {
+                    String.valueOf(trials.lookup(db, trialId)),
+                    String.valueOf(tags.lookup(db, sensorTag))
+                  })) {
+            if (!cursor.moveToNext() || cursor.isNull(0)) {
+              return 0;
+            }
+            return cursor.getInt(0);
+          }
+        }
+
+        @Override
+        public List<ScalarStatsQuery.Bucket> getStatsBuckets(
+            String trialId,
+            String sensorTag,
+            int resolutionTier,
+            long startMillis,
+            long endMillis) {
+          SQLiteDatabase db = openHelper.getReadableDatabase();
+          String[] columns =
+              new String[] {
+                ScalarStatsTable.Column.START_MILLIS,
+                ScalarStatsTable.Column.COUNT,
+                ScalarStatsTable.Column.SUM,
+                ScalarStatsTable.Column.SUM_OF_SQUARED_DEVIATIONS,
+                ScalarStatsTable.Column.MIN,
+                ScalarStatsTable.Column.MAX,
+                ScalarStatsTable.Column.FIRST_TIMESTAMP_MILLIS,
+                ScalarStatsTable.Column.LAST_TIMESTAMP_MILLIS
+              };
+          String selection =
+              ScalarStatsTable.Column.TRIAL_KEY
+                  + " = ? AND "
+                  + ScalarStatsTable.Column.TAG_KEY
+                  + " = ? AND "
+                  + ScalarStatsTable.Column.RESOLUTION_TIER
+                  + " = ? AND "
+                  + ScalarStatsTable.Column.START_MILLIS
+                  + " >= ? AND "
+                  + ScalarStatsTable.Column.LAST_TIMESTAMP_MILLIS
+                  + " <= ?";
+          String[] selectionArgs =
+              new String[] {
+                String.valueOf(trials.lookup(db, trialId)),
+                String.valueOf(tags.lookup(db, sensorTag)),
+                String.valueOf(resolutionTier),
+                String.valueOf(startMillis),
+                String.valueOf(endMillis)
+              };
+          List<ScalarStatsQuery.Bucket> buckets = new ArrayList<>();
+          try (Cursor cursor =
+              db.query(
+                  ScalarStatsTable.NAME,
+                  columns,
+                  selection,
+                  selectionArgs,
+                  null,
+                  null,
+                  ScalarStatsTable.Column.START_MILLIS + " ASC")) {
+            while (cursor.moveToNext()) {
+              buckets.add(
+                  new ScalarStatsQuery.Bucket(
+                      cursor.getLong(0),
+                      new ScalarStats(
+                          cursor.getInt(1),
+                          cursor.getDouble(2),
+                          cursor.getDouble(3),
+                          cursor.getDouble(4),
+                          cursor.getDouble(5),
+                          cursor.getLong(6),
+                          cursor.getLong(7))));
+            }
+          }
+          return buckets;
+        }
+      };
+
   /**
    * Gets the selection string and selectionArgs based on the tag, range and resolution tier.
    *
+   * <p>Tags and the trial id are resolved to their dictionary ids first, so that the selection is
+   * a prefix of the series index followed by a timestamp range.
+   *
    * @return a pair where the first element is the selection string and the second element is the
    *     array of selectionArgs.
    */
   private Pair<String, String[]> getSelectionAndArgs(
-      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+      SQLiteDatabase db,
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier) {
     List<String> clauses = new ArrayList<>();
     List<String> values = new ArrayList<>();
 
-    if (sensorTags != null || sensorTags.length == 0) {
+    clauses.add(ScalarReadingsTable.Column.TRIAL_KEY + " = ?");
+    values.add(String.valueOf(trials.lookup(db, Preconditions.checkNotNull(trialId))));
+
+    if (sensorTags != null && sensorTags.length > 0) {
       if (sensorTags.length == 1) {
-        clauses.add(ScalarSensorsTable.Column.TAG + " = ?");
-        values.add(sensorTags[0]);
+        clauses.add(ScalarReadingsTable.Column.TAG_KEY + " = ?");
+        values.add(String.valueOf(tags.lookup(db, sensorTags[0])));
       } else {
         // Generate "(?,?...") for length.
         StringBuilder bindString = new StringBuilder();
         for (String sensorTag : sensorTags) {
-          values.add(sensorTag);
+          values.add(String.valueOf(tags.lookup(db, sensorTag)));
           if (bindString.length() == 0) {
             bindString.append("(?");
           } else {
@@ -186,15 +704,12 @@ public class SensorDatabaseImpl implements SensorDatabase {
           }
         }
         bindString.append(")");
-        clauses.add(ScalarSensorsTable.Column.TAG + " IN " + bindString.toString());
+        clauses.add(ScalarReadingsTable.Column.TAG_KEY + " IN " + bindString.toString());
       }
     }
 
-    clauses.add(ScalarSensorsTable.Column.TRIAL_ID + " = ?");
-    values.add(Preconditions.checkNotNull(trialId));
-
     if (resolutionTier >= 0) {
-      clauses.add(ScalarSensorsTable.Column.RESOLUTION_TIER + " = ?");
+      clauses.add(ScalarReadingsTable.Column.RESOLUTION_TIER + " = ?");
       values.add(String.valueOf(resolutionTier));
     }
 
@@ -202,12 +717,12 @@ public class SensorDatabaseImpl implements SensorDatabase {
     Range<Long> canonicalTimes = times.canonical(DiscreteDomain.longs());
     if (canonicalTimes.hasLowerBound()) {
       String comparator = (canonicalTimes.lowerBoundType() == BoundType.CLOSED) ? " >= ?" : " > ?";
-      clauses.add(ScalarSensorsTable.Column.TIMESTAMP_MILLIS + comparator);
+      clauses.add(ScalarReadingsTable.Column.TIMESTAMP_MILLIS + comparator);
       values.add(String.valueOf(canonicalTimes.lowerEndpoint()));
     }
     if (canonicalTimes.hasUpperBound()) {
       String comparator = (canonicalTimes.upperBoundType() == BoundType.CLOSED) ? " <= ?" : " < ?";
-      clauses.add(ScalarSensorsTable.Column.TIMESTAMP_MILLIS + comparator);
+      clauses.add(ScalarReadingsTable.Column.TIMESTAMP_MILLIS + comparator);
       values.add(String.valueOf(canonicalTimes.upperEndpoint()));
     }
 
@@ -223,7 +738,7 @@ public class SensorDatabaseImpl implements SensorDatabase {
         // Database returned no results with Trial Id; Attempt to use default Trial Id
         try (Cursor fallbackCursor =
             getCursor(
-                ScalarSensorsTable.DEFAULT_TRIAL_ID,
+                ScalarReadingsTable.DEFAULT_TRIAL_ID,
                 new String[] {sensorTag},
                 range,
                 resolutionTier,
@@ -274,7 +789,7 @@ public class SensorDatabaseImpl implements SensorDatabase {
   @Override
   public Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorTags, final TimeRange range, int resolutionTier) {
-    return createScalarObservable(trialId, sensorTags, range, resolutionTier, 500);
+    return createScalarFlowable(trialId, sensorTags, range, resolutionTier).toObservable();
   }
 
   @VisibleForTesting
@@ -284,70 +799,197 @@ public class SensorDatabaseImpl implements SensorDatabase {
       final TimeRange range,
       int resolutionTier,
       int pageSize) {
-    return Observable.create(
-        new ObservableOnSubscribe<ScalarReading>() {
+    return createScalarFlowable(trialId, sensorTags, range, resolutionTier, pageSize)
+        .toObservable();
+  }
 
-          private long lastTimeStampWritten = -1;
+  @Override
+  public Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+    return createScalarFlowable(trialId, sensorTags, range, resolutionTier, SERIES_PAGE_SIZE);
+  }
 
-          @Override
-          public void subscribe(ObservableEmitter<ScalarReading> observableEmitter)
-              throws Exception {
-            // Start by opening the cursor.
-            TimeRange searchRange = range;
-            while (true) {
-              try (Cursor cursor =
-                  getCursor(trialId, sensorTags, searchRange, resolutionTier, pageSize)) {
-                if (cursor != null) {
-                  int count = 0;
-                  while (cursor.moveToNext()) {
-                    long timeStamp = cursor.getLong(0);
-                    String sensorTag = cursor.getString(2);
-                    observableEmitter.onNext(
-                        new ScalarReading(timeStamp, cursor.getDouble(1), sensorTag));
-                    lastTimeStampWritten = timeStamp;
-                    count++;
-                  }
-                  if (count == 0 || observableEmitter.isDisposed()) {
-                    break;
-                  }
-                }
-              }
-              if (lastTimeStampWritten >= range.getTimes().upperEndpoint()) {
-                break;
-              } else {
-                Range<Long> times =
-                    Range.openClosed(lastTimeStampWritten, range.getTimes().upperEndpoint());
-                searchRange = TimeRange.oldest(times);
-              }
-              if (observableEmitter.isDisposed()) {
-                break;
-              }
-            }
-            observableEmitter.onComplete();
-          }
-        });
+  private Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier, int pageSize) {
+    return ScalarSeriesMerge.merge(
+        sensorTags,
+        range.getOrder() == TimeRange.ObservationOrder.NEWEST_FIRST,
+        tag -> new PagedSeries(trialId, tag, range, resolutionTier, pageSize));
+  }
+
+  /**
+   * Reads one sensor's readings a page at a time, in {@code range}'s order, over the series index.
+   *
+   * <p>Each page starts at the last timestamp of the one before, skipping the readings at that
+   * timestamp that were already read, so readings that share a timestamp are neither lost nor
+   * repeated at page boundaries. After the first, every page uses the same SQL with different
+   * arguments, so SQLite's statement cache only has to prepare it once.
+   */
+  private class PagedSeries implements ScalarSeriesMerge.Series {
+    private final String trialId;
+    private final String sensorTag;
+    private final TimeRange range;
+    private final int resolutionTier;
+
+    private final long[] timestamps;
+    private final double[] values;
+    private int size = 0;
+    private int position = 0;
+    private boolean lastPage = false;
+
+    /** The last timestamp read, and how many readings at it have been read so far. */
+    private long boundaryTimestamp;
+
+    private int readAtBoundary = 0;
+
+    PagedSeries(
+        String trialId, String sensorTag, TimeRange range, int resolutionTier, int pageSize) {
+      this.trialId = trialId;
+      this.sensorTag = sensorTag;
+      this.range = range;
+      this.resolutionTier = resolutionTier;
+      timestamps = new long[Math.max(pageSize, 1)];
+      values = new double[timestamps.length];
+      readPage(range, 0);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < size;
+    }
+
+    @Override
+    public long peekTimestamp() {
+      return timestamps[position];
+    }
+
+    @Override
+    public double peekValue() {
+      return values[position];
+    }
+
+    @Override
+    public void advance() {
+      position++;
+      if (position == size && !lastPage) {
+        TimeRange rest =
+            range.getOrder() == TimeRange.ObservationOrder.NEWEST_FIRST
+                ? TimeRange.newest(range.getTimes().intersection(Range.atMost(boundaryTimestamp)))
+                : TimeRange.oldest(range.getTimes().intersection(Range.atLeast(boundaryTimestamp)));
+        readPage(rest, readAtBoundary);
+      }
+    }
+
+    private void readPage(TimeRange pageRange, int skip) {
+      size = 0;
+      position = 0;
+      try (Cursor cursor =
+          getCursor(
+              trialId,
+              new String[] {sensorTag},
+              pageRange,
+              resolutionTier,
+              timestamps.length,
+              skip)) {
+        while (cursor.moveToNext()) {
+          timestamps[size] = cursor.getLong(0);
+          values[size] = cursor.getDouble(1);
+          size++;
+        }
+      }
+      lastPage = size < timestamps.length;
+      if (size == 0) {
+        return;
+      }
+      long last = timestamps[size - 1];
+      int atLast = 0;
+      for (int i = size - 1; i >= 0 && timestamps[i] == last; i--) {
+        atLast++;
+      }
+      // If the whole page was at the boundary timestamp, the ones skipped were too.
+      boolean stillAtBoundary = atLast == size && skip > 0 && last == boundaryTimestamp;
+      readAtBoundary = stillAtBoundary ? skip + atLast : atLast;
+      boundaryTimestamp = last;
+    }
   }
 
   private Cursor getCursor(
       String trialId, String[] sensorTags, TimeRange range, int resolutionTier, int maxRecords) {
+    return getCursor(trialId, sensorTags, range, resolutionTier, maxRecords, 0);
+  }
+
+  /** As above, but skips the first {@code offset} matching readings. */
+  private Cursor getCursor(
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier,
+      int maxRecords,
+      int offset) {
+    SQLiteDatabase db = openHelper.getReadableDatabase();
+    Pair<String, String[]> query =
+        getQueryAndArgs(db, trialId, sensorTags, range, resolutionTier, maxRecords, offset);
+    return db.rawQuery(query.first, query.second);
+  }
+
+  private Pair<String, String[]> getQueryAndArgs(
+      SQLiteDatabase db,
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier,
+      int maxRecords,
+      int offset) {
     String[] columns =
         new String[] {
-          ScalarSensorsTable.Column.TIMESTAMP_MILLIS, ScalarSensorsTable.Column.VALUE,
-          ScalarSensorsTable.Column.TAG, ScalarSensorsTable.Column.TRIAL_ID
+          ScalarReadingsTable.Column.TIMESTAMP_MILLIS,
+          ScalarReadingsTable.Column.VALUE,
+          ScalarReadingsTable.Column.TAG_KEY
         };
     Pair<String, String[]> selectionAndArgs =
-        getSelectionAndArgs(trialId, sensorTags, range, resolutionTier);
-    String selection = selectionAndArgs.first;
-    String[] selectionArgs = selectionAndArgs.second;
+        getSelectionAndArgs(db, trialId, sensorTags, range, resolutionTier);
+    String direction =
+        range.getOrder().equals(TimeRange.ObservationOrder.OLDEST_FIRST) ? " ASC" : " DESC";
+    // Readings at the same timestamp are ordered by value, which the series index already does, so
+    // that an offset into them (see PagedSeries) always skips the same ones.
     String orderBy =
-        ScalarSensorsTable.Column.TIMESTAMP_MILLIS
-            + (range.getOrder().equals(TimeRange.ObservationOrder.OLDEST_FIRST) ? " ASC" : " DESC");
-    String limit = maxRecords <= 0 ? null : String.valueOf(maxRecords);
+        ScalarReadingsTable.Column.TIMESTAMP_MILLIS
+            + direction
+            + ", "
+            + ScalarReadingsTable.Column.VALUE
+            + direction;
+    String limit = null;
+    if (maxRecords > 0) {
+      limit = offset > 0 ? offset + "," + maxRecords : String.valueOf(maxRecords);
+    }
+    String sql =
+        SQLiteQueryBuilder.buildQueryString(
+            false,
+            ScalarReadingsTable.NAME,
+            columns,
+            selectionAndArgs.first,
+            null,
+            null,
+            orderBy,
+            limit);
+    return new Pair<>(sql, selectionAndArgs.second);
+  }
 
-    return openHelper
-        .getReadableDatabase()
-        .query(
-            ScalarSensorsTable.NAME, columns, selection, selectionArgs, null, null, orderBy, limit);
+  /** Returns SQLite's plan for the query behind {@link #getScalarReadings}, one step per line. */
+  @VisibleForTesting
+  String explainScalarReadingsQuery(
+      String trialId, String sensorTag, TimeRange range, int resolutionTier) {
+    SQLiteDatabase db = openHelper.getReadableDatabase();
+    Pair<String, String[]> query =
+        getQueryAndArgs(db, trialId, new String[] {sensorTag}, range, resolutionTier, 0, 0);
+    StringBuilder plan = new StringBuilder();
+    try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query.first, query.second)) {
+      int detail = cursor.getColumnIndexOrThrow("detail");
+      while (cursor.moveToNext()) {
+        plan.append(cursor.getString(detail)).append('\n');
+      }
+    }
+    return plan.toString();
   }
 
   @Override
@@ -386,7 +1028,8 @@ public class SensorDatabaseImpl implements SensorDatabase {
         // No results for the TrialId. Assume this is a pre-export trial, so query again
         // with the default trial id.
         try (Cursor fallbackCursor =
-            getCursor(ScalarSensorsTable.DEFAULT_TRIAL_ID, new String[] {sensorTag}, range, 0, 0)) {
+            getCursor(
+                ScalarReadingsTable.DEFAULT_TRIAL_ID, new String[] {sensorTag}, range, 0, 0)) {
           return cursorAsScalarSensorDataDump(fallbackCursor, trialId, sensorTag);
         }
       } else {
@@ -414,24 +1057,23 @@ public class SensorDatabaseImpl implements SensorDatabase {
     return sensor.addAllRows(rowsList).build();
   }
 
-  // TODO: test
+  // Not covered by the series index, so this scans the table. It is only used in tests.
   @Override
   public String getFirstDatabaseTagAfter(long timestamp) {
     final String timestampString = String.valueOf(timestamp);
+    SQLiteDatabase db = openHelper.getReadableDatabase();
     try (Cursor cursor =
-        openHelper
-            .getReadableDatabase()
-            .query(
-                ScalarSensorsTable.NAME,
-                new String[] {ScalarSensorsTable.Column.TAG},
-                ScalarSensorsTable.Column.TIMESTAMP_MILLIS + ">?",
-                new String[] {timestampString},
-                null,
-                null,
-                ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " ASC",
-                "1")) {
+        db.query(
+            ScalarReadingsTable.NAME,
+            new String[] {ScalarReadingsTable.Column.TAG_KEY},
+            ScalarReadingsTable.Column.TIMESTAMP_MILLIS + ">?",
+            new String[] {timestampString},
+            null,
+            null,
+            ScalarReadingsTable.Column.TIMESTAMP_MILLIS + " ASC",
+            "1")) {
       if (cursor.moveToNext()) {
-        return cursor.getString(0);
+        return tags.getValue(db, cursor.getLong(0));
       } else {
         return null;
       }
@@ -440,12 +1082,87 @@ public class SensorDatabaseImpl implements SensorDatabase {
 
   @Override
   public void deleteScalarReadings(String trialId, String sensorTag, TimeRange range) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
     Pair<String, String[]> selectionAndArgs =
         getSelectionAndArgs(
-            trialId, new String[] {sensorTag}, range, -1 /* delete all resolutions */);
+            db, trialId, new String[] {sensorTag}, range, -1 /* delete all resolutions */);
     String selection = selectionAndArgs.first;
     String[] selectionArgs = selectionAndArgs.second;
-    openHelper.getWritableDatabase().delete(ScalarSensorsTable.NAME, selection, selectionArgs);
+    db.delete(ScalarReadingsTable.NAME, selection, selectionArgs);
+    deleteScalarStatsBuckets(db, trialId, sensorTag, range);
+  }
+
+  /** Deletes every bucket, at any tier, that summarizes any of the readings in {@code range}. */
+  private void deleteScalarStatsBuckets(
+      SQLiteDatabase db, String trialId, String sensorTag, TimeRange range) {
+    List<String> clauses = new ArrayList<>();
+    List<String> values = new ArrayList<>();
+    clauses.add(ScalarStatsTable.Column.TRIAL_KEY + " = ?");
+    values.add(String.valueOf(trials.lookup(db, trialId)));
+    clauses.add(ScalarStatsTable.Column.TAG_KEY + " = ?");
+    values.add(String.valueOf(tags.lookup(db, sensorTag)));
+    Range<Long> times = range.getTimes().canonical(DiscreteDomain.longs());
+    if (times.hasLowerBound()) {
+      // Canonical ranges are closed below.
+      clauses.add(ScalarStatsTable.Column.LAST_TIMESTAMP_MILLIS + " >= ?");
+      values.add(String.valueOf(times.lowerEndpoint()));
+    }
+    if (times.hasUpperBound()) {
+      // ...and open above.
+      clauses.add(ScalarStatsTable.Column.START_MILLIS + " < ?");
+      values.add(String.valueOf(times.upperEndpoint()));
+    }
+    db.delete(
+        ScalarStatsTable.NAME,
+        Joiner.on(" AND ").join(clauses),
+        values.toArray(new String[values.size()]));
+  }
+
+  /**
+   * Copies every stored reading, at every tier, into {@code target}, in batches of at most {@code
+   * batchSize}. Used to migrate to another {@link SensorDatabase} implementation.
+   */
+  public void copyAllReadingsTo(SensorDatabase target, int batchSize) {
+    long lastRowId = -1;
+    String[] columns =
+        new String[] {
+          "rowid",
+          ScalarReadingsTable.Column.TRIAL_KEY,
+          ScalarReadingsTable.Column.TAG_KEY,
+          ScalarReadingsTable.Column.RESOLUTION_TIER,
+          ScalarReadingsTable.Column.TIMESTAMP_MILLIS,
+          ScalarReadingsTable.Column.VALUE
+        };
+    SQLiteDatabase db = openHelper.getReadableDatabase();
+    while (true) {
+      List<BatchInsertScalarReading> batch = new ArrayList<>(batchSize);
+      // Page by rowid, which follows insertion order and needs no sort.
+      try (Cursor cursor =
+          db.query(
+              ScalarReadingsTable.NAME,
+              columns,
+              "rowid > ?",
+              new String[] {String.valueOf(lastRowId)},
+              null,
+              null,
+              "rowid ASC",
+              String.valueOf(batchSize))) {
+        while (cursor.moveToNext()) {
+          lastRowId = cursor.getLong(0);
+          batch.add(
+              new BatchInsertScalarReading(
+                  trials.getValue(db, cursor.getLong(1)),
+                  tags.getValue(db, cursor.getLong(2)),
+                  cursor.getInt(3),
+                  cursor.getLong(4),
+                  cursor.getDouble(5)));
+        }
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      target.addScalarReadings(batch);
+    }
   }
 
   @Override
@@ -456,6 +1173,47 @@ public class SensorDatabaseImpl implements SensorDatabase {
         .build();
   }
 
+  @Override
+  public void writeScalarReadingProtos(
+      GoosciExperiment.Experiment experiment, @Nullable String trialId, OutputStream out)
+      throws IOException {
+    ScalarSensorDataWriter writer = new ScalarSensorDataWriter(out);
+    for (GoosciTrial.Trial trial : experiment.getTrialsList()) {
+      if (trialId != null && !trial.getTrialId().equals(trialId)) {
+        continue;
+      }
+      GoosciTrial.Range range = trial.getRecordingRange();
+      // This protects against corrupted trials with invalid range end times.
+      if (range.getEndMs() > range.getStartMs()) {
+        TimeRange timeRange = TimeRange.oldest(Range.closed(range.getStartMs(), range.getEndMs()));
+        for (GoosciSensorLayout.SensorLayout sensor : trial.getSensorLayoutsList()) {
+          String tag = sensor.getSensorId();
+          writer.startSensor(trial.getTrialId(), tag);
+          try (Cursor cursor = getCursor(trial.getTrialId(), new String[] {tag}, timeRange, 0, 0)) {
+            if (cursor.getCount() == 0) {
+              // As in getScalarReadingSensorProtos, fall back to the default trial id.
+              try (Cursor fallbackCursor =
+                  getCursor(
+                      ScalarReadingsTable.DEFAULT_TRIAL_ID, new String[] {tag}, timeRange, 0, 0)) {
+                writeCursorRows(fallbackCursor, writer);
+              }
+            } else {
+              writeCursorRows(cursor, writer);
+            }
+          }
+        }
+      }
+    }
+    writer.finish();
+  }
+
+  private static void writeCursorRows(Cursor cursor, ScalarSensorDataWriter writer)
+      throws IOException {
+    while (cursor.moveToNext()) {
+      writer.addRow(cursor.getLong(0), cursor.getDouble(1));
+    }
+  }
+
   private List<ScalarSensorDataDump> getScalarReadingProtosForTrialAsList(
       GoosciExperiment.Experiment experiment, String trialId) {
     ArrayList<ScalarSensorDataDump> sensorDataList = new ArrayList<>();
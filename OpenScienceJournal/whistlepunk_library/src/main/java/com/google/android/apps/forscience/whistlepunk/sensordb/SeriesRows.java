@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** A growable run of (timestamp, value) pairs from a single series, stored as primitive arrays. */
+class SeriesRows {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private long[] timestamps;
+  private double[] values;
+  private int size = 0;
+
+  SeriesRows() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  SeriesRows(int capacity) {
+    capacity = Math.max(capacity, 1);
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  void add(long timestampMillis, double value) {
+    ensureCapacity(size + 1);
+    timestamps[size] = timestampMillis;
+    values[size] = value;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  long getTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  double getValue(int index) {
+    return values[index];
+  }
+
+  long getFirstTimestamp() {
+    return timestamps[0];
+  }
+
+  long getLastTimestamp() {
+    return timestamps[size - 1];
+  }
+
+  /**
+   * Sorts by timestamp, keeping rows with equal timestamps in their original order. Rows almost
+   * always arrive in order (zoom tiers only swap the min and max of a window), so this is an
+   * insertion sort, which is linear on nearly-sorted input.
+   */
+  void sort() {
+    for (int i = 1; i < size; i++) {
+      long t = timestamps[i];
+      if (t >= timestamps[i - 1]) {
+        continue;
+      }
+      double v = values[i];
+      int j = i - 1;
+      while (j >= 0 && timestamps[j] > t) {
+        timestamps[j + 1] = timestamps[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      timestamps[j + 1] = t;
+      values[j + 1] = v;
+    }
+  }
+
+  /** Drops everything except the first {@code count} rows. */
+  void keepFirst(int count) {
+    if (count < size) {
+      size = count;
+    }
+  }
+
+  /** Drops everything except the last {@code count} rows. */
+  void keepLast(int count) {
+    if (count < size) {
+      int drop = size - count;
+      System.arraycopy(timestamps, drop, timestamps, 0, count);
+      System.arraycopy(values, drop, values, 0, count);
+      size = count;
+    }
+  }
+
+  /** Drops the first {@code count} rows. */
+  void dropFirst(int count) {
+    keepLast(Math.max(size - count, 0));
+  }
+
+  /** Returns the rows whose timestamps are in {@code times} (which may be null for all rows). */
+  SeriesRows filter(Range<Long> times) {
+    SeriesRows result = new SeriesRows(size);
+    for (int i = 0; i < size; i++) {
+      if (times == null || times.contains(timestamps[i])) {
+        result.add(timestamps[i], values[i]);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the rows whose timestamps are not in {@code times}. */
+  SeriesRows filterOut(Range<Long> times) {
+    SeriesRows result = new SeriesRows(size);
+    for (int i = 0; i < size; i++) {
+      if (!times.contains(timestamps[i])) {
+        result.add(timestamps[i], values[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Merges another time-sorted run into this one. This is a plain append, without copying the
+   * existing rows, when {@code other} starts no earlier than this run ends, which is the usual case
+   * when reading consecutive blocks.
+   */
+  void mergeFrom(SeriesRows other) {
+    if (other.isEmpty()) {
+      return;
+    }
+    if (isEmpty() || other.getFirstTimestamp() >= getLastTimestamp()) {
+      ensureCapacity(size + other.size);
+      System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+      System.arraycopy(other.values, 0, values, size, other.size);
+      size += other.size;
+      return;
+    }
+    SeriesRows merged = merge(this, other);
+    timestamps = merged.timestamps;
+    values = merged.values;
+    size = merged.size;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > timestamps.length) {
+      int newCapacity = Math.max(capacity, timestamps.length * 2);
+      timestamps = Arrays.copyOf(timestamps, newCapacity);
+      values = Arrays.copyOf(values, newCapacity);
+    }
+  }
+
+  /** Merges two time-sorted runs into a new time-sorted run. Ties keep {@code a}'s rows first. */
+  static SeriesRows merge(SeriesRows a, SeriesRows b) {
+    SeriesRows result = new SeriesRows(a.size + b.size);
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (b.timestamps[j] < a.timestamps[i]) {
+        result.add(b.timestamps[j], b.values[j]);
+        j++;
+      } else {
+        result.add(a.timestamps[i], a.values[i]);
+        i++;
+      }
+    }
+    for (; i < a.size; i++) {
+      result.add(a.timestamps[i], a.values[i]);
+    }
+    for (; j < b.size; j++) {
+      result.add(b.timestamps[j], b.values[j]);
+    }
+    return result;
+  }
+
+  /**
+   * Whether a series with timestamps spanning [{@code minTimestamp}, {@code maxTimestamp}] could
+   * contain any timestamp in {@code times}.
+   */
+  static boolean overlaps(Range<Long> times, long minTimestamp, long maxTimestamp) {
+    if (times == null) {
+      return true;
+    }
+    if (times.hasLowerBound()) {
+      long lower = times.lowerEndpoint();
+      if (maxTimestamp < lower
+          || (maxTimestamp == lower && times.lowerBoundType() == BoundType.OPEN)) {
+        return false;
+      }
+    }
+    if (times.hasUpperBound()) {
+      long upper = times.upperEndpoint();
+      if (minTimestamp > upper
+          || (minTimestamp == upper && times.upperBoundType() == BoundType.OPEN)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether every timestamp in [{@code minTimestamp}, {@code maxTimestamp}] is in {@code times}.
+   */
+  static boolean encloses(Range<Long> times, long minTimestamp, long maxTimestamp) {
+    return times == null || (times.contains(minTimestamp) && times.contains(maxTimestamp));
+  }
+
+  /**
+   * Returns a {@link ScalarReadingList} view of these rows.
+   *
+   * @param newestFirst if true, rows are delivered from the end backwards
+   */
+  ScalarReadingList asScalarReadingList(final boolean newestFirst) {
+    final long[] readTimestamps = timestamps;
+    final double[] readValues = values;
+    final int count = size;
+    return new ScalarReadingList() {
+      @Override
+      public void deliver(StreamConsumer c) {
+        for (int i = 0; i < count; i++) {
+          int index = newestFirst ? count - 1 - i : i;
+          c.addData(readTimestamps[index], readValues[index]);
+        }
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+
+      @Override
+      public List<ChartData.DataPoint> asDataPoints() {
+        List<ChartData.DataPoint> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          int index = newestFirst ? count - 1 - i : i;
+          result.add(new ChartData.DataPoint(readTimestamps[index], readValues[index]));
+        }
+        return result;
+      }
+    };
+  }
+}
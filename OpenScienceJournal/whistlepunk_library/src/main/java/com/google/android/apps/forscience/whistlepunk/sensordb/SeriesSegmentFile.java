@@ -0,0 +1,406 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.common.collect.Range;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The readings of a single (trial, sensor, tier) series, stored as an append-only file of
+ * compressed blocks.
+ *
+ * <p>File layout: an 8-byte header (magic, version) followed by blocks. Each block has a fixed-size
+ * header (row count, min timestamp, max timestamp, payload length) and a deflated payload holding
+ * the block's rows sorted by time: timestamps as varint deltas from the previous row, values as the
+ * XOR of their bits with the previous value's bits.
+ *
+ * <p>The block headers double as a sparse time index: they are read once, when the file is first
+ * touched, and from then on reads only inflate blocks that overlap the requested range.
+ *
+ * <p>Not thread-safe; callers must confine each instance to one thread.
+ */
+class SeriesSegmentFile {
+  private static final int MAGIC = 0x534a5347; // "SJSG"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_BYTES = 8;
+  private static final int BLOCK_HEADER_BYTES = 4 + 8 + 8 + 4;
+
+  /** Blocks are filled up to this many rows before a new one is started. */
+  static final int ROWS_PER_BLOCK = 1024;
+
+  static class Block {
+    final long offset;
+    final int rowCount;
+    final long minTimestamp;
+    final long maxTimestamp;
+    final int payloadLength;
+
+    Block(long offset, int rowCount, long minTimestamp, long maxTimestamp, int payloadLength) {
+      this.offset = offset;
+      this.rowCount = rowCount;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+      this.payloadLength = payloadLength;
+    }
+
+    long getEnd() {
+      return offset + BLOCK_HEADER_BYTES + payloadLength;
+    }
+  }
+
+  private final File file;
+  private List<Block> blocks = null;
+
+  SeriesSegmentFile(File file) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  boolean exists() {
+    return file.exists();
+  }
+
+  /** The block index, in file order. Blocks are usually, but not always, in time order. */
+  List<Block> getBlocks() throws IOException {
+    if (blocks == null) {
+      blocks = loadIndex();
+    }
+    return Collections.unmodifiableList(blocks);
+  }
+
+  /** Total number of rows stored. */
+  long getRowCount() throws IOException {
+    long count = 0;
+    for (Block block : getBlocks()) {
+      count += block.rowCount;
+    }
+    return count;
+  }
+
+  private List<Block> loadIndex() throws IOException {
+    List<Block> index = new ArrayList<>();
+    if (!file.exists()) {
+      return index;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      long length = raf.length();
+      if (length < FILE_HEADER_BYTES) {
+        raf.setLength(0);
+        return index;
+      }
+      if (raf.readInt() != MAGIC) {
+        throw new IOException("Not a segment file: " + file);
+      }
+      int version = raf.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unknown segment file version " + version + ": " + file);
+      }
+      long offset = FILE_HEADER_BYTES;
+      while (offset + BLOCK_HEADER_BYTES <= length) {
+        raf.seek(offset);
+        int rowCount = raf.readInt();
+        long minTimestamp = raf.readLong();
+        long maxTimestamp = raf.readLong();
+        int payloadLength = raf.readInt();
+        Block block = new Block(offset, rowCount, minTimestamp, maxTimestamp, payloadLength);
+        if (block.getEnd() > length) {
+          break;
+        }
+        index.add(block);
+        offset = block.getEnd();
+      }
+      if (offset != length) {
+        // A write was interrupted partway through a block; drop the partial block.
+        raf.setLength(offset);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Appends rows, which must already be sorted by time. If the last block has room, it is rewritten
+   * to include the first of the new rows, so that small appends don't leave a trail of tiny blocks.
+   * (So if the process dies partway through an append, the rows of that last block may be lost
+   * along with the new ones; everything before it is never rewritten.)
+   */
+  void append(SeriesRows rows) throws IOException {
+    if (rows.isEmpty()) {
+      return;
+    }
+    List<Block> index = new ArrayList<>(getBlocks());
+    SeriesRows toWrite = rows;
+    if (!index.isEmpty()) {
+      Block last = index.get(index.size() - 1);
+      if (last.rowCount < ROWS_PER_BLOCK) {
+        toWrite = SeriesRows.merge(readBlock(last), rows);
+        index.remove(index.size() - 1);
+      }
+    }
+    // Start writing over the file header if there are no blocks left to keep.
+    long writeOffset = index.isEmpty() ? 0 : index.get(index.size() - 1).getEnd();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    if (writeOffset == 0) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+    long blockOffset = writeOffset + out.size();
+    for (int start = 0; start < toWrite.size(); start += ROWS_PER_BLOCK) {
+      int end = Math.min(start + ROWS_PER_BLOCK, toWrite.size());
+      byte[] payload = encode(toWrite, start, end);
+      Block block =
+          new Block(
+              blockOffset,
+              end - start,
+              toWrite.getTimestamp(start),
+              toWrite.getTimestamp(end - 1),
+              payload.length);
+      out.writeInt(block.rowCount);
+      out.writeLong(block.minTimestamp);
+      out.writeLong(block.maxTimestamp);
+      out.writeInt(block.payloadLength);
+      out.write(payload);
+      index.add(block);
+      blockOffset = block.getEnd();
+    }
+    out.flush();
+
+    file.getParentFile().mkdirs();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(writeOffset);
+      raf.seek(writeOffset);
+      raf.write(bytes.toByteArray());
+      raf.getFD().sync();
+    }
+    blocks = index;
+  }
+
+  /** Returns every row whose timestamp is in {@code times}, sorted by time. */
+  SeriesRows read(Range<Long> times) throws IOException {
+    SeriesRows result = new SeriesRows();
+    for (Block block : getBlocksByStartTime()) {
+      if (SeriesRows.overlaps(times, block.minTimestamp, block.maxTimestamp)) {
+        SeriesRows rows = readBlock(block);
+        if (!SeriesRows.encloses(times, block.minTimestamp, block.maxTimestamp)) {
+          rows = rows.filter(times);
+        }
+        result.mergeFrom(rows);
+      }
+    }
+    return result;
+  }
+
+  /** The block index, sorted by each block's first timestamp. */
+  List<Block> getBlocksByStartTime() throws IOException {
+    List<Block> sorted = new ArrayList<>(getBlocks());
+    Collections.sort(sorted, (a, b) -> Long.compare(a.minTimestamp, b.minTimestamp));
+    return sorted;
+  }
+
+  SeriesRows readBlock(Block block) throws IOException {
+    byte[] compressed = new byte[block.payloadLength];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.seek(block.offset + BLOCK_HEADER_BYTES);
+      raf.readFully(compressed);
+    }
+    return decode(compressed, block.rowCount, block.minTimestamp);
+  }
+
+  /**
+   * Removes every row whose timestamp is in {@code times}. Blocks entirely outside the range are
+   * copied as-is; only blocks straddling the range edges are decoded. Deletes the file if nothing
+   * is left.
+   */
+  void delete(Range<Long> times) throws IOException {
+    List<Block> index = getBlocks();
+    boolean touched = false;
+    for (Block block : index) {
+      if (SeriesRows.overlaps(times, block.minTimestamp, block.maxTimestamp)) {
+        touched = true;
+        break;
+      }
+    }
+    if (!touched) {
+      return;
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    List<Block> newIndex = new ArrayList<>();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileOutputStream fos = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(fos)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      long offset = FILE_HEADER_BYTES;
+      for (Block block : index) {
+        if (!SeriesRows.overlaps(times, block.minTimestamp, block.maxTimestamp)) {
+          byte[] raw = new byte[BLOCK_HEADER_BYTES + block.payloadLength];
+          in.seek(block.offset);
+          in.readFully(raw);
+          out.write(raw);
+          newIndex.add(
+              new Block(
+                  offset,
+                  block.rowCount,
+                  block.minTimestamp,
+                  block.maxTimestamp,
+                  block.payloadLength));
+          offset += raw.length;
+        } else if (!SeriesRows.encloses(times, block.minTimestamp, block.maxTimestamp)) {
+          SeriesRows kept = readBlock(block).filterOut(times);
+          if (kept.isEmpty()) {
+            continue;
+          }
+          byte[] payload = encode(kept, 0, kept.size());
+          Block newBlock =
+              new Block(
+                  offset,
+                  kept.size(),
+                  kept.getFirstTimestamp(),
+                  kept.getLastTimestamp(),
+                  payload.length);
+          out.writeInt(newBlock.rowCount);
+          out.writeLong(newBlock.minTimestamp);
+          out.writeLong(newBlock.maxTimestamp);
+          out.writeInt(newBlock.payloadLength);
+          out.write(payload);
+          newIndex.add(newBlock);
+          offset = newBlock.getEnd();
+        }
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+
+    if (newIndex.isEmpty()) {
+      temp.delete();
+      file.delete();
+    } else if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not replace " + file);
+    }
+    blocks = newIndex;
+  }
+
+  /** Deletes the whole series. */
+  void deleteAll() {
+    file.delete();
+    blocks = new ArrayList<>();
+  }
+
+  private static byte[] encode(SeriesRows rows, int start, int end) throws IOException {
+    ByteArrayOutputStream raw = new ByteArrayOutputStream((end - start) * 10);
+    DataOutputStream out = new DataOutputStream(raw);
+    long previousTimestamp = rows.getTimestamp(start);
+    long previousBits = 0;
+    for (int i = start; i < end; i++) {
+      long timestamp = rows.getTimestamp(i);
+      writeVarLong(out, timestamp - previousTimestamp);
+      previousTimestamp = timestamp;
+      long bits = Double.doubleToRawLongBits(rows.getValue(i));
+      out.writeLong(bits ^ previousBits);
+      previousBits = bits;
+    }
+    out.flush();
+
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw.toByteArray());
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.size() / 2 + 16);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        compressed.write(buffer, 0, count);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private SeriesRows decode(byte[] compressed, int rowCount, long firstTimestamp)
+      throws IOException {
+    Inflater inflater = new Inflater();
+    ByteArrayOutputStream raw = new ByteArrayOutputStream(rowCount * 10);
+    try {
+      inflater.setInput(compressed);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated block in " + file);
+        }
+        raw.write(buffer, 0, count);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block in " + file, e);
+    } finally {
+      inflater.end();
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+    SeriesRows rows = new SeriesRows(rowCount);
+    long timestamp = firstTimestamp;
+    long bits = 0;
+    for (int i = 0; i < rowCount; i++) {
+      timestamp += readVarLong(in);
+      bits ^= in.readLong();
+      rows.add(timestamp, Double.longBitsToDouble(bits));
+    }
+    return rows;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    // Deltas within a block are never negative, since rows are sorted.
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long result = 0;
+    int shift = 0;
+    while (true) {
+      byte b = in.readByte();
+      result |= ((long) (b & 0x7F)) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+      shift += 7;
+    }
+  }
+}
@@ -78,7 +78,12 @@ public class BluetoothSensor extends ScalarSensor {
   private BleFlowListener bleFlowListener;
 
   public BluetoothSensor(String sensorId, BleSensorSpec sensor, BleServiceSpec serviceSpec) {
-    this(sensorId, sensor, serviceSpec, AppSingleton.getUiThreadExecutor());
+    this(
+        sensorId,
+        sensor,
+        serviceSpec,
+        AppSingleton.getUiThreadExecutor(),
+        AppSingleton.getUiFrameExecutor());
   }
 
   public BluetoothSensor(
@@ -86,7 +91,16 @@ public class BluetoothSensor extends ScalarSensor {
       BleSensorSpec sensor,
       BleServiceSpec serviceSpec,
       Executor uiThreadExecutor) {
-    super(sensorId, uiThreadExecutor);
+    this(sensorId, sensor, serviceSpec, uiThreadExecutor, uiThreadExecutor);
+  }
+
+  private BluetoothSensor(
+      String sensorId,
+      BleSensorSpec sensor,
+      BleServiceSpec serviceSpec,
+      Executor uiThreadExecutor,
+      Executor sampleExecutor) {
+    super(sensorId, uiThreadExecutor, sampleExecutor);
     this.sensor = sensor;
     this.serviceSpec = serviceSpec;
     address = sensor.getAddress();
@@ -20,9 +20,9 @@ import static com.google.android.apps.forscience.whistlepunk.audio.AudioSource.S
 
 import android.content.Context;
 import com.google.android.apps.forscience.whistlepunk.Clock;
-import com.google.android.apps.forscience.whistlepunk.audio.AudioAnalyzer;
 import com.google.android.apps.forscience.whistlepunk.audio.AudioSource;
 import com.google.android.apps.forscience.whistlepunk.audio.AudioSource.AudioReceiver;
+import com.google.android.apps.forscience.whistlepunk.audio.SlidingWindowAnalyzer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
@@ -34,6 +34,8 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 /** A sensor that displays the pitch in Hertz (Hz). */
 public class PitchSensor extends ScalarSensor {
   public static final String ID = "PitchSensor";
+  // Detect the pitch every 512 samples (about 12 ms), over the most recent 4096 samples.
+  private static final int HOP_SIZE = 512;
 
   public PitchSensor() {
     super(ID);
@@ -49,56 +51,31 @@ public class PitchSensor extends ScalarSensor {
     final AudioSource audioSource = environment.getAudioSource();
     final AudioReceiver audioReceiver =
         new AudioReceiver() {
-          private final AudioAnalyzer audioAnalyzer = new AudioAnalyzer(SAMPLE_RATE_IN_HZ);
-          private final short[] audioAnalyzerBuffer = new short[AudioAnalyzer.BUFFER_SIZE];
-          private int audioAnalyzerBufferOffset;
+          private final SlidingWindowAnalyzer analyzer =
+              new SlidingWindowAnalyzer(SAMPLE_RATE_IN_HZ, HOP_SIZE, this::onFrequencyDetected);
           private Double previousFrequency;
 
           @Override
           public void onReceiveAudio(short[] audioSourceBuffer) {
-            int audioSourceBufferOffset = 0;
-            while (audioSourceBufferOffset < audioSourceBuffer.length) {
-              // Repeat the previous frequency value while we collect and analyze new data.
-              if (previousFrequency != null) {
-                c.addData(clock.getNow(), previousFrequency);
-              }
-
-              int lengthToCopy =
-                  Math.min(
-                      audioSourceBuffer.length - audioSourceBufferOffset,
-                      audioAnalyzerBuffer.length - audioAnalyzerBufferOffset);
-              System.arraycopy(
-                  audioSourceBuffer,
-                  audioSourceBufferOffset,
-                  audioAnalyzerBuffer,
-                  audioAnalyzerBufferOffset,
-                  lengthToCopy);
-              audioAnalyzerBufferOffset += lengthToCopy;
-              audioSourceBufferOffset += lengthToCopy;
-
-              // If audioAnalyzerBuffer is full, analyze it.
-              if (audioAnalyzerBufferOffset == audioAnalyzerBuffer.length) {
-                Double frequency = audioAnalyzer.detectFundamentalFrequency(audioAnalyzerBuffer);
-                long timestampMillis = clock.getNow();
-                if (frequency == null) {
-                  // Unable to detect frequency, likely due to low volume.
-                  c.addData(timestampMillis, 0);
-                } else if (isDrasticSpike(frequency)) {
-                  // Avoid drastic changes that show as spikes in the graph between notes
-                  // being played on an instrument. If the new value is more than 50%
-                  // different from the previous value, skip it.
-                  // Note that since we set previousFrequency to frequency below, we
-                  // will never skip two consecutive values.
-                  frequency = null;
-                } else {
-                  c.addData(timestampMillis, frequency);
-                }
-                previousFrequency = frequency;
+            analyzer.addSamples(audioSourceBuffer);
+          }
 
-                // Since we've analyzed that buffer, set the offset back to 0.
-                audioAnalyzerBufferOffset = 0;
-              }
+          private void onFrequencyDetected(Double frequency) {
+            long timestampMillis = clock.getNow();
+            if (frequency == null) {
+              // Unable to detect frequency, likely due to low volume.
+              c.addData(timestampMillis, 0);
+            } else if (isDrasticSpike(frequency)) {
+              // Avoid drastic changes that show as spikes in the graph between notes
+              // being played on an instrument. If the new value is more than 50%
+              // different from the previous value, skip it.
+              // Note that since we set previousFrequency to frequency below, we
+              // will never skip two consecutive values.
+              frequency = null;
+            } else {
+              c.addData(timestampMillis, frequency);
             }
+            previousFrequency = frequency;
           }
 
           private boolean isDrasticSpike(double frequency) {
@@ -28,13 +28,15 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -53,9 +55,29 @@ public class StubDataController implements DataController {
       MaybeConsumer<ScalarReadingList> onSuccess) {}
 
   @Override
-  public void getScalarReadingProtosInBackground(
+  public void getDownsampledScalarReadings(
+      String trialId,
+      String databaseTag,
+      TimeRange timeRange,
+      int targetPixels,
+      MaybeConsumer<ScalarReadingList> onSuccess) {}
+
+  @Override
+  public void getScalarStats(
+      String trialId,
+      String databaseTag,
+      TimeRange timeRange,
+      MaybeConsumer<ScalarStats> onSuccess) {}
+
+  @Override
+  public void writeScalarReadingProtosInBackground(
+      GoosciExperiment.Experiment experiment, File file, MaybeConsumer<Success> onSuccess) {}
+
+  @Override
+  public void writeScalarReadingProtosInBackground(
       GoosciExperiment.Experiment experiment,
-      MaybeConsumer<GoosciScalarSensorData.ScalarSensorData> onSuccess) {}
+      OutputStream outputStream,
+      MaybeConsumer<Success> onSuccess) {}
 
   @Override
   public Observable<ScalarReading> createScalarObservable(
@@ -63,6 +85,12 @@ public class StubDataController implements DataController {
     return null;
   }
 
+  @Override
+  public Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorIds, TimeRange timeRange, int resolutionTier) {
+    return null;
+  }
+
   @Override
   public void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess) {}
 
@@ -86,6 +114,9 @@ public class StubDataController implements DataController {
     onSuccess.success(e);
   }
 
+  @Override
+  public void preloadExperiment(String experimentId) {}
+
   @Override
   public void experimentExists(String experimentId, MaybeConsumer<Boolean> onSuccess) {
     onSuccess.success(true);
@@ -0,0 +1,449 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory DriveApi, for testing sync without a network. Every call waits for a configurable
+ * latency, to simulate a round trip to Drive, and calls can be made to fail.
+ */
+public class MemoryDriveApi implements DriveApi {
+  private static final String EXPERIMENT_PROTO_FILE = "experiment.proto";
+
+  private static class StoredFile implements DriveFile {
+    final String id;
+    final String title;
+    byte[] contents = new byte[0];
+    long version;
+
+    StoredFile(String id, String title) {
+      this.id = id;
+      this.title = title;
+    }
+
+    @Override
+    public long getVersion() {
+      return version;
+    }
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public String getTitle() {
+      return title;
+    }
+  }
+
+  private final Map<String, StoredFile> files = new HashMap<>();
+  // Package ID to the IDs of the files in it, by title.
+  private final Map<String, Map<String, String>> packages = new HashMap<>();
+  private final Set<String> trashed = new HashSet<>();
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger callsInProgress = new AtomicInteger();
+  private final AtomicInteger maxCallsInProgress = new AtomicInteger();
+  private final AtomicInteger failuresToSimulate = new AtomicInteger();
+  private volatile long latencyMs;
+  private String libraryFileId;
+  private String sjFolderId;
+  private int nextId;
+
+  /** Makes every call take at least {@code latencyMs}. */
+  public void setLatencyMs(long latencyMs) {
+    this.latencyMs = latencyMs;
+  }
+
+  /** Makes the next {@code count} calls fail, as if Drive couldn't be reached. */
+  public void failNextCalls(int count) {
+    failuresToSimulate.set(count);
+  }
+
+  /** The number of calls made so far, including ones that failed. */
+  public int getCallCount() {
+    return calls.get();
+  }
+
+  /** The most calls that were ever in progress at once. */
+  public int getMaxCallsInProgress() {
+    return maxCallsInProgress.get();
+  }
+
+  /** Adds an experiment package, with an experiment proto in it, and returns the package ID. */
+  public synchronized String addExperimentPackage(GoosciExperiment.Experiment experiment) {
+    String packageId = newPackage();
+    putFile(packageId, EXPERIMENT_PROTO_FILE, experiment.toByteArray());
+    return packageId;
+  }
+
+  /** Adds a file to a package, and returns its ID. */
+  public synchronized String putFile(String packageId, String title, byte[] contents) {
+    String fileId = packages.get(packageId).get(title);
+    StoredFile file = fileId == null ? null : files.get(fileId);
+    if (file == null) {
+      file = new StoredFile(newId(), title);
+      files.put(file.id, file);
+      packages.get(packageId).put(title, file.id);
+    }
+    file.contents = contents;
+    file.version++;
+    files.get(packageId).version++;
+    return file.id;
+  }
+
+  /** The contents of the file with {@code title} in a package, or null if there isn't one. */
+  public synchronized byte[] getFile(String packageId, String title) {
+    String fileId = packages.get(packageId).get(title);
+    return fileId == null ? null : files.get(fileId).contents;
+  }
+
+  @Override
+  public DriveApi init(
+      HttpTransport transport,
+      JsonFactory jsonFactory,
+      AppAccount appAccount,
+      Context applicationContext) {
+    return this;
+  }
+
+  @Override
+  public GoosciExperimentLibrary.ExperimentLibrary downloadExperimentLibraryFile(String fileId)
+      throws IOException {
+    return GoosciExperimentLibrary.ExperimentLibrary.parseFrom(download(fileId));
+  }
+
+  @Override
+  public GoosciExperiment.Experiment downloadExperimentProtoFile(String fileId)
+      throws IOException {
+    return GoosciExperiment.Experiment.parseFrom(download(fileId));
+  }
+
+  @Override
+  public String getRemoteExperimentLibraryFileId() throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return libraryFileId;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public void insertExperimentLibraryFile(File libraryFile) throws IOException {
+    byte[] contents = readFile(libraryFile);
+    startCall();
+    try {
+      synchronized (this) {
+        StoredFile file = new StoredFile(newId(), libraryFile.getName());
+        file.contents = contents;
+        file.version = 1;
+        files.put(file.id, file);
+        libraryFileId = file.id;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public void updateExperimentLibraryFile(File libraryFile, String fileId) throws IOException {
+    byte[] contents = readFile(libraryFile);
+    startCall();
+    try {
+      synchronized (this) {
+        StoredFile file = getStoredFile(fileId);
+        file.contents = contents;
+        file.version++;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public File downloadExperimentAsset(String packageId, File experimentDirectory, String fileName)
+      throws IOException {
+    File outputFile = new File(experimentDirectory, fileName);
+    byte[] contents;
+    startCall();
+    try {
+      contents = getFile(packageId, outputFile.getName());
+    } finally {
+      endCall();
+    }
+    if (contents != null) {
+      outputFile.getParentFile().mkdirs();
+      try (OutputStream out = new FileOutputStream(outputFile)) {
+        out.write(contents);
+      }
+    }
+    return outputFile;
+  }
+
+  @Override
+  public String getExperimentPackageId(Context context, String directoryId) throws IOException {
+    startCall();
+    try {
+      return newPackage();
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public boolean getFileExists(String fileId) throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return files.containsKey(fileId) && !trashed.contains(fileId);
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public Map<String, Long> getAllDriveExperimentVersions() throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        Map<String, Long> versions = new HashMap<>();
+        for (String packageId : packages.keySet()) {
+          if (!trashed.contains(packageId)) {
+            versions.put(packageId, files.get(packageId).version);
+          }
+        }
+        return versions;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public DriveFile getExperimentProtoMetadata(String packageId) throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        Map<String, String> packageFiles = packages.get(packageId);
+        String fileId = packageFiles == null ? null : packageFiles.get(EXPERIMENT_PROTO_FILE);
+        return fileId == null ? null : files.get(fileId);
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public long insertExperimentProto(File localFile, String packageId, String experimentTitle)
+      throws IOException {
+    return upload(localFile, packageId, EXPERIMENT_PROTO_FILE);
+  }
+
+  @Override
+  public long updateExperimentProto(
+      File localFile,
+      DriveFile serverExperimentProtoMetadata,
+      String packageId,
+      String experimentTitle)
+      throws IOException {
+    return upload(localFile, packageId, EXPERIMENT_PROTO_FILE);
+  }
+
+  @Override
+  public String createNewSJFolder() throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        StoredFile folder = new StoredFile(newId(), "Science Journal");
+        files.put(folder.id, folder);
+        sjFolderId = folder.id;
+        return sjFolderId;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public void trashFileById(String fileId) throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        trashed.add(fileId);
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public void uploadFile(File localFile, String packageId) throws IOException {
+    upload(localFile, packageId, localFile.getName());
+  }
+
+  @Override
+  public int getPackageVersion(String packageId) throws IOException {
+    startCall();
+    try {
+      return 1;
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public long getFileVersion(String fileId) throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return getStoredFile(fileId).version;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public boolean sjFolderExists() throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return sjFolderId != null;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  @Override
+  public int countSJExperiments() throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return packages.size();
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  private void startCall() throws IOException {
+    calls.incrementAndGet();
+    int inProgress = callsInProgress.incrementAndGet();
+    int max;
+    while (inProgress > (max = maxCallsInProgress.get())) {
+      maxCallsInProgress.compareAndSet(max, inProgress);
+    }
+    try {
+      if (latencyMs > 0) {
+        Thread.sleep(latencyMs);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      callsInProgress.decrementAndGet();
+      throw new IOException("Interrupted");
+    }
+    if (failuresToSimulate.getAndDecrement() > 0) {
+      callsInProgress.decrementAndGet();
+      throw new IOException("Simulated network error");
+    }
+  }
+
+  private void endCall() {
+    callsInProgress.decrementAndGet();
+  }
+
+  private byte[] download(String fileId) throws IOException {
+    startCall();
+    try {
+      synchronized (this) {
+        return getStoredFile(fileId).contents;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  private long upload(File localFile, String packageId, String title) throws IOException {
+    byte[] contents = readFile(localFile);
+    startCall();
+    try {
+      synchronized (this) {
+        putFile(packageId, title, contents);
+        return files.get(packageId).version;
+      }
+    } finally {
+      endCall();
+    }
+  }
+
+  private StoredFile getStoredFile(String fileId) throws FileNotFoundException {
+    StoredFile file = files.get(fileId);
+    if (file == null) {
+      throw new FileNotFoundException("No file " + fileId);
+    }
+    return file;
+  }
+
+  private synchronized String newPackage() {
+    StoredFile packageFile = new StoredFile(newId(), "Experiment");
+    packageFile.version = 1;
+    files.put(packageFile.id, packageFile);
+    packages.put(packageFile.id, new HashMap<>());
+    return packageFile.id;
+  }
+
+  private synchronized String newId() {
+    return "drive-file-" + (++nextId);
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] contents = new byte[(int) file.length()];
+    try (InputStream in = new FileInputStream(file)) {
+      int read = 0;
+      while (read < contents.length) {
+        int count = in.read(contents, read, contents.length - read);
+        if (count < 0) {
+          break;
+        }
+        read += count;
+      }
+    }
+    return contents;
+  }
+}
@@ -17,6 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.Clock;
@@ -35,15 +36,21 @@ import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.common.collect.Range;
 import com.google.common.util.concurrent.MoreExecutors;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class InMemorySensorDatabase implements SensorDatabase {
   private List<List<Reading>> readings = new ArrayList<>();
+  private List<StatsBucket> statsBuckets = new ArrayList<>();
 
   public static DataControllerImpl makeSimpleController() {
     return new InMemorySensorDatabase().makeSimpleController(new MemoryMetadataManager());
@@ -140,6 +147,94 @@ public class InMemorySensorDatabase implements SensorDatabase {
     };
   }
 
+  @Override
+  public ScalarReadingList getDownsampledScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int targetPixels) {
+    return ScalarDownsampler.downsample(this, trialId, sensorTag, range, targetPixels);
+  }
+
+  @Override
+  public void addScalarStatsBucket(
+      String trialId,
+      String sensorTag,
+      int resolutionTier,
+      long bucketStartMillis,
+      ScalarStats stats) {
+    statsBuckets.add(
+        new StatsBucket(
+            trialId,
+            sensorTag,
+            resolutionTier,
+            new ScalarStatsQuery.Bucket(bucketStartMillis, stats)));
+  }
+
+  @Override
+  public ScalarStats getScalarStats(String trialId, String sensorTag, TimeRange range) {
+    ScalarStatsQuery.BucketSource source =
+        new ScalarStatsQuery.BucketSource() {
+          @Override
+          public int getTopStatsTier(String trialId, String sensorTag) {
+            int top = 0;
+            for (StatsBucket bucket : statsBuckets) {
+              if (bucket.isFrom(trialId, sensorTag)) {
+                top = Math.max(top, bucket.resolutionTier);
+              }
+            }
+            return top;
+          }
+
+          @Override
+          public List<ScalarStatsQuery.Bucket> getStatsBuckets(
+              String trialId,
+              String sensorTag,
+              int resolutionTier,
+              long startMillis,
+              long endMillis) {
+            List<ScalarStatsQuery.Bucket> result = new ArrayList<>();
+            for (StatsBucket bucket : statsBuckets) {
+              if (bucket.isFrom(trialId, sensorTag)
+                  && bucket.resolutionTier == resolutionTier
+                  && bucket.bucket.startMillis >= startMillis
+                  && bucket.bucket.getEndMillis() <= endMillis) {
+                result.add(bucket.bucket);
+              }
+            }
+            Collections.sort(result, (a, b) -> Long.compare(a.startMillis, b.startMillis));
+            return result;
+          }
+        };
+    return new ScalarStatsQuery(this, source, trialId, sensorTag).getStats(range);
+  }
+
+  public List<ScalarStats> getStatsBuckets(int resolutionTier) {
+    List<ScalarStats> result = new ArrayList<>();
+    for (StatsBucket bucket : statsBuckets) {
+      if (bucket.resolutionTier == resolutionTier) {
+        result.add(bucket.bucket.stats);
+      }
+    }
+    return result;
+  }
+
+  private static class StatsBucket {
+    final String trialId;
+    final String sensorTag;
+    final int resolutionTier;
+    final ScalarStatsQuery.Bucket bucket;
+
+    StatsBucket(
+        String trialId, String sensorTag, int resolutionTier, ScalarStatsQuery.Bucket bucket) {
+      this.trialId = trialId;
+      this.sensorTag = sensorTag;
+      this.resolutionTier = resolutionTier;
+      this.bucket = bucket;
+    }
+
+    boolean isFrom(String trialId, String sensorTag) {
+      return Objects.equals(this.trialId, trialId) && Objects.equals(this.sensorTag, sensorTag);
+    }
+  }
+
   @Override
   public GoosciScalarSensorData.ScalarSensorData getScalarReadingProtos(Experiment experiment) {
     GoosciScalarSensorData.ScalarSensorData.Builder data =
@@ -185,6 +280,20 @@ public class InMemorySensorDatabase implements SensorDatabase {
         .build();
   }
 
+  @Override
+  public void writeScalarReadingProtos(
+      Experiment experiment, @Nullable String trialId, OutputStream out) throws IOException {
+    GoosciScalarSensorData.ScalarSensorData data =
+        trialId == null
+            ? getScalarReadingProtos(experiment)
+            : getScalarReadingProtosForTrial(experiment, trialId);
+    ScalarSensorDataWriter writer = new ScalarSensorDataWriter(out);
+    for (ScalarSensorDataDump dump : data.getSensorsList()) {
+      writer.writeDump(dump);
+    }
+    writer.finish();
+  }
+
   public ScalarSensorDataDump getScalarReadingSensorProtos(String sensorTag, TimeRange range) {
     com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData
             .ScalarSensorDataDump.Builder
@@ -227,7 +336,58 @@ public class InMemorySensorDatabase implements SensorDatabase {
   @Override
   public Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
-    return null;
+    return createScalarFlowable(trialId, sensorTags, range, resolutionTier).toObservable();
+  }
+
+  @Override
+  public Flowable<ScalarReading> createScalarFlowable(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+    boolean newestFirst = range.getOrder() == TimeRange.ObservationOrder.NEWEST_FIRST;
+    return ScalarSeriesMerge.merge(
+        sensorTags,
+        newestFirst,
+        tag -> {
+          List<Reading> matching = new ArrayList<>();
+          for (Reading reading : getReadings(resolutionTier)) {
+            if (reading.getDatabaseTag().equals(tag)
+                && reading.getTrialId().equals(trialId)
+                && range.getTimes().contains(reading.getTimestampMillis())) {
+              matching.add(reading);
+            }
+          }
+          Comparator<Reading> byTime = Comparator.comparingLong(Reading::getTimestampMillis);
+          Collections.sort(matching, newestFirst ? byTime.reversed() : byTime);
+          return new ListSeries(matching);
+        });
+  }
+
+  private static class ListSeries implements ScalarSeriesMerge.Series {
+    private final List<Reading> readings;
+    private int position = 0;
+
+    ListSeries(List<Reading> readings) {
+      this.readings = readings;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < readings.size();
+    }
+
+    @Override
+    public long peekTimestamp() {
+      return readings.get(position).getTimestampMillis();
+    }
+
+    @Override
+    public double peekValue() {
+      return readings.get(position).getValue();
+    }
+
+    @Override
+    public void advance() {
+      position++;
+    }
   }
 
   public List<Reading> getReadings(int resolutionTier) {
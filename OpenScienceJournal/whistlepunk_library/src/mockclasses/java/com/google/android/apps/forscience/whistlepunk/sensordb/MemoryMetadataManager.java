@@ -58,6 +58,11 @@ public class MemoryMetadataManager implements MetaDataManager {
     return null;
   }
 
+  @Override
+  public void preloadExperiment(String experimentId) {
+    // Nothing to load; every experiment is in memory.
+  }
+
   @Override
   public Experiment newExperiment() {
     long timestamp = System.currentTimeMillis();
@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.util.Locale;
+import org.junit.Assume;
+
+/**
+ * Support for wall-clock benchmarks. Their numbers depend on the machine, so they are skipped
+ * unless the tests are run with {@code -Dbenchmarks=true}, for example:
+ *
+ * <pre>./gradlew :whistlepunk_library:testDebugUnitTest --tests '*.benchmark*' -Dbenchmarks=true
+ * </pre>
+ *
+ * <p>Each benchmark is a test named {@code benchmark...} in the test class of the code it measures,
+ * next to its fixtures and reference implementations, which starts with {@link #assumeEnabled}.
+ */
+public class Benchmarks {
+  private static final String PROPERTY = "benchmarks";
+
+  private Benchmarks() {}
+
+  /** Skips the calling test unless benchmarks were asked for. */
+  public static void assumeEnabled() {
+    Assume.assumeTrue(Boolean.getBoolean(PROPERTY));
+  }
+
+  public static double megabytesPerSecond(long bytes, long nanos) {
+    return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+  }
+
+  /** Prints one line of a benchmark's results, if benchmarks were asked for. */
+  public static void report(String format, Object... args) {
+    if (Boolean.getBoolean(PROPERTY)) {
+      System.out.println(String.format(Locale.US, format, args));
+    }
+  }
+}
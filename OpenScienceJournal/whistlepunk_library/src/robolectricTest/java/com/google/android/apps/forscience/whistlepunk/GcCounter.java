@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Counts garbage collections seen by benchmarks, by watching for a weakly held object to be
+ * cleared. Tests compile against the Android API, which has no java.lang.management, so this
+ * stands in for the JVM's collection counts. A collection is only noticed at the next {@link
+ * #poll}, and several between two polls count as one, so poll often, e.g. once per frame.
+ */
+public class GcCounter {
+  private WeakReference<Object> sentinel = new WeakReference<>(new Object());
+  private int collections = 0;
+
+  /** Checks whether a collection has happened since the last poll. */
+  public void poll() {
+    if (sentinel.get() == null) {
+      collections++;
+      sentinel = new WeakReference<>(new Object());
+    }
+  }
+
+  public int getCollections() {
+    poll();
+    return collections;
+  }
+}
@@ -21,12 +21,21 @@ import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorAppearanc
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 class ManualSensorRegistry extends SensorRegistry {
   private Map<String, String> sensorNames = new ArrayMap<>();
 
   public ManualSensor addSensor(String id, String name) {
-    ManualSensor sensor = new ManualSensor(id, 100, 100);
+    return addSensor(id, name, new ManualSensor(id, 100, 100));
+  }
+
+  /** Adds a sensor whose readings are delivered to observers through {@code uiThreadExecutor}. */
+  public ManualSensor addSensor(String id, String name, Executor uiThreadExecutor) {
+    return addSensor(id, name, new ManualSensor(id, 100, 100, uiThreadExecutor));
+  }
+
+  private ManualSensor addSensor(String id, String name, ManualSensor sensor) {
     addBuiltInSensor(sensor);
     sensorNames.put(id, name);
     return sensor;
@@ -0,0 +1,389 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PrioritySensorDataSchedulerTest {
+  private static final int LANES = 4;
+
+  private final PrioritySensorDataScheduler scheduler = new PrioritySensorDataScheduler(2);
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  /** Blocks the writer thread until the returned latch is counted down. */
+  private CountDownLatch blockWriter() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    scheduler
+        .forLane("blocker")
+        .execute(
+            () -> {
+              started.countDown();
+              await(release);
+            });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return release;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void writesInEachLaneRunInOrder() throws Exception {
+    int writesPerLane = 2000;
+    List<List<Integer>> written = new ArrayList<>();
+    for (int lane = 0; lane < LANES; lane++) {
+      written.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    CountDownLatch done = new CountDownLatch(LANES * writesPerLane);
+    // Each lane is written from its own thread, all at once.
+    List<Thread> writers = new ArrayList<>();
+    for (int lane = 0; lane < LANES; lane++) {
+      List<Integer> laneWritten = written.get(lane);
+      String laneName = "sensor" + lane;
+      writers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < writesPerLane; i++) {
+                  int index = i;
+                  scheduler
+                      .forLane(laneName)
+                      .execute(
+                          () -> {
+                            laneWritten.add(index);
+                            done.countDown();
+                          });
+                }
+              }));
+    }
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> laneWritten : written) {
+      assertEquals(writesPerLane, laneWritten.size());
+      for (int i = 0; i < writesPerLane; i++) {
+        assertEquals(i, (int) laneWritten.get(i));
+      }
+    }
+    assertEquals(0, scheduler.getPendingWriteCount());
+  }
+
+  @Test
+  public void seriesStayInOrderThroughDataController() throws Exception {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    DataControllerImpl dc =
+        new DataControllerImpl(
+            null, // context
+            null, // appAccount
+            db,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            scheduler,
+            null, // metaDataManager
+            null, // clock
+            new HashMap<>(),
+            null, // connector
+            null); // writeQueue
+    // Batches that interleave three sensors, as a zoom recorder's tiers would.
+    for (int batch = 0; batch < 50; batch++) {
+      List<BatchInsertScalarReading> readings = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        long timestamp = batch * 100 + i;
+        for (int sensor = 0; sensor < 3; sensor++) {
+          readings.add(new BatchInsertScalarReading("trial", "s" + sensor, 0, timestamp, i));
+        }
+      }
+      dc.addScalarReadings(readings);
+    }
+
+    for (int sensor = 0; sensor < 3; sensor++) {
+      ScalarReadingList[] result = new ScalarReadingList[1];
+      CountDownLatch read = new CountDownLatch(1);
+      // Submitted after all the writes, so it runs after them.
+      dc.getScalarReadings(
+          "trial",
+          "s" + sensor,
+          0,
+          TimeRange.oldest(Range.all()),
+          0,
+          new LoggingConsumer<ScalarReadingList>("test", "read") {
+            @Override
+            public void success(ScalarReadingList value) {
+              result[0] = value;
+              read.countDown();
+            }
+          });
+      assertTrue(read.await(5, TimeUnit.SECONDS));
+      List<ChartData.DataPoint> points = result[0].asDataPoints();
+      assertEquals(5000, points.size());
+      for (int i = 0; i < 5000; i++) {
+        assertEquals(i, points.get(i).getX());
+      }
+    }
+  }
+
+  @Test
+  public void liveWritesRunBeforeBackgroundWrites() throws Exception {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(3);
+    CountDownLatch release = blockWriter();
+    scheduler
+        .forBackgroundWrites()
+        .execute(
+            () -> {
+              order.add("delete");
+              done.countDown();
+            });
+    scheduler
+        .forLane("a")
+        .execute(
+            () -> {
+              order.add("a");
+              done.countDown();
+            });
+    scheduler
+        .forLane("b")
+        .execute(
+            () -> {
+              order.add("b");
+              done.countDown();
+            });
+    release.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a", "b", "delete"), order);
+  }
+
+  @Test
+  public void readsSeeEarlierWrites() throws Exception {
+    AtomicBoolean written = new AtomicBoolean(false);
+    AtomicBoolean sawWrite = new AtomicBoolean(false);
+    CountDownLatch read = new CountDownLatch(1);
+    scheduler
+        .forBackgroundWrites()
+        .execute(
+            () -> {
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              written.set(true);
+            });
+    scheduler
+        .forReads()
+        .execute(
+            () -> {
+              sawWrite.set(written.get());
+              read.countDown();
+            });
+
+    assertTrue(read.await(5, TimeUnit.SECONDS));
+    assertTrue(sawWrite.get());
+  }
+
+  @Test
+  public void writesDontWaitForReads() throws Exception {
+    CountDownLatch readStarted = new CountDownLatch(1);
+    CountDownLatch releaseRead = new CountDownLatch(1);
+    CountDownLatch written = new CountDownLatch(1);
+    scheduler
+        .forReads()
+        .execute(
+            () -> {
+              readStarted.countDown();
+              await(releaseRead);
+            });
+    assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+    scheduler.forLane("a").execute(written::countDown);
+
+    // Written while the read is still running.
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    releaseRead.countDown();
+  }
+
+  @Test
+  public void readsRunBeforeBackgroundReads() throws Exception {
+    PrioritySensorDataScheduler oneReader = new PrioritySensorDataScheduler(1);
+    try {
+      List<String> order = Collections.synchronizedList(new ArrayList<>());
+      CountDownLatch readStarted = new CountDownLatch(1);
+      CountDownLatch releaseRead = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      oneReader
+          .forReads()
+          .execute(
+              () -> {
+                readStarted.countDown();
+                await(releaseRead);
+              });
+      assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+      oneReader
+          .forBackgroundReads()
+          .execute(
+              () -> {
+                order.add("export");
+                done.countDown();
+              });
+      oneReader
+          .forReads()
+          .execute(
+              () -> {
+                order.add("chart");
+                done.countDown();
+              });
+      releaseRead.countDown();
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(Arrays.asList("chart", "export"), order);
+    } finally {
+      oneReader.shutdown();
+    }
+  }
+
+  /** Percentiles of the latencies of a benchmark's writes, in nanoseconds. */
+  private static class LatencyPercentiles {
+    final long p50;
+    final long p95;
+    final long p99;
+
+    LatencyPercentiles(long[] latencies) {
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      p50 = percentile(sorted, 50);
+      p95 = percentile(sorted, 95);
+      p99 = percentile(sorted, 99);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+      return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+  }
+
+  /**
+   * Compares how long live writes wait while review queries run at the same time, with everything
+   * on one thread (as before) and with this scheduler. Writes come every 2 ms and take about 0.2
+   * ms; a query comes every 20 ms and takes 15 ms, like a chart loading a long trial. Only run when
+   * asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkWriteLatencyWhileReviewing() throws Exception {
+    Benchmarks.assumeEnabled();
+    LatencyPercentiles oneThread;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      oneThread =
+          new LatencyPercentiles(measureWriteLatencies(new SerialSensorDataScheduler(executor)));
+    } finally {
+      executor.shutdown();
+    }
+    LatencyPercentiles prioritized = new LatencyPercentiles(measureWriteLatencies(scheduler));
+    reportLatencies("one thread", oneThread);
+    reportLatencies("prioritized", prioritized);
+    assertTrue(prioritized.p99 < oneThread.p99);
+  }
+
+  private static void reportLatencies(String name, LatencyPercentiles latencies) {
+    Benchmarks.report(
+        "Write latency while reviewing, %s: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms",
+        name,
+        latencies.p50 / 1e6,
+        latencies.p95 / 1e6,
+        latencies.p99 / 1e6);
+  }
+
+  private static long[] measureWriteLatencies(SensorDataScheduler scheduler) throws Exception {
+    int writes = 500;
+    long[] latencies = new long[writes];
+    CountDownLatch written = new CountDownLatch(writes);
+    AtomicBoolean reviewing = new AtomicBoolean(true);
+    Thread reviewer =
+        new Thread(
+            () -> {
+              while (reviewing.get()) {
+                scheduler.forReads().execute(() -> sleep(15));
+                sleep(20);
+              }
+            });
+    reviewer.start();
+    try {
+      for (int i = 0; i < writes; i++) {
+        int index = i;
+        long submitted = System.nanoTime();
+        scheduler
+            .forLane("sensor" + (i % LANES))
+            .execute(
+                () -> {
+                  long end = System.nanoTime() + 200_000;
+                  while (System.nanoTime() < end) {
+                    // Busy, like a small insert.
+                  }
+                  latencies[index] = System.nanoTime() - submitted;
+                  written.countDown();
+                });
+        sleep(2);
+      }
+      assertTrue(written.await(30, TimeUnit.SECONDS));
+    } finally {
+      reviewing.set(false);
+      reviewer.join();
+    }
+    return latencies;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
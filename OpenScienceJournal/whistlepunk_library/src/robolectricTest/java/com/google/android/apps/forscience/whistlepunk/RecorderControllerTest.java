@@ -37,7 +37,7 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorLayoutP
 import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerActionType;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerAlertType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerWhen;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSnapshotValue;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSnapshotValue.SnapshotLabelValue.SensorSnapshot;
@@ -51,9 +51,11 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import io.reactivex.Maybe;
 import io.reactivex.Single;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -153,7 +155,7 @@ public class RecorderControllerTest {
 
   @Test
   public void delayStopObserving() {
-    TestTrigger trigger = new TestTrigger(sensorId);
+    SensorTrigger trigger = newVisualAlertTrigger(TriggerWhen.TRIGGER_WHEN_ABOVE, -1);
     ArrayList<SensorTrigger> triggerList = Lists.<SensorTrigger>newArrayList(trigger);
     RecorderControllerImpl rc =
         new RecorderControllerImpl(
@@ -166,6 +168,7 @@ public class RecorderControllerTest {
             scheduler,
             Delay.seconds(15),
             new FakeUnitAppearanceProvider());
+    List<SensorTrigger> fired = recordFiredTriggers(rc);
     String observeId1 =
         rc.startObserving(
             sensorId,
@@ -197,10 +200,11 @@ public class RecorderControllerTest {
     scheduler.incrementTime(30000);
     assertTrue(sensor.isObserving());
 
-    // And we have correctly picked up the new trigger list.
-    trigger.clearTestCount();
+    // And we have correctly picked up the new trigger list. The first value only initializes it.
     sensor.pushValue(0, 0);
-    assertEquals(1, trigger.getTestCount());
+    sensor.pushValue(1, 0);
+    assertEquals(1, fired.size());
+    assertEquals(trigger, fired.get(0));
 
     // Finally, after appropriate delay, sensor stops.
     rc.stopObserving(sensorId, observeId2);
@@ -209,6 +213,116 @@ public class RecorderControllerTest {
     assertFalse(sensor.isObserving());
   }
 
+  @Test
+  public void triggerHysteresisKeepsNoiseFromFiringRepeatedly() {
+    RecorderControllerImpl rc =
+        new RecorderControllerImpl(
+            null,
+            getAppAccount(),
+            environment,
+            new RecorderListenerRegistry(),
+            null,
+            null,
+            scheduler,
+            Delay.ZERO,
+            new FakeUnitAppearanceProvider());
+    List<SensorTrigger> fired = recordFiredTriggers(rc);
+    SensorTrigger steady = newVisualAlertTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    steady.setHysteresis(1);
+    SensorTrigger noisy = newVisualAlertTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    rc.startObserving(
+        sensorId,
+        Lists.newArrayList(steady, noisy),
+        new RecordingSensorObserver(),
+        new RecordingStatusListener(),
+        null,
+        sensorRegistry);
+
+    // Noise around the trigger value crosses it on every other reading.
+    for (int i = 0; i < 100; i++) {
+      sensor.pushValue(i, i % 2 == 0 ? 9.7 : 10.3);
+    }
+    assertEquals(1, Collections.frequency(fired, steady));
+    assertEquals(50, Collections.frequency(fired, noisy));
+
+    // Going back below the hysteresis band lets it fire again.
+    sensor.pushValue(100, 8.5);
+    sensor.pushValue(101, 10.5);
+    assertEquals(2, Collections.frequency(fired, steady));
+  }
+
+  @Test
+  public void triggerDebounceLimitsFiring() {
+    RecorderControllerImpl rc =
+        new RecorderControllerImpl(
+            null,
+            getAppAccount(),
+            environment,
+            new RecorderListenerRegistry(),
+            null,
+            null,
+            scheduler,
+            Delay.ZERO,
+            new FakeUnitAppearanceProvider());
+    List<SensorTrigger> fired = recordFiredTriggers(rc);
+    SensorTrigger trigger = newVisualAlertTrigger(TriggerWhen.TRIGGER_WHEN_ABOVE, 10);
+    trigger.setDebounceMs(1000);
+    rc.startObserving(
+        sensorId,
+        Lists.newArrayList(trigger),
+        new RecordingSensorObserver(),
+        new RecordingStatusListener(),
+        null,
+        sensorRegistry);
+
+    // Above the trigger value every 10 ms for 3 seconds.
+    for (int i = 0; i <= 300; i++) {
+      sensor.pushValue(i * 10, 11);
+    }
+    assertEquals(3, fired.size());
+  }
+
+  @Test
+  public void triggerFiresWhenUiFallsBehind() {
+    // Nothing is delivered to observers until the UI thread is drained below.
+    Queue<Runnable> uiThread = new ArrayDeque<>();
+    ManualSensor slowSensor = sensorRegistry.addSensor("slowSensorId", "slow", uiThread::add);
+    RecorderControllerImpl rc =
+        new RecorderControllerImpl(
+            null,
+            getAppAccount(),
+            environment,
+            new RecorderListenerRegistry(),
+            null,
+            null,
+            scheduler,
+            Delay.ZERO,
+            new FakeUnitAppearanceProvider());
+    List<SensorTrigger> fired = recordFiredTriggers(rc);
+    SensorTrigger trigger = newVisualAlertTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    RecordingSensorObserver observer = new RecordingSensorObserver();
+    rc.startObserving(
+        "slowSensorId",
+        Lists.newArrayList(trigger),
+        observer,
+        new RecordingStatusListener(),
+        null,
+        sensorRegistry);
+
+    // Far more readings than the UI is buffered for, with one crossing in the middle.
+    int readings = 5000;
+    for (int i = 0; i < readings; i++) {
+      slowSensor.pushValue(i, i == readings / 2 ? 20 : 0);
+    }
+    assertEquals(1, fired.size());
+    assertEquals(trigger, fired.get(0));
+
+    while (!uiThread.isEmpty()) {
+      uiThread.remove().run();
+    }
+    assertTrue(observer.getReadings().size() < readings);
+  }
+
   @Test
   public void dontScheduleIfDelayIs0() {
     RecorderControllerImpl rc =
@@ -549,30 +663,27 @@ public class RecorderControllerTest {
         .build();
   }
 
-  private class TestTrigger extends SensorTrigger {
-    int testCount = 0;
+  private SensorTrigger newVisualAlertTrigger(TriggerWhen when, double value) {
+    return SensorTrigger.newAlertTypeTrigger(
+        sensorId, when, Collections.singleton(TriggerAlertType.TRIGGER_ALERT_VISUAL), value);
+  }
 
-    public TestTrigger(String sensorId) {
-      super(
-          sensorId,
-          TriggerWhen.TRIGGER_WHEN_AT,
-          TriggerActionType.TRIGGER_ACTION_START_RECORDING,
-          0);
-    }
+  private static List<SensorTrigger> recordFiredTriggers(RecorderControllerImpl rc) {
+    List<SensorTrigger> fired = new ArrayList<>();
+    rc.addTriggerFiredListener(
+        new RecorderController.TriggerFiredListener() {
+          @Override
+          public void onTriggerFired(SensorTrigger trigger) {
+            fired.add(trigger);
+          }
 
-    public void clearTestCount() {
-      testCount = 0;
-    }
+          @Override
+          public void onRequestStartRecording() {}
 
-    public int getTestCount() {
-      return testCount;
-    }
-
-    @Override
-    public boolean isTriggered(double newValue) {
-      testCount++;
-      return false;
-    }
+          @Override
+          public void onRequestStopRecording(RecorderController rc) {}
+        });
+    return fired;
   }
 
   private static Context getContext() {
@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Looper;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScalarReadingWriteQueueTest {
+  private final MockScheduler scheduler = new MockScheduler();
+  private final ExplicitExecutor storageThread = new ExplicitExecutor();
+  private final CountingDatabase db = new CountingDatabase();
+
+  private static class CountingDatabase extends InMemorySensorDatabase {
+    final List<Integer> batchSizes = new ArrayList<>();
+
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      batchSizes.add(readings.size());
+      super.addScalarReadings(readings);
+    }
+  }
+
+  private ScalarReadingWriteQueue makeQueue(int maxBatchSize, long maxDelayMillis) {
+    return new ScalarReadingWriteQueue(
+        db,
+        storageThread,
+        scheduler,
+        scheduler.getClock(),
+        PerfTrackerProvider.STUB,
+        maxBatchSize,
+        Delay.millis(maxDelayMillis));
+  }
+
+  @Test
+  public void commitsWhenBatchIsFull() {
+    ScalarReadingWriteQueue queue = makeQueue(3, 1000);
+    queue.add("trial", "a", 0, 1, 1.0);
+    queue.add("trial", "b", 0, 2, 2.0);
+    storageThread.drain();
+    assertEquals(0, db.getReadings(0).size());
+
+    queue.add("trial", "a", 1, 3, 3.0);
+    storageThread.drain();
+    assertEquals(2, db.getReadings(0).size());
+    assertEquals(1, db.getReadings(1).size());
+    assertEquals(1, db.batchSizes.size());
+    assertEquals(3, (int) db.batchSizes.get(0));
+  }
+
+  @Test
+  public void commitsAfterDelay() {
+    ScalarReadingWriteQueue queue = makeQueue(100, 1000);
+    queue.add("trial", "a", 0, 1, 1.0);
+    scheduler.incrementTime(500);
+    queue.add("trial", "a", 0, 2, 2.0);
+    storageThread.drain();
+    assertEquals(0, db.getReadings(0).size());
+
+    scheduler.incrementTime(500);
+    storageThread.drain();
+    assertEquals(2, db.getReadings(0).size());
+    assertEquals(1, db.batchSizes.size());
+  }
+
+  @Test
+  public void flushCommitsEverythingInOneTransaction() {
+    ScalarReadingWriteQueue queue = makeQueue(100, 1000);
+    for (int i = 0; i < 10; i++) {
+      queue.add("trial", "a", 0, i, i);
+    }
+    queue.flush();
+    // A second flush before the first one runs doesn't queue another task
+    queue.flush();
+    storageThread.drain();
+    assertEquals(10, db.getReadings(0).size());
+    assertEquals(1, db.batchSizes.size());
+  }
+
+  @Test
+  public void readingsAddedWhileWaitingJoinTheSameBatch() {
+    ScalarReadingWriteQueue queue = makeQueue(2, 1000);
+    queue.add("trial", "a", 0, 1, 1.0);
+    queue.add("trial", "a", 0, 2, 2.0);
+    // Batch is full, but the storage thread hasn't gotten to it yet.
+    queue.add("trial", "a", 0, 3, 3.0);
+    queue.add("trial", "a", 0, 4, 4.0);
+    queue.add("trial", "a", 0, 5, 5.0);
+    assertEquals(5, queue.getMetrics().getQueueDepth());
+
+    storageThread.drain();
+    assertEquals(5, db.getReadings(0).size());
+    assertEquals(1, db.batchSizes.size());
+  }
+
+  @Test
+  public void metrics() {
+    ScalarReadingWriteQueue queue = makeQueue(2, 1000);
+    queue.add("trial", "a", 0, 1, 1.0);
+    queue.add("trial", "a", 0, 2, 2.0);
+    storageThread.drain();
+    queue.add("trial", "a", 0, 3, 3.0);
+    queue.flush();
+    storageThread.drain();
+
+    ScalarReadingWriteQueue.Metrics metrics = queue.getMetrics();
+    assertEquals(0, metrics.getQueueDepth());
+    assertEquals(2, metrics.getMaxQueueDepth());
+    assertEquals(2, metrics.getCommitCount());
+    assertEquals(3, metrics.getCommittedReadings());
+    assertEquals(1, metrics.getLastBatchSize());
+    assertEquals(2, metrics.getLargestBatchSize());
+    assertEquals(1.5, metrics.getAverageBatchSize(), 0.001);
+  }
+
+  @Test
+  public void reportsFailures() {
+    RuntimeException failure = new RuntimeException("disk full");
+    ScalarReadingWriteQueue queue =
+        new ScalarReadingWriteQueue(
+            new InMemorySensorDatabase() {
+              @Override
+              public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+                throw failure;
+              }
+            },
+            storageThread,
+            scheduler,
+            scheduler.getClock(),
+            PerfTrackerProvider.STUB,
+            10,
+            Delay.millis(1000));
+    List<Exception> failures = new ArrayList<>();
+    List<Integer> failedBatchSizes = new ArrayList<>();
+    queue.setWriteFailureListener(
+        (batch, e) -> {
+          failures.add(e);
+          failedBatchSizes.add(batch.size());
+        });
+    queue.add("trial", "a", 0, 1, 1.0);
+    queue.add("trial", "b", 0, 1, 1.0);
+    queue.flush();
+    storageThread.drain();
+
+    assertEquals(1, failures.size());
+    assertSame(failure, failures.get(0));
+    assertEquals(2, (int) failedBatchSizes.get(0));
+  }
+
+  @Test
+  public void spillsToFilesInsteadOfGrowingWhenFull() {
+    ExplicitExecutor spillThread = new ExplicitExecutor();
+    File spillDir = newSpillDirectory();
+    ScalarReadingWriteQueue queue = makeSpillingQueue(storageThread, spillThread, spillDir);
+    for (int i = 1; i <= 11; i++) {
+      queue.add("trial", "a", 0, i, i);
+    }
+    ScalarReadingWriteQueue.Metrics metrics = queue.getMetrics();
+    assertEquals(4, metrics.getQueueDepth());
+    assertEquals(7, metrics.getSpilledReadings());
+    assertEquals(7, metrics.getSpillDepth());
+
+    // Three full chunks of two are written out; the last reading is still being collected.
+    spillThread.drain();
+    assertEquals(3, spillDir.listFiles().length);
+
+    storageThread.drain();
+    assertStoredInOrder(11, db);
+    assertEquals(0, spillDir.listFiles().length);
+    assertEquals(0, queue.getMetrics().getSpillDepth());
+    assertEquals(4, queue.getMetrics().getMaxQueueDepth());
+  }
+
+  @Test
+  public void commitsSpilledReadingsThatWereNotWrittenYet() {
+    ExplicitExecutor spillThread = new ExplicitExecutor();
+    File spillDir = newSpillDirectory();
+    ScalarReadingWriteQueue queue = makeSpillingQueue(storageThread, spillThread, spillDir);
+    for (int i = 1; i <= 9; i++) {
+      queue.add("trial", "a", 0, i, i);
+    }
+    storageThread.drain();
+    assertStoredInOrder(9, db);
+
+    // They were committed from memory, so there's nothing left to write.
+    spillThread.drain();
+    assertEquals(0, spillDir.listFiles().length);
+
+    // Once the spill is committed, readings are kept in memory again.
+    queue.add("trial", "a", 0, 10, 10);
+    assertEquals(1, queue.getMetrics().getQueueDepth());
+    assertEquals(5, queue.getMetrics().getSpilledReadings());
+  }
+
+  @Test
+  public void neverBlocksTheMainThreadWhileStorageIsStalled() throws Exception {
+    CountDownLatch commitStarted = new CountDownLatch(1);
+    CountDownLatch releaseCommit = new CountDownLatch(1);
+    AtomicBoolean stallTimedOut = new AtomicBoolean(false);
+    InMemorySensorDatabase stalledDb =
+        new InMemorySensorDatabase() {
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            commitStarted.countDown();
+            try {
+              if (!releaseCommit.await(10, TimeUnit.SECONDS)) {
+                stallTimedOut.set(true);
+              }
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            super.addScalarReadings(readings);
+          }
+        };
+    ExecutorService realStorageThread = Executors.newSingleThreadExecutor();
+    ExecutorService realSpillThread = Executors.newSingleThreadExecutor();
+    ScalarReadingWriteQueue queue =
+        new ScalarReadingWriteQueue(
+            stalledDb,
+            realStorageThread,
+            scheduler,
+            scheduler.getClock(),
+            PerfTrackerProvider.STUB,
+            10,
+            Delay.millis(1000),
+            50,
+            newSpillDirectory(),
+            realSpillThread);
+
+    // Built-in sensors deliver their readings here.
+    assertSame(Looper.getMainLooper(), Looper.myLooper());
+    for (int i = 0; i < 10; i++) {
+      queue.add("trial", "a", 0, i, i);
+    }
+    assertTrue(commitStarted.await(5, TimeUnit.SECONDS));
+    for (int i = 10; i < 1000; i++) {
+      queue.add("trial", "a", 0, i, i);
+    }
+    // Every add returned while the first commit was still stuck.
+    assertEquals(0, stalledDb.getReadings(0).size());
+    assertEquals(1, releaseCommit.getCount());
+
+    releaseCommit.countDown();
+    queue.flush();
+    realStorageThread.shutdown();
+    assertTrue(realStorageThread.awaitTermination(10, TimeUnit.SECONDS));
+    realSpillThread.shutdown();
+    assertTrue(realSpillThread.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertFalse(stallTimedOut.get());
+    assertStoredInOrder(1000, stalledDb);
+    ScalarReadingWriteQueue.Metrics metrics = queue.getMetrics();
+    assertTrue(metrics.getMaxQueueDepth() <= 50);
+    assertTrue(metrics.getSpilledReadings() > 0);
+    assertEquals(0, metrics.getSpillDepth());
+  }
+
+  private ScalarReadingWriteQueue makeSpillingQueue(
+      Executor storage, Executor spill, File spillDir) {
+    return new ScalarReadingWriteQueue(
+        db,
+        storage,
+        scheduler,
+        scheduler.getClock(),
+        PerfTrackerProvider.STUB,
+        2,
+        Delay.millis(1000),
+        4,
+        spillDir,
+        spill);
+  }
+
+  private static File newSpillDirectory() {
+    File dir =
+        new File(RuntimeEnvironment.application.getApplicationContext().getFilesDir(), "spill");
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void assertStoredInOrder(int count, InMemorySensorDatabase db) {
+    List<InMemorySensorDatabase.Reading> readings = db.getReadings(0);
+    assertEquals(count, readings.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(readings.get(0).getTimestampMillis() + i, readings.get(i).getTimestampMillis());
+    }
+  }
+}
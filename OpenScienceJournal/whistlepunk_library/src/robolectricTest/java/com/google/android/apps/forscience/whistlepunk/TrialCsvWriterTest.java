@@ -0,0 +1,373 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.collection.ArrayMap;
+import com.google.android.apps.forscience.whistlepunk.ExportService.ExportProgress;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.common.collect.Range;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrialCsvWriterTest {
+  private static final int BENCHMARK_SENSORS = 4;
+  private static final long BENCHMARK_INTERVAL_MILLIS = 5;
+  private static final int BENCHMARK_ROWS = 60 * 60 * 200;
+
+  private final Map<String, List<ScalarReading>> readings = new HashMap<>();
+  private final List<Integer> progress = new ArrayList<>();
+
+  // Keeps the old writer's progress events live, so they can't be optimized away.
+  private ExportProgress lastProgress;
+
+  private void add(String sensorId, long timestamp, double value) {
+    if (!readings.containsKey(sensorId)) {
+      readings.put(sensorId, new ArrayList<>());
+    }
+    readings.get(sensorId).add(new ScalarReading(timestamp, value, sensorId));
+  }
+
+  /** Serves pages from {@link #readings}, which must be added in time order. */
+  private ScalarReadingList readPage(String sensorId, Range<Long> times, int maxRecords) {
+    List<ScalarReading> page = new ArrayList<>();
+    if (readings.containsKey(sensorId)) {
+      for (ScalarReading reading : readings.get(sensorId)) {
+        if (page.size() < maxRecords && times.contains(reading.getCollectedTimeMillis())) {
+          page.add(reading);
+        }
+      }
+    }
+    return new ScalarReadingList() {
+      @Override
+      public void deliver(StreamConsumer c) {
+        for (ScalarReading reading : page) {
+          c.addData(reading.getCollectedTimeMillis(), reading.getValue());
+        }
+      }
+
+      @Override
+      public int size() {
+        return page.size();
+      }
+
+      @Override
+      public List<ChartData.DataPoint> asDataPoints() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private String write(
+      String[] sensorIds, boolean relativeTime, int pageSize, long first, long last)
+      throws IOException {
+    StringWriter out = new StringWriter();
+    new TrialCsvWriter(out, sensorIds, relativeTime, pageSize)
+        .write(this::readPage, first, last, progress::add);
+    return out.toString();
+  }
+
+  @Test
+  public void mergesSensorsIntoRows() throws IOException {
+    add("a", 1, 1.5);
+    add("a", 3, 2);
+    add("a", 4, -0.25);
+    add("b,c", 2, 10);
+    add("b,c", 3, 20);
+    add("b,c", 5, 30);
+
+    assertEquals(
+        "timestamp,a,b_c\n"
+            + "1,1.5,\n"
+            + "2,,10.0\n"
+            + "3,2.0,20.0\n"
+            + "4,-0.25,\n"
+            + "5,,30.0\n",
+        write(new String[] {"a", "b,c"}, false, 2, 1, 5));
+  }
+
+  @Test
+  public void relativeTimeAndRange() throws IOException {
+    add("a", 100, 1);
+    add("a", 110, 2);
+    add("a", 120, 3);
+    add("a", 130, 4);
+
+    assertEquals(
+        "relative_time,a\n" + "0,2.0\n" + "10,3.0\n",
+        write(new String[] {"a"}, true, 1, 105, 125));
+  }
+
+  @Test
+  public void lastReadingAtTimestampWins() throws IOException {
+    add("a", 1, 1);
+    add("a", 1, 2);
+    add("a", 2, 3);
+
+    assertEquals(
+        "timestamp,a\n" + "1,2.0\n" + "2,3.0\n", write(new String[] {"a"}, false, 5, 0, 2));
+  }
+
+  @Test
+  public void formatsValuesLikeDoubleToString() throws IOException {
+    double[] values = {
+      0.0,
+      -0.0,
+      1,
+      -1,
+      0.1,
+      0.3,
+      1.0 / 3,
+      2.0 / 3,
+      123.456,
+      -98.7654321,
+      0.001,
+      0.00099,
+      1e-10,
+      9999999.5,
+      1e7,
+      1.23e15,
+      Double.MAX_VALUE,
+      Double.MIN_VALUE,
+      Math.PI,
+      Double.NaN,
+      Double.POSITIVE_INFINITY,
+      Double.NEGATIVE_INFINITY
+    };
+    StringBuilder expected = new StringBuilder("timestamp,a\n");
+    for (int i = 0; i < values.length; i++) {
+      add("a", i, values[i]);
+      expected.append(i).append(',').append(Double.toString(values[i])).append('\n');
+    }
+    // Typical sensor readings, rounded to a few decimal places.
+    Random random = new Random(42);
+    for (int i = values.length; i < 2000; i++) {
+      double value = Math.round((random.nextDouble() - 0.5) * 2e6 * Math.pow(10, i % 5)) / 1e5;
+      add("a", i, value);
+      expected.append(i).append(',').append(Double.toString(value)).append('\n');
+    }
+
+    assertEquals(expected.toString(), write(new String[] {"a"}, false, 100, 0, 2000));
+  }
+
+  @Test
+  public void progressOnlyOnWholePercentChanges() throws IOException {
+    for (int i = 0; i <= 10000; i++) {
+      add("a", i, i);
+    }
+    write(new String[] {"a"}, false, 1000, 0, 10000);
+
+    assertEquals(101, progress.size());
+    for (int i = 0; i <= 100; i++) {
+      assertEquals(i, (int) progress.get(i));
+    }
+  }
+
+  /** What one writer produced for the benchmark trial, how long it took, and the GCs it caused. */
+  private static class ExportTimings {
+    long bytes;
+    long nanos;
+    int collections;
+  }
+
+  /**
+   * Exports a one-hour, four-sensor, 200 Hz trial with TrialCsvWriter and with the
+   * ExportService.TrialDataWriter logic it replaced, both into a discarding stream. Garbage
+   * collections per 100,000 rows stand in for allocations per row. Only run when asked for; see
+   * {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkExport() throws IOException {
+    Benchmarks.assumeEnabled();
+    // Warm up both, so neither pays for the other's compilation.
+    exportWithTrialCsvWriter(BENCHMARK_ROWS / 10, new GcCounter());
+    exportWithTrialDataWriter(BENCHMARK_ROWS / 10, new GcCounter());
+
+    ExportTimings trialCsvWriter = timeExport(true);
+    ExportTimings trialDataWriter = timeExport(false);
+    assertEquals(trialDataWriter.bytes, trialCsvWriter.bytes);
+    reportExport("TrialCsvWriter", trialCsvWriter);
+    reportExport("TrialDataWriter", trialDataWriter);
+    assertTrue(trialCsvWriter.nanos < trialDataWriter.nanos);
+  }
+
+  private ExportTimings timeExport(boolean withTrialCsvWriter) throws IOException {
+    ExportTimings timings = new ExportTimings();
+    GcCounter gcs = new GcCounter();
+    long start = System.nanoTime();
+    timings.bytes =
+        withTrialCsvWriter
+            ? exportWithTrialCsvWriter(BENCHMARK_ROWS, gcs)
+            : exportWithTrialDataWriter(BENCHMARK_ROWS, gcs);
+    timings.nanos = System.nanoTime() - start;
+    timings.collections = gcs.getCollections();
+    return timings;
+  }
+
+  private static void reportExport(String name, ExportTimings timings) {
+    Benchmarks.report(
+        "%s: %d rows per second, %.1f GCs per 100k rows",
+        name,
+        BENCHMARK_ROWS * 1000000000L / timings.nanos,
+        timings.collections * 100000.0 / BENCHMARK_ROWS);
+  }
+
+  private static String benchmarkSensorId(int sensor) {
+    return "sensor" + sensor;
+  }
+
+  /** A sensor reading with a few decimal places, like most sensors produce. */
+  private static double benchmarkValue(int sensor, long row) {
+    return Math.round(Math.sin(row / 100.0) * 1e4) / 1e3 + sensor;
+  }
+
+  private long exportWithTrialCsvWriter(int rows, GcCounter gcs) throws IOException {
+    String[] sensorIds = new String[BENCHMARK_SENSORS];
+    for (int s = 0; s < BENCHMARK_SENSORS; s++) {
+      sensorIds[s] = benchmarkSensorId(s);
+    }
+    // Generates each page as it's read, so the trial doesn't have to be held in memory.
+    TrialCsvWriter.PageSource source =
+        (sensorId, times, maxRecords) -> {
+          gcs.poll();
+          int sensor = Integer.parseInt(sensorId.substring("sensor".length()));
+          long first =
+              (times.lowerEndpoint() + BENCHMARK_INTERVAL_MILLIS - 1) / BENCHMARK_INTERVAL_MILLIS;
+          if (!times.contains(first * BENCHMARK_INTERVAL_MILLIS)) {
+            first++;
+          }
+          long last = Math.min(rows - 1, times.upperEndpoint() / BENCHMARK_INTERVAL_MILLIS);
+          int size = (int) Math.max(0, Math.min(maxRecords, last - first + 1));
+          long firstRow = first;
+          return new ScalarReadingList() {
+            @Override
+            public void deliver(StreamConsumer c) {
+              for (long row = firstRow; row < firstRow + size; row++) {
+                c.addData(row * BENCHMARK_INTERVAL_MILLIS, benchmarkValue(sensor, row));
+              }
+            }
+
+            @Override
+            public int size() {
+              return size;
+            }
+
+            @Override
+            public List<ChartData.DataPoint> asDataPoints() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        };
+    CountingOutputStream out = new CountingOutputStream();
+    try (Writer writer = new OutputStreamWriter(out)) {
+      new TrialCsvWriter(writer, sensorIds, false)
+          .write(source, 0, (rows - 1) * BENCHMARK_INTERVAL_MILLIS, percent -> {});
+    }
+    return out.count;
+  }
+
+  /**
+   * Writes the same trial as ExportService.TrialDataWriter did: one reading at a time in time
+   * order, through a map from sensor to boxed value for each row, with a progress event for every
+   * reading. Readings are generated in order rather than read from a database.
+   */
+  private long exportWithTrialDataWriter(int rows, GcCounter gcs) throws IOException {
+    String[] sensorIds = new String[BENCHMARK_SENSORS];
+    for (int s = 0; s < BENCHMARK_SENSORS; s++) {
+      sensorIds[s] = benchmarkSensorId(s);
+    }
+    long lastTimestamp = (rows - 1) * BENCHMARK_INTERVAL_MILLIS;
+    CountingOutputStream out = new CountingOutputStream();
+    try (Writer writer = new OutputStreamWriter(out)) {
+      writer.write("timestamp");
+      for (String sensorId : sensorIds) {
+        writer.write(",");
+        writer.write(sensorId.replace(",", "_"));
+      }
+      writer.write("\n");
+      ArrayMap<String, Double> currentRow = new ArrayMap<>();
+      long currentTimestamp = -1;
+      for (long row = 0; row < rows; row++) {
+        gcs.poll();
+        for (int s = 0; s < BENCHMARK_SENSORS; s++) {
+          ScalarReading reading =
+              new ScalarReading(
+                  row * BENCHMARK_INTERVAL_MILLIS, benchmarkValue(s, row), sensorIds[s]);
+          if (reading.getCollectedTimeMillis() != currentTimestamp) {
+            if (currentTimestamp != -1) {
+              writeTrialDataWriterRow(writer, sensorIds, currentTimestamp, currentRow);
+            }
+            currentRow.clear();
+          }
+          currentRow.put(reading.getSensorTag(), reading.getValue());
+          currentTimestamp = reading.getCollectedTimeMillis();
+          int percent = (int) ((currentTimestamp / (double) lastTimestamp) * 100);
+          lastProgress = new ExportProgress("trial", ExportProgress.EXPORTING, percent);
+        }
+      }
+      writeTrialDataWriterRow(writer, sensorIds, currentTimestamp, currentRow);
+    }
+    return out.count;
+  }
+
+  private static void writeTrialDataWriterRow(
+      Writer writer, String[] sensorIds, long timestamp, ArrayMap<String, Double> row)
+      throws IOException {
+    writer.write(Long.toString(timestamp));
+    for (String sensorId : sensorIds) {
+      String value = "";
+      if (row.containsKey(sensorId)) {
+        value = Double.toString(row.get(sensorId));
+      }
+      writer.write(",");
+      writer.write(value);
+    }
+    writer.write("\n");
+  }
+
+  /** Counts the bytes written to it and throws them away. */
+  private static class CountingOutputStream extends OutputStream {
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
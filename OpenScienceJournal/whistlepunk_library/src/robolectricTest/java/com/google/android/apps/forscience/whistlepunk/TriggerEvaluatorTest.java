@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.*;
+
+import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerActionType;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerWhen;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TriggerEvaluatorTest {
+  private static final TriggerWhen[] WHENS = {
+    TriggerWhen.TRIGGER_WHEN_AT,
+    TriggerWhen.TRIGGER_WHEN_DROPS_BELOW,
+    TriggerWhen.TRIGGER_WHEN_RISES_ABOVE,
+    TriggerWhen.TRIGGER_WHEN_BELOW,
+    TriggerWhen.TRIGGER_WHEN_ABOVE,
+  };
+
+  private final Random random = new Random(42);
+  // Keeps the results of timed evaluations live, so they can't be optimized away.
+  private long sink;
+  private final List<SensorTrigger> fired = new ArrayList<>();
+
+  private static SensorTrigger newTrigger(TriggerWhen when, double value) {
+    return SensorTrigger.newTrigger(
+        "sensorId", when, TriggerActionType.TRIGGER_ACTION_START_RECORDING, value);
+  }
+
+  /** Gives every trigger the same hysteresis and debounce, and compiles them. */
+  private TriggerEvaluator newEvaluator(
+      List<SensorTrigger> triggers, double hysteresis, long debounceMillis) {
+    for (SensorTrigger trigger : triggers) {
+      trigger.setHysteresis(hysteresis);
+      trigger.setDebounceMs(debounceMillis);
+    }
+    return new TriggerEvaluator(triggers, (trigger, timestamp) -> fired.add(trigger));
+  }
+
+  /** Which of the triggers fire for a value, the way RecorderControllerImpl used to check. */
+  private static List<SensorTrigger> firedBySensorTriggers(
+      List<SensorTrigger> triggers, double value, boolean recording) {
+    List<SensorTrigger> result = new ArrayList<>();
+    for (SensorTrigger trigger : triggers) {
+      if (!recording && trigger.shouldTriggerOnlyWhenRecording()) {
+        continue;
+      }
+      if (trigger.isTriggered(value)) {
+        result.add(trigger);
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void sameAsSensorTriggerWithoutHysteresisOrDebounce() {
+    List<SensorTrigger> triggers = new ArrayList<>();
+    for (TriggerWhen when : WHENS) {
+      for (double value : new double[] {-1, 0, 2.5}) {
+        triggers.add(newTrigger(when, value));
+        SensorTrigger onlyWhenRecording = newTrigger(when, value);
+        onlyWhenRecording.setTriggerOnlyWhenRecording(true);
+        triggers.add(onlyWhenRecording);
+      }
+    }
+    // The evaluator only reads the triggers, so they can also be evaluated directly.
+    TriggerEvaluator evaluator = newEvaluator(triggers, 0, 0);
+    assertEquals(triggers.size(), evaluator.getTriggerCount());
+
+    boolean recording = false;
+    for (int i = 0; i < 10000; i++) {
+      // Whole numbers hit the "at" triggers exactly, some of the time.
+      double value = random.nextBoolean() ? random.nextInt(7) - 3 : random.nextGaussian() * 3;
+      if (random.nextInt(100) == 0) {
+        recording = !recording;
+      }
+      fired.clear();
+      evaluator.evaluate(i * 10L, value, recording);
+      assertEquals("value " + i, firedBySensorTriggers(triggers, value, recording), fired);
+    }
+    assertEquals(10000, evaluator.getEvaluationCount());
+  }
+
+  @Test
+  public void firstValueNeverFires() {
+    TriggerEvaluator evaluator =
+        newEvaluator(listOf(newTrigger(TriggerWhen.TRIGGER_WHEN_ABOVE, 0)), 0, 0);
+    evaluator.evaluate(0, 10, true);
+    assertTrue(fired.isEmpty());
+    evaluator.evaluate(1, 10, true);
+    assertEquals(1, fired.size());
+  }
+
+  @Test
+  public void hysteresisSuppressesNoise() {
+    SensorTrigger trigger = newTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    TriggerEvaluator noisy = newEvaluator(listOf(trigger), 0, 0);
+    TriggerEvaluator evaluator = newEvaluator(listOf(trigger), 1, 0);
+
+    // Noise around the threshold crosses it over and over.
+    double[] values = {9, 10.2, 9.8, 10.1, 9.9, 10.3, 9.7, 10.2};
+    for (int i = 0; i < values.length; i++) {
+      noisy.evaluate(i, values[i], true);
+    }
+    assertEquals(4, fired.size());
+
+    fired.clear();
+    for (int i = 0; i < values.length; i++) {
+      evaluator.evaluate(i, values[i], true);
+    }
+    assertEquals(1, fired.size());
+
+    // Going back below the hysteresis band re-arms the trigger.
+    evaluator.evaluate(100, 8.9, true);
+    evaluator.evaluate(101, 10.5, true);
+    assertEquals(2, fired.size());
+  }
+
+  @Test
+  public void hysteresisForAt() {
+    TriggerEvaluator evaluator =
+        newEvaluator(listOf(newTrigger(TriggerWhen.TRIGGER_WHEN_AT, 0)), 0.5, 0);
+    double[] values = {-1, 0, 0.1, -0.1, 0.2, 0, 0.6, 0};
+    for (int i = 0; i < values.length; i++) {
+      evaluator.evaluate(i, values[i], true);
+    }
+    // Fires at the first 0, then not again until the value has moved 0.5 away.
+    assertEquals(2, fired.size());
+  }
+
+  @Test
+  public void eachTriggerHasItsOwnHysteresis() {
+    SensorTrigger steady = newTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    steady.setHysteresis(1);
+    SensorTrigger eager = newTrigger(TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, 10);
+    TriggerEvaluator evaluator =
+        new TriggerEvaluator(listOf(steady, eager), (trigger, timestamp) -> fired.add(trigger));
+
+    double[] values = {9, 10.2, 9.8, 10.1, 9.9, 10.3};
+    for (int i = 0; i < values.length; i++) {
+      evaluator.evaluate(i, values[i], true);
+    }
+    assertEquals(listOf(steady, eager, eager, eager), fired);
+  }
+
+  @Test
+  public void debounceLimitsFiring() {
+    TriggerEvaluator evaluator =
+        newEvaluator(listOf(newTrigger(TriggerWhen.TRIGGER_WHEN_ABOVE, 0)), 0, 100);
+    // A value above the threshold every 10 ms for a second.
+    for (int i = 0; i <= 100; i++) {
+      evaluator.evaluate(i * 10L, 1, true);
+    }
+    // The first value only initializes; after that, once every 100 ms.
+    assertEquals(10, fired.size());
+  }
+
+  @Test
+  public void onlyWhenRecordingIsSkippedWhileNotRecording() {
+    SensorTrigger trigger = newTrigger(TriggerWhen.TRIGGER_WHEN_ABOVE, 0);
+    trigger.setTriggerOnlyWhenRecording(true);
+    TriggerEvaluator evaluator = newEvaluator(listOf(trigger), 0, 0);
+    for (int i = 0; i < 5; i++) {
+      evaluator.evaluate(i, 1, false);
+    }
+    assertTrue(fired.isEmpty());
+    evaluator.evaluate(5, 1, true);
+    evaluator.evaluate(6, 1, true);
+    assertEquals(1, fired.size());
+  }
+
+  @Test
+  public void noTriggers() {
+    TriggerEvaluator evaluator = newEvaluator(new ArrayList<>(), 0, 0);
+    evaluator.evaluate(0, 1, true);
+    assertEquals(0, evaluator.getEvaluationCount());
+    assertEquals(0, evaluator.getAverageEvaluationNanos(), 0);
+  }
+
+  /**
+   * Compares evaluating 10 sensors with 20 triggers each at 200 Hz, with SensorTrigger, which
+   * rebuilds its proto for every value, and with the evaluator. Only run when asked for; see {@link
+   * Benchmarks}.
+   */
+  @Test
+  public void benchmarkEvaluation() {
+    Benchmarks.assumeEnabled();
+    int sensors = 10;
+    int triggersPerSensor = 20;
+    int seconds = 60;
+    int samplesPerSecond = 200;
+    List<List<SensorTrigger>> triggers = new ArrayList<>();
+    TriggerEvaluator[] evaluators = new TriggerEvaluator[sensors];
+    for (int s = 0; s < sensors; s++) {
+      List<SensorTrigger> sensorTriggers = new ArrayList<>();
+      for (int t = 0; t < triggersPerSensor; t++) {
+        sensorTriggers.add(newTrigger(WHENS[t % WHENS.length], t - triggersPerSensor / 2));
+      }
+      triggers.add(sensorTriggers);
+      evaluators[s] = new TriggerEvaluator(sensorTriggers, (trigger, timestamp) -> {});
+    }
+    int samples = seconds * samplesPerSecond;
+    double[] values = new double[samples];
+    for (int i = 0; i < samples; i++) {
+      values[i] = random.nextGaussian() * triggersPerSensor / 2;
+    }
+
+    long sensorTriggerNanos = 0;
+    long evaluatorNanos = 0;
+    for (int warmup = 1; warmup >= 0; warmup--) {
+      long start = System.nanoTime();
+      for (int i = 0; i < samples; i++) {
+        for (int s = 0; s < sensors; s++) {
+          sink += firedBySensorTriggers(triggers.get(s), values[i], true).size();
+        }
+      }
+      sensorTriggerNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < samples; i++) {
+        for (int s = 0; s < sensors; s++) {
+          evaluators[s].evaluate(i * 1000L / samplesPerSecond, values[i], true);
+        }
+      }
+      evaluatorNanos = System.nanoTime() - start;
+    }
+
+    int evaluated = samples * sensors;
+    Benchmarks.report(
+        "Triggers: %d per sensor, %.0f ns per value with SensorTrigger, %.0f ns with"
+            + " TriggerEvaluator",
+        triggersPerSensor,
+        (double) sensorTriggerNanos / evaluated,
+        (double) evaluatorNanos / evaluated);
+    assertTrue(evaluatorNanos < sensorTriggerNanos);
+  }
+
+  private static List<SensorTrigger> listOf(SensorTrigger... triggers) {
+    return new ArrayList<>(Arrays.asList(triggers));
+  }
+}
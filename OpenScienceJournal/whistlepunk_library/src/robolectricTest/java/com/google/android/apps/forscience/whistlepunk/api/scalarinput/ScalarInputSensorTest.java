@@ -92,6 +92,34 @@ public class ScalarInputSensorTest {
     assertEquals(9, scheduler.getScheduleCount());
   }
 
+  @Test
+  public void batchResetsRefreshOnce() throws RemoteException {
+    final TestFinder serviceFinder = new TestFinder("serviceId");
+    ScalarInputSpec spec =
+        new ScalarInputSpec("sensorName", "serviceId", "address", behavior, null, "devId");
+    ScalarInputSensor sis =
+        new ScalarInputSensor(
+            "sensorId",
+            MoreExecutors.directExecutor(),
+            serviceFinder,
+            new TestStringSource(),
+            spec,
+            scheduler);
+    SensorRecorder recorder = makeRecorder(sis);
+    recorder.startObserving();
+    int schedulesBeforeBatch = scheduler.getScheduleCount();
+    serviceFinder.observer.onNewDataBatch(new long[] {0, 10, 20}, new double[] {0.0, 1.0, 2.0});
+    assertEquals(schedulesBeforeBatch + 1, scheduler.getScheduleCount());
+    scheduler.incrementTime(1500);
+
+    TestData testData = new TestData();
+    testData.addPoint(0, 0.0);
+    testData.addPoint(10, 1.0);
+    testData.addPoint(20, 2.0);
+    testData.addPoint(1000, 2.0);
+    testData.checkObserver(observer);
+  }
+
   @Test
   public void backwardCompatibleServiceId() throws RemoteException {
     final TestFinder serviceFinder = new TestFinder("serviceId/ServiceClassName");
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.audio;
+
+import static org.junit.Assert.*;
+
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class RealFftTest {
+  private static final double TOLERANCE = 1e-9;
+
+  private final Random random = new Random(42);
+  // Keeps the results of timed transforms live, so they can't be optimized away.
+  private double sink;
+
+  /**
+   * The radix-2 complex FFT that FftAnalyzer used before RealFft, which computes its twiddle
+   * factors as it goes. Transforms a and b in place.
+   */
+  private static void referenceFft(double[] a, double[] b) {
+    int n = a.length;
+    int shift = 1 + Integer.numberOfLeadingZeros(n);
+    for (int i = 0; i < n; i++) {
+      int j = Integer.reverse(i) >>> shift;
+      if (j > i) {
+        double temp = a[j];
+        a[j] = a[i];
+        a[i] = temp;
+        temp = b[j];
+        b[j] = b[i];
+        b[i] = temp;
+      }
+    }
+    for (int l = 2; l <= n; l += l) {
+      int lHalf = l / 2;
+      for (int k = 0; k < lHalf; k++) {
+        double kth = -2 * k * Math.PI / l;
+        double wA = Math.cos(kth);
+        double wB = Math.sin(kth);
+        for (int j = 0; j < n / l; j++) {
+          int index1 = j * l + k + lHalf;
+          int index2 = j * l + k;
+          double taoA = a[index1] * wA - b[index1] * wB;
+          double taoB = a[index1] * wB + b[index1] * wA;
+          a[index1] = a[index2] - taoA;
+          b[index1] = b[index2] - taoB;
+          a[index2] = a[index2] + taoA;
+          b[index2] = b[index2] + taoB;
+        }
+      }
+    }
+  }
+
+  private double[] randomSamples(int size) {
+    double[] samples = new double[size];
+    for (int i = 0; i < size; i++) {
+      samples[i] = random.nextDouble() * 2 - 1;
+    }
+    return samples;
+  }
+
+  private static void assertMatchesReference(double[] samples, boolean hannWindow) {
+    int size = samples.length;
+    double[] a = new double[size];
+    double[] b = new double[size];
+    double[] window = hannWindow ? RealFft.getHannWindow(size) : null;
+    for (int i = 0; i < size; i++) {
+      a[i] = hannWindow ? samples[i] * window[i] : samples[i];
+    }
+    referenceFft(a, b);
+
+    double[] re = new double[size / 2 + 1];
+    double[] im = new double[size / 2 + 1];
+    new RealFft(size, hannWindow).transform(samples, re, im);
+    double tolerance = TOLERANCE * size;
+    for (int k = 0; k <= size / 2; k++) {
+      assertEquals("re[" + k + "] of " + size, a[k], re[k], tolerance);
+      assertEquals("im[" + k + "] of " + size, b[k], im[k], tolerance);
+    }
+  }
+
+  @Test
+  public void matchesReferenceForEverySize() {
+    // Both odd and even numbers of radix-2 stages.
+    for (int size = 4; size <= 8192; size *= 2) {
+      assertMatchesReference(randomSamples(size), false);
+    }
+  }
+
+  @Test
+  public void matchesReferenceWithHannWindow() {
+    for (int size = 4; size <= 8192; size *= 2) {
+      assertMatchesReference(randomSamples(size), true);
+    }
+  }
+
+  @Test
+  public void matchesDirectDft() {
+    for (int size = 4; size <= 64; size *= 2) {
+      double[] samples = randomSamples(size);
+      double[] re = new double[size / 2 + 1];
+      double[] im = new double[size / 2 + 1];
+      new RealFft(size).transform(samples, re, im);
+      for (int k = 0; k <= size / 2; k++) {
+        double expectedRe = 0;
+        double expectedIm = 0;
+        for (int n = 0; n < size; n++) {
+          expectedRe += samples[n] * Math.cos(2 * Math.PI * k * n / size);
+          expectedIm -= samples[n] * Math.sin(2 * Math.PI * k * n / size);
+        }
+        assertEquals(expectedRe, re[k], TOLERANCE);
+        assertEquals(expectedIm, im[k], TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  public void sineWaveHasOnePeak() {
+    int size = 1024;
+    int bin = 37;
+    double[] samples = new double[size];
+    for (int n = 0; n < size; n++) {
+      samples[n] = Math.sin(2 * Math.PI * bin * n / size);
+    }
+    double[] re = new double[size / 2 + 1];
+    double[] im = new double[size / 2 + 1];
+    new RealFft(size).transform(samples, re, im);
+    for (int k = 0; k <= size / 2; k++) {
+      double magnitude = Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+      assertEquals(k == bin ? size / 2.0 : 0.0, magnitude, 1e-6);
+    }
+  }
+
+  @Test
+  public void transformDoesNotModifySamples() {
+    double[] samples = randomSamples(256);
+    double[] copy = samples.clone();
+    new RealFft(256, true).transform(samples, new double[129], new double[129]);
+    assertArrayEquals(copy, samples, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sizeMustBePowerOfTwo() {
+    new RealFft(1000);
+  }
+
+  /**
+   * Compares RealFft with the complex FFT that the audio analysis used before it, at
+   * AudioAnalyzer's buffer size, JMH style: warm up first, so both are compiled, then time a fixed
+   * number of iterations. Only run when asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkTransforms() {
+    Benchmarks.assumeEnabled();
+    int size = AudioAnalyzer.BUFFER_SIZE;
+    int warmupIterations = 200;
+    int iterations = 500;
+    double[] samples = randomSamples(size);
+    double[] a = new double[size];
+    double[] b = new double[size];
+    double[] re = new double[size / 2 + 1];
+    double[] im = new double[size / 2 + 1];
+    RealFft fft = new RealFft(size);
+
+    for (int i = 0; i < warmupIterations; i++) {
+      System.arraycopy(samples, 0, a, 0, size);
+      Arrays.fill(b, 0);
+      referenceFft(a, b);
+      fft.transform(samples, re, im);
+      sink += a[1] + re[1];
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      System.arraycopy(samples, 0, a, 0, size);
+      Arrays.fill(b, 0);
+      referenceFft(a, b);
+      sink += a[1];
+    }
+    long referenceNanos = (System.nanoTime() - start) / iterations;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      fft.transform(samples, re, im);
+      sink += re[1];
+    }
+    long realFftNanos = (System.nanoTime() - start) / iterations;
+    Benchmarks.report(
+        "FFT of %d samples: %d ns/op before, %d ns/op with RealFft (%.1fx)",
+        size,
+        referenceNanos,
+        realFftNanos,
+        (double) referenceNanos / realFftNanos);
+    assertTrue(realFftNanos < referenceNanos);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.audio;
+
+import static org.junit.Assert.*;
+
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SlidingWindowAnalyzerTest {
+  private static final int SAMPLE_RATE_IN_HZ = 44100;
+  private static final int HOP_SIZE = 512;
+  // Not a multiple of the hop size, like the buffers AudioSource delivers.
+  private static final int CHUNK_SIZE = 1000;
+  private static final String[] FIXTURES = {
+    "melodica_c4_261_626.samples",
+    "melodica_d4_293_665.samples",
+    "melodica_e4_329_628.samples",
+    "melodica_f4_349_228.samples",
+    "melodica_g4_391_995.samples",
+    "melodica_a4_440_000.samples",
+    "melodica_b4_493_883.samples",
+    "melodica_c5_523_251.samples",
+  };
+
+  private final ClassLoader classLoader = getClass().getClassLoader();
+  private final List<Double> frequencies = new ArrayList<>();
+
+  private short[] readSamples(String filename) throws Exception {
+    List<Short> list = new ArrayList<>();
+    InputStream inputStream = classLoader.getResourceAsStream(filename);
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream))) {
+      String s;
+      while ((s = br.readLine()) != null) {
+        if (!s.isEmpty()) {
+          list.add(Short.parseShort(s.trim()));
+        }
+      }
+    }
+    short[] samples = new short[list.size()];
+    for (int i = 0; i < list.size(); i++) {
+      samples[i] = list.get(i);
+    }
+    return samples;
+  }
+
+  /** Reads the fixtures, which are one window each, into one stream of samples. */
+  private short[][] readFixtures() throws Exception {
+    short[][] fixtures = new short[FIXTURES.length][];
+    for (int i = 0; i < FIXTURES.length; i++) {
+      fixtures[i] = readSamples(FIXTURES[i]);
+      assertEquals(AudioAnalyzer.BUFFER_SIZE, fixtures[i].length);
+    }
+    return fixtures;
+  }
+
+  private static short[] concatenate(short[][] fixtures) {
+    short[] stream = new short[fixtures.length * AudioAnalyzer.BUFFER_SIZE];
+    for (int i = 0; i < fixtures.length; i++) {
+      System.arraycopy(
+          fixtures[i], 0, stream, i * AudioAnalyzer.BUFFER_SIZE, AudioAnalyzer.BUFFER_SIZE);
+    }
+    return stream;
+  }
+
+  private static void addInChunks(SlidingWindowAnalyzer analyzer, short[] stream) {
+    for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+      analyzer.addSamples(
+          Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + CHUNK_SIZE)));
+    }
+  }
+
+  @Test
+  public void detectsEveryHopOnceWindowIsFull() throws Exception {
+    short[][] fixtures = readFixtures();
+    short[] stream = concatenate(fixtures);
+    SlidingWindowAnalyzer analyzer =
+        new SlidingWindowAnalyzer(SAMPLE_RATE_IN_HZ, HOP_SIZE, frequencies::add);
+    addInChunks(analyzer, stream);
+
+    int hopsPerWindow = AudioAnalyzer.BUFFER_SIZE / HOP_SIZE;
+    assertEquals(1 + (stream.length - AudioAnalyzer.BUFFER_SIZE) / HOP_SIZE, frequencies.size());
+    // Every 8th window is exactly one of the fixtures, and detects what AudioAnalyzer does.
+    AudioAnalyzer audioAnalyzer = new AudioAnalyzer(SAMPLE_RATE_IN_HZ);
+    for (int i = 0; i < fixtures.length; i++) {
+      assertEquals(
+          FIXTURES[i],
+          audioAnalyzer.detectFundamentalFrequency(fixtures[i]),
+          frequencies.get(i * hopsPerWindow));
+    }
+    // The windows in between span two notes, which are loud enough to always detect something.
+    for (Double frequency : frequencies) {
+      assertNotNull(frequency);
+    }
+  }
+
+  @Test
+  public void nothingIsDetectedUntilWindowIsFull() {
+    SlidingWindowAnalyzer analyzer =
+        new SlidingWindowAnalyzer(SAMPLE_RATE_IN_HZ, HOP_SIZE, frequencies::add);
+    analyzer.addSamples(new short[AudioAnalyzer.BUFFER_SIZE - 1]);
+    assertTrue(frequencies.isEmpty());
+    analyzer.addSamples(new short[1]);
+    assertEquals(1, frequencies.size());
+    // Silence has no frequency.
+    assertNull(frequencies.get(0));
+
+    analyzer.clear();
+    analyzer.addSamples(new short[AudioAnalyzer.BUFFER_SIZE - 1]);
+    assertEquals(1, frequencies.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void hopCantBeLargerThanWindow() {
+    new SlidingWindowAnalyzer(SAMPLE_RATE_IN_HZ, AudioAnalyzer.BUFFER_SIZE + 1, frequencies::add);
+  }
+
+  /** How often the analyzer produced a value, at one hop size, and what each analysis cost. */
+  private static class HopTimings {
+    double valuesPerSecond;
+    double nanosPerAnalysis;
+  }
+
+  /**
+   * Compares pitch detection over overlapping windows with one detection per window, for the
+   * recorded fixtures streamed with a {@link #HOP_SIZE} sample hop and without overlap. Each
+   * analysis has to finish well within a hop of audio (about 12 ms) to keep up. Only run when asked
+   * for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkHops() throws Exception {
+    Benchmarks.assumeEnabled();
+    short[] stream = concatenate(readFixtures());
+    // Warm up both, so neither pays for the other's compilation.
+    timeHops(stream, HOP_SIZE);
+    timeHops(stream, AudioAnalyzer.BUFFER_SIZE);
+    HopTimings overlapping = timeHops(stream, HOP_SIZE);
+    HopTimings separate = timeHops(stream, AudioAnalyzer.BUFFER_SIZE);
+    Benchmarks.report(
+        "Pitch: %.1f values/s at %.0f ns per %d sample hop, %.1f values/s at %.0f ns without"
+            + " overlap",
+        overlapping.valuesPerSecond,
+        overlapping.nanosPerAnalysis,
+        HOP_SIZE,
+        separate.valuesPerSecond,
+        separate.nanosPerAnalysis);
+    assertTrue(overlapping.valuesPerSecond > separate.valuesPerSecond * 7);
+    long hopNanos = 1_000_000_000L * HOP_SIZE / SAMPLE_RATE_IN_HZ;
+    assertTrue(overlapping.nanosPerAnalysis < hopNanos);
+  }
+
+  private HopTimings timeHops(short[] stream, int hopSize) {
+    int repetitions = 20;
+    frequencies.clear();
+    SlidingWindowAnalyzer analyzer =
+        new SlidingWindowAnalyzer(SAMPLE_RATE_IN_HZ, hopSize, frequencies::add);
+    long start = System.nanoTime();
+    for (int i = 0; i < repetitions; i++) {
+      addInChunks(analyzer, stream);
+    }
+    long elapsed = System.nanoTime() - start;
+    HopTimings timings = new HopTimings();
+    timings.valuesPerSecond =
+        frequencies.size() / ((double) stream.length * repetitions / SAMPLE_RATE_IN_HZ);
+    timings.nanosPerAnalysis = elapsed / frequencies.size();
+    return timings;
+  }
+}
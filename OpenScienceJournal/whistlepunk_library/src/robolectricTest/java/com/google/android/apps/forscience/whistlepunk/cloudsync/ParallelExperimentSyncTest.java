@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class ParallelExperimentSyncTest {
+  private static final int EXPERIMENTS = 24;
+  private static final int ASSETS_PER_EXPERIMENT = 3;
+
+  private final MemoryDriveApi remote = new MemoryDriveApi();
+  private final List<Long> sleeps = Collections.synchronizedList(new ArrayList<>());
+  private final DriveRetryPolicy policy =
+      new DriveRetryPolicy(4, 100, 400) {
+        @Override
+        void sleep(long millis) {
+          sleeps.add(millis);
+        }
+      };
+  private final DriveApi driveApi = new RetryingDriveApi(remote, policy);
+
+  private Map<String, String> addExperiments() {
+    Map<String, String> packageIds = new HashMap<>();
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      String experimentId = "experiment" + i;
+      String packageId =
+          remote.addExperimentPackage(
+              GoosciExperiment.Experiment.newBuilder().setTitle(experimentId).build());
+      for (int j = 0; j < ASSETS_PER_EXPERIMENT; j++) {
+        remote.putFile(packageId, "asset" + j + ".jpg", new byte[] {(byte) i, (byte) j});
+      }
+      packageIds.put(experimentId, packageId);
+    }
+    return packageIds;
+  }
+
+  /** Does what syncing an experiment that's only on Drive does: check, download, then assets. */
+  private void downloadExperiment(String experimentId, String packageId, List<String> steps)
+      throws IOException {
+    assertTrue(driveApi.getFileExists(packageId));
+    steps.add("exists");
+    DriveFile metadata = driveApi.getExperimentProtoMetadata(packageId);
+    GoosciExperiment.Experiment experiment = driveApi.downloadExperimentProtoFile(metadata.getId());
+    assertEquals(experimentId, experiment.getTitle());
+    steps.add("proto");
+    File directory = new File(RuntimeEnvironment.application.getFilesDir(), experimentId);
+    for (int j = 0; j < ASSETS_PER_EXPERIMENT; j++) {
+      File asset = driveApi.downloadExperimentAsset(packageId, directory, "asset" + j + ".jpg");
+      assertTrue(asset.exists());
+      steps.add("asset" + j);
+    }
+  }
+
+  private double syncAll(int threads, Map<String, String> packageIds) throws IOException {
+    Map<String, List<String>> steps = new HashMap<>();
+    int[] synced = {0};
+    ParallelExperimentSync sync = new ParallelExperimentSync(threads);
+    for (Map.Entry<String, String> entry : packageIds.entrySet()) {
+      List<String> experimentSteps = new ArrayList<>();
+      steps.put(entry.getKey(), experimentSteps);
+      sync.submit(
+          entry.getKey(),
+          () -> downloadExperiment(entry.getKey(), entry.getValue(), experimentSteps));
+    }
+    sync.awaitAll(() -> synced[0]++);
+
+    assertEquals(EXPERIMENTS, synced[0]);
+    assertEquals(EXPERIMENTS, sync.getExperimentCount());
+    for (List<String> experimentSteps : steps.values()) {
+      // Each experiment's steps happen in order, whatever else is going on.
+      assertEquals("[exists, proto, asset0, asset1, asset2]", experimentSteps.toString());
+    }
+    return sync.getExperimentsPerSecond();
+  }
+
+  @Test
+  public void syncsOnAsManyThreadsAsAsked() throws IOException {
+    Map<String, String> packageIds = addExperiments();
+    // Long enough for calls from different threads to overlap.
+    remote.setLatencyMs(10);
+
+    syncAll(1, packageIds);
+    assertEquals(1, remote.getMaxCallsInProgress());
+    syncAll(4, packageIds);
+    assertEquals(4, remote.getMaxCallsInProgress());
+  }
+
+  /**
+   * Syncs every experiment serially and then on 4 threads, with 10ms per Drive call. Only run when
+   * asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkSync() throws IOException {
+    Benchmarks.assumeEnabled();
+    Map<String, String> packageIds = addExperiments();
+    remote.setLatencyMs(10);
+    double serially = syncAll(1, packageIds);
+    double onFourThreads = syncAll(4, packageIds);
+    Benchmarks.report(
+        "Synced experiments at 10ms per Drive call: "
+            + "%.1f experiments/s serially, %.1f experiments/s on 4 threads",
+        serially,
+        onFourThreads);
+    assertTrue(onFourThreads > serially * 2);
+  }
+
+  @Test
+  public void failureIsThrownAfterOthersFinish() {
+    Map<String, String> packageIds = addExperiments();
+    int[] synced = {0};
+    ParallelExperimentSync sync = new ParallelExperimentSync(4);
+    for (Map.Entry<String, String> entry : packageIds.entrySet()) {
+      sync.submit(
+          entry.getKey(),
+          () -> {
+            if (entry.getKey().equals("experiment3")) {
+              throw new IOException("Failed");
+            }
+            downloadExperiment(entry.getKey(), entry.getValue(), new ArrayList<>());
+          });
+    }
+    try {
+      sync.awaitAll(() -> synced[0]++);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertEquals("Failed", expected.getMessage());
+    }
+    assertEquals(EXPERIMENTS, synced[0]);
+  }
+
+  @Test
+  public void runtimeExceptionIsThrownAfterOthersFinish() {
+    AtomicInteger finished = new AtomicInteger();
+    int[] synced = {0};
+    ParallelExperimentSync sync = new ParallelExperimentSync(4);
+    sync.submit(
+        "broken",
+        () -> {
+          throw new IllegalStateException("Broken");
+        });
+    for (int i = 0; i < 6; i++) {
+      sync.submit(
+          "slow" + i,
+          () -> {
+            try {
+              Thread.sleep(50);
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            finished.incrementAndGet();
+          });
+    }
+    try {
+      sync.awaitAll(() -> synced[0]++);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertEquals("Broken", expected.getMessage());
+    } catch (IOException e) {
+      fail("Expected an IllegalStateException, got " + e);
+    }
+    // None of the slow ones were interrupted.
+    assertEquals(6, finished.get());
+    assertEquals(7, synced[0]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void experimentCantBeSubmittedTwice() {
+    ParallelExperimentSync sync = new ParallelExperimentSync(2);
+    sync.submit("experiment", () -> {});
+    sync.submit("experiment", () -> {});
+  }
+
+  @Test
+  public void transientFailuresAreRetried() throws IOException {
+    String packageId =
+        remote.addExperimentPackage(GoosciExperiment.Experiment.getDefaultInstance());
+    remote.failNextCalls(2);
+    assertTrue(driveApi.getFileExists(packageId));
+    assertEquals(3, remote.getCallCount());
+    assertEquals(2, sleeps.size());
+    // Backoff grows, with up to half of it random.
+    assertTrue(sleeps.get(0) >= 50 && sleeps.get(0) <= 100);
+    assertTrue(sleeps.get(1) >= 100 && sleeps.get(1) <= 200);
+  }
+
+  @Test
+  public void persistentFailureGivesUp() {
+    String packageId =
+        remote.addExperimentPackage(GoosciExperiment.Experiment.getDefaultInstance());
+    remote.failNextCalls(10);
+    try {
+      driveApi.getFileExists(packageId);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertEquals(4, remote.getCallCount());
+  }
+
+  @Test
+  public void creatingIsNotRetried() {
+    remote.failNextCalls(1);
+    try {
+      driveApi.createNewSJFolder();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertEquals(1, remote.getCallCount());
+  }
+
+  @Test
+  public void onlySomeErrorsAreRetryable() {
+    assertTrue(DriveRetryPolicy.isRetryable(new IOException("Connection reset")));
+    assertTrue(DriveRetryPolicy.isRetryable(httpError(503)));
+    assertTrue(DriveRetryPolicy.isRetryable(httpError(429)));
+    assertFalse(DriveRetryPolicy.isRetryable(httpError(404)));
+    assertFalse(DriveRetryPolicy.isRetryable(httpError(403)));
+  }
+
+  private static HttpResponseException httpError(int status) {
+    return new HttpResponseException.Builder(status, "Error", new HttpHeaders()).build();
+  }
+}
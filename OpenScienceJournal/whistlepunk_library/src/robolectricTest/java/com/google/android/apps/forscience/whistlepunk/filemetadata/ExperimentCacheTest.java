@@ -198,6 +198,58 @@ public class ExperimentCacheTest {
     assertEquals("Title", cache.getActiveExperimentForTests().getTitle());
   }
 
+  @Test
+  public void testRecentExperimentsStayCached() {
+    Experiment experiment = Experiment.newExperiment(10, "exp_localId", 0);
+    elm.addExperiment(experiment.getExperimentId());
+    lsm.addExperiment(experiment.getExperimentId());
+    cache.createNewExperiment(experiment);
+
+    Experiment second = Experiment.newExperiment(20, "exp_secondId", 0);
+    elm.addExperiment(second.getExperimentId());
+    lsm.addExperiment(second.getExperimentId());
+    cache.createNewExperiment(second);
+    cache.writeActiveExperimentFile();
+
+    // Writing the second doesn't write the first, which is still cached.
+    assertTrue(cache.isCachedForTests(experiment.getExperimentId()));
+    assertTrue(cache.needsWrite());
+    assertEquals(experiment, cache.getExperiment(experiment.getExperimentOverview()));
+
+    cache.saveImmediately();
+    assertFalse(cache.needsWrite());
+  }
+
+  @Test
+  public void testEvictedExperimentIsWritten() {
+    cache =
+        new ExperimentCache(
+            getContext(),
+            appAccount,
+            getFailureFailsListener(),
+            false /* enableAutoWrite */,
+            elm,
+            lsm,
+            0 /* maxHeapBytes */);
+    Experiment experiment = Experiment.newExperiment(10, "exp_localId", 0);
+    elm.addExperiment(experiment.getExperimentId());
+    lsm.addExperiment(experiment.getExperimentId());
+    cache.createNewExperiment(experiment);
+    experiment.setTitle("Title");
+    cache.updateExperiment(experiment, false);
+
+    Experiment second = Experiment.newExperiment(20, "exp_secondId", 0);
+    elm.addExperiment(second.getExperimentId());
+    lsm.addExperiment(second.getExperimentId());
+    cache.createNewExperiment(second);
+
+    // Only the active experiment fits, so the first was saved and dropped.
+    assertFalse(cache.isCachedForTests(experiment.getExperimentId()));
+    Experiment reloaded = cache.getExperiment(experiment.getExperimentOverview());
+    assertEquals("Title", reloaded.getTitle());
+    assertFalse(cache.isCachedForTests(second.getExperimentId()));
+  }
+
   @Test
   public void testUpgradeStartsWriteTimer() {
     GoosciExperiment.Experiment.Builder proto = createExperimentProto().toBuilder();
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentJournal.ExperimentJournalEntry;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentJournalTest {
+  private final LiteProtoFileHelper<GoosciExperiment.Experiment> helper =
+      new LiteProtoFileHelper<>();
+  private File directory;
+  private File experimentFile;
+
+  @Before
+  public void setUp() {
+    directory = new File(RuntimeEnvironment.application.getFilesDir(), "exp_journal");
+    directory.mkdirs();
+    experimentFile = new File(directory, "experiment.proto");
+  }
+
+  @After
+  public void tearDown() {
+    ExperimentCache.deleteRecursive(directory);
+  }
+
+  private static GoosciTrial.Trial trial(String id, String title) {
+    return GoosciTrial.Trial.newBuilder().setTrialId(id).setTitle(title).build();
+  }
+
+  private static GoosciLabel.Label label(String id) {
+    return GoosciLabel.Label.newBuilder().setLabelId(id).build();
+  }
+
+  private static GoosciExperiment.Change change(String id) {
+    return GoosciExperiment.Change.newBuilder().setChangeId(id).build();
+  }
+
+  private static GoosciExperiment.Experiment base() {
+    return GoosciExperiment.Experiment.newBuilder()
+        .setTitle("Title")
+        .addTrials(trial("t1", "one"))
+        .addTrials(trial("t2", "two"))
+        .addLabels(label("l1"))
+        .addChanges(change("c1"))
+        .build();
+  }
+
+  @Test
+  public void diffAppliesToBase() {
+    GoosciExperiment.Experiment base = base();
+    GoosciExperiment.Experiment current =
+        base.toBuilder()
+            .setTitle("New title")
+            .setTrials(0, trial("t1", "renamed"))
+            .removeTrials(1)
+            .addTrials(trial("t3", "three"))
+            .addLabels(label("l2"))
+            .addChanges(change("c2"))
+            .build();
+
+    ExperimentJournalEntry entry = ExperimentJournal.diff(base, current);
+    assertTrue(entry.hasHeader());
+    assertEquals(2, entry.getTrialsCount());
+    assertEquals("t2", entry.getDeletedTrialIds(0));
+    assertEquals(1, entry.getLabelsCount());
+    assertEquals(1, entry.getChangesCount());
+    assertEquals(current, ExperimentJournal.apply(base, entry));
+  }
+
+  @Test
+  public void noChangesMakeAnEmptyEntry() {
+    assertEquals(
+        ExperimentJournalEntry.getDefaultInstance(), ExperimentJournal.diff(base(), base()));
+  }
+
+  @Test
+  public void reorderedTrialsCantBeJournaled() {
+    GoosciExperiment.Experiment base = base();
+    GoosciExperiment.Experiment reordered =
+        base.toBuilder()
+            .clearTrials()
+            .addTrials(base.getTrials(1))
+            .addTrials(base.getTrials(0))
+            .build();
+    assertNull(ExperimentJournal.diff(base, reordered));
+
+    GoosciExperiment.Experiment cleared = base.toBuilder().clearChanges().build();
+    assertNull(ExperimentJournal.diff(base, cleared));
+  }
+
+  @Test
+  public void writeAppendsAndReadReplays() {
+    GoosciExperiment.Experiment base = base();
+    ExperimentJournal journal = new ExperimentJournal(experimentFile);
+    assertTrue(journal.write(base, false, helper, UsageTracker.STUB));
+    assertFalse(journal.hasJournal());
+    long snapshotLength = experimentFile.length();
+
+    GoosciExperiment.Experiment current = base.toBuilder().addLabels(label("l2")).build();
+    assertTrue(journal.write(current, false, helper, UsageTracker.STUB));
+    assertTrue(journal.hasJournal());
+    assertEquals(snapshotLength, experimentFile.length());
+
+    assertEquals(current, new ExperimentJournal(experimentFile).read(helper, UsageTracker.STUB));
+
+    assertTrue(journal.write(current, true, helper, UsageTracker.STUB));
+    assertFalse(journal.hasJournal());
+    assertFalse(ExperimentJournal.getJournalFile(experimentFile).exists());
+    assertEquals(current, new ExperimentJournal(experimentFile).read(helper, UsageTracker.STUB));
+  }
+
+  @Test
+  public void journalFromBeforeCompactionIsIgnored() throws IOException {
+    GoosciExperiment.Experiment base = base();
+    ExperimentJournal journal = new ExperimentJournal(experimentFile);
+    journal.write(base, false, helper, UsageTracker.STUB);
+    GoosciExperiment.Experiment journaled = base.toBuilder().addLabels(label("l2")).build();
+    journal.write(journaled, false, helper, UsageTracker.STUB);
+    File journalFile = ExperimentJournal.getJournalFile(experimentFile);
+    byte[] oldJournal = Files.readAllBytes(journalFile.toPath());
+
+    // As if we died after writing the new snapshot, but before deleting the journal.
+    GoosciExperiment.Experiment compacted = base.toBuilder().setTitle("Compacted").build();
+    journal.write(compacted, true, helper, UsageTracker.STUB);
+    Files.write(journalFile.toPath(), oldJournal);
+
+    assertEquals(compacted, new ExperimentJournal(experimentFile).read(helper, UsageTracker.STUB));
+    assertFalse(journalFile.exists());
+  }
+
+  @Test
+  public void tornEntryIsDropped() throws IOException {
+    GoosciExperiment.Experiment base = base();
+    ExperimentJournal journal = new ExperimentJournal(experimentFile);
+    journal.write(base, false, helper, UsageTracker.STUB);
+    GoosciExperiment.Experiment first = base.toBuilder().addLabels(label("l2")).build();
+    journal.write(first, false, helper, UsageTracker.STUB);
+    GoosciExperiment.Experiment second =
+        first.toBuilder().addTrials(trial("t3", "three")).build();
+    journal.write(second, false, helper, UsageTracker.STUB);
+
+    // As if we died partway through the second append.
+    File journalFile = ExperimentJournal.getJournalFile(experimentFile);
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    ExperimentJournal reread = new ExperimentJournal(experimentFile);
+    assertEquals(first, reread.read(helper, UsageTracker.STUB));
+    assertTrue(reread.hasJournal());
+
+    // The next write starts over with a full snapshot.
+    GoosciExperiment.Experiment next = first.toBuilder().setTitle("Next").build();
+    assertTrue(reread.write(next, false, helper, UsageTracker.STUB));
+    assertFalse(journalFile.exists());
+    assertEquals(next, new ExperimentJournal(experimentFile).read(helper, UsageTracker.STUB));
+  }
+}
@@ -19,6 +19,7 @@ package com.google.android.apps.forscience.whistlepunk.filemetadata;
 import static com.google.common.truth.Truth.assertThat;
 
 import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
 import com.google.android.apps.forscience.whistlepunk.ExperimentCreator;
 import com.google.android.apps.forscience.whistlepunk.FakeAppearanceProvider;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
@@ -35,6 +36,9 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.ExperimentOverview;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -1222,4 +1226,260 @@ public class ExperimentTest {
     assertThat(experimentServer.getLabelCount()).isEqualTo(1);
   }
 
+  private static Trial makeTrial(String trialId, long startMs) {
+    return Trial.fromTrial(
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId(trialId)
+            .setRecordingRange(Range.newBuilder().setStartMs(startMs).setEndMs(startMs + 1000))
+            .build());
+  }
+
+  @Test
+  public void testLabelIndexFollowsLabelChanges() {
+    Experiment experiment = Experiment.newExperiment(1, "experimentId", 1);
+    Trial trial = makeTrial("trial", 100);
+    experiment.addTrial(trial);
+    Label experimentLabel = Label.newLabel(10, ValueType.TEXT);
+    experiment.addLabel(experiment, experimentLabel);
+    Label trialLabel = Label.newLabel(150, ValueType.TEXT);
+    trial.addLabel(experiment, trialLabel);
+
+    assertThat(experiment.getLabel(experimentLabel.getLabelId())).isEqualTo(experimentLabel);
+    assertThat(experiment.getTrialIdForLabel(experimentLabel.getLabelId())).isNull();
+    assertThat(experiment.getLabel(trialLabel.getLabelId())).isEqualTo(trialLabel);
+    assertThat(experiment.getTrialIdForLabel(trialLabel.getLabelId())).isEqualTo("trial");
+    assertThat(experiment.getLabel("missing")).isNull();
+
+    // Labels added after the index is built are found too.
+    Label addedLabel = Label.newLabel(160, ValueType.TEXT);
+    trial.addLabel(experiment, addedLabel);
+    assertThat(experiment.getTrialIdForLabel(addedLabel.getLabelId())).isEqualTo("trial");
+    assertThat(trial.getLabel(addedLabel.getLabelId())).isEqualTo(addedLabel);
+
+    // An update replaces the label with the same id.
+    Label updatedLabel = Label.fromLabel(trialLabel.getLabelProto());
+    updatedLabel.setTimestamp(170);
+    trial.updateLabel(experiment, updatedLabel);
+    assertThat(experiment.getLabel(trialLabel.getLabelId())).isEqualTo(updatedLabel);
+    assertThat(trial.getLabel(trialLabel.getLabelId())).isEqualTo(updatedLabel);
+
+    trial.deleteLabelAndReturnAssetDeleter(experiment, addedLabel, getAppAccount());
+    assertThat(experiment.getLabel(addedLabel.getLabelId())).isNull();
+    assertThat(trial.getLabel(addedLabel.getLabelId())).isNull();
+    experiment.deleteLabelAndReturnAssetDeleter(experiment, experimentLabel, getAppAccount());
+    assertThat(experiment.getLabel(experimentLabel.getLabelId())).isNull();
+  }
+
+  @Test
+  public void testLabelIndexFollowsTrialChanges() {
+    Experiment experiment = Experiment.newExperiment(1, "experimentId", 1);
+    Trial trial = makeTrial("trial", 100);
+    Label label = Label.newLabel(150, ValueType.TEXT);
+    trial.addLabel(label);
+    experiment.addTrial(trial);
+    assertThat(experiment.getTrialIdForLabel(label.getLabelId())).isEqualTo("trial");
+
+    // A new version of the trial replaces the old one, labels and all.
+    Trial updatedTrial = makeTrial("trial", 100);
+    Label updatedTrialLabel = Label.newLabel(160, ValueType.TEXT);
+    updatedTrial.addLabel(updatedTrialLabel);
+    experiment.updateTrial(updatedTrial);
+    assertThat(experiment.getLabel(label.getLabelId())).isNull();
+    assertThat(experiment.getLabel(updatedTrialLabel.getLabelId())).isEqualTo(updatedTrialLabel);
+
+    // The old trial is no longer part of the experiment, so its labels stay out of the index.
+    trial.addLabel(experiment, Label.newLabel(170, ValueType.TEXT));
+    assertThat(experiment.getLabel(label.getLabelId())).isNull();
+
+    Trial otherTrial = makeTrial("other", 300);
+    Label otherLabel = Label.newLabel(350, ValueType.TEXT);
+    otherTrial.addLabel(otherLabel);
+    experiment.getTrials().add(otherTrial);
+    assertThat(experiment.getTrialIdForLabel(otherLabel.getLabelId())).isEqualTo("other");
+
+    experiment.deleteTrialOnlyForTesting(updatedTrial);
+    assertThat(experiment.getLabel(updatedTrialLabel.getLabelId())).isNull();
+    assertThat(experiment.getTrialIdForLabel(otherLabel.getLabelId())).isEqualTo("other");
+
+    List<Trial> trials = new ArrayList<>();
+    trials.add(trial);
+    experiment.setTrials(trials);
+    assertThat(experiment.getLabel(otherLabel.getLabelId())).isNull();
+    assertThat(experiment.getTrialIdForLabel(label.getLabelId())).isEqualTo("trial");
+  }
+
+  @Test
+  public void testLabelIndexAfterMerge() {
+    Experiment experimentServer = Experiment.newExperiment(1, "experimentId", 1);
+    experimentServer.addTrial(makeTrial("trial", 100));
+    // Build the index before merging.
+    assertThat(experimentServer.getLabel("missing")).isNull();
+
+    Experiment experimentClient =
+        Experiment.fromExperiment(
+            experimentServer.getExperimentProto(), experimentServer.getExperimentOverview());
+    Label trialLabel = Label.newLabel(150, ValueType.TEXT);
+    experimentClient.getTrial("trial").addLabel(experimentClient, trialLabel);
+    Label experimentLabel = Label.newLabel(10, ValueType.TEXT);
+    experimentClient.addLabel(experimentClient, experimentLabel);
+
+    experimentServer.mergeFrom(experimentClient, getContext(), getAppAccount(), false);
+    assertThat(experimentServer.getTrialIdForLabel(trialLabel.getLabelId())).isEqualTo("trial");
+    assertThat(experimentServer.getLabel(trialLabel.getLabelId())).isNotNull();
+    assertThat(experimentServer.getLabel(experimentLabel.getLabelId())).isNotNull();
+    assertThat(experimentServer.getTrialIdForLabel(experimentLabel.getLabelId())).isNull();
+
+    Experiment overwritten = Experiment.newExperiment(1, "experimentId", 1);
+    Label overwrittenLabel = Label.newLabel(20, ValueType.TEXT);
+    overwritten.addLabel(overwritten, overwrittenLabel);
+    assertThat(overwritten.getLabel(overwrittenLabel.getLabelId())).isEqualTo(overwrittenLabel);
+    overwritten.mergeFrom(experimentClient, getContext(), getAppAccount(), true);
+    assertThat(overwritten.getLabel(overwrittenLabel.getLabelId())).isNull();
+    assertThat(overwritten.getTrialIdForLabel(trialLabel.getLabelId())).isEqualTo("trial");
+  }
+
+  @Test
+  public void testGetLabelsForRangeAfterChanges() {
+    Experiment experiment = Experiment.newExperiment(1, "experimentId", 1);
+    Trial trial = makeTrial("trial", 0);
+    experiment.addTrial(trial);
+    Label[] labels = new Label[5];
+    // Added out of order.
+    long[] timestamps = {300, 100, 200, 100, 400};
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = Label.newLabel(timestamps[i], ValueType.TEXT);
+      trial.addLabel(experiment, labels[i]);
+    }
+
+    Range.Builder range = Range.newBuilder().setStartMs(100).setEndMs(300);
+    // Both ends are included, and the labels are in timestamp order.
+    assertThat(trial.getLabelsForRange(range.build()))
+        .containsExactly(labels[1], labels[3], labels[2], labels[0])
+        .inOrder();
+    assertThat(trial.getLabelsForRange(range.setStartMs(101).setEndMs(299).build()))
+        .containsExactly(labels[2]);
+    assertThat(trial.getLabelsForRange(range.setStartMs(401).setEndMs(500).build())).isEmpty();
+    assertThat(trial.getLabelsForRange(range.setStartMs(0).setEndMs(99).build())).isEmpty();
+
+    Label moved = Label.fromLabel(labels[2].getLabelProto());
+    moved.setTimestamp(450);
+    trial.updateLabel(experiment, moved);
+    trial.deleteLabelAndReturnAssetDeleter(experiment, labels[4], getAppAccount());
+    assertThat(trial.getLabelsForRange(range.setStartMs(150).setEndMs(500).build()))
+        .containsExactly(labels[0], moved)
+        .inOrder();
+  }
+
+  /** What Experiment.getLabel did before labels were indexed. */
+  private static Label findLabelByScanning(Experiment experiment, String labelId) {
+    for (Label label : experiment.getLabels()) {
+      if (label.getLabelId().equals(labelId)) {
+        return label;
+      }
+    }
+    for (Trial trial : experiment.getTrials()) {
+      for (Label label : trial.getLabels()) {
+        if (label.getLabelId().equals(labelId)) {
+          return label;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** What getLabelsForRange did before labels were indexed. */
+  private static List<Label> getLabelsForRangeByScanning(LabelListHolder holder, Range range) {
+    List<Label> result = new ArrayList<>();
+    for (Label label : holder.getLabels()) {
+      if (range.getStartMs() <= label.getTimeStamp() && range.getEndMs() >= label.getTimeStamp()) {
+        result.add(label);
+      } else if (range.getEndMs() < label.getTimeStamp()) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compares looking up labels by id and by time through the experiment's indexes with scanning
+   * every trial, in an experiment with 100 trials and 10,000 labels. Only run when asked for; see
+   * {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkLabelLookups() {
+    Benchmarks.assumeEnabled();
+    int trialCount = 100;
+    int labelsPerTrial = 99;
+    Experiment experiment = Experiment.newExperiment(1, "experimentId", 1);
+    List<String> labelIds = new ArrayList<>();
+    for (int t = 0; t < trialCount; t++) {
+      Trial trial = makeTrial("trial" + t, t * 1000L);
+      for (int l = 0; l < labelsPerTrial; l++) {
+        Label label = Label.newLabel(t * 1000L + l * 10, ValueType.TEXT);
+        trial.addLabel(label);
+        labelIds.add(label.getLabelId());
+      }
+      experiment.addTrial(trial);
+    }
+    for (int l = 0; l < trialCount; l++) {
+      Label label = Label.newLabel(l * 1000L, ValueType.TEXT);
+      experiment.addLabel(label);
+      labelIds.add(label.getLabelId());
+    }
+    assertThat(labelIds).hasSize(10000);
+
+    Random random = new Random(42);
+    int lookups = 2000;
+    String[] toFind = new String[lookups];
+    Range[] ranges = new Range[lookups];
+    for (int i = 0; i < lookups; i++) {
+      toFind[i] = labelIds.get(random.nextInt(labelIds.size()));
+      long start = random.nextInt(trialCount * 1000);
+      ranges[i] = Range.newBuilder().setStartMs(start).setEndMs(start + 100).build();
+    }
+    Trial lastTrial = experiment.getTrial("trial" + (trialCount - 1));
+
+    long scanningNanos = 0;
+    long indexedNanos = 0;
+    long scanningRangeNanos = 0;
+    long indexedRangeNanos = 0;
+    for (int warmup = 1; warmup >= 0; warmup--) {
+      long start = System.nanoTime();
+      for (String labelId : toFind) {
+        assertThat(findLabelByScanning(experiment, labelId)).isNotNull();
+      }
+      scanningNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (String labelId : toFind) {
+        assertThat(experiment.getLabel(labelId)).isNotNull();
+        assertThat(experiment.getTrialIdForLabel(labelId)).isNotEmpty();
+      }
+      indexedNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (Range range : ranges) {
+        getLabelsForRangeByScanning(experiment, range);
+        getLabelsForRangeByScanning(lastTrial, range);
+      }
+      scanningRangeNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (Range range : ranges) {
+        experiment.getLabelsForRange(range);
+        lastTrial.getLabelsForRange(range);
+      }
+      indexedRangeNanos = System.nanoTime() - start;
+    }
+
+    Benchmarks.report(
+        "Labels: %d ns per lookup by id scanning, %d ns indexed; %d ns per range query"
+            + " scanning, %d ns indexed",
+        scanningNanos / lookups,
+        indexedNanos / lookups,
+        scanningRangeNanos / lookups,
+        indexedRangeNanos / lookups);
+    assertThat(indexedNanos).isLessThan(scanningNanos);
+    assertThat(indexedRangeNanos).isLessThan(scanningRangeNanos);
+  }
 }
@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentZipWriterTest {
+  private final Random random = new Random(42);
+  private File directory;
+  private File zipFile;
+
+  @Before
+  public void setUp() {
+    directory = new File(RuntimeEnvironment.application.getFilesDir(), "exp_zip");
+    new File(directory, "assets").mkdirs();
+    zipFile = new File(RuntimeEnvironment.application.getFilesDir(), "exp_zip.sj");
+  }
+
+  @After
+  public void tearDown() {
+    ExperimentCache.deleteRecursive(directory);
+    zipFile.delete();
+  }
+
+  private byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] compressibleBytes(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) ('a' + (i / 7) % 13);
+    }
+    return bytes;
+  }
+
+  private File writeFile(String path, byte[] contents) throws IOException {
+    File file = new File(directory, path);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(contents);
+    }
+    return file;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, read);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void entriesReadBack() throws IOException {
+    Map<String, byte[]> expected = new HashMap<>();
+    expected.put("experiment.proto", compressibleBytes(1000));
+    expected.put("assets/photo.jpg", randomBytes(300 * 1024));
+    expected.put("assets/noise.bin", randomBytes(200 * 1024));
+    expected.put("assets/empty.txt", new byte[0]);
+    byte[] sensorData = compressibleBytes(500 * 1024);
+
+    try (ExperimentZipWriter zip = new ExperimentZipWriter(new FileOutputStream(zipFile), 3)) {
+      try (OutputStream entry = zip.startEntry("sensorData.proto")) {
+        entry.write(sensorData, 0, 1000);
+        entry.write(sensorData[1000]);
+        entry.write(sensorData, 1001, sensorData.length - 1001);
+      }
+      for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+        zip.addFile(file.getKey(), writeFile(file.getKey(), file.getValue()));
+      }
+    }
+    expected.put("sensorData.proto", sensorData);
+
+    try (ZipFile read = new ZipFile(zipFile)) {
+      assertEquals(expected.size(), read.size());
+      Enumeration<? extends ZipEntry> entries = read.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        try (InputStream in = read.getInputStream(entry)) {
+          assertArrayEquals(entry.getName(), expected.get(entry.getName()), readAll(in));
+        }
+      }
+      assertEquals(ZipEntry.DEFLATED, read.getEntry("sensorData.proto").getMethod());
+      assertEquals(ZipEntry.DEFLATED, read.getEntry("experiment.proto").getMethod());
+      assertEquals(ZipEntry.STORED, read.getEntry("assets/photo.jpg").getMethod());
+      // Random bytes don't deflate, so they're stored too.
+      assertEquals(ZipEntry.STORED, read.getEntry("assets/noise.bin").getMethod());
+    }
+
+    // Import reads exports as a stream, so make sure that works too.
+    int count = 0;
+    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        assertArrayEquals(entry.getName(), expected.get(entry.getName()), readAll(zis));
+        count++;
+      }
+    }
+    assertEquals(expected.size(), count);
+  }
+
+  @Test
+  public void largeFilesAreDeflatedAsTheyreWritten() throws IOException {
+    int large = (int) ExperimentZipWriter.MAX_BUFFERED_SIZE + 1;
+    Map<String, byte[]> expected = new HashMap<>();
+    expected.put("experiment.proto", compressibleBytes(1000));
+    expected.put("trial0.proto", compressibleBytes(large));
+    expected.put("trial1.proto", compressibleBytes(2000));
+
+    try (ExperimentZipWriter zip = new ExperimentZipWriter(new FileOutputStream(zipFile), 2)) {
+      for (String name : new String[] {"experiment.proto", "trial0.proto", "trial1.proto"}) {
+        zip.addFile(name, writeFile(name, expected.get(name)));
+      }
+    }
+
+    try (ZipFile read = new ZipFile(zipFile)) {
+      assertEquals(ZipEntry.DEFLATED, read.getEntry("trial0.proto").getMethod());
+    }
+    int count = 0;
+    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        assertArrayEquals(entry.getName(), expected.get(entry.getName()), readAll(zis));
+        count++;
+      }
+    }
+    assertEquals(expected.size(), count);
+  }
+
+  @Test
+  public void alreadyCompressedFilesAreStored() {
+    assertTrue(ExperimentZipWriter.isAlreadyCompressed("assets/ExperimentCoverImage.jpg"));
+    assertTrue(ExperimentZipWriter.isAlreadyCompressed("assets/IMG_1234.JPEG"));
+    assertTrue(ExperimentZipWriter.isAlreadyCompressed("assets/drawing.png"));
+    assertFalse(ExperimentZipWriter.isAlreadyCompressed("experiment.proto"));
+    assertFalse(ExperimentZipWriter.isAlreadyCompressed("assets/jpg.proto"));
+  }
+
+  @Test
+  public void duplicateEntryFails() throws IOException {
+    File file = writeFile("experiment.proto", compressibleBytes(10));
+    ExperimentZipWriter zip = new ExperimentZipWriter(new FileOutputStream(zipFile), 1);
+    zip.addFile("experiment.proto", file);
+    try {
+      zip.addFile("experiment.proto", file);
+      fail("Expected a ZipException");
+    } catch (ZipException expected) {
+      // Expected.
+    } finally {
+      zip.closeQuietly();
+    }
+  }
+
+  @Test
+  public void missingFileFails() throws IOException {
+    ExperimentZipWriter zip = new ExperimentZipWriter(new FileOutputStream(zipFile), 2);
+    zip.addFile("assets/gone.jpg", new File(directory, "assets/gone.jpg"));
+    try {
+      zip.close();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  /** How long one way of zipping the benchmark experiment took, and how big the zip was. */
+  private static class ZipTimings {
+    long nanos;
+    long zipBytes;
+  }
+
+  /**
+   * Exports an experiment with lots of photos through the single-threaded ZipOutputStream this
+   * replaced, and then through ExperimentZipWriter. Only run when asked for; see {@link
+   * Benchmarks}.
+   */
+  @Test
+  public void benchmarkExport() throws IOException {
+    Benchmarks.assumeEnabled();
+    long totalBytes = 0;
+    for (int i = 0; i < 12; i++) {
+      totalBytes += writeFile("assets/photo" + i + ".jpg", randomBytes(1024 * 1024)).length();
+    }
+    for (int i = 0; i < 4; i++) {
+      totalBytes += writeFile("trial" + i + ".proto", compressibleBytes(1024 * 1024)).length();
+    }
+    File[] files = new File(directory, "assets").listFiles();
+
+    ZipTimings zipOutputStream = new ZipTimings();
+    long start = System.nanoTime();
+    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+      for (File file : directory.listFiles()) {
+        if (file.isFile()) {
+          putEntry(zos, file.getName(), file);
+        }
+      }
+      for (File file : files) {
+        putEntry(zos, "assets/" + file.getName(), file);
+      }
+    }
+    zipOutputStream.nanos = System.nanoTime() - start;
+    zipOutputStream.zipBytes = zipFile.length();
+
+    ZipTimings zipWriter = new ZipTimings();
+    start = System.nanoTime();
+    try (ExperimentZipWriter zip = new ExperimentZipWriter(new FileOutputStream(zipFile))) {
+      for (File file : directory.listFiles()) {
+        if (file.isFile()) {
+          zip.addFile(file.getName(), file);
+        }
+      }
+      for (File file : files) {
+        zip.addFile("assets/" + file.getName(), file);
+      }
+    }
+    zipWriter.nanos = System.nanoTime() - start;
+    zipWriter.zipBytes = zipFile.length();
+
+    try (ZipFile read = new ZipFile(zipFile)) {
+      assertEquals(16, read.size());
+    }
+    Benchmarks.report(
+        "Exported %d MB: ZipOutputStream %.1f MB/s (%d bytes), "
+            + "ExperimentZipWriter %.1f MB/s (%d bytes)",
+        totalBytes / (1024 * 1024),
+        Benchmarks.megabytesPerSecond(totalBytes, zipOutputStream.nanos),
+        zipOutputStream.zipBytes,
+        Benchmarks.megabytesPerSecond(totalBytes, zipWriter.nanos),
+        zipWriter.zipBytes);
+  }
+
+  private static void putEntry(ZipOutputStream zos, String name, File file) throws IOException {
+    zos.putNextEntry(new ZipEntry(name));
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] bytes = new byte[1024];
+      int length;
+      while ((length = in.read(bytes)) >= 0) {
+        zos.write(bytes, 0, length);
+      }
+    }
+    zos.closeEntry();
+  }
+}
@@ -22,10 +22,15 @@ import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
 import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.UUID;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -94,4 +99,141 @@ public class LiteProtoFileHelperTest {
         helper.readFromFile(file, GoosciUserMetadata.UserMetadata::parseFrom, null);
     assertEquals(42, result.getVersion());
   }
+
+  @Test
+  public void testFailedWriteLeavesNoTempFile() {
+    File file = getFile();
+    LiteProtoFileHelper<GoosciUserMetadata.UserMetadata> helper = new LiteProtoFileHelper<>();
+    boolean success =
+        helper.writeToFile(
+            file,
+            GoosciUserMetadata.UserMetadata.newBuilder().setVersion(42).build(),
+            true,
+            UsageTracker.STUB);
+    assertFalse(success);
+    assertFalse(file.exists());
+    assertFalse(LiteProtoFileHelper.getTempFile(file).exists());
+  }
+
+  @Test
+  public void testShorterProtoReplacesLongerOne() {
+    File file = getFile();
+    GoosciUserMetadata.UserMetadata.Builder metadata = GoosciUserMetadata.UserMetadata.newBuilder();
+    for (int i = 0; i < 1000; i++) {
+      metadata.addExperiments(
+          GoosciUserMetadata.ExperimentOverview.newBuilder()
+              .setExperimentId("experiment" + i)
+              .setLastUsedTimeMs(i));
+    }
+    LiteProtoFileHelper<GoosciUserMetadata.UserMetadata> helper = new LiteProtoFileHelper<>();
+    assertTrue(helper.writeToFile(file, metadata.build(), null));
+    GoosciUserMetadata.UserMetadata result =
+        helper.readFromFile(file, GoosciUserMetadata.UserMetadata::parseFrom, null);
+    assertEquals(1000, result.getExperimentsCount());
+    assertEquals("experiment999", result.getExperiments(999).getExperimentId());
+
+    assertTrue(
+        helper.writeToFile(
+            file, GoosciUserMetadata.UserMetadata.newBuilder().setVersion(64).build(), null));
+    result = helper.readFromFile(file, GoosciUserMetadata.UserMetadata::parseFrom, null);
+    assertEquals(64, result.getVersion());
+    assertEquals(0, result.getExperimentsCount());
+    assertFalse(LiteProtoFileHelper.getTempFile(file).exists());
+  }
+
+  /** How long one way of saving the benchmark experiment took, and how much the heap grew. */
+  private static class WriteTimings {
+    long nanosPerWrite;
+    long heapGrowthBytes;
+  }
+
+  /**
+   * Compares saving a large experiment, one with 50,000 changes in its history, over an existing
+   * copy with writeToFile and with the serialize, back up and rewrite path it replaced. Heap growth
+   * is measured across a single write, from a collected heap. Only run when asked for; see {@link
+   * Benchmarks}.
+   */
+  @Test
+  public void benchmarkWrites() throws IOException {
+    Benchmarks.assumeEnabled();
+    GoosciExperiment.Experiment.Builder experiment =
+        GoosciExperiment.Experiment.newBuilder().setTitle("Large experiment");
+    for (int i = 0; i < 50000; i++) {
+      experiment.addChanges(
+          GoosciExperiment.Change.newBuilder()
+              .setChangeId(UUID.randomUUID().toString())
+              .setType(GoosciExperiment.Change.ChangeType.MODIFY)
+              .setChangedData(
+                  GoosciExperiment.ChangedElement.newBuilder()
+                      .setType(GoosciExperiment.ChangedElement.ElementType.NOTE)
+                      .setId(UUID.randomUUID().toString())));
+    }
+    GoosciExperiment.Experiment proto = experiment.build();
+    File file = getFile();
+    LiteProtoFileHelper<GoosciExperiment.Experiment> helper = new LiteProtoFileHelper<>();
+    assertTrue(helper.writeToFile(file, proto, null));
+
+    long fileSize = file.length();
+    WriteTimings atomic = timeWrites(helper, file, proto, true);
+    assertEquals(fileSize, file.length());
+    WriteTimings rewrite = timeWrites(helper, file, proto, false);
+    assertEquals(fileSize, file.length());
+    reportWrites("Temp file and rename", fileSize, atomic);
+    reportWrites("Back up and rewrite", fileSize, rewrite);
+    assertTrue(atomic.heapGrowthBytes < rewrite.heapGrowthBytes);
+  }
+
+  private static WriteTimings timeWrites(
+      LiteProtoFileHelper<GoosciExperiment.Experiment> helper,
+      File file,
+      GoosciExperiment.Experiment proto,
+      boolean atomically)
+      throws IOException {
+    int writes = 10;
+    WriteTimings timings = new WriteTimings();
+    // Warm up.
+    writeForBenchmark(helper, file, proto, atomically);
+    long start = System.nanoTime();
+    for (int i = 0; i < writes; i++) {
+      writeForBenchmark(helper, file, proto, atomically);
+    }
+    timings.nanosPerWrite = (System.nanoTime() - start) / writes;
+
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long before = runtime.totalMemory() - runtime.freeMemory();
+    writeForBenchmark(helper, file, proto, atomically);
+    timings.heapGrowthBytes = runtime.totalMemory() - runtime.freeMemory() - before;
+    return timings;
+  }
+
+  private static void reportWrites(String name, long fileSize, WriteTimings timings) {
+    Benchmarks.report(
+        "%s, %d byte file: %.1f ms per write, %d KB heap growth per write",
+        name,
+        fileSize,
+        timings.nanosPerWrite / 1e6,
+        timings.heapGrowthBytes / 1024);
+  }
+
+  private static void writeForBenchmark(
+      LiteProtoFileHelper<GoosciExperiment.Experiment> helper,
+      File file,
+      GoosciExperiment.Experiment proto,
+      boolean atomically)
+      throws IOException {
+    if (atomically) {
+      assertTrue(helper.writeToFile(file, proto, null));
+      return;
+    }
+    // What writeToFile did before it wrote through a temp file.
+    byte[] protoBytes = proto.toByteArray();
+    byte[] backup = new byte[(int) file.length()];
+    try (FileInputStream inputStream = new FileInputStream(file)) {
+      inputStream.read(backup);
+    }
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(protoBytes);
+    }
+  }
 }
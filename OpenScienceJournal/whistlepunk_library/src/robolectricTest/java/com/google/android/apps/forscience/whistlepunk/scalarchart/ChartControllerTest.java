@@ -131,6 +131,24 @@ public class ChartControllerTest {
         new ChartData.DataPoint(2, 2).toString());
   }
 
+  @Test
+  public void addPointsSkipsStragglersFromBeforeReset() {
+    ChartController chartController = makeChartController();
+    chartController.onResume(5);
+    chartController.addPoints(new long[] {3, 4, 6, 8}, new double[] {3, 4, 6, 8}, 4);
+    chartController.addPoints(new long[] {10, 12}, new double[] {10, 12}, 2);
+
+    assertEquals(
+        chartController.getClosestDataPointToTimestamp(0).toString(),
+        new ChartData.DataPoint(6, 6).toString());
+    assertEquals(
+        chartController.getClosestDataPointToTimestamp(10).toString(),
+        new ChartData.DataPoint(10, 10).toString());
+    assertEquals(
+        chartController.getClosestDataPointToTimestamp(20).toString(),
+        new ChartData.DataPoint(12, 12).toString());
+  }
+
   private void addData(ChartController controller, long start, long end, long interval) {
     for (long i = start; i < end; i += interval) {
       controller.addPoint(new ChartData.DataPoint(i, (double) i));
@@ -20,6 +20,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import com.google.android.apps.forscience.whistlepunk.ExternalAxisController;
+import com.google.android.apps.forscience.whistlepunk.GcCounter;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import java.util.ArrayList;
@@ -30,6 +33,98 @@ import org.robolectric.RobolectricTestRunner;
 
 @RunWith(RobolectricTestRunner.class)
 public class ChartDataTest {
+  private static final int SESSION_SENSORS = 8;
+  private static final long SESSION_MILLIS = 10 * 60 * 1000;
+  private static final long SAMPLE_INTERVAL_MILLIS = 10;
+  private static final long FRAME_MILLIS = 16;
+  private static final long GRAPH_RANGE_MILLIS =
+      ExternalAxisController.DEFAULT_GRAPH_RANGE_IN_MILLIS;
+
+  /** One sensor's live series, as the observe chart adds, trims and draws it. */
+  private interface LiveSeries {
+    void addPoint(long x, double y);
+
+    void throwAwayBefore(long x);
+
+    /** Visits every point drawn between xMin and xMax, and returns a checksum of them. */
+    double draw(long xMin, long xMax);
+  }
+
+  private static class ChartDataSeries implements LiveSeries {
+    private final ChartData data = new ChartData();
+
+    @Override
+    public void addPoint(long x, double y) {
+      data.addPoint(x, y);
+    }
+
+    @Override
+    public void throwAwayBefore(long x) {
+      data.throwAwayBefore(x);
+    }
+
+    @Override
+    public double draw(long xMin, long xMax) {
+      int start = data.getRangeStartIndex(xMin);
+      int end = data.getRangeEndIndex(xMax, start);
+      double sum = 0;
+      for (int i = start; i <= end; i++) {
+        sum += data.getXAt(i) + data.getYAt(i);
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * ChartData as it was before it moved to primitive arrays: a list of boxed points, trimmed in
+   * bulk with subList().clear(), and drawn from a subList.
+   */
+  private static class BoxedSeries implements LiveSeries {
+    private final List<ChartData.DataPoint> data = new ArrayList<>();
+
+    @Override
+    public void addPoint(long x, double y) {
+      data.add(new ChartData.DataPoint(x, y));
+    }
+
+    @Override
+    public void throwAwayBefore(long x) {
+      int end = indexOf(x);
+      if (end >= ChartData.DEFAULT_THROWAWAY_THRESHOLD) {
+        data.subList(0, end).clear();
+      }
+    }
+
+    @Override
+    public double draw(long xMin, long xMax) {
+      int start = Math.max(0, indexOf(xMin) - 1);
+      int end = Math.min(data.size(), indexOf(xMax) + 1);
+      double sum = 0;
+      for (ChartData.DataPoint point : data.subList(start, end)) {
+        sum += point.getX() + point.getY();
+      }
+      return sum;
+    }
+
+    /** Returns the index of the first point at or after x. */
+    private int indexOf(long x) {
+      int low = 0;
+      int high = data.size();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (data.get(mid).getX() < x) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  // Keeps the drawn points live, so drawing can't be optimized away.
+  private double drawnChecksum;
+
   private void populatePointsList(int size, List<ChartData.DataPoint> result) {
     for (int i = 0; i < size; i++) {
       result.add(new ChartData.DataPoint(i, i / 10.0));
@@ -231,4 +326,166 @@ public class ChartDataTest {
     chartData.throwAwayBefore(99);
     assertEquals(8, chartData.getNumPoints());
   }
+
+  @Test
+  public void addOrderedGroupOfPoints_mergesOverlappingBatches() {
+    ChartData chartData = new ChartData();
+    for (int i = 0; i < 10; i += 2) {
+      chartData.addPoint(i, i);
+    }
+    // Appended after the end.
+    chartData.addOrderedGroupOfPoints(new long[] {10, 12}, new double[] {10, 12}, 2);
+    // Interleaved with existing points.
+    chartData.addOrderedGroupOfPoints(new long[] {1, 5, 11}, new double[] {1, 5, 11}, 3);
+    // Delivered newest-first.
+    chartData.addOrderedGroupOfPoints(new long[] {-1, -2, -3}, new double[] {-1, -2, -3}, 3);
+
+    long[] expected = {-3, -2, -1, 0, 1, 2, 4, 5, 6, 8, 10, 11, 12};
+    assertEquals(expected.length, chartData.getNumPoints());
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], chartData.getXAt(i));
+      assertEquals(expected[i], chartData.getYAt(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void addOrderedGroupOfPoints_prependsIntoTrimmedSpace() {
+    ChartData chartData = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+    for (int i = 0; i < 20; i++) {
+      chartData.addPoint(i, i);
+    }
+    chartData.throwAwayBefore(10);
+    int remaining = chartData.getNumPoints();
+    long firstRemaining = chartData.getXMin();
+
+    List<ChartData.DataPoint> earlier = new ArrayList<>();
+    for (long x = firstRemaining - 5; x < firstRemaining; x++) {
+      earlier.add(new ChartData.DataPoint(x, x));
+    }
+    chartData.addOrderedGroupOfPoints(earlier);
+    assertEquals(remaining + 5, chartData.getNumPoints());
+    for (int i = 0; i < chartData.getNumPoints(); i++) {
+      assertEquals(firstRemaining - 5 + i, chartData.getXAt(i));
+    }
+  }
+
+  @Test
+  public void throwAwayKeepsAppendingInOrder() {
+    ChartData chartData = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+    // Far more points than the initial capacity, trimming as the live chart does.
+    for (int i = 0; i < 5000; i++) {
+      chartData.addPoint(i, i);
+      chartData.throwAwayBefore(i - 100);
+    }
+    assertTrue(chartData.getNumPoints() <= 102);
+    assertEquals(4999, chartData.getXMax());
+    for (int i = 1; i < chartData.getNumPoints(); i++) {
+      assertEquals(chartData.getXAt(i - 1) + 1, chartData.getXAt(i));
+    }
+  }
+
+  @Test
+  public void throwAwayBetween_middle() {
+    ChartData chartData = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+    for (int i = 0; i < 10; i++) {
+      chartData.addPoint(i * 10, i);
+    }
+    chartData.throwAwayBetween(25, 65);
+    List<ChartData.DataPoint> points = chartData.getPoints();
+    assertEquals(0, points.get(0).getX());
+    assertEquals(90, points.get(points.size() - 1).getX());
+    for (int i = 1; i < points.size(); i++) {
+      assertTrue(points.get(i - 1).getX() < points.get(i).getX());
+    }
+    assertTrue(points.size() < 10);
+  }
+
+  @Test
+  public void getPointsInRangeIsAView() {
+    ChartData chartData = new ChartData();
+    for (int i = 0; i < 100; i++) {
+      chartData.addPoint(i, i);
+    }
+    List<ChartData.DataPoint> range = chartData.getPointsInRange(40, 60);
+    int start = chartData.getRangeStartIndex(40);
+    int end = chartData.getRangeEndIndex(60, start);
+    assertEquals(end - start + 1, range.size());
+    assertTrue(range.get(0).getX() <= 40);
+    assertTrue(range.get(range.size() - 1).getX() >= 60);
+  }
+
+  /** Frame times and garbage collections seen during one observe session. */
+  private static class SessionTimings {
+    long meanFrameNanos;
+    long worstFrameNanos;
+    int collections;
+  }
+
+  /**
+   * Compares frame time and garbage collections in a 10-minute, 8-sensor observe session between
+   * ChartData's primitive arrays and the boxed point list they replaced. Only run when asked for;
+   * see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkObserveSession() {
+    Benchmarks.assumeEnabled();
+    // Warm up both, so neither pays for the other's compilation.
+    runObserveSession(true, SESSION_MILLIS / 10);
+    runObserveSession(false, SESSION_MILLIS / 10);
+    SessionTimings arrays = runObserveSession(true, SESSION_MILLIS);
+    SessionTimings boxed = runObserveSession(false, SESSION_MILLIS);
+    reportSession("Primitive arrays", arrays);
+    reportSession("Boxed points", boxed);
+    assertTrue(arrays.collections <= boxed.collections);
+  }
+
+  private static void reportSession(String name, SessionTimings timings) {
+    Benchmarks.report(
+        "%s: %d us mean frame, %d us worst frame, %d GCs",
+        name,
+        timings.meanFrameNanos / 1000,
+        timings.worstFrameNanos / 1000,
+        timings.collections);
+  }
+
+  /**
+   * Runs an 8-sensor observe session at 100 Hz through ChartData or through the boxed list it
+   * replaced, one 16 ms frame at a time: each frame adds the new points, trims what has scrolled
+   * out of reach, and draws the visible range.
+   */
+  private SessionTimings runObserveSession(boolean arrays, long sessionMillis) {
+    List<LiveSeries> series = new ArrayList<>();
+    for (int s = 0; s < SESSION_SENSORS; s++) {
+      series.add(arrays ? new ChartDataSeries() : new BoxedSeries());
+    }
+    GcCounter gcs = new GcCounter();
+    int frames = 0;
+    long totalNanos = 0;
+    long worstNanos = 0;
+    long nextSample = 0;
+    for (long now = FRAME_MILLIS; now <= sessionMillis; now += FRAME_MILLIS) {
+      long start = System.nanoTime();
+      for (; nextSample <= now; nextSample += SAMPLE_INTERVAL_MILLIS) {
+        for (int s = 0; s < SESSION_SENSORS; s++) {
+          series.get(s).addPoint(nextSample, Math.sin(nextSample / 1000.0) + s);
+        }
+      }
+      long xMin = now - GRAPH_RANGE_MILLIS;
+      for (LiveSeries live : series) {
+        // As ChartController does when the observe chart scrolls.
+        live.throwAwayBefore(xMin - 2 * GRAPH_RANGE_MILLIS);
+        drawnChecksum += live.draw(xMin, now);
+      }
+      long elapsed = System.nanoTime() - start;
+      totalNanos += elapsed;
+      worstNanos = Math.max(worstNanos, elapsed);
+      frames++;
+      gcs.poll();
+    }
+    SessionTimings timings = new SessionTimings();
+    timings.meanFrameNanos = totalNanos / frames;
+    timings.worstFrameNanos = worstNanos;
+    timings.collections = gcs.getCollections();
+    return timings;
+  }
 }
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReadingTileCacheTest {
+  private static final long TILE_MILLIS = 10;
+  // 10 readings per tile.
+  private static final long TILE_BYTES = 10 * 16 + 64;
+
+  private DataController dc;
+
+  @Before
+  public void setUp() {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    for (long t = 0; t < 100; t++) {
+      db.addScalarReading("trial", "sensor", 0, t, t * 2);
+    }
+    dc = db.makeSimpleController(new MemoryMetadataManager());
+  }
+
+  @Test
+  public void missThenHit() {
+    ReadingTileCache cache = new ReadingTileCache(Long.MAX_VALUE);
+    RecordingCallback first = new RecordingCallback();
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 5, 25, first, e -> fail(e));
+
+    assertEquals(1, first.finishes);
+    assertEquals(30, first.timestamps.size());
+    Collections.sort(first.timestamps);
+    assertEquals(0, (long) first.timestamps.get(0));
+    assertEquals(29, (long) first.timestamps.get(29));
+    assertEquals(0, cache.getHitRate(), 0);
+    assertEquals(3 * TILE_BYTES, cache.getBytesHeld());
+
+    RecordingCallback second = new RecordingCallback();
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 10, 19, second, e -> fail(e));
+    assertEquals(1, second.finishes);
+    assertEquals(10, second.timestamps.size());
+    assertEquals(0.25, cache.getHitRate(), 0);
+    assertEquals(3 * TILE_BYTES, cache.getBytesHeld());
+  }
+
+  @Test
+  public void tilesAreKeyedByTier() {
+    ReadingTileCache cache = new ReadingTileCache(Long.MAX_VALUE);
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 0, 9, new RecordingCallback(), null);
+    assertTrue(cache.hasTiles("trial", "sensor", 0, TILE_MILLIS, 0, 9));
+    assertFalse(cache.hasTiles("trial", "sensor", 1, TILE_MILLIS, 0, 9));
+    assertFalse(cache.hasTiles("trial", "other", 0, TILE_MILLIS, 0, 9));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    ReadingTileCache cache = new ReadingTileCache(2 * TILE_BYTES);
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 0, 19, new RecordingCallback(), null);
+    // Touch the first tile, so that the second is the least recently used.
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 0, 9, new RecordingCallback(), null);
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 20, 29, new RecordingCallback(), null);
+
+    assertEquals(2 * TILE_BYTES, cache.getBytesHeld());
+    assertTrue(cache.hasTiles("trial", "sensor", 0, TILE_MILLIS, 0, 9));
+    assertFalse(cache.hasTiles("trial", "sensor", 0, TILE_MILLIS, 10, 19));
+    assertTrue(cache.hasTiles("trial", "sensor", 0, TILE_MILLIS, 20, 29));
+  }
+
+  @Test
+  public void prefetchedTilesAreHits() {
+    ReadingTileCache cache = new ReadingTileCache(Long.MAX_VALUE);
+    cache.prefetch(dc, "trial", "sensor", 0, TILE_MILLIS, 40, 59);
+    assertEquals(0, cache.getHitRate(), 0);
+
+    RecordingCallback callback = new RecordingCallback();
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 40, 59, callback, e -> fail(e));
+    assertEquals(20, callback.timestamps.size());
+    assertEquals(1, cache.getHitRate(), 0);
+  }
+
+  @Test
+  public void emptyRangeStillFinishes() {
+    ReadingTileCache cache = new ReadingTileCache(Long.MAX_VALUE);
+    RecordingCallback callback = new RecordingCallback();
+    cache.getTiles(dc, "trial", "sensor", 0, TILE_MILLIS, 30, 20, callback, e -> fail(e));
+    assertEquals(1, callback.finishes);
+    assertEquals(0, callback.timestamps.size());
+  }
+
+  private static void fail(Exception e) {
+    throw new AssertionError(e);
+  }
+
+  private static class RecordingCallback implements ReadingTileCache.TileCallback {
+    final List<Long> timestamps = new ArrayList<>();
+    int finishes = 0;
+
+    @Override
+    public void onTile(ReadingTileCache.Tile tile) {
+      for (int i = 0; i < tile.size(); i++) {
+        timestamps.add(tile.getX(i));
+        assertEquals(tile.getX(i) * 2, tile.getY(i), 0);
+      }
+    }
+
+    @Override
+    public void onFinish() {
+      finishes++;
+    }
+  }
+}
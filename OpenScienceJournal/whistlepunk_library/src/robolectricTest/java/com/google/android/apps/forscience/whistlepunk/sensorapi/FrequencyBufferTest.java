@@ -17,13 +17,197 @@
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 @RunWith(RobolectricTestRunner.class)
 public class FrequencyBufferTest {
+  /** FrequencyBuffer as it was before it counted crossings incrementally, to compare against. */
+  private static class RescanningFrequencyBuffer implements ValueFilter {
+    private final List<ScalarReading> readings = new LinkedList<>();
+    private long window;
+    private final double denominatorInMillis;
+    private double filter;
+
+    RescanningFrequencyBuffer(long windowMillis, double denominatorInMillis, double filter) {
+      window = windowMillis;
+      this.denominatorInMillis = denominatorInMillis;
+      this.filter = filter;
+    }
+
+    void changeWindow(long newWindowMillis) {
+      window = newWindowMillis;
+      if (!readings.isEmpty()) {
+        prune(readings.get(readings.size() - 1).getCollectedTimeMillis());
+      }
+    }
+
+    void changeFilter(double newFilter) {
+      filter = newFilter;
+    }
+
+    @Override
+    public double filterValue(long timestamp, double value) {
+      readings.add(new ScalarReading(timestamp, value));
+      prune(timestamp);
+      return getLatestFrequency();
+    }
+
+    private void prune(long timestamp) {
+      long oldestRemaining = timestamp - window;
+      while (readings.get(0).getCollectedTimeMillis() < oldestRemaining) {
+        readings.remove(0);
+      }
+    }
+
+    double getLatestFrequency() {
+      if (readings.size() < 2) {
+        return 0.0;
+      }
+      double total = 0;
+      for (ScalarReading reading : readings) {
+        total += reading.getValue();
+      }
+      double average = total / readings.size() + filter;
+      int crossings = 0;
+      long firstCrossingTime = -1;
+      long lastCrossingTime = -1;
+      boolean higherThanAverage = readings.get(0).getValue() > average;
+      for (ScalarReading reading : readings.subList(1, readings.size())) {
+        boolean thisReadingHigher = reading.getValue() > average;
+        if (higherThanAverage != thisReadingHigher) {
+          higherThanAverage = thisReadingHigher;
+          crossings++;
+          if (firstCrossingTime == -1) {
+            firstCrossingTime = reading.getCollectedTimeMillis();
+          } else {
+            lastCrossingTime = reading.getCollectedTimeMillis();
+          }
+        }
+      }
+      crossings--;
+      if (firstCrossingTime == -1 || lastCrossingTime == -1) {
+        return 0.0;
+      }
+      long adjustedWindowMillis = lastCrossingTime - firstCrossingTime;
+      if (adjustedWindowMillis < window / 4) {
+        return 0.0;
+      }
+      return crossings / 2.0f / (adjustedWindowMillis / denominatorInMillis);
+    }
+  }
+
+  private final Random random = new Random(7);
+  // Keeps the filtered values of timed runs live, so they can't be optimized away.
+  private double sink;
+
+  /** A noisy sine wave, sampled at about 100 Hz with jitter, whose frequency drifts and stops. */
+  private double[] addNoisySignal(ValueFilter first, ValueFilter second, int count, long start) {
+    double[] outputs = new double[2 * count];
+    long timestamp = start;
+    double phase = 0;
+    double hz = 1 + random.nextDouble() * 5;
+    for (int i = 0; i < count; i++) {
+      timestamp += 5 + random.nextInt(11);
+      if (random.nextInt(200) == 0) {
+        hz = random.nextInt(4) == 0 ? 0 : 0.5 + random.nextDouble() * 8;
+      }
+      phase += 2 * Math.PI * hz * 0.01;
+      double value = 3 * Math.sin(phase) + random.nextGaussian() * 0.5;
+      if (random.nextInt(50) == 0) {
+        // Repeat a value exactly, which can be exactly on the average.
+        value = Math.round(value);
+      }
+      outputs[2 * i] = first.filterValue(timestamp, value);
+      outputs[2 * i + 1] = second.filterValue(timestamp, value);
+    }
+    return outputs;
+  }
+
+  @Test
+  public void testSameAsRescanning() {
+    for (long window : new long[] {100, 1000, 5000}) {
+      for (double filter : new double[] {0, 0.5, 2}) {
+        FrequencyBuffer buffer = new FrequencyBuffer(window, 60000.0, filter);
+        RescanningFrequencyBuffer expected = new RescanningFrequencyBuffer(window, 60000.0, filter);
+        double[] outputs = addNoisySignal(buffer, expected, 5000, 1000);
+        for (int i = 0; i < outputs.length; i += 2) {
+          assertEquals(window + " " + filter + " " + i, outputs[i + 1], outputs[i], 0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSameAsRescanningAfterChanges() {
+    FrequencyBuffer buffer = new FrequencyBuffer(2000, 1000.0, 0.0);
+    RescanningFrequencyBuffer expected = new RescanningFrequencyBuffer(2000, 1000.0, 0.0);
+    long start = 0;
+    for (int round = 0; round < 50; round++) {
+      double[] outputs = addNoisySignal(buffer, expected, 200, start);
+      for (int i = 0; i < outputs.length; i += 2) {
+        assertEquals(outputs[i + 1], outputs[i], 0.0);
+      }
+      start += 200 * 16;
+      if (round % 2 == 0) {
+        long window = 200 + random.nextInt(4000);
+        buffer.changeWindow(window);
+        expected.changeWindow(window);
+      } else {
+        double filter = random.nextDouble() * 3;
+        buffer.changeFilter(filter);
+        expected.changeFilter(filter);
+      }
+      assertEquals(expected.getLatestFrequency(), buffer.getLatestFrequency(), 0.0);
+    }
+  }
+
+  /**
+   * Compares FrequencyBuffer with rescanning its whole window for every value, for a 100 Hz sensor
+   * in RPM mode with a 5 second window. Only run when asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkFilters() {
+    Benchmarks.assumeEnabled();
+    int count = 20000;
+    long[] timestamps = new long[count];
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      timestamps[i] = i * 10L;
+      values[i] = Math.sin(2 * Math.PI * 2 * i / 100.0) + random.nextGaussian() * 0.1;
+    }
+
+    // Warm up both, so neither pays for the other's compilation.
+    timeFilter(new FrequencyBuffer(5000, 60000.0, 0.0), timestamps, values);
+    timeFilter(new RescanningFrequencyBuffer(5000, 60000.0, 0.0), timestamps, values);
+    long frequencyBufferNanos =
+        timeFilter(new FrequencyBuffer(5000, 60000.0, 0.0), timestamps, values);
+    long rescanningNanos =
+        timeFilter(new RescanningFrequencyBuffer(5000, 60000.0, 0.0), timestamps, values);
+    Benchmarks.report(
+        "Frequency of a 100 Hz signal over 5 s: %d ns per value, %d ns rescanning",
+        frequencyBufferNanos,
+        rescanningNanos);
+    assertTrue(frequencyBufferNanos < rescanningNanos);
+  }
+
+  /** Returns the nanoseconds {@code filter} took per value. */
+  private long timeFilter(ValueFilter filter, long[] timestamps, double[] values) {
+    long start = System.nanoTime();
+    for (int i = 0; i < timestamps.length; i++) {
+      sink += filter.filterValue(timestamps[i], values[i]);
+    }
+    return (System.nanoTime() - start) / timestamps.length;
+  }
+
   @Test
   public void testTwenty() {
     final FrequencyBuffer buffer = new FrequencyBuffer(100, 1000.0, 0.0);
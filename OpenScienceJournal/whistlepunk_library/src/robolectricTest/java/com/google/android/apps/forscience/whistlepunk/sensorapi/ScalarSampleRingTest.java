@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSampleRing.WhenFull;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScalarSampleRingTest {
+  private final List<Long> timestamps = new ArrayList<>();
+  private final List<Double> values = new ArrayList<>();
+  private final List<Boolean> lasts = new ArrayList<>();
+
+  private final ScalarSampleRing.SampleConsumer consumer =
+      (timestampMillis, value, min, max, average, last) -> {
+        timestamps.add(timestampMillis);
+        values.add(value);
+        lasts.add(last);
+        assertEquals(value - 1, min, 0);
+        assertEquals(value + 1, max, 0);
+        assertEquals(value, average, 0);
+      };
+
+  private static boolean offer(ScalarSampleRing ring, long timestamp) {
+    double value = timestamp * 10;
+    return ring.offer(timestamp, value, value - 1, value + 1, value);
+  }
+
+  @Test
+  public void drainsInOrderAndMarksLast() {
+    ScalarSampleRing ring = new ScalarSampleRing(8, WhenFull.DROP_NEWEST);
+    assertEquals(0, ring.drain(consumer));
+    for (long i = 0; i < 3; i++) {
+      assertTrue(offer(ring, i));
+    }
+
+    assertEquals(3, ring.drain(consumer));
+    assertEquals(0, ring.drain(consumer));
+
+    assertEquals(3, timestamps.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, (long) timestamps.get(i));
+      assertEquals(i * 10, values.get(i), 0);
+    }
+    assertFalse(lasts.get(0));
+    assertFalse(lasts.get(1));
+    assertTrue(lasts.get(2));
+    assertEquals(2, ring.getCoalescedCount());
+  }
+
+  @Test
+  public void dropsWhenFull() {
+    ScalarSampleRing ring = new ScalarSampleRing(4, WhenFull.DROP_NEWEST);
+    for (long i = 0; i < 4; i++) {
+      assertTrue(offer(ring, i));
+    }
+    assertFalse(offer(ring, 4));
+    assertFalse(offer(ring, 5));
+    assertEquals(2, ring.getDroppedCount());
+
+    ring.drain(consumer);
+    assertTrue(offer(ring, 6));
+    ring.drain(consumer);
+
+    assertEquals(5, timestamps.size());
+    assertEquals(3, (long) timestamps.get(3));
+    assertEquals(6, (long) timestamps.get(4));
+  }
+
+  @Test
+  public void keepsLatestWhenFull() {
+    ScalarSampleRing ring = new ScalarSampleRing(4, WhenFull.KEEP_LATEST);
+    for (long i = 0; i < 7; i++) {
+      assertTrue(offer(ring, i));
+    }
+    // 4 and 5 were each held, then replaced.
+    assertEquals(2, ring.getDroppedCount());
+    assertEquals(5, ring.getDepth());
+
+    assertEquals(5, ring.drain(consumer));
+    assertEquals(0, ring.getDepth());
+    assertEquals(5, timestamps.size());
+    assertEquals(3, (long) timestamps.get(3));
+    assertEquals(6, (long) timestamps.get(4));
+    assertFalse(lasts.get(3));
+    assertTrue(lasts.get(4));
+  }
+
+  @Test
+  public void downsamplesLargeDrains() {
+    ScalarSampleRing ring = new ScalarSampleRing(64, WhenFull.KEEP_LATEST);
+    // A spike up and a spike down in otherwise flat data.
+    for (long i = 0; i < 40; i++) {
+      double value = i == 7 ? 1000 : i == 25 ? -1000 : 0;
+      ring.offer(i, value, value - 1, value + 1, value);
+    }
+
+    assertEquals(40, ring.drain(consumer, 9));
+    assertTrue(timestamps.size() <= 9);
+    assertTrue(values.contains(1000.0));
+    assertTrue(values.contains(-1000.0));
+    // Still in order, and ending with the latest reading.
+    for (int i = 1; i < timestamps.size(); i++) {
+      assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+    }
+    assertEquals(39, (long) timestamps.get(timestamps.size() - 1));
+    assertTrue(lasts.get(lasts.size() - 1));
+    assertEquals(40 - timestamps.size(), ring.getDownsampledCount());
+  }
+
+  @Test
+  public void wrapsAround() {
+    ScalarSampleRing ring = new ScalarSampleRing(4, WhenFull.DROP_NEWEST);
+    for (long i = 0; i < 100; i++) {
+      assertTrue(offer(ring, i));
+      if (i % 3 == 2) {
+        ring.drain(consumer);
+      }
+    }
+    ring.drain(consumer);
+
+    assertEquals(100, timestamps.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (long) timestamps.get(i));
+    }
+    assertEquals(0, ring.getDroppedCount());
+  }
+
+  @Test
+  public void producerAndConsumerOnDifferentThreads() throws InterruptedException {
+    ScalarSampleRing ring = new ScalarSampleRing(16, WhenFull.DROP_NEWEST);
+    int count = 100000;
+    Thread producer =
+        new Thread(
+            () -> {
+              for (long i = 0; i < count; i++) {
+                while (!offer(ring, i)) {
+                  Thread.yield();
+                }
+              }
+            });
+    producer.start();
+    while (timestamps.size() < count) {
+      ring.drain(consumer);
+    }
+    producer.join();
+
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (long) timestamps.get(i));
+    }
+  }
+
+  @Test
+  public void keepsLatestInOrderOnDifferentThreads() throws InterruptedException {
+    ScalarSampleRing ring = new ScalarSampleRing(16, WhenFull.KEEP_LATEST);
+    int count = 100000;
+    Thread producer =
+        new Thread(
+            () -> {
+              for (long i = 0; i < count; i++) {
+                assertTrue(offer(ring, i));
+              }
+            });
+    producer.start();
+    while (producer.isAlive()) {
+      ring.drain(consumer);
+    }
+    producer.join();
+    ring.drain(consumer);
+
+    for (int i = 1; i < timestamps.size(); i++) {
+      assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+    }
+    assertEquals(count - 1, (long) timestamps.get(timestamps.size() - 1));
+    assertEquals(count, timestamps.size() + ring.getDroppedCount());
+  }
+}
@@ -18,6 +18,9 @@ package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
 
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
@@ -25,10 +28,27 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSenso
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -137,6 +157,296 @@ public class ScalarSensorDumpReaderTest {
     assertEquals(0, readings.size());
   }
 
+  @Test
+  public void testDataStreamedInBlocks() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "id");
+    // Write the rows as blocks of 300, each its own dump, as SensorDatabase does.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrayList<ScalarSensorDataRow> rowList = populateRowList();
+    for (int start = 0; start < rowList.size(); start += 300) {
+      ScalarSensorDataDump block =
+          ScalarSensorDataDump.newBuilder()
+              .setTag("foo")
+              .setTrialId("id")
+              .addAllRows(rowList.subList(start, Math.min(start + 300, rowList.size())))
+              .build();
+      // Serialized messages can be concatenated, so this is a single ScalarSensorData.
+      GoosciScalarSensorData.ScalarSensorData.newBuilder().addSensors(block).build().writeTo(out);
+    }
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+    reader.readData(new ByteArrayInputStream(out.toByteArray()), idMap);
+
+    // The same zoom tiers as if it had been read in one go.
+    ScalarReadingList readings =
+        db.getScalarReadings("id", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(10000, readings.size());
+
+    readings = db.getScalarReadings("id", "foo", TimeRange.oldest(Range.all()), 1, 0);
+    assertEquals(500, readings.size());
+
+    readings = db.getScalarReadings("id", "foo", TimeRange.oldest(Range.all()), 2, 0);
+    assertEquals(26, readings.size());
+
+    readings = db.getScalarReadings("id", "foo", TimeRange.oldest(Range.all()), 3, 0);
+    assertEquals(2, readings.size());
+  }
+
+  @Test
+  public void testSingleMessageStreamed() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "newId");
+    GoosciScalarSensorData.ScalarSensorData data =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("foo")
+                    .setTrialId("id")
+                    .addAllRows(populateRowList()))
+            .addSensors(ScalarSensorDataDump.newBuilder().setTag("bar").setTrialId("id"))
+            .build();
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+    reader.readData(new ByteArrayInputStream(data.toByteArray()), idMap);
+
+    ScalarReadingList readings =
+        db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(10000, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 1, 0);
+    assertEquals(500, readings.size());
+  }
+
+  @Test
+  public void testRowsAfterTrialIdStreamed() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "newId");
+    // One dump much bigger than a chunk, with the tag and trial id first, as exports now have.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    writeDumpHeaderFirst(output, "foo", "id", 1, 10000);
+    output.flush();
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+    reader.readData(new ByteArrayInputStream(out.toByteArray()), idMap);
+
+    ScalarReadingList readings =
+        db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(10000, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 1, 0);
+    assertEquals(500, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 2, 0);
+    assertEquals(26, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 3, 0);
+    assertEquals(2, readings.size());
+  }
+
+  @Test
+  public void testDataStoredInBackground() throws Exception {
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "newId");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    // Blocks of one sensor, which make one series, then another sensor.
+    for (int start = 1; start <= 10000; start += 1000) {
+      writeDumpHeaderFirst(output, "foo", "id", start, start + 999);
+    }
+    writeDumpHeaderFirst(output, "bar", "id", 1, 200);
+    output.flush();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+      reader
+          .readDataInBackground(new ByteArrayInputStream(out.toByteArray()), idMap, executor)
+          .get();
+    } finally {
+      executor.shutdown();
+    }
+
+    ScalarReadingList readings =
+        db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(10000, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 1, 0);
+    assertEquals(500, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 2, 0);
+    assertEquals(26, readings.size());
+
+    readings = db.getScalarReadings("newId", "bar", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(200, readings.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void testParsingStopsWhenStoringFails() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    // Far more chunks than can be queued.
+    writeDumpHeaderFirst(output, "foo", "id", 1, 100000);
+    output.flush();
+    CountingDataController failing =
+        new CountingDataController() {
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            throw new IllegalStateException("Database is gone");
+          }
+        };
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      new ScalarSensorDumpReader(failing)
+          .readDataInBackground(
+              new ByteArrayInputStream(out.toByteArray()), new HashMap<>(), executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Times importing a 50 MB sensor data file, streamed from disk and stored in the background, as
+   * an import does. Archives of 500 MB are what the import path was tuned for, and can be measured
+   * by changing the size. The data controller only counts what it's given, so that the numbers are
+   * for parsing, zoom tiers and batching. Peak heap is sampled while importing, and includes
+   * garbage that hasn't been collected yet. Only run when asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkImport() throws Exception {
+    Benchmarks.assumeEnabled();
+    long targetBytes = 50 * 1024L * 1024;
+    File dataFile = File.createTempFile("sensorData", ".proto");
+    dataFile.deleteOnExit();
+    long rows = 0;
+    try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(dataFile))) {
+      CodedOutputStream output = CodedOutputStream.newInstance(fileOut);
+      while (output.getTotalBytesWritten() < targetBytes) {
+        writeDumpHeaderFirst(output, "foo", "id", rows + 1, rows + 1000);
+        rows += 1000;
+      }
+      output.flush();
+    }
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "newId");
+
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long baselineHeap = runtime.totalMemory() - runtime.freeMemory();
+    AtomicLong peakHeap = new AtomicLong(baselineHeap);
+    AtomicBoolean importing = new AtomicBoolean(true);
+    Thread sampler =
+        new Thread(
+            () -> {
+              while (importing.get()) {
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if (used > peakHeap.get()) {
+                  peakHeap.set(used);
+                }
+                try {
+                  Thread.sleep(5);
+                } catch (InterruptedException e) {
+                  return;
+                }
+              }
+            });
+    sampler.start();
+
+    CountingDataController counter = new CountingDataController();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    long start = System.nanoTime();
+    try (InputStream in = new FileInputStream(dataFile)) {
+      new ScalarSensorDumpReader(counter).readDataInBackground(in, idMap, executor).get();
+    } finally {
+      executor.shutdown();
+      importing.set(false);
+      sampler.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    assertEquals(rows, counter.rawReadings);
+    long fileBytes = dataFile.length();
+    dataFile.delete();
+    Benchmarks.report(
+        "Import of %d MB (%d rows): %.0f rows/s, %.1f MB/s, peak heap %d MB over %d MB",
+        fileBytes / (1024 * 1024),
+        rows,
+        rows / (elapsed / 1e9),
+        Benchmarks.megabytesPerSecond(fileBytes, elapsed),
+        (peakHeap.get() - baselineHeap) / (1024 * 1024),
+        baselineHeap / (1024 * 1024));
+  }
+
+  /** Writes a dump field by field, with the tag and trial id before the rows. */
+  private static void writeDumpHeaderFirst(
+      CodedOutputStream output, String tag, String trialId, long firstTimestamp, long lastTimestamp)
+      throws IOException {
+    int size =
+        CodedOutputStream.computeStringSize(ScalarSensorDataDump.TAG_FIELD_NUMBER, tag)
+            + CodedOutputStream.computeStringSize(
+                ScalarSensorDataDump.TRIALID_FIELD_NUMBER, trialId);
+    for (long t = firstTimestamp; t <= lastTimestamp; t++) {
+      size += CodedOutputStream.computeMessageSize(ScalarSensorDataDump.ROWS_FIELD_NUMBER, row(t));
+    }
+    output.writeTag(
+        GoosciScalarSensorData.ScalarSensorData.SENSORS_FIELD_NUMBER,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(size);
+    output.writeString(ScalarSensorDataDump.TAG_FIELD_NUMBER, tag);
+    output.writeString(ScalarSensorDataDump.TRIALID_FIELD_NUMBER, trialId);
+    for (long t = firstTimestamp; t <= lastTimestamp; t++) {
+      output.writeMessage(ScalarSensorDataDump.ROWS_FIELD_NUMBER, row(t));
+    }
+  }
+
+  private static ScalarSensorDataRow row(long timestampMillis) {
+    return ScalarSensorDataRow.newBuilder()
+        .setTimestampMillis(timestampMillis)
+        .setValue(timestampMillis * 100)
+        .build();
+  }
+
+  /** Counts the readings it's given, and stores nothing. */
+  private static class CountingDataController implements RecordingDataController {
+    long rawReadings = 0;
+
+    @Override
+    public void addScalarReading(
+        String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+      if (resolutionTier == 0) {
+        rawReadings++;
+      }
+    }
+
+    @Override
+    public void addScalarStatsBucket(
+        String trialId,
+        String sensorId,
+        int resolutionTier,
+        long bucketStartMillis,
+        ScalarStats stats) {}
+
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      for (BatchInsertScalarReading reading : readings) {
+        if (reading.resolutionTier == 0) {
+          rawReadings++;
+        }
+      }
+    }
+
+    @Override
+    public void flushScalarReadings() {}
+
+    @Override
+    public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {}
+
+    @Override
+    public void clearDataErrorListenerForSensor(String sensorId) {}
+  }
+
   private ArrayList<ScalarSensorDataRow> populateRowList() {
     ArrayList<ScalarSensorDataRow> rowList = new ArrayList<>();
     for (int x = 1; x <= 10000; x++) {
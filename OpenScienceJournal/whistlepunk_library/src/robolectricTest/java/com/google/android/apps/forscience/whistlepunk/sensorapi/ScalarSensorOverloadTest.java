@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.CurrentTimeClock;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.ScalarReadingWriteQueue;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Drives several sensors at ten times their nominal rate, into storage that can't keep up and a UI
+ * thread that sometimes stalls, and checks that every reading is still stored while the queues in
+ * between stay bounded.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ScalarSensorOverloadTest {
+  private static final int SENSORS = 3;
+  private static final int NOMINAL_RATE_HZ = 100;
+  private static final int OVERLOAD = 10;
+  private static final int READINGS_PER_SENSOR = 1000;
+  private static final int WRITE_QUEUE_CAPACITY = 200;
+  // Slower than the sensors produce, so readings have to be spilled.
+  private static final long STORAGE_NANOS_PER_READING = 1_000_000;
+  private static final long FRAME_MILLIS = 16;
+  private static final int FRAMES_BETWEEN_STALLS = 20;
+  private static final long STALL_MILLIS = 300;
+
+  private static class SlowDatabase extends InMemorySensorDatabase {
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      LockSupport.parkNanos(readings.size() * STORAGE_NANOS_PER_READING);
+      super.addScalarReadings(readings);
+    }
+  }
+
+  /** Remembers how many readings each UI update delivered. */
+  private static class UpdateCountingObserver extends RecordingSensorObserver {
+    final List<Integer> updateSizes = new ArrayList<>();
+    private int currentUpdate = 0;
+
+    @Override
+    public void onNewData(long timestamp, Data bundle) {
+      super.onNewData(timestamp, bundle);
+      currentUpdate++;
+      if (bundle.isLastInBatch()) {
+        updateSizes.add(currentUpdate);
+        currentUpdate = 0;
+      }
+    }
+  }
+
+  @Test
+  public void keepsEveryStoredReadingUnderTenTimesNominalRate() throws Exception {
+    SlowDatabase db = new SlowDatabase();
+    ExecutorService storageThread = Executors.newSingleThreadExecutor();
+    ExecutorService spillThread = Executors.newSingleThreadExecutor();
+    ScalarReadingWriteQueue writeQueue =
+        new ScalarReadingWriteQueue(
+            db,
+            storageThread,
+            // Batches fill long before the delay would run out.
+            new MockScheduler(),
+            new CurrentTimeClock(),
+            PerfTrackerProvider.STUB,
+            ScalarReadingWriteQueue.DEFAULT_MAX_BATCH_SIZE / 10,
+            Delay.millis(1000),
+            WRITE_QUEUE_CAPACITY,
+            new File(RuntimeEnvironment.application.getApplicationContext().getFilesDir(), "spill"),
+            spillThread);
+    DataControllerImpl dc =
+        new DataControllerImpl(
+            null, // context
+            StubAppAccount.getInstance(),
+            db,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            storageThread,
+            new MemoryMetadataManager(),
+            new MonotonicClock(),
+            new HashMap<>(),
+            new ConnectableSensor.Connector(new HashMap<>()),
+            writeQueue);
+
+    // Stands in for the UI thread, which runs whatever was posted to it once per frame.
+    Queue<Runnable> frame = new ConcurrentLinkedQueue<>();
+    List<ManualSensor> sensors = new ArrayList<>();
+    List<UpdateCountingObserver> observers = new ArrayList<>();
+    List<SensorRecorder> recorders = new ArrayList<>();
+    for (int s = 0; s < SENSORS; s++) {
+      ManualSensor sensor = new ManualSensor("sensor" + s, 1000, 20, frame::add);
+      UpdateCountingObserver observer = new UpdateCountingObserver();
+      SensorRecorder recorder = sensor.createRecorder(null, dc, observer);
+      recorder.startObserving();
+      recorder.startRecording("trial");
+      sensors.add(sensor);
+      observers.add(observer);
+      recorders.add(recorder);
+    }
+
+    List<Thread> producers = new ArrayList<>();
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / (NOMINAL_RATE_HZ * OVERLOAD);
+    for (ManualSensor sensor : sensors) {
+      producers.add(
+          new Thread(
+              () -> {
+                long next = System.nanoTime();
+                for (int i = 0; i < READINGS_PER_SENSOR; i++) {
+                  sensor.pushValue(i, i);
+                  next += intervalNanos;
+                  LockSupport.parkNanos(next - System.nanoTime());
+                }
+              }));
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+
+    int frames = 0;
+    while (anyAlive(producers) || !frame.isEmpty()) {
+      Runnable r;
+      while ((r = frame.poll()) != null) {
+        r.run();
+      }
+      frames++;
+      Thread.sleep(frames % FRAMES_BETWEEN_STALLS == 0 ? STALL_MILLIS : FRAME_MILLIS);
+    }
+    for (SensorRecorder recorder : recorders) {
+      recorder.stopRecording(null);
+    }
+    storageThread.shutdown();
+    assertTrue(storageThread.awaitTermination(30, TimeUnit.SECONDS));
+    spillThread.shutdown();
+    assertTrue(spillThread.awaitTermination(30, TimeUnit.SECONDS));
+
+    // Storage spilled instead of growing in memory, and lost nothing.
+    ScalarReadingWriteQueue.Metrics metrics = writeQueue.getMetrics();
+    assertTrue(metrics.getMaxQueueDepth() <= WRITE_QUEUE_CAPACITY);
+    assertTrue(metrics.getSpilledReadings() > 0);
+    assertEquals(0, metrics.getSpillDepth());
+    List<Long> stored = new ArrayList<>();
+    for (int s = 0; s < SENSORS; s++) {
+      stored.clear();
+      for (InMemorySensorDatabase.Reading reading : db.getReadings(0)) {
+        if (reading.getDatabaseTag().equals("sensor" + s)) {
+          stored.add(reading.getTimestampMillis());
+        }
+      }
+      assertEquals(READINGS_PER_SENSOR, stored.size());
+      for (int i = 0; i < READINGS_PER_SENSOR; i++) {
+        assertEquals(i, (long) stored.get(i));
+      }
+    }
+
+    // The UI shed readings instead, but never showed too many at once, and caught up to the end.
+    for (UpdateCountingObserver observer : observers) {
+      for (int size : observer.updateSizes) {
+        assertTrue(size <= ScalarSensor.MAX_READINGS_PER_UI_UPDATE);
+      }
+      List<ScalarReading> shown = observer.getReadings();
+      assertEquals(READINGS_PER_SENSOR - 1, shown.get(shown.size() - 1).getCollectedTimeMillis());
+    }
+    for (ManualSensor sensor : sensors) {
+      assertEquals(0, sensor.getPendingSampleCount());
+    }
+  }
+
+  private static boolean anyAlive(List<Thread> threads) {
+    for (Thread thread : threads) {
+      if (thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
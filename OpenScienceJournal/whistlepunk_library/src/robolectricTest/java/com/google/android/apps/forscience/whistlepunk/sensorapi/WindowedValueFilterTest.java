@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class WindowedValueFilterTest {
+  @Test
+  public void testMovingAverage() {
+    MovingAverageFilter filter = new MovingAverageFilter(100);
+    assertEquals(2.0, filter.filterValue(0, 2), 0.001);
+    assertEquals(3.0, filter.filterValue(50, 4), 0.001);
+    assertEquals(4.0, filter.filterValue(100, 6), 0.001);
+    // The value at 0 is now too old.
+    assertEquals(6.0, filter.filterValue(150, 8), 0.001);
+    filter.changeWindow(0);
+    assertEquals(8.0, filter.filterValue(150, 8), 0.001);
+  }
+
+  @Test
+  public void testMovingAverageGrowsPastInitialCapacity() {
+    MovingAverageFilter filter = new MovingAverageFilter(1000);
+    double total = 0;
+    for (int i = 0; i < 1000; i++) {
+      total += i;
+      assertEquals(total / (i + 1), filter.filterValue(i, i), 0.001);
+    }
+    // Keeps working as it wraps around.
+    for (int i = 1000; i < 3000; i++) {
+      assertEquals(i - 500, filter.filterValue(i, i), 0.001);
+    }
+  }
+
+  @Test
+  public void testRms() {
+    RmsFilter filter = new RmsFilter(100);
+    assertEquals(3.0, filter.filterValue(0, -3), 0.001);
+    assertEquals(Math.sqrt((9 + 16) / 2.0), filter.filterValue(50, 4), 0.001);
+    assertEquals(4.0, filter.filterValue(200, 4), 0.001);
+  }
+
+  @Test
+  public void testDerivative() {
+    DerivativeFilter filter = new DerivativeFilter(1000, 1000.0);
+    assertEquals(0.0, filter.filterValue(0, 5), 0.001);
+    assertEquals(10.0, filter.filterValue(500, 10), 0.001);
+    assertEquals(10.0, filter.filterValue(1000, 15), 0.001);
+    // Only the last second counts.
+    assertEquals(-10.0, filter.filterValue(2000, 5), 0.001);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ZoomRecorderTest {
+  private static final double DELTA = 0.0001;
+
+  private final InMemorySensorDatabase db = new InMemorySensorDatabase();
+  private final RecordingDataController dc = db.makeSimpleRecordingController();
+
+  private static double valueAt(long timestamp) {
+    return Math.sin(timestamp / 7.0) * timestamp;
+  }
+
+  private void record(int readingCount) {
+    ZoomRecorder recorder = new ZoomRecorder("sensor", 10, 1);
+    recorder.setTrialId("trial");
+    for (int i = 0; i < readingCount; i++) {
+      long timestamp = 1000 + i * 10;
+      db.addScalarReading("trial", "sensor", 0, timestamp, valueAt(timestamp));
+      recorder.addData(timestamp, valueAt(timestamp), dc);
+    }
+    recorder.flushAllTiers(dc);
+  }
+
+  @Test
+  public void storesBucketPerFlush() {
+    record(1000);
+
+    // 10 readings per bucket at tier 1, then 5 tier-1 buckets (10 points) per bucket above that.
+    assertBuckets(db.getStatsBuckets(1), 100, 10);
+    assertBuckets(db.getStatsBuckets(2), 20, 50);
+    assertBuckets(db.getStatsBuckets(3), 4, 250);
+    assertBuckets(db.getStatsBuckets(4), 1, 1000);
+  }
+
+  @Test
+  public void bucketStatsMatchReadings() {
+    record(20);
+
+    List<ScalarStats> buckets = db.getStatsBuckets(1);
+    assertEquals(2, buckets.size());
+    ScalarStats first = buckets.get(0);
+    assertEquals(1000, first.getFirstTimestamp());
+    assertEquals(1090, first.getLastTimestamp());
+    double sum = 0;
+    for (long t = 1000; t <= 1090; t += 10) {
+      sum += valueAt(t);
+    }
+    assertEquals(sum, first.getSum(), DELTA);
+  }
+
+  @Test
+  public void rangeStatsMatchScanningReadings() {
+    record(1003);
+
+    long[][] ranges = {
+      {0, 100000}, {1000, 11020}, {1005, 11015}, {1230, 7770}, {5000, 5000}, {4321, 4399}
+    };
+    for (long[] range : ranges) {
+      ScalarStats expected = new ScalarStats();
+      for (InMemorySensorDatabase.Reading reading : db.getReadings(0)) {
+        long t = reading.getTimestampMillis();
+        if (t >= range[0] && t <= range[1]) {
+          expected.add(t, reading.getValue());
+        }
+      }
+      ScalarStats actual =
+          db.getScalarStats(
+              "trial", "sensor", TimeRange.oldest(Range.closed(range[0], range[1])));
+      String message = range[0] + ".." + range[1];
+      assertEquals(message, expected.getCount(), actual.getCount());
+      assertEquals(message, expected.getSum(), actual.getSum(), DELTA);
+      assertEquals(
+          message,
+          expected.getSumOfSquaredDeviations(),
+          actual.getSumOfSquaredDeviations(),
+          DELTA);
+      assertEquals(message, expected.getMin(), actual.getMin(), DELTA);
+      assertEquals(message, expected.getMax(), actual.getMax(), DELTA);
+      assertEquals(message, expected.getFirstTimestamp(), actual.getFirstTimestamp());
+      assertEquals(message, expected.getLastTimestamp(), actual.getLastTimestamp());
+    }
+  }
+
+  private void assertBuckets(List<ScalarStats> buckets, int bucketCount, int readingsPerBucket) {
+    assertEquals(bucketCount, buckets.size());
+    for (ScalarStats bucket : buckets) {
+      assertEquals(readingsPerBucket, bucket.getCount());
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Range;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScalarDownsamplerTest {
+  @Test
+  public void keepsFirstLastMinAndMaxPerColumn() {
+    ScalarDownsampler downsampler = new ScalarDownsampler(0, 99, 2);
+    // First column: 0..49
+    downsampler.addData(0, 5);
+    downsampler.addData(10, 9);
+    downsampler.addData(20, 7);
+    downsampler.addData(30, 1);
+    downsampler.addData(49, 4);
+    // Second column: 50..99, where the first reading is also the max, and the last also the min
+    downsampler.addData(50, 10);
+    downsampler.addData(60, 6);
+    downsampler.addData(99, 2);
+    // Out of range
+    downsampler.addData(100, 100);
+
+    assertEquals(
+        Arrays.asList(
+            new ScalarReading(0, 5),
+            new ScalarReading(10, 9),
+            new ScalarReading(30, 1),
+            new ScalarReading(49, 4),
+            new ScalarReading(50, 10),
+            new ScalarReading(99, 2)),
+        ScalarReading.slurp(downsampler.getRows().asScalarReadingList(false)));
+  }
+
+  @Test
+  public void acceptsReadingsInAnyOrder() {
+    ScalarDownsampler downsampler = new ScalarDownsampler(0, 9, 1);
+    downsampler.addData(5, 0);
+    downsampler.addData(9, 3);
+    downsampler.addData(0, 2);
+    downsampler.addData(3, -1);
+
+    assertEquals(
+        Arrays.asList(
+            new ScalarReading(0, 2),
+            new ScalarReading(3, -1),
+            new ScalarReading(9, 3)),
+        ScalarReading.slurp(downsampler.getRows().asScalarReadingList(false)));
+  }
+
+  @Test
+  public void boundedOutputKeepsExtremes() {
+    ScalarDownsampler downsampler = new ScalarDownsampler(0, 9999, 10);
+    for (int i = 0; i < 10000; i++) {
+      downsampler.addData(i, i == 1234 ? 1000 : (i == 8765 ? -1000 : Math.sin(i)));
+    }
+    List<ScalarReading> rows =
+        ScalarReading.slurp(downsampler.getRows().asScalarReadingList(false));
+    assertTrue(rows.size() <= 40);
+    assertEquals(0, rows.get(0).getCollectedTimeMillis());
+    assertEquals(9999, rows.get(rows.size() - 1).getCollectedTimeMillis());
+    assertTrue(rows.contains(new ScalarReading(1234, 1000)));
+    assertTrue(rows.contains(new ScalarReading(8765, -1000)));
+    for (int i = 1; i < rows.size(); i++) {
+      assertTrue(rows.get(i - 1).getCollectedTimeMillis() < rows.get(i).getCollectedTimeMillis());
+    }
+  }
+
+  @Test
+  public void usesCoarsestTierWithEnoughPoints() {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    for (int i = 0; i < 10000; i++) {
+      db.addScalarReading("trial", "tag", 0, i, 1);
+      if (i % 5 == 0) {
+        db.addScalarReading("trial", "tag", 1, i, 2);
+      }
+      if (i % 500 == 0) {
+        db.addScalarReading("trial", "tag", 2, i, 3);
+      }
+    }
+
+    // Tier 1 has 2000 points in range, which is more than enough for 10 columns, while tier 2's
+    // 20 points are too few.
+    List<ScalarReading> rows =
+        ScalarReading.slurp(
+            ScalarDownsampler.downsample(
+                db, "trial", "tag", TimeRange.oldest(Range.closed(0L, 9999L)), 10));
+    assertTrue(rows.size() <= 40);
+    for (ScalarReading row : rows) {
+      assertEquals(2, row.getValue(), 0.001);
+    }
+
+    // For 1000 columns, only the raw readings will do.
+    rows =
+        ScalarReading.slurp(
+            ScalarDownsampler.downsample(
+                db, "trial", "tag", TimeRange.oldest(Range.closed(0L, 9999L)), 1000));
+    for (ScalarReading row : rows) {
+      assertEquals(1, row.getValue(), 0.001);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScalarStatsTest {
+  private static final double DELTA = 0.0001;
+
+  @Test
+  public void empty() {
+    ScalarStats stats = new ScalarStats();
+    assertTrue(stats.isEmpty());
+    assertEquals(0, stats.getCount());
+    assertTrue(Double.isNaN(stats.getMean()));
+    assertTrue(Double.isNaN(stats.getStandardDeviation()));
+  }
+
+  @Test
+  public void addReadings() {
+    ScalarStats stats = new ScalarStats();
+    stats.add(10, 2);
+    stats.add(20, 4);
+    stats.add(30, 4);
+    stats.add(40, 4);
+    stats.add(50, 5);
+    stats.add(60, 5);
+    stats.add(70, 7);
+    stats.add(80, 9);
+
+    assertFalse(stats.isEmpty());
+    assertEquals(8, stats.getCount());
+    assertEquals(2, stats.getMin(), DELTA);
+    assertEquals(9, stats.getMax(), DELTA);
+    assertEquals(5, stats.getMean(), DELTA);
+    assertEquals(4, stats.getVariance(), DELTA);
+    assertEquals(2, stats.getStandardDeviation(), DELTA);
+    assertEquals(10, stats.getFirstTimestamp());
+    assertEquals(80, stats.getLastTimestamp());
+  }
+
+  @Test
+  public void mergeMatchesAddingReadings() {
+    ScalarStats all = new ScalarStats();
+    ScalarStats first = new ScalarStats();
+    ScalarStats second = new ScalarStats();
+    for (int i = 0; i < 100; i++) {
+      double value = Math.sin(i) * i;
+      all.add(i, value);
+      (i < 37 ? first : second).add(i, value);
+    }
+
+    ScalarStats merged = new ScalarStats();
+    merged.add(second);
+    merged.add(new ScalarStats());
+    merged.add(first);
+
+    assertEquals(all.getCount(), merged.getCount());
+    assertEquals(all.getSum(), merged.getSum(), DELTA);
+    assertEquals(all.getMean(), merged.getMean(), DELTA);
+    assertEquals(all.getSumOfSquaredDeviations(), merged.getSumOfSquaredDeviations(), DELTA);
+    assertEquals(all.getMin(), merged.getMin(), DELTA);
+    assertEquals(all.getMax(), merged.getMax(), DELTA);
+    assertEquals(all.getFirstTimestamp(), merged.getFirstTimestamp());
+    assertEquals(all.getLastTimestamp(), merged.getLastTimestamp());
+  }
+
+  @Test
+  public void constantValuesHaveNoDeviation() {
+    ScalarStats stats = new ScalarStats();
+    for (int i = 0; i < 1000; i++) {
+      stats.add(i, 0.1);
+    }
+    assertEquals(0, stats.getStandardDeviation(), DELTA);
+  }
+
+  @Test
+  public void varianceSurvivesLargeOffset() {
+    // Like a barometer: about 1e5 Pa, varying by a fraction of a pascal.
+    double offset = 101325;
+    int count = 100000;
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = offset + 0.05 * Math.sin(i * 0.01) + 0.01 * ((i * 7919) % 13 - 6) / 6;
+    }
+    double mean = 0;
+    for (double value : values) {
+      mean += (value - offset) / count;
+    }
+    double expectedVariance = 0;
+    for (double value : values) {
+      double deviation = value - offset - mean;
+      expectedVariance += deviation * deviation / count;
+    }
+
+    // One reading at a time, and merged from buckets the way zoom tiers build them up.
+    ScalarStats direct = new ScalarStats();
+    ScalarStats merged = new ScalarStats();
+    ScalarStats bucket = new ScalarStats();
+    for (int i = 0; i < count; i++) {
+      direct.add(i, values[i]);
+      bucket.add(i, values[i]);
+      if (bucket.getCount() == 20) {
+        merged.add(bucket);
+        bucket = new ScalarStats();
+      }
+    }
+
+    double tolerance = expectedVariance * 1e-6;
+    assertEquals(expectedVariance, direct.getVariance(), tolerance);
+    assertEquals(expectedVariance, merged.getVariance(), tolerance);
+    assertEquals(offset + mean, merged.getMean(), 1e-9);
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import com.google.android.apps.forscience.whistlepunk.ScalarReadingWriteQueue;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import io.reactivex.observers.TestObserver;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class SegmentSensorDatabaseTest {
+  private static final String TEST_DATABASE_NAME = "segment_migration_test.db";
+
+  private SegmentSensorDatabase makeDb() {
+    return new SegmentSensorDatabase(getDirectory(), null);
+  }
+
+  @Test
+  public void readsBackInOrder() {
+    SegmentSensorDatabase db = makeDb();
+    db.addScalarReading("id", "tag", 0, 2, 2.0);
+    db.addScalarReading("id", "tag", 0, 1, 1.0);
+    db.addScalarReading("id", "tag", 0, 3, 3.0);
+    db.addScalarReading("id", "other", 0, 2, 20.0);
+    db.addScalarReading("id", "tag", 1, 2, 200.0);
+
+    assertEquals(
+        Arrays.asList(
+            new ScalarReading(1, 1.0), new ScalarReading(2, 2.0), new ScalarReading(3, 3.0)),
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0)));
+    assertEquals(
+        Arrays.asList(new ScalarReading(3, 3.0), new ScalarReading(2, 2.0)),
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.newest(Range.closed(0L, 4L)), 0, 2)));
+    assertEquals(
+        Arrays.asList(new ScalarReading(2, 2.0), new ScalarReading(3, 3.0)),
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.oldest(Range.openClosed(1L, 3L)), 0, 0)));
+  }
+
+  @Test
+  public void spansManyBlocks() {
+    SegmentSensorDatabase db = makeDb();
+    int total = SeriesSegmentFile.ROWS_PER_BLOCK * 3 + 17;
+    List<BatchInsertScalarReading> batch = new ArrayList<>();
+    for (int i = 0; i < total; i++) {
+      batch.add(new BatchInsertScalarReading("id", "tag", 0, i, i * 0.5));
+      if (batch.size() == 100) {
+        db.addScalarReadings(batch);
+        batch.clear();
+      }
+    }
+    db.addScalarReadings(batch);
+
+    List<ScalarReading> all =
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0));
+    assertEquals(total, all.size());
+    for (int i = 0; i < total; i++) {
+      assertEquals(new ScalarReading(i, i * 0.5), all.get(i));
+    }
+
+    List<ScalarReading> page =
+        ScalarReading.slurp(
+            db.getScalarReadings(
+                "id", "tag", TimeRange.oldest(Range.atLeast(2000L)), 0, 100));
+    assertEquals(100, page.size());
+    assertEquals(2000, page.get(0).getCollectedTimeMillis());
+    assertEquals(2099, page.get(99).getCollectedTimeMillis());
+
+    List<ScalarReading> newest =
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.newest(Range.<Long>all()), 0, 3));
+    assertEquals(total - 1, newest.get(0).getCollectedTimeMillis());
+    assertEquals(total - 3, newest.get(2).getCollectedTimeMillis());
+  }
+
+  @Test
+  public void survivesReopen() {
+    SegmentSensorDatabase db = makeDb();
+    db.addScalarReading("id", "AA:BB:CC", 0, 1, 1.0);
+    db.addScalarReading("id", "AA:BB:CC", 0, 2, 2.0);
+
+    SegmentSensorDatabase reopened = makeDb();
+    assertEquals(
+        2,
+        reopened
+            .getScalarReadings("id", "AA:BB:CC", TimeRange.oldest(Range.<Long>all()), 0, 0)
+            .size());
+  }
+
+  @Test
+  public void fallsBackToDefaultTrialId() {
+    SegmentSensorDatabase db = makeDb();
+    db.addScalarReading("0", "tag", 0, 1, 1.0);
+    assertEquals(
+        1,
+        db.getScalarReadings("newTrial", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+  }
+
+  @Test
+  public void deletesAcrossTiers() {
+    SegmentSensorDatabase db = makeDb();
+    for (int i = 0; i < 10; i++) {
+      db.addScalarReading("id", "tag", 0, i, i);
+      db.addScalarReading("id", "tag", 1, i, i);
+      db.addScalarReading("id", "tag2", 0, i, i);
+    }
+    db.deleteScalarReadings("id", "tag", TimeRange.oldest(Range.closed(3L, 6L)));
+
+    assertEquals(
+        6, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+    assertEquals(
+        6, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 1, 0).size());
+    assertEquals(
+        10, db.getScalarReadings("id", "tag2", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+
+    db.deleteScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()));
+    assertEquals(
+        0, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+  }
+
+  @Test
+  public void firstTagAfter() {
+    SegmentSensorDatabase db = makeDb();
+    assertNull(db.getFirstDatabaseTagAfter(0));
+    db.addScalarReading("id", "tag1", 0, 1, 1.0);
+    db.addScalarReading("id", "tag2", 0, 3, 1.0);
+    assertEquals("tag1", db.getFirstDatabaseTagAfter(0));
+    assertEquals("tag2", db.getFirstDatabaseTagAfter(1));
+    assertNull(db.getFirstDatabaseTagAfter(3));
+  }
+
+  @Test
+  public void observableMergesSensors() {
+    SegmentSensorDatabase db = makeDb();
+    db.addScalarReading("id", "tag", 0, 0, 0.0);
+    db.addScalarReading("id", "tag", 0, 3, 1.0);
+    db.addScalarReading("id", "tag", 0, 101, 2.0);
+    db.addScalarReading("id", "tag2", 0, 1, 3.0);
+    db.addScalarReading("id", "tag2", 0, 2, 4.0);
+
+    TestObserver<ScalarReading> testObserver = new TestObserver<>();
+    db.createScalarObservable(
+            "id", new String[] {"tag", "tag2"}, TimeRange.oldest(Range.closed(0L, 3L)), 0)
+        .subscribe(testObserver);
+    testObserver.assertNoErrors();
+    testObserver.assertValues(
+        new ScalarReading(0, 0.0, "tag"),
+        new ScalarReading(1, 3.0, "tag2"),
+        new ScalarReading(2, 4.0, "tag2"),
+        new ScalarReading(3, 1.0, "tag"));
+  }
+
+  @Test
+  public void observableAcrossBlocks() {
+    SegmentSensorDatabase db = makeDb();
+    int total = SeriesSegmentFile.ROWS_PER_BLOCK * 2 + 5;
+    List<BatchInsertScalarReading> batch = new ArrayList<>();
+    List<ScalarReading> expected = Lists.newArrayList();
+    for (int i = 0; i < total; i++) {
+      batch.add(new BatchInsertScalarReading("id", "tag", 0, i, 1.0));
+      expected.add(new ScalarReading(i, 1.0, "tag"));
+    }
+    db.addScalarReadings(batch);
+
+    TestObserver<ScalarReading> testObserver = new TestObserver<>();
+    db.createScalarObservable(
+            "id", new String[] {"tag"}, TimeRange.oldest(Range.closed(0L, (long) total)), 0)
+        .subscribe(testObserver);
+    testObserver.assertNoErrors();
+    testObserver.assertValueSequence(expected);
+  }
+
+  @Test
+  public void readingProtos() {
+    SegmentSensorDatabase db = makeDb();
+    GoosciTrial.Trial trial =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId("trial")
+            .setRecordingRange(GoosciTrial.Range.newBuilder().setStartMs(9).setEndMs(13))
+            .addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId("foo"))
+            .build();
+    GoosciExperiment.Experiment experiment =
+        GoosciExperiment.Experiment.newBuilder().addTrials(trial).build();
+    db.addScalarReading("trial", "foo", 0, 10, 1.0);
+    db.addScalarReading("trial", "foo", 1, 11, 1.0);
+    db.addScalarReading("trial", "foo", 0, 12, 2.0);
+    db.addScalarReading("trial", "foo", 0, 14, 3.0);
+
+    List<ScalarSensorDataDump> dumps = db.getScalarReadingProtosAsList(experiment);
+    assertEquals(1, dumps.size());
+    assertEquals("foo", dumps.get(0).getTag());
+    assertEquals("trial", dumps.get(0).getTrialId());
+    assertEquals(2, dumps.get(0).getRowsCount());
+    assertEquals(12, dumps.get(0).getRows(1).getTimestampMillis());
+  }
+
+  @Test
+  public void migratesFromSqlite() {
+    SensorDatabaseImpl sqlite =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    sqlite.addScalarReading("id", "tag", 0, 1, 1.0);
+    sqlite.addScalarReading("id", "tag", 1, 1, 1.0);
+    sqlite.addScalarReading("id", "tag", 0, 2, 2.0);
+    sqlite.addScalarReading("id2", "tag", 0, 3, 3.0);
+
+    SegmentSensorDatabase db = new SegmentSensorDatabase(getDirectory(), sqlite);
+    assertEquals(
+        2, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+    assertEquals(
+        1, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 1, 0).size());
+    assertEquals(
+        1, db.getScalarReadings("id2", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+    assertTrue(db.getDiskFootprintBytes() > 0);
+
+    // A second store over the same directory must not copy the data again.
+    SegmentSensorDatabase again = new SegmentSensorDatabase(getDirectory(), sqlite);
+    assertEquals(
+        2, again.getScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+  }
+
+  /** How long one store took in {@link #benchmarkAgainstSqlite}, and how much disk it used. */
+  private static class StoreTimings {
+    final String name;
+    long nanosPerReadingStored;
+    long bytesOnDisk;
+    long nanosPerWindowRead;
+
+    StoreTimings(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Stores an hour of readings from 4 sensors at 20 Hz in SQLite and in segment files, in batches
+   * the size the write queue commits, then reads 200 random one-minute windows back from each.
+   * Robolectric runs SQLite on the JVM, so its numbers are a comparison on this machine rather than
+   * a prediction for devices. Only run when asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkAgainstSqlite() {
+    Benchmarks.assumeEnabled();
+    int sensors = 4;
+    int readingsPerSensor = 60 * 60 * 20;
+    long intervalMillis = 50;
+    long windowMillis = 60 * 1000;
+    String[] tags = new String[sensors];
+    for (int s = 0; s < sensors; s++) {
+      tags[s] = "sensor" + s;
+    }
+    Random random = new Random(42);
+    long[] windowStarts = new long[200];
+    for (int q = 0; q < windowStarts.length; q++) {
+      windowStarts[q] =
+          intervalMillis
+              * random.nextInt(readingsPerSensor - (int) (windowMillis / intervalMillis));
+    }
+
+    SensorDatabaseImpl sqlite =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    SegmentSensorDatabase segments = makeDb();
+    SensorDatabase[] dbs = {sqlite, segments};
+    StoreTimings[] timings = {new StoreTimings("SQLite"), new StoreTimings("Segment files")};
+    long readings = (long) sensors * readingsPerSensor;
+    for (int d = 0; d < dbs.length; d++) {
+      SensorDatabase db = dbs[d];
+      List<BatchInsertScalarReading> batch = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int i = 0; i < readingsPerSensor; i++) {
+        for (int s = 0; s < sensors; s++) {
+          batch.add(
+              new BatchInsertScalarReading(
+                  "trial", tags[s], 0, i * intervalMillis, Math.sin(i / 100.0) + s));
+          if (batch.size() == ScalarReadingWriteQueue.DEFAULT_MAX_BATCH_SIZE) {
+            db.addScalarReadings(batch);
+            batch.clear();
+          }
+        }
+      }
+      db.addScalarReadings(batch);
+      timings[d].nanosPerReadingStored = (System.nanoTime() - start) / readings;
+
+      start = System.nanoTime();
+      for (int q = 0; q < windowStarts.length; q++) {
+        Range<Long> window = Range.closed(windowStarts[q], windowStarts[q] + windowMillis);
+        ScalarReadingList read =
+            db.getScalarReadings("trial", tags[q % sensors], TimeRange.oldest(window), 0, 0);
+        assertEquals(windowMillis / intervalMillis + 1, read.size());
+      }
+      timings[d].nanosPerWindowRead = (System.nanoTime() - start) / windowStarts.length;
+    }
+    File databaseFile = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    for (String suffix : new String[] {"", "-wal", "-journal"}) {
+      timings[0].bytesOnDisk += new File(databaseFile.getPath() + suffix).length();
+    }
+    timings[1].bytesOnDisk = segments.getDiskFootprintBytes();
+
+    for (StoreTimings store : timings) {
+      Benchmarks.report(
+          "%s, %d readings: %d ns per reading stored, %.1f bytes per reading, %d us per"
+              + " one-minute read",
+          store.name,
+          readings,
+          store.nanosPerReadingStored,
+          (double) store.bytesOnDisk / readings,
+          store.nanosPerWindowRead / 1000);
+    }
+    assertTrue(timings[1].bytesOnDisk < timings[0].bytesOnDisk);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = getDirectory().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    getDirectory().delete();
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
+  private File getDirectory() {
+    return new File(getContext().getFilesDir(), "segment_test");
+  }
+
+  private Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
@@ -17,10 +17,19 @@
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import com.google.android.apps.forscience.whistlepunk.Arbitrary;
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.Benchmarks;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
@@ -29,13 +38,20 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import io.reactivex.Observable;
 import io.reactivex.observers.TestObserver;
+import io.reactivex.subscribers.TestSubscriber;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,6 +62,10 @@ import org.robolectric.RuntimeEnvironment;
 @RunWith(RobolectricTestRunner.class)
 public class SensorDatabaseTest {
   private static final String TEST_DATABASE_NAME = "test.db";
+  private static final String LEGACY_DATABASE_NAME = "legacy.db";
+
+  // Keeps the query results live, so the queries can't be optimized away.
+  private long querySink;
 
   @Test
   public void testAddScalarReading() {
@@ -314,6 +334,65 @@ public class SensorDatabaseTest {
     testObserver.assertValueSequence(expected);
   }
 
+  @Test
+  public void testObservable_equalTimestampsAcrossPages() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+
+    // Three readings per timestamp per sensor, so every page of 4 ends partway through a timestamp.
+    List<ScalarReading> oldest = Lists.newArrayList();
+    List<ScalarReading> newest = Lists.newArrayList();
+    for (int timestamp = 0; timestamp < 10; timestamp++) {
+      for (String tag : new String[] {"tag", "tag2"}) {
+        for (int value = 0; value < 3; value++) {
+          db.addScalarReading("id", tag, 0, timestamp, value);
+          oldest.add(new ScalarReading(timestamp, value, tag));
+        }
+      }
+    }
+    for (int timestamp = 9; timestamp >= 0; timestamp--) {
+      for (String tag : new String[] {"tag", "tag2"}) {
+        for (int value = 2; value >= 0; value--) {
+          newest.add(new ScalarReading(timestamp, value, tag));
+        }
+      }
+    }
+
+    String[] tags = new String[] {"tag", "tag2"};
+    TestObserver<ScalarReading> oldestObserver = new TestObserver<>();
+    db.createScalarObservable("id", tags, TimeRange.oldest(Range.closed(0L, 9L)), 0, 4)
+        .subscribe(oldestObserver);
+    oldestObserver.assertNoErrors();
+    oldestObserver.assertValueSequence(oldest);
+
+    TestObserver<ScalarReading> newestObserver = new TestObserver<>();
+    db.createScalarObservable("id", tags, TimeRange.newest(Range.closed(0L, 9L)), 0, 4)
+        .subscribe(newestObserver);
+    newestObserver.assertNoErrors();
+    newestObserver.assertValueSequence(newest);
+  }
+
+  @Test
+  public void testFlowable_onlyReadsWhatIsRequested() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    for (int index = 0; index < 5; index++) {
+      db.addScalarReading("id", "tag", 0, index, index);
+    }
+
+    TestSubscriber<ScalarReading> subscriber =
+        db.createScalarFlowable(
+                "id", new String[] {"tag"}, TimeRange.oldest(Range.closed(0L, 4L)), 0)
+            .test(0);
+    subscriber.assertNoValues();
+    subscriber.request(2);
+    subscriber.assertValues(new ScalarReading(0, 0, "tag"), new ScalarReading(1, 1, "tag"));
+    subscriber.assertNotComplete();
+    subscriber.request(Long.MAX_VALUE);
+    subscriber.assertValueCount(5);
+    subscriber.assertComplete();
+  }
+
   @Test
   public void testGetScalarReadingProtos() {
     SensorDatabaseImpl db =
@@ -345,6 +424,57 @@ public class SensorDatabaseTest {
     assertEquals(trial.getTrialId(), data.getSensors(0).getTrialId());
   }
 
+  @Test
+  public void testWriteScalarReadingProtos() throws IOException {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    GoosciExperiment.Experiment.Builder experiment = GoosciExperiment.Experiment.newBuilder();
+    for (String trialId : new String[] {"trial1", "trial2"}) {
+      experiment.addTrials(
+          GoosciTrial.Trial.newBuilder()
+              .setTrialId(trialId)
+              .setRecordingRange(
+                  com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range
+                      .newBuilder()
+                      .setStartMs(0)
+                      .setEndMs(5000))
+              .addSensorLayouts(SensorLayout.newBuilder().setSensorId("foo"))
+              .addSensorLayouts(SensorLayout.newBuilder().setSensorId("bar")));
+    }
+    for (int i = 0; i < 2500; i++) {
+      db.addScalarReading("trial1", "foo", 0, i, i);
+      db.addScalarReading("trial2", "bar", 0, i, -i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.writeScalarReadingProtos(experiment.build(), null, out);
+    GoosciScalarSensorData.ScalarSensorData data =
+        GoosciScalarSensorData.ScalarSensorData.parseFrom(out.toByteArray());
+
+    // trial1/foo is split into blocks, trial1/bar is empty, trial2/foo is empty, and trial2/bar is
+    // split into blocks.
+    int rowsPerBlock = ScalarSensorDataWriter.DEFAULT_ROWS_PER_BLOCK;
+    int blocksPerSensor = (2500 + rowsPerBlock - 1) / rowsPerBlock;
+    assertEquals(blocksPerSensor * 2 + 2, data.getSensorsCount());
+    long nextTimestamp = 0;
+    for (ScalarSensorDataDump dump : data.getSensorsList()) {
+      if (dump.getTrialId().equals("trial1") && dump.getTag().equals("foo")) {
+        for (GoosciScalarSensorData.ScalarSensorDataRow row : dump.getRowsList()) {
+          assertEquals(nextTimestamp++, row.getTimestampMillis());
+        }
+      }
+    }
+    assertEquals(2500, nextTimestamp);
+
+    out = new ByteArrayOutputStream();
+    db.writeScalarReadingProtos(experiment.build(), "trial2", out);
+    data = GoosciScalarSensorData.ScalarSensorData.parseFrom(out.toByteArray());
+    assertEquals(blocksPerSensor + 1, data.getSensorsCount());
+    for (ScalarSensorDataDump dump : data.getSensorsList()) {
+      assertEquals("trial2", dump.getTrialId());
+    }
+  }
+
   @Test
   public void testGetScalarReadingProtosDefaultTrialId() {
     SensorDatabaseImpl db =
@@ -443,6 +573,538 @@ public class SensorDatabaseTest {
     assertEquals(trial.getTrialId(), data.get(0).getTrialId());
   }
 
+  @Test
+  public void testUnknownTagOrTrial() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    db.addScalarReading("id", "tag", 0, 1, 1.0);
+    TimeRange range = TimeRange.oldest(Range.closed(0L, 2L));
+    assertEquals(0, db.getScalarReadings("id", "other", range, 0, 0).size());
+    // Unknown trials fall back to the default trial id, which has no data here.
+    assertEquals(0, db.getScalarReadings("id2", "tag", range, 0, 0).size());
+  }
+
+  @Test
+  public void testReadsUseSeriesIndex() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    db.addScalarReading("id", "tag", 0, 1, 1.0);
+    String plan =
+        db.explainScalarReadingsQuery("id", "tag", TimeRange.newest(Range.closed(0L, 2L)), 0);
+    assertTrue(plan, plan.contains("COVERING INDEX scalar_readings_series"));
+    assertFalse(plan, plan.contains("TEMP B-TREE"));
+  }
+
+  @Test
+  public void testUpgradeFromV4() {
+    File path = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    path.getParentFile().mkdirs();
+    SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(path, null);
+    legacy.execSQL(
+        "CREATE TABLE scalar_sensors (tag  TEXT, timestampMillis INTEGER, value REAL, "
+            + "resolutionTier INTEGER DEFAULT 0, trialId TEXT DEFAULT 0 NOT NULL);");
+    legacy.execSQL("CREATE INDEX timestamp ON scalar_sensors(timestampMillis);");
+    legacy.execSQL("INSERT INTO scalar_sensors VALUES ('tag', 1, 1.0, 0, 'id');");
+    legacy.execSQL("INSERT INTO scalar_sensors VALUES ('tag', 2, 2.0, 0, 'id');");
+    legacy.execSQL("INSERT INTO scalar_sensors VALUES ('tag', 2, 2.0, 1, 'id');");
+    legacy.execSQL("INSERT INTO scalar_sensors VALUES ('tag2', 3, 3.0, 0, 'id');");
+    legacy.execSQL("INSERT INTO scalar_sensors VALUES ('tag', 4, 4.0, 0, '0');");
+    legacy.setVersion(4);
+    legacy.close();
+
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    assertEquals(
+        Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0)),
+        ScalarReading.slurp(
+            db.getScalarReadings("id", "tag", TimeRange.oldest(Range.closed(0L, 10L)), 0, 0)));
+    assertEquals(
+        1, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.closed(0L, 10L)), 1, 0).size());
+    assertEquals(
+        1,
+        db.getScalarReadings("id", "tag2", TimeRange.oldest(Range.closed(0L, 10L)), 0, 0).size());
+    // Readings recorded before trial ids existed are still found through the default trial id.
+    assertEquals(
+        Arrays.asList(new ScalarReading(4, 4.0)),
+        ScalarReading.slurp(
+            db.getScalarReadings("old", "tag", TimeRange.oldest(Range.closed(0L, 10L)), 0, 0)));
+
+    // New readings reuse the interned ids.
+    db.addScalarReading("id", "tag", 0, 5, 5.0);
+    assertEquals(
+        3, db.getScalarReadings("id", "tag", TimeRange.oldest(Range.closed(0L, 10L)), 0, 0).size());
+  }
+
+  @Test
+  public void testDownsampledReadings() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    for (long t = 100; t < 1100; t++) {
+      db.addScalarReading("id", "tag", 0, t, t % 7);
+    }
+    db.addScalarReading("id", "other", 0, 50, 100.0);
+
+    List<ScalarReading> readings =
+        ScalarReading.slurp(
+            db.getDownsampledScalarReadings("id", "tag", TimeRange.oldest(Range.<Long>all()), 10));
+    assertTrue(readings.size() <= 40);
+    assertEquals(100, readings.get(0).getCollectedTimeMillis());
+    assertEquals(1099, readings.get(readings.size() - 1).getCollectedTimeMillis());
+
+    List<ScalarReading> newestFirst =
+        ScalarReading.slurp(
+            db.getDownsampledScalarReadings("id", "tag", TimeRange.newest(Range.<Long>all()), 10));
+    assertEquals(Lists.reverse(readings), newestFirst);
+
+    assertEquals(
+        0,
+        db.getDownsampledScalarReadings("id", "tag", TimeRange.oldest(Range.closed(0L, 99L)), 10)
+            .size());
+  }
+
+  @Test
+  public void testScalarStatsFromReadings() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    db.addScalarReading("id", "tag", 0, 1, 1.0);
+    db.addScalarReading("id", "tag", 0, 2, 3.0);
+    db.addScalarReading("id", "tag", 0, 3, 5.0);
+    db.addScalarReading("id", "other", 0, 2, 100.0);
+
+    ScalarStats stats = db.getScalarStats("id", "tag", TimeRange.oldest(Range.closed(2L, 10L)));
+    assertEquals(2, stats.getCount());
+    assertEquals(3.0, stats.getMin(), 0.001);
+    assertEquals(5.0, stats.getMax(), 0.001);
+    assertEquals(4.0, stats.getMean(), 0.001);
+    assertEquals(2, stats.getFirstTimestamp());
+    assertEquals(3, stats.getLastTimestamp());
+
+    assertTrue(
+        db.getScalarStats("id", "unknown", TimeRange.oldest(Range.closed(0L, 10L))).isEmpty());
+  }
+
+  @Test
+  public void testScalarStatsUseStoredBuckets() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    for (long t = 0; t < 10; t++) {
+      db.addScalarReading("id", "tag", 0, t, 1.0);
+    }
+    // Buckets that disagree with the readings, to show which ones are used.
+    db.addScalarStatsBucket("id", "tag", 1, 0, new ScalarStats(4, 40, 0, 10, 10, 0, 3));
+    db.addScalarStatsBucket("id", "tag", 1, 4, new ScalarStats(4, 80, 0, 20, 20, 4, 7));
+    db.addScalarStatsBucket("id", "tag", 2, 0, new ScalarStats(8, 800, 0, 100, 100, 0, 7));
+
+    // Fully covers the tier 2 bucket; readings 8 and 9 come from the table.
+    ScalarStats all = db.getScalarStats("id", "tag", TimeRange.oldest(Range.closed(0L, 9L)));
+    assertEquals(10, all.getCount());
+    assertEquals(802, all.getSum(), 0.001);
+
+    // Only the second tier 1 bucket fits; readings 2 and 3 come from the table.
+    ScalarStats part = db.getScalarStats("id", "tag", TimeRange.oldest(Range.closed(2L, 7L)));
+    assertEquals(6, part.getCount());
+    assertEquals(82, part.getSum(), 0.001);
+    assertEquals(1, part.getMin(), 0.001);
+    assertEquals(20, part.getMax(), 0.001);
+
+    // Deleting readings also deletes the buckets that summarized them.
+    db.deleteScalarReadings("id", "tag", TimeRange.oldest(Range.closed(5L, 5L)));
+    ScalarStats afterDelete =
+        db.getScalarStats("id", "tag", TimeRange.oldest(Range.closed(0L, 9L)));
+    assertEquals(9, afterDelete.getCount());
+    assertEquals(45, afterDelete.getSum(), 0.001);
+  }
+
+  /** How long a one-minute read took, once the database had grown to {@code rows}. */
+  private static class ReadTimings {
+    long rows;
+    long nanosWithSeriesIndex;
+    long nanosWithV4;
+  }
+
+  /**
+   * Compares reading one sensor's data from an old trial, as the database grows, with the series
+   * index and with the V4 timestamp-only index. Only run when asked for; see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkReadsAsDatabaseGrows() {
+    Benchmarks.assumeEnabled();
+    for (ReadTimings step : timeReadsAsDatabaseGrows()) {
+      Benchmarks.report(
+          "%d rows: %d us per one-minute read with the series index, %d us with V4",
+          step.rows,
+          step.nanosWithSeriesIndex / 1000,
+          step.nanosWithV4 / 1000);
+    }
+  }
+
+  /**
+   * Times one-minute reads of one sensor in the first trial as trials are added, with this schema
+   * and with the V4 table and its timestamp-only index. The trials all cover the same 5 minutes, as
+   * when a class's experiments are imported onto one device, so every trial has readings inside
+   * each window.
+   */
+  private List<ReadTimings> timeReadsAsDatabaseGrows() {
+    int steps = 4;
+    int trialsPerStep = 10;
+    int sensors = 4;
+    int readingsPerSensor = 3000;
+    long intervalMillis = 100;
+    long windowMillis = 60 * 1000;
+    String[] tags = new String[sensors];
+    for (int s = 0; s < sensors; s++) {
+      tags[s] = "sensor" + s;
+    }
+    Random random = new Random(42);
+    long[] windowStarts = new long[100];
+    for (int q = 0; q < windowStarts.length; q++) {
+      windowStarts[q] =
+          intervalMillis
+              * random.nextInt(readingsPerSensor - (int) (windowMillis / intervalMillis));
+    }
+    long expectedPerWindow = windowMillis / intervalMillis + 1;
+
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    File legacyPath = getContext().getDatabasePath(LEGACY_DATABASE_NAME);
+    SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(legacyPath, null);
+    try {
+      SQLiteStatement insert = createV4ScalarTable(legacy);
+
+      List<ReadTimings> result = new ArrayList<>();
+      int trials = 0;
+      for (int step = 0; step < steps; step++) {
+        for (int t = 0; t < trialsPerStep; t++, trials++) {
+          String trialId = "trial" + trials;
+          List<BatchInsertScalarReading> batch = new ArrayList<>();
+          legacy.beginTransaction();
+          try {
+            for (int s = 0; s < sensors; s++) {
+              for (int i = 0; i < readingsPerSensor; i++) {
+                long timestamp = i * intervalMillis;
+                double value = Math.sin(i / 50.0) + s;
+                batch.add(new BatchInsertScalarReading(trialId, tags[s], 0, timestamp, value));
+                insert.bindString(1, tags[s]);
+                insert.bindLong(2, timestamp);
+                insert.bindDouble(3, value);
+                insert.bindString(4, trialId);
+                insert.executeInsert();
+              }
+            }
+            legacy.setTransactionSuccessful();
+          } finally {
+            legacy.endTransaction();
+          }
+          db.addScalarReadings(batch);
+        }
+        ReadTimings timings = new ReadTimings();
+        timings.rows = (long) trials * sensors * readingsPerSensor;
+
+        long start = System.nanoTime();
+        for (long windowStart : windowStarts) {
+          Range<Long> window = Range.closed(windowStart, windowStart + windowMillis);
+          assertEquals(
+              expectedPerWindow,
+              db.getScalarReadings("trial0", tags[0], TimeRange.oldest(window), 0, 0).size());
+        }
+        timings.nanosWithSeriesIndex = (System.nanoTime() - start) / windowStarts.length;
+
+        start = System.nanoTime();
+        for (long windowStart : windowStarts) {
+          String[] args = {
+            tags[0],
+            "trial0",
+            "0",
+            String.valueOf(windowStart),
+            String.valueOf(windowStart + windowMillis + 1)
+          };
+          try (Cursor cursor =
+              legacy.query(
+                  "scalar_sensors",
+                  new String[] {"timestampMillis", "value"},
+                  "tag = ? AND trialId = ? AND resolutionTier = ? AND timestampMillis >= ?"
+                      + " AND timestampMillis < ?",
+                  args,
+                  null,
+                  null,
+                  "timestampMillis ASC")) {
+            int count = 0;
+            while (cursor.moveToNext()) {
+              cursor.getLong(0);
+              cursor.getDouble(1);
+              count++;
+            }
+            assertEquals(expectedPerWindow, count);
+          }
+        }
+        timings.nanosWithV4 = (System.nanoTime() - start) / windowStarts.length;
+        result.add(timings);
+      }
+      return result;
+    } finally {
+      legacy.close();
+      legacyPath.delete();
+    }
+  }
+
+  /**
+   * Creates the scalar_sensors table as it was in V4, indexed only by timestamp, and returns a
+   * statement that inserts a tier-0 reading given its tag, timestamp, value and trial id.
+   */
+  private static SQLiteStatement createV4ScalarTable(SQLiteDatabase legacy) {
+    legacy.execSQL(
+        "CREATE TABLE scalar_sensors (tag  TEXT, timestampMillis INTEGER, value REAL, "
+            + "resolutionTier INTEGER DEFAULT 0, trialId TEXT DEFAULT 0 NOT NULL);");
+    legacy.execSQL("CREATE INDEX timestamp ON scalar_sensors(timestampMillis);");
+    return legacy.compileStatement("INSERT INTO scalar_sensors VALUES (?, ?, ?, 0, ?)");
+  }
+
+  /**
+   * How long reading a trial's sensors as one stream took, and how many readings were emitted, with
+   * createScalarFlowable and with the old paging.
+   */
+  private static class MergedReadTimings {
+    long stored;
+    long flowableNanos;
+    long flowableEmitted;
+    long pagedNanos;
+    long pagedEmitted;
+  }
+
+  /**
+   * Compares reading several sensors as one time-ordered stream through createScalarFlowable with
+   * the V4 {@code tag IN (...)} paging it replaced. Only run when asked for; see {@link
+   * Benchmarks}.
+   */
+  @Test
+  public void benchmarkMergedReads() {
+    Benchmarks.assumeEnabled();
+    MergedReadTimings timings = timeMergedReads();
+    String format = "%s: %d readings per second, %d of %d readings emitted";
+    Benchmarks.report(
+        format,
+        "createScalarFlowable",
+        timings.flowableEmitted * 1000000000L / timings.flowableNanos,
+        timings.flowableEmitted,
+        timings.stored);
+    Benchmarks.report(
+        format,
+        "V4 IN paging",
+        timings.pagedEmitted * 1000000000L / timings.pagedNanos,
+        timings.pagedEmitted,
+        timings.stored);
+    assertEquals(timings.stored, timings.flowableEmitted);
+  }
+
+  /**
+   * Times reading a half-hour, three-sensor, 20 Hz trial as one time-ordered stream, through
+   * createScalarFlowable and through the V4 paging it replaced: 500 rows at a time with a {@code
+   * tag IN (...)} query, each page restarting after the last timestamp read. Three sensors don't
+   * divide the page size, so the old paging drops readings at page boundaries.
+   */
+  private MergedReadTimings timeMergedReads() {
+    int readingsPerSensor = 36000;
+    long intervalMillis = 50;
+    int pageSize = 500;
+    String[] tags = {"sensor0", "sensor1", "sensor2"};
+    long lastTimestamp = (readingsPerSensor - 1) * intervalMillis;
+
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    File legacyPath = getContext().getDatabasePath(LEGACY_DATABASE_NAME);
+    SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(legacyPath, null);
+    try {
+      SQLiteStatement insert = createV4ScalarTable(legacy);
+      List<BatchInsertScalarReading> batch = new ArrayList<>();
+      legacy.beginTransaction();
+      try {
+        for (int s = 0; s < tags.length; s++) {
+          for (int i = 0; i < readingsPerSensor; i++) {
+            long timestamp = i * intervalMillis;
+            double value = Math.sin(i / 50.0) + s;
+            batch.add(new BatchInsertScalarReading("trial", tags[s], 0, timestamp, value));
+            insert.bindString(1, tags[s]);
+            insert.bindLong(2, timestamp);
+            insert.bindDouble(3, value);
+            insert.bindString(4, "trial");
+            insert.executeInsert();
+          }
+        }
+        legacy.setTransactionSuccessful();
+      } finally {
+        legacy.endTransaction();
+      }
+      db.addScalarReadings(batch);
+
+      MergedReadTimings timings = new MergedReadTimings();
+      timings.stored = (long) tags.length * readingsPerSensor;
+      long start = System.nanoTime();
+      timings.flowableEmitted =
+          db.createScalarFlowable(
+                  "trial", tags, TimeRange.oldest(Range.closed(0L, lastTimestamp)), 0)
+              .count()
+              .blockingGet();
+      timings.flowableNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      long pagedCount = 0;
+      long lastRead = -1;
+      String selection =
+          "tag IN (?, ?, ?) AND trialId = ? AND resolutionTier = 0 AND timestampMillis > ?"
+              + " AND timestampMillis <= ?";
+      while (true) {
+        String[] args = {
+          tags[0],
+          tags[1],
+          tags[2],
+          "trial",
+          String.valueOf(lastRead),
+          String.valueOf(lastTimestamp)
+        };
+        int count = 0;
+        try (Cursor cursor =
+            legacy.query(
+                "scalar_sensors",
+                new String[] {"timestampMillis", "value", "tag"},
+                selection,
+                args,
+                null,
+                null,
+                "timestampMillis ASC",
+                String.valueOf(pageSize))) {
+          while (cursor.moveToNext()) {
+            lastRead = cursor.getLong(0);
+            ScalarReading reading =
+                new ScalarReading(lastRead, cursor.getDouble(1), cursor.getString(2));
+            querySink += reading.getCollectedTimeMillis();
+            count++;
+          }
+        }
+        pagedCount += count;
+        if (count == 0 || lastRead >= lastTimestamp) {
+          break;
+        }
+      }
+      timings.pagedNanos = System.nanoTime() - start;
+      timings.pagedEmitted = pagedCount;
+      return timings;
+    } finally {
+      legacy.close();
+      legacyPath.delete();
+    }
+  }
+
+  /** How long stats queries over a recording of {@code readings} took, with and without buckets. */
+  private static class StatsTimings {
+    long readings;
+    long nanosFromBuckets;
+    long nanosScanning;
+  }
+
+  /**
+   * Compares stats queries over random ranges of a recording answered from the zoom tiers' stats
+   * buckets with the scan that recordings without buckets fall back to. Only run when asked for;
+   * see {@link Benchmarks}.
+   */
+  @Test
+  public void benchmarkRangeStats() {
+    Benchmarks.assumeEnabled();
+    StatsTimings timings = timeRangeStats();
+    Benchmarks.report(
+        "%d readings: %d us per range stats query from buckets, %d us scanning",
+        timings.readings,
+        timings.nanosFromBuckets / 1000,
+        timings.nanosScanning / 1000);
+    assertTrue(timings.nanosFromBuckets < timings.nanosScanning);
+  }
+
+  /**
+   * Times stats queries over random ranges of an hour-long, 20 Hz recording, as after a crop or in
+   * a run review selection. The same readings are stored once with the zoom tiers and their stats
+   * buckets, as ScalarSensor records them, and once without buckets, as recordings made before
+   * buckets existed, which have to be scanned.
+   */
+  private StatsTimings timeRangeStats() {
+    int readings = 72000;
+    long intervalMillis = 50;
+    final SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    RecordingDataController dc =
+        new RecordingDataController() {
+          @Override
+          public void addScalarReading(
+              String trialId, String sensorId, int resolutionTier, long timestamp, double value) {
+            db.addScalarReading(trialId, sensorId, resolutionTier, timestamp, value);
+          }
+
+          @Override
+          public void addScalarStatsBucket(
+              String trialId, String sensorId, int tier, long bucketStart, ScalarStats stats) {
+            db.addScalarStatsBucket(trialId, sensorId, tier, bucketStart, stats);
+          }
+
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            db.addScalarReadings(readings);
+          }
+
+          @Override
+          public void flushScalarReadings() {}
+
+          @Override
+          public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {}
+
+          @Override
+          public void clearDataErrorListenerForSensor(String sensorId) {}
+        };
+    ZoomRecorder zoomRecorder =
+        new ZoomRecorder("sensor", ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS * 2, 1);
+    zoomRecorder.setTrialId("bucketed");
+    List<BatchInsertScalarReading> batch = new ArrayList<>();
+    for (int i = 0; i < readings; i++) {
+      long timestamp = i * intervalMillis;
+      double value = 101325 + Math.sin(i / 100.0);
+      batch.add(new BatchInsertScalarReading("bucketed", "sensor", 0, timestamp, value));
+      batch.add(new BatchInsertScalarReading("scanned", "sensor", 0, timestamp, value));
+      zoomRecorder.addData(timestamp, value, dc);
+      if (batch.size() >= 1000) {
+        db.addScalarReadings(batch);
+        batch.clear();
+      }
+    }
+    db.addScalarReadings(batch);
+    zoomRecorder.flushAllTiers(dc);
+
+    Random random = new Random(42);
+    long duration = readings * intervalMillis;
+    List<TimeRange> ranges = new ArrayList<>();
+    for (int q = 0; q < 50; q++) {
+      long a = (long) (random.nextDouble() * duration);
+      long b = (long) (random.nextDouble() * duration);
+      ranges.add(TimeRange.oldest(Range.closed(Math.min(a, b), Math.max(a, b))));
+    }
+
+    long[] nanosPerQuery = new long[2];
+    String[] trials = {"bucketed", "scanned"};
+    for (int t = 0; t < trials.length; t++) {
+      long start = System.nanoTime();
+      for (TimeRange range : ranges) {
+        querySink += db.getScalarStats(trials[t], "sensor", range).getCount();
+      }
+      nanosPerQuery[t] = (System.nanoTime() - start) / ranges.size();
+    }
+    for (TimeRange range : ranges) {
+      assertEquals(
+          db.getScalarStats("scanned", "sensor", range).getCount(),
+          db.getScalarStats("bucketed", "sensor", range).getCount());
+    }
+    StatsTimings timings = new StatsTimings();
+    timings.readings = readings;
+    timings.nanosFromBuckets = nanosPerQuery[0];
+    timings.nanosScanning = nanosPerQuery[1];
+    return timings;
+  }
+
   @Before
   public void setUp() throws Exception {
     File dbtest = getContext().getDatabasePath(TEST_DATABASE_NAME);
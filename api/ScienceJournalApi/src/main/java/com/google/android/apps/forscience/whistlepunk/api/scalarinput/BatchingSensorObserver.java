@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+import java.util.Arrays;
+
+/**
+ * Collects the readings passed to {@link #onNewData} and sends them on to Science Journal in
+ * batches, through {@link ISensorObserver#onNewDataBatch}, so that a fast sensor costs one binder
+ * transaction per batch rather than one per reading.
+ *
+ * <p>A batch is sent once it holds {@code maxSamples} readings, or once its first reading has
+ * waited {@code maxLatencyMillis}, whichever comes first.
+ */
+class BatchingSensorObserver extends ISensorObserver.Stub {
+  private static final String TAG = "BatchingObserver";
+
+  private final ISensorObserver target;
+  private final long maxLatencyMillis;
+  private final Handler handler;
+  private final long[] timestamps;
+  private final double[] values;
+  private int size = 0;
+  private boolean flushScheduled = false;
+
+  private final Runnable flushRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (RemoteException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+              Log.e(TAG, "error sending data", e);
+            }
+          }
+        }
+      };
+
+  BatchingSensorObserver(ISensorObserver target, int maxSamples, long maxLatencyMillis) {
+    this(target, maxSamples, maxLatencyMillis, new Handler(Looper.getMainLooper()));
+  }
+
+  BatchingSensorObserver(
+      ISensorObserver target, int maxSamples, long maxLatencyMillis, Handler handler) {
+    this.target = target;
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.handler = handler;
+    timestamps = new long[Math.max(maxSamples, 1)];
+    values = new double[timestamps.length];
+  }
+
+  @Override
+  public synchronized void onNewData(long timestamp, double data) throws RemoteException {
+    timestamps[size] = timestamp;
+    values[size] = data;
+    size++;
+    if (size == timestamps.length) {
+      flush();
+    } else if (!flushScheduled) {
+      flushScheduled = true;
+      handler.postDelayed(flushRunnable, maxLatencyMillis);
+    }
+  }
+
+  @Override
+  public synchronized void onNewDataBatch(long[] timestamps, double[] values)
+      throws RemoteException {
+    flush();
+    target.onNewDataBatch(timestamps, values);
+  }
+
+  /** Sends the readings collected so far, if any. */
+  synchronized void flush() throws RemoteException {
+    cancelScheduledFlush();
+    if (size == 0) {
+      return;
+    }
+    // Copied, since a client in this process would be handed the arrays themselves.
+    long[] batchTimestamps = Arrays.copyOf(timestamps, size);
+    double[] batchValues = Arrays.copyOf(values, size);
+    size = 0;
+    target.onNewDataBatch(batchTimestamps, batchValues);
+  }
+
+  /** Drops the readings collected so far, once the client has stopped listening. */
+  synchronized void discard() {
+    cancelScheduledFlush();
+    size = 0;
+  }
+
+  private void cancelScheduledFlush() {
+    if (flushScheduled) {
+      handler.removeCallbacks(flushRunnable);
+      flushScheduled = false;
+    }
+  }
+}
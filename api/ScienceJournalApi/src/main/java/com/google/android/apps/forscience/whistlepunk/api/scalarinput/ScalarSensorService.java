@@ -42,6 +42,12 @@ import java.util.Set;
 public abstract class ScalarSensorService extends Service {
   private static final String TAG = "ScalarService";
 
+  /** Default for {@link #getMaxSamplesPerBatch()}. */
+  protected static final int DEFAULT_MAX_SAMPLES_PER_BATCH = 50;
+
+  /** Default for {@link #getMaxBatchLatencyMillis()}. */
+  protected static final long DEFAULT_MAX_BATCH_LATENCY_MILLIS = 50;
+
   private ISensorDiscoverer.Stub discoverer = null;
 
   /** @return a human-readable name of this service */
@@ -152,6 +158,45 @@ public abstract class ScalarSensorService extends Service {
     return false;
   }
 
+  /**
+   * @return the most readings to send to Science Journal at once. If the connecting version of
+   *     Science Journal supports it, readings are collected and sent in batches, which costs much
+   *     less than sending each one separately when a sensor streams quickly. Return 1 to always
+   *     send each reading as soon as it arrives.
+   */
+  protected int getMaxSamplesPerBatch() {
+    return DEFAULT_MAX_SAMPLES_PER_BATCH;
+  }
+
+  /**
+   * @return the longest a reading may be held back while its batch fills up. Only used if {@link
+   *     #getMaxSamplesPerBatch()} is more than 1.
+   */
+  protected long getMaxBatchLatencyMillis() {
+    return DEFAULT_MAX_BATCH_LATENCY_MILLIS;
+  }
+
+  /**
+   * @return the scalar API version of the binding app.
+   *     <p>Like {@link #binderHasAllowedSignature()}, this only returns valid results when called
+   *     from within methods defined on the Binder class.
+   */
+  protected int getBinderScalarApiVersion() {
+    PackageManager pm = getPackageManager();
+    String bindingName = pm.getNameForUid(Binder.getCallingUid());
+    if (bindingName == null) {
+      return Versions.FIRST_RELEASE_SCALAR_API_VERSION;
+    }
+    try {
+      return Versions.getScalarApiVersion(bindingName, pm.getResourcesForApplication(bindingName));
+    } catch (PackageManager.NameNotFoundException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Unknown package name: " + bindingName);
+      }
+      return Versions.FIRST_RELEASE_SCALAR_API_VERSION;
+    }
+  }
+
   /**
    * @return The set of allowed app signatures. By default, this only includes Science Journal as
    *     installed from the Play Store, but extenders may add other trusted apps.
@@ -174,6 +219,7 @@ public abstract class ScalarSensorService extends Service {
   private class ScalarDiscoverer extends ISensorDiscoverer.Stub {
     private LinkedHashMap<String, AdvertisedDevice> devices = new LinkedHashMap<>();
     private Map<String, AdvertisedSensor> sensors = new ArrayMap<>();
+    private Map<String, BatchingSensorObserver> batchers = new ArrayMap<>();
     private boolean signatureHasBeenChecked = false;
     private boolean signatureCheckPassed = false;
 
@@ -231,13 +277,14 @@ public abstract class ScalarSensorService extends Service {
             String settingsKey)
             throws RemoteException {
           if (clientAllowed()) {
+            ISensorObserver sendTo = maybeBatch(sensorId, observer);
             AdvertisedSensor sensor = sensors.get(sensorId);
             // TODO: write tests for this
             if (sensor != null) {
-              sensor.startObserving(observer, listener);
+              sensor.startObserving(sendTo, listener);
             } else {
               // TODO: create scanner class?
-              findAndStartObserving(sensorId, observer, listener);
+              findAndStartObserving(sensorId, sendTo, listener);
             }
           }
         }
@@ -246,7 +293,27 @@ public abstract class ScalarSensorService extends Service {
         public void stopObserving(String sensorId) throws RemoteException {
           if (clientAllowed()) {
             sensors.get(sensorId).stopObserving();
+            BatchingSensorObserver batcher = batchers.remove(sensorId);
+            if (batcher != null) {
+              // Science Journal ignores any readings that arrive after it stops observing.
+              batcher.discard();
+            }
+          }
+        }
+
+        private ISensorObserver maybeBatch(String sensorId, ISensorObserver observer) {
+          BatchingSensorObserver previous = batchers.remove(sensorId);
+          if (previous != null) {
+            previous.discard();
+          }
+          int maxSamples = getMaxSamplesPerBatch();
+          if (maxSamples <= 1 || !Versions.supportsBatchedData(getBinderScalarApiVersion())) {
+            return observer;
           }
+          BatchingSensorObserver batcher =
+              new BatchingSensorObserver(observer, maxSamples, getMaxBatchLatencyMillis());
+          batchers.put(sensorId, batcher);
+          return batcher;
         }
 
         private void findAndStartObserving(
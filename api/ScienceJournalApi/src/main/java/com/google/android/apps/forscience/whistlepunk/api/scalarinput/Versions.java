@@ -20,6 +20,15 @@ import android.content.res.Resources;
 public class Versions {
   public static int FIRST_RELEASE_SCALAR_API_VERSION = 1;
 
+  /**
+   * First version whose clients accept {@link ISensorObserver#onNewDataBatch}.
+   *
+   * <p>Only Science Journal itself advertises this version; services built with this library still
+   * advertise {@link #FIRST_RELEASE_SCALAR_API_VERSION}, so that older versions of Science Journal
+   * keep connecting to them.
+   */
+  public static int BATCHED_DATA_SCALAR_API_VERSION = 2;
+
   public static int getScalarApiVersion(String packageName, Resources resources) {
     try {
       int identifier = resources.getIdentifier("scalar_api_version", "integer", packageName);
@@ -31,4 +40,9 @@ public class Versions {
     }
     return FIRST_RELEASE_SCALAR_API_VERSION;
   }
+
+  /** @return whether a client at {@code clientVersion} can receive batches of readings */
+  public static boolean supportsBatchedData(int clientVersion) {
+    return clientVersion >= BATCHED_DATA_SCALAR_API_VERSION;
+  }
 }